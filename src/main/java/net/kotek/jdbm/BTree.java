@@ -17,9 +17,15 @@
 package net.kotek.jdbm;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -49,6 +55,9 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * keys as small as possible to reduce disk I/O. If serialized value exceeds 32 bytes,
  * it is stored in separate record and tree contains only recid reference to it.
  * BTree uses delta compression for its keys.
+ * <p/>
+ * By default whole tree is guarded by single {@link ReadWriteLock}. Concurrent tree uses
+ * B-link algorithm instead, see {@link #concurrent}.
  *
  *
  * @author Alex Boisvert
@@ -103,6 +112,39 @@ class BTree<K, V> {
     /** if false map contains only keys, used for set*/
     private boolean hasValues = true;
 
+    /**
+     * If true, tree does not use {@link #lock}, but B-link algorithm (Lehman and Yao).
+     * Each node has high key and link to its right node at the same level. Node split moves
+     * upper half of entries into new right node, so reader which gets into split node follows
+     * right link, until it finds node whose high key is not smaller than searched key.
+     * <p/>
+     * Written nodes are never modified, writer stores modified copy instead, so readers never block.
+     * Writer locks only node it modifies, and its right node or parent if node is split.
+     * At most two nodes are locked at once, and always from left to right and bottom-up, so there are no deadlocks.
+     * <p/>
+     * Nodes are not merged on remove, empty nodes stay in tree. Iterators are weakly consistent,
+     * they do not throw ConcurrentModificationException.
+     */
+    private boolean concurrent = false;
+
+    /** guards root and height of concurrent tree, writers waiting for new root are notified on it */
+    private final Object rootLock = new Object();
+
+    /** number of node lock stripes, must be power of two */
+    private static final int NODE_LOCK_STRIPES = 64;
+
+    /**
+     * Node locks of concurrent tree striped by recid. Writer waiting for locked node
+     * is notified only when node of the same stripe is unlocked.
+     */
+    private final NodeLockStripe[] nodeLocks = new NodeLockStripe[NODE_LOCK_STRIPES];
+
+    {
+        for (int i = 0; i < NODE_LOCK_STRIPES; i++) {
+            nodeLocks[i] = new NodeLockStripe();
+        }
+    }
+
     /**
      * The number of structural modifications to the tree for fail fast iterators. This value is just for runtime, it is not persisted
      */
@@ -136,13 +178,46 @@ class BTree<K, V> {
     /**
      * Recid of the root BTreeNode
      */
-    private transient long _root;
+    private transient volatile long _root;
+
+
+    /**
+     * Total number of entries in the BTree. Concurrent tree writes it into header only on commit, see {@link #writeSize()}
+     */
+    protected final AtomicInteger _entries = new AtomicInteger();
 
+    /**
+     * True if number of entries of concurrent tree changed and header was not written yet
+     */
+    private final AtomicBoolean sizeChanged = new AtomicBoolean();
+
+    /**
+     * True if concurrent tree is registered in DB, so {@link #beforeCommit(boolean)} is called on next commit
+     */
+    private final AtomicBoolean registered = new AtomicBoolean();
 
     /**
-     * Total number of entries in the BTree
+     * Replaced or removed values of concurrent tree which are stored as separate records are not deleted
+     * immediately. Readers do not lock nodes and may still use older version of node, and deleted recid
+     * could be reused for value of other key. Retired values are deleted on commit, once all readers
+     * which could see them finished, see {@link #enterReader()}.
+     * <p/>
+     * Readers are counted in two alternating epochs. Epoch advances on commit, if all readers
+     * of previous epoch finished.
      */
-    protected volatile int _entries;
+    private volatile long epoch;
+
+    /** number of active readers in even and odd epoch */
+    private final AtomicInteger[] readers = {new AtomicInteger(), new AtomicInteger()};
+
+    /** guards retired values and epoch changes */
+    private final Object retiredLock = new Object();
+
+    /** recids of values retired in current transaction, they are not deleted if transaction is rolled back */
+    private final Utils.LongArrayList retiredInTransaction = new Utils.LongArrayList();
+
+    /** recids of values retired in committed transactions, in even and odd epoch */
+    private final Utils.LongArrayList[] retired = {new Utils.LongArrayList(), new Utils.LongArrayList()};
 
 
     /**
@@ -154,7 +229,8 @@ class BTree<K, V> {
     /**
      * Listeners which are notified about changes in records
      */
-    protected RecordListener[] recordListeners = new RecordListener[0];
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected RecordListener<K, V>[] recordListeners = new RecordListener[0];
 
     protected ReadWriteLock lock = new ReentrantReadWriteLock();
 
@@ -187,6 +263,20 @@ class BTree<K, V> {
                                                     Serializer<V> valueSerializer,
                                                     boolean hasValues)
             throws IOException {
+        return createInstance(db, comparator, keySerializer, valueSerializer, hasValues, false);
+    }
+
+
+    /**
+     * Create a new persistent BTree, which is concurrent if <code>concurrent</code> is true
+     */
+    public static <K, V> BTree<K, V> createInstance(DBAbstract db,
+                                                    Comparator<K> comparator,
+                                                    Serializer<K> keySerializer,
+                                                    Serializer<V> valueSerializer,
+                                                    boolean hasValues,
+                                                    boolean concurrent)
+            throws IOException {
         BTree<K, V> btree;
 
         if (db == null) {
@@ -200,8 +290,9 @@ class BTree<K, V> {
         btree.valueSerializer = valueSerializer;
         btree._nodeSerializer = new BTreeNode<K, V>();
         btree._nodeSerializer._btree = btree;
-        btree._recid = db.insert(btree, btree.getRecordManager().defaultSerializer());
         btree.hasValues = hasValues;
+        btree.concurrent = concurrent;
+        btree._recid = db.insert(btree, btree.getRecordManager().defaultSerializer());
         return btree;
     }
 
@@ -255,6 +346,9 @@ class BTree<K, V> {
         if (value == null) {
             throw new IllegalArgumentException("Argument 'value' is null");
         }
+        if (concurrent) {
+            return insertConcurrent(key, value, replace);
+        }
         try {
             lock.writeLock().lock();
             BTreeNode<K, V> rootNode = getRoot();
@@ -267,7 +361,7 @@ class BTree<K, V> {
                 rootNode = new BTreeNode<K, V>(this, key, value);
                 _root = rootNode._recid;
                 _height = 1;
-                _entries = 1;
+                _entries.set(1);
                 _db.update(_recid, this);
                 modCount++;
                 //notifi listeners
@@ -289,7 +383,7 @@ class BTree<K, V> {
                     dirty = true;
                 }
                 if (insert._existing == null) {
-                    _entries++;
+                    _entries.incrementAndGet();
                     modCount++;
                     dirty = true;
                 }
@@ -318,6 +412,67 @@ class BTree<K, V> {
     }
 
 
+    /**
+     * Fills empty BTree with entries sorted by key.
+     * <p/>
+     * Tree is built bottom-up. Leaf nodes are filled to given fill factor and written one after other,
+     * inner nodes are created as their children are written. This is much faster than inserting entries
+     * one by one, which splits nodes and leaves them half full. Only last few nodes of each level
+     * are kept in memory, so source may be larger than heap.
+     * <p/>
+     * With fill factor 1 nodes are full, so tree takes least space, but following inserts split nodes.
+     * If loading fails, nodes already written stay in store until transaction is rolled back.
+     * Record listeners are notified about loaded entries only after whole tree is loaded.
+     * Concurrent tree must not be modified by other threads until loading finishes.
+     *
+     * @param source     entries with keys in ascending order, keys must be unique
+     * @param fillFactor how full nodes are, between 0.5 and 1
+     */
+    public void bulkLoad(Iterator<Map.Entry<K, V>> source, float fillFactor)
+            throws IOException {
+        if (source == null) {
+            throw new IllegalArgumentException("Argument 'source' is null");
+        }
+        if (!(fillFactor >= 0.5F && fillFactor <= 1F)) {
+            throw new IllegalArgumentException("Fill factor is not between 0.5 and 1: " + fillFactor);
+        }
+        try {
+            lock.writeLock().lock();
+            if (_root != 0) {
+                throw new IllegalStateException("BTree is not empty");
+            }
+            BulkLoader<K, V> loader = new BulkLoader<K, V>(this, fillFactor);
+            while (source.hasNext()) {
+                Map.Entry<K, V> e = source.next();
+                loader.add(e.getKey(), e.getValue());
+            }
+            loader.finish();
+            if (loader.entries == 0) {
+                return;
+            }
+
+            _root = loader.root;
+            _height = loader.height;
+            _entries.set(loader.entries);
+            modCount++;
+            _db.update(_recid, this);
+
+            //notify listeners only when loading succeeded
+            if (recordListeners.length > 0) {
+                BTreeTupleBrowser<K, V> browser = browse();
+                BTreeTuple<K, V> tuple = new BTreeTuple<K, V>();
+                while (browser.getNext(tuple)) {
+                    for (RecordListener<K, V> l : recordListeners) {
+                        l.recordInserted(tuple.key, tuple.value);
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
     /**
      * Remove an entry with the given key from the BTree.
      *
@@ -330,6 +485,9 @@ class BTree<K, V> {
         if (key == null) {
             throw new IllegalArgumentException("Argument 'key' is null");
         }
+        if (concurrent) {
+            return removeConcurrent(key);
+        }
         try {
             lock.writeLock().lock();
             BTreeNode<K, V> rootNode = getRoot();
@@ -350,7 +508,7 @@ class BTree<K, V> {
                 }
             }
             if (remove._value != null) {
-                _entries--;
+                _entries.decrementAndGet();
                 modCount++;
                 dirty = true;
             }
@@ -378,6 +536,19 @@ class BTree<K, V> {
         if (key == null) {
             throw new IllegalArgumentException("Argument 'key' is null");
         }
+        if (concurrent) {
+            if (_root == 0) {
+                return null;
+            }
+            long readerEpoch = enterReader();
+            try {
+                BTreeNode<K, V> leaf = findLeaf(key);
+                int index = leaf.findIndex(key);
+                return leaf.hasKeyAt(index, key) ? leaf.valueAt(index) : null;
+            } finally {
+                exitReader(readerEpoch);
+            }
+        }
         try {
             lock.readLock().lock();
             BTreeNode<K, V> rootNode = getRoot();
@@ -433,6 +604,9 @@ class BTree<K, V> {
     @SuppressWarnings("unchecked")
     public BTreeTupleBrowser<K, V> browse()
             throws IOException {
+        if (concurrent) {
+            return browseConcurrent(null, true);
+        }
         try {
             lock.readLock().lock();
             BTreeNode<K, V> rootNode = getRoot();
@@ -461,6 +635,9 @@ class BTree<K, V> {
     @SuppressWarnings("unchecked")
     public BTreeTupleBrowser<K, V> browse(K key)
             throws IOException {
+        if (concurrent) {
+            return browseConcurrent(key, false);
+        }
         try {
             lock.readLock().lock();
             BTreeNode<K, V> rootNode = getRoot();
@@ -475,11 +652,526 @@ class BTree<K, V> {
     }
 
 
+    /**
+     * Creates browser of concurrent tree positioned at first entry, before given key
+     * or after last entry if key is null.
+     */
+    @SuppressWarnings("unchecked")
+    private BTreeTupleBrowser<K, V> browseConcurrent(K key, boolean first)
+            throws IOException {
+        if (_root == 0) {
+            return EMPTY_BROWSER;
+        }
+        long readerEpoch = enterReader();
+        try {
+            if (first) {
+                BTreeNode<K, V> node = loadNode(_root);
+                while (!node._isLeaf) {
+                    node = loadNode(node._children[node._first]);
+                }
+                return new BTreeNode.ConcurrentBrowser<K, V>(node, node._first, null, readerEpoch);
+            }
+            if (key == null) {
+                //rightmost leaf
+                BTreeNode<K, V> node = loadNode(_root);
+                while (true) {
+                    while (node._next != 0) {
+                        node = loadNode(node._next);
+                    }
+                    if (node._isLeaf) {
+                        return new BTreeNode.ConcurrentBrowser<K, V>(node, DEFAULT_SIZE, null, readerEpoch);
+                    }
+                    node = loadNode(node._children[DEFAULT_SIZE - 1]);
+                }
+            }
+            BTreeNode<K, V> leaf = findLeaf(key);
+            return new BTreeNode.ConcurrentBrowser<K, V>(leaf, leaf.findIndex(key), key, readerEpoch);
+        } finally {
+            exitReader(readerEpoch);
+        }
+    }
+
+
+    /**
+     * Inserts entry into concurrent tree. Entry is inserted into leaf, which is split if it is full.
+     * Split node is unlocked before its new right node is added into parent,
+     * meanwhile readers find right node by link.
+     */
+    private V insertConcurrent(K key, V value, boolean replace)
+            throws IOException {
+        synchronized (rootLock) {
+            if (_root == 0) {
+                BTreeNode<K, V> root = newRoot(true);
+                root._first = DEFAULT_SIZE;
+                root._recid = _db.insert(root, _nodeSerializer);
+                _root = root._recid;
+                _height = 1;
+                _db.update(_recid, this);
+            }
+        }
+
+        //recids of nodes passed on way down, so parent of split node can be found
+        Utils.LongArrayList path = new Utils.LongArrayList();
+        BTreeNode<K, V> node = lockNode(descend(key, 0, path)._recid, key);
+        int index = node.findIndex(key);
+        if (node.hasKeyAt(index, key)) {
+            V existing;
+            try {
+                existing = node.valueAt(index);
+                if (replace) {
+                    BTreeNode<K, V> copy = node.copy();
+                    copy._values[index] = externalizeValue(value);
+                    _db.update(copy._recid, copy, _nodeSerializer);
+                    retireValue(node._values[index]);
+                }
+            } finally {
+                unlockNode(node._recid);
+            }
+            if (replace) {
+                for (RecordListener<K, V> l : recordListeners) {
+                    l.recordUpdated(key, existing, value);
+                }
+            }
+            return existing;
+        }
+
+        K insertKey = key;
+        Object insertValue = externalizeValue(value);
+        long insertChild = 0;
+        //right node created by split of child, it replaces child in parent entry
+        long rightChild = 0;
+        int level = 0;
+        while (true) {
+            BTreeNode<K, V> copy = node.copy();
+            if (rightChild != 0) {
+                copy._children[index] = rightChild;
+            }
+            if (!node.isFull()) {
+                copy.insertAt(index, insertKey, insertValue, insertChild);
+                _db.update(copy._recid, copy, _nodeSerializer);
+                unlockNode(node._recid);
+                break;
+            }
+
+            BTreeNode<K, V> right = copy.splitRight(index, insertKey, insertValue, insertChild);
+            right._recid = _db.insert(right, _nodeSerializer);
+            if (right._isLeaf && right._next != 0) {
+                BTreeNode<K, V> next = lockNode(right._next, null);
+                try {
+                    next = next.copy();
+                    next._previous = right._recid;
+                    _db.update(next._recid, next, _nodeSerializer);
+                } finally {
+                    unlockNode(next._recid);
+                }
+            }
+            copy._next = right._recid;
+            _db.update(copy._recid, copy, _nodeSerializer);
+            unlockNode(node._recid);
+
+            //parent entry which points to split node gets new right node,
+            //split node is inserted before it with its new high key
+            insertKey = copy._highKey;
+            insertValue = null;
+            rightChild = right._recid;
+            level++;
+            long parent = 0;
+            if (path.size > 0) {
+                parent = path.data[path.size - 1];
+                path.removeLast();
+            } else if (createRoot(node._recid, level, insertKey, right._recid)) {
+                break;
+            } else {
+                //root was split by other thread meanwhile
+                parent = descend(insertKey, level, null)._recid;
+            }
+            node = lockNode(parent, insertKey);
+            index = node.findIndex(insertKey);
+            insertChild = node._children[index];
+        }
+
+        _entries.incrementAndGet();
+        registerSizeChange();
+        for (RecordListener<K, V> l : recordListeners) {
+            l.recordInserted(key, value);
+        }
+        return null;
+    }
+
+
+    /**
+     * Creates new root of concurrent tree above split root.
+     *
+     * @return false if root is not at given level anymore, and entry must be inserted into existing parent
+     */
+    private boolean createRoot(long left, int level, K key, long right)
+            throws IOException {
+        boolean interrupted = false;
+        try {
+            synchronized (rootLock) {
+                while (_height <= level && _root != left) {
+                    //split node is right node of root which was split by other thread, wait until it creates new root
+                    try {
+                        rootLock.wait();
+                    } catch (InterruptedException e) {
+                        //entry must be inserted, otherwise tree would be left in inconsistent state
+                        interrupted = true;
+                    }
+                }
+                if (_height > level) {
+                    return false;
+                }
+                BTreeNode<K, V> root = newRoot(false);
+                root._first = DEFAULT_SIZE - 2;
+                root._keys[DEFAULT_SIZE - 2] = key;
+                root._children[DEFAULT_SIZE - 2] = left;
+                root._children[DEFAULT_SIZE - 1] = right;
+                root._recid = _db.insert(root, _nodeSerializer);
+                _root = root._recid;
+                _height++;
+                _db.update(_recid, this);
+                rootLock.notifyAll();
+                return true;
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Creates empty root node of concurrent tree, it is not inserted yet
+     */
+    @SuppressWarnings("unchecked")
+    private BTreeNode<K, V> newRoot(boolean leaf) {
+        BTreeNode<K, V> root = new BTreeNode<K, V>();
+        root._btree = this;
+        root._isLeaf = leaf;
+        root._keys = (K[]) new Object[DEFAULT_SIZE];
+        if (leaf) {
+            root._values = new Object[DEFAULT_SIZE];
+        } else {
+            root._children = new long[DEFAULT_SIZE];
+        }
+        return root;
+    }
+
+
+    /**
+     * Removes entry from leaf of concurrent tree. Nodes are not merged, so only leaf is locked.
+     */
+    private V removeConcurrent(K key)
+            throws IOException {
+        if (_root == 0) {
+            return null;
+        }
+        BTreeNode<K, V> leaf = lockNode(descend(key, 0, null)._recid, key);
+        V value;
+        try {
+            int index = leaf.findIndex(key);
+            if (!leaf.hasKeyAt(index, key)) {
+                return null;
+            }
+            value = leaf.valueAt(index);
+            BTreeNode<K, V> copy = leaf.copy();
+            copy.removeAt(index);
+            _db.update(copy._recid, copy, _nodeSerializer);
+            retireValue(leaf._values[index]);
+        } finally {
+            unlockNode(leaf._recid);
+        }
+        _entries.decrementAndGet();
+        registerSizeChange();
+        for (RecordListener<K, V> l : recordListeners) {
+            l.recordRemoved(key, value);
+        }
+        return value;
+    }
+
+
+    /**
+     * Marks number of entries of concurrent tree as changed, header is written on commit
+     */
+    private void registerSizeChange() {
+        sizeChanged.set(true);
+        register();
+    }
+
+
+    /**
+     * Registers concurrent tree in DB, so {@link #beforeCommit(boolean)} is called on next commit
+     */
+    private void register() {
+        if (registered.compareAndSet(false, true)) {
+            _db.addModifiedTree(this);
+        }
+    }
+
+
+    /**
+     * Called by DB before commit or close. Writes header of concurrent tree if number of entries changed
+     * and deletes retired values which readers can not see anymore.
+     *
+     * @param closing true if DB is closing, there are no readers and all retired values are deleted
+     */
+    void beforeCommit(boolean closing)
+            throws IOException {
+        registered.set(false);
+        if (sizeChanged.getAndSet(false)) {
+            _db.update(_recid, this);
+        }
+
+        Utils.LongArrayList delete = new Utils.LongArrayList();
+        boolean pending;
+        synchronized (retiredLock) {
+            Utils.LongArrayList current = retired[(int) (epoch & 1)];
+            Utils.LongArrayList previous = retired[(int) ((epoch + 1) & 1)];
+            for (int i = 0; i < retiredInTransaction.size; i++) {
+                current.add(retiredInTransaction.data[i]);
+            }
+            retiredInTransaction.clear();
+            if (closing || readers[(int) ((epoch + 1) & 1)].get() == 0) {
+                //readers of previous epoch finished, so values retired in it are not visible anymore
+                for (int i = 0; i < previous.size; i++) {
+                    delete.add(previous.data[i]);
+                }
+                previous.clear();
+                if (closing) {
+                    for (int i = 0; i < current.size; i++) {
+                        delete.add(current.data[i]);
+                    }
+                    current.clear();
+                } else {
+                    //readers which start from now can not see values retired in current epoch
+                    epoch++;
+                }
+            }
+            pending = current.size != 0 || previous.size != 0;
+        }
+        for (int i = 0; i < delete.size; i++) {
+            _db.delete(delete.data[i]);
+        }
+        if (pending) {
+            register();
+        }
+    }
+
+
+    /**
+     * Called by DB after rollback. Number of entries is loaded from stored header,
+     * values retired in rolled back transaction are referenced by tree again.
+     */
+    void afterRollback()
+            throws IOException {
+        registered.set(false);
+        sizeChanged.set(false);
+        BTree<K, V> stored = _db.fetch(_recid);
+        _entries.set(stored != null ? stored._entries.get() : 0);
+        boolean pending;
+        synchronized (retiredLock) {
+            retiredInTransaction.clear();
+            pending = retired[0].size != 0 || retired[1].size != 0;
+        }
+        if (pending) {
+            register();
+        }
+    }
+
+
+    /**
+     * Marks start of read from concurrent tree without locking. Values retired after reader started
+     * are not deleted until it finishes.
+     *
+     * @return epoch which must be passed to {@link #exitReader(long)}
+     */
+    long enterReader() {
+        while (true) {
+            long readerEpoch = epoch;
+            AtomicInteger count = readers[(int) (readerEpoch & 1)];
+            count.incrementAndGet();
+            if (epoch == readerEpoch) {
+                return readerEpoch;
+            }
+            //epoch advanced meanwhile
+            count.decrementAndGet();
+        }
+    }
+
+
+    void exitReader(long readerEpoch) {
+        readers[(int) (readerEpoch & 1)].decrementAndGet();
+    }
+
+
+    /**
+     * Finds leaf of concurrent tree which contains given key, without any locking
+     */
+    private BTreeNode<K, V> findLeaf(K key)
+            throws IOException {
+        BTreeNode<K, V> node = loadNode(_root);
+        while (true) {
+            while (node.mustMoveRight(key)) {
+                node = loadNode(node._next);
+            }
+            if (node._isLeaf) {
+                return node;
+            }
+            node = loadNode(node._children[node.findIndex(key)]);
+        }
+    }
+
+
+    /**
+     * Goes down concurrent tree to node at given level (leaf is zero) whose range may contain given key.
+     * It may be necessary to move right from returned node, once it is locked.
+     *
+     * @param path if not null, recids of nodes on upper levels are added into it
+     */
+    private BTreeNode<K, V> descend(K key, int level, Utils.LongArrayList path)
+            throws IOException {
+        long recid;
+        int nodeLevel;
+        synchronized (rootLock) {
+            recid = _root;
+            nodeLevel = _height - 1;
+        }
+        BTreeNode<K, V> node = loadNode(recid);
+        while (nodeLevel > level) {
+            while (node.mustMoveRight(key)) {
+                node = loadNode(node._next);
+            }
+            if (path != null) {
+                path.add(node._recid);
+            }
+            node = loadNode(node._children[node.findIndex(key)]);
+            nodeLevel--;
+        }
+        return node;
+    }
+
+
+    /**
+     * Locks node of concurrent tree and loads its current version. If key is not null and is greater than high key,
+     * it moves right. Right node is locked before left node is unlocked.
+     *
+     * @return locked node
+     */
+    private BTreeNode<K, V> lockNode(long recid, K key)
+            throws IOException {
+        lockRecid(recid);
+        BTreeNode<K, V> node = loadNode(recid);
+        while (key != null && node.mustMoveRight(key)) {
+            long next = node._next;
+            lockRecid(next);
+            unlockNode(node._recid);
+            node = loadNode(next);
+        }
+        return node;
+    }
+
+
+    private void lockRecid(long recid) {
+        NodeLockStripe stripe = nodeLockStripe(recid);
+        boolean interrupted = false;
+        synchronized (stripe) {
+            while (stripe.lockedNodes.get(recid) != null) {
+                stripe.waiting++;
+                try {
+                    stripe.wait();
+                } catch (InterruptedException e) {
+                    //node lock must be acquired, otherwise tree would be left in inconsistent state
+                    interrupted = true;
+                } finally {
+                    stripe.waiting--;
+                }
+            }
+            stripe.lockedNodes.put(recid, Thread.currentThread());
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void unlockNode(long recid) {
+        NodeLockStripe stripe = nodeLockStripe(recid);
+        synchronized (stripe) {
+            stripe.lockedNodes.remove(recid);
+            if (stripe.waiting != 0) {
+                stripe.notifyAll();
+            }
+        }
+    }
+
+
+    private NodeLockStripe nodeLockStripe(long recid) {
+        int h = (int) (recid ^ (recid >>> 32)) * 0x9E3779B9;
+        return nodeLocks[(h ^ (h >>> 16)) & (NODE_LOCK_STRIPES - 1)];
+    }
+
+
+    /**
+     * Recids of locked nodes of one stripe, and threads which hold the locks
+     */
+    private static final class NodeLockStripe {
+        final LongHashMap<Thread> lockedNodes = new LongHashMap<Thread>();
+        /** number of writers waiting for node of this stripe */
+        int waiting;
+    }
+
+
+    BTreeNode<K, V> loadNode(long recid)
+            throws IOException {
+        BTreeNode<K, V> node = _db.fetch(recid, _nodeSerializer);
+        node._recid = recid;
+        node._btree = this;
+        return node;
+    }
+
+
+    /**
+     * Value which would be stored outside of node is inserted as separate record now,
+     * so node does not insert it again each time it is serialized
+     */
+    @SuppressWarnings("unchecked")
+    Object externalizeValue(V value)
+            throws IOException {
+        if (!hasValues) {
+            return value;
+        }
+        Serializer<V> serializer = valueSerializer != null ? valueSerializer : (Serializer<V>) _db.defaultSerializer();
+        DataInputOutput out = new DataInputOutput();
+        serializer.serialize(out, value);
+        if (out.getPos() <= BTreeLazyRecord.MAX_INTREE_RECORD_SIZE) {
+            return value;
+        }
+        //value is inserted as object, so cache does not contain its serialized form
+        long recid = _db.insert(value, serializer);
+        return new BTreeLazyRecord<V>(_db, recid, serializer);
+    }
+
+
+    /**
+     * Value of concurrent tree which was stored as separate record is deleted on later commit,
+     * see {@link #epoch}. Lazy record itself is not modified, as readers may still use it.
+     */
+    private void retireValue(Object value) {
+        if (value instanceof BTreeLazyRecord) {
+            synchronized (retiredLock) {
+                retiredInTransaction.add(((BTreeLazyRecord) value).recid);
+            }
+            register();
+        }
+    }
+
+
     /**
      * Return the number of entries (size) of the BTree.
      */
     public int size() {
-        return _entries;
+        return _entries.get();
     }
 
 
@@ -513,8 +1205,10 @@ class BTree<K, V> {
         BTree tree = new BTree();
         tree._height = in.readInt();
         tree._root = in.readLong();
-        tree._entries = in.readInt();
-        tree.hasValues = in.readBoolean();
+        tree._entries.set(in.readInt());
+        int flags = in.readUnsignedByte();
+        tree.hasValues = (flags & 1) != 0;
+        tree.concurrent = (flags & 2) != 0;
         tree._comparator = (Comparator) ser.deserialize(in);
         tree.keySerializer = (Serializer) ser.deserialize(in);
         tree.valueSerializer = (Serializer) ser.deserialize(in);
@@ -526,8 +1220,8 @@ class BTree<K, V> {
             throws IOException {
         out.writeInt(_height);
         out.writeLong(_root);
-        out.writeInt(_entries);
-        out.writeBoolean(hasValues);
+        out.writeInt(_entries.get());
+        out.writeByte((hasValues ? 1 : 0) | (concurrent ? 2 : 0));
         _db.defaultSerializer().serialize(out, _comparator);
         _db.defaultSerializer().serialize(out, keySerializer);
         _db.defaultSerializer().serialize(out, valueSerializer);
@@ -600,6 +1294,7 @@ class BTree<K, V> {
      *
      * @param listener
      */
+    @SuppressWarnings("unchecked")
     public void removeRecordListener(RecordListener<K, V> listener) {
         List l = Arrays.asList(recordListeners);
         l.remove(listener);
@@ -623,17 +1318,51 @@ class BTree<K, V> {
             throws IOException {
         try {
             lock.writeLock().lock();
-            BTreeNode<K, V> rootNode = getRoot();
-            if (rootNode != null)
-                rootNode.delete();
+            if (concurrent) {
+                deleteConcurrent();
+            } else {
+                BTreeNode<K, V> rootNode = getRoot();
+                if (rootNode != null)
+                    rootNode.delete();
+            }
             _db.delete(_recid);
-            _entries = 0;
+            _entries.set(0);
+            sizeChanged.set(false);
             modCount++;
         } finally {
             lock.writeLock().unlock();
         }
     }
 
+    /**
+     * Deletes all nodes of concurrent tree. Nodes are found by right links, level by level,
+     * as some may not be referenced from parent yet.
+     */
+    private void deleteConcurrent()
+            throws IOException {
+        if (_root == 0) {
+            return;
+        }
+        BTreeNode<K, V> first = loadNode(_root);
+        while (true) {
+            long firstChild = first._isLeaf ? 0 : first._children[first._first];
+            BTreeNode<K, V> node = first;
+            while (true) {
+                long next = node._next;
+                _db.delete(node._recid);
+                if (next == 0) {
+                    break;
+                }
+                node = loadNode(next);
+            }
+            if (firstChild == 0) {
+                break;
+            }
+            first = loadNode(firstChild);
+        }
+        _root = 0;
+    }
+
     /**
      * Used for debugging and testing only.  Populates the 'out' list with
      * the recids of all child nodes in the BTree.
@@ -653,6 +1382,224 @@ class BTree<K, V> {
         return hasValues;
     }
 
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    /**
+     * Builds tree bottom-up from sorted entries, see {@link BTree#bulkLoad(Iterator, float)}.
+     * <p/>
+     * Each level keeps entries (or child nodes) which are not written yet. Node is written once
+     * level has enough entries for full node and at least half node after it, so last node
+     * of level is never less than half full, as remove expects.
+     * <p/>
+     * Linked node needs recid of node which follows it. That recid is reserved by inserting
+     * small placeholder record, which is then updated with following node, so each node is serialized only once.
+     */
+    private static final class BulkLoader<K, V> {
+
+        private final BTree<K, V> tree;
+
+        /** number of entries in node, except last two nodes of level */
+        private final int perNode;
+
+        private final int half = DEFAULT_SIZE / 2;
+
+        /** leaf entries which are not written yet */
+        private final List<K> keys = new ArrayList<K>();
+        private final List<Object> values = new ArrayList<Object>();
+
+        /**
+         * Largest keys and recids of nodes which are not written into their parent yet.
+         * Index is level of parent, leaves are referenced from level zero.
+         */
+        private final List<List<K>> levelKeys = new ArrayList<List<K>>();
+        private final List<Utils.LongArrayList> levelChildren = new ArrayList<Utils.LongArrayList>();
+
+        /** number of nodes written on each level */
+        private final Utils.IntArrayList levelWritten = new Utils.IntArrayList();
+
+        /**
+         * Recid reserved for next node on each level, zero if not reserved.
+         * Index zero is leaf level, inner nodes are linked only in concurrent tree.
+         */
+        private final Utils.LongArrayList nextRecid = new Utils.LongArrayList();
+
+        /** recid of last written node on each level */
+        private final Utils.LongArrayList previousRecid = new Utils.LongArrayList();
+
+        /** largest key of last written leaf */
+        private K previousLeafKey;
+
+        int entries = 0;
+        long root;
+        int height;
+
+        BulkLoader(BTree<K, V> tree, float fillFactor) {
+            this.tree = tree;
+            this.perNode = Math.round(DEFAULT_SIZE * fillFactor);
+            if (perNode < half || perNode > DEFAULT_SIZE) {
+                throw new IllegalArgumentException("Fill factor is not between 0.5 and 1: " + fillFactor);
+            }
+            addLevel();
+        }
+
+        void add(K key, V value) throws IOException {
+            if (key == null) {
+                throw new IllegalArgumentException("Argument 'key' is null");
+            }
+            if (value == null) {
+                throw new IllegalArgumentException("Argument 'value' is null");
+            }
+            if (entries > 0 && compare(lastKey(), key) >= 0) {
+                throw new IllegalArgumentException("Keys are not sorted or unique: " + key);
+            }
+            keys.add(key);
+            values.add(tree.externalizeValue(value));
+            entries++;
+            if (keys.size() == perNode + half) {
+                writeLeaf(perNode, false);
+            }
+        }
+
+        /**
+         * Writes remaining entries and finds root
+         */
+        void finish() throws IOException {
+            if (entries == 0) {
+                return;
+            }
+            //rightmost leaf also contains null entry with 'infinite' key, except in concurrent tree
+            int sentinel = tree.concurrent ? 0 : 1;
+            if (keys.size() + sentinel > DEFAULT_SIZE) {
+                writeLeaf((keys.size() + sentinel) / 2, false);
+            }
+            writeLeaf(keys.size(), true);
+
+            for (int level = 1; ; level++) {
+                List<K> k = levelKeys.get(level - 1);
+                if (levelWritten.data[level] == 0 && k.size() == 1) {
+                    root = levelChildren.get(level - 1).data[0];
+                    height = level;
+                    return;
+                }
+                if (k.size() > DEFAULT_SIZE) {
+                    writeInner(level, k.size() / 2, false);
+                }
+                writeInner(level, k.size(), true);
+            }
+        }
+
+        private K lastKey() {
+            if (!keys.isEmpty()) {
+                return keys.get(keys.size() - 1);
+            }
+            return previousLeafKey;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void writeLeaf(int count, boolean last) throws IOException {
+            BTreeNode<K, V> node = new BTreeNode<K, V>();
+            node._btree = tree;
+            node._isLeaf = true;
+            node._keys = (K[]) new Object[DEFAULT_SIZE];
+            node._values = new Object[DEFAULT_SIZE];
+            int first = DEFAULT_SIZE - count - (last && !tree.concurrent ? 1 : 0);
+            node._first = (byte) first;
+            for (int i = 0; i < count; i++) {
+                node._keys[first + i] = keys.get(i);
+                node._values[first + i] = values.get(i);
+            }
+            keys.subList(0, count).clear();
+            values.subList(0, count).clear();
+            if (tree.concurrent && !last) {
+                node._highKey = node._keys[DEFAULT_SIZE - 1];
+            }
+            previousLeafKey = node._keys[DEFAULT_SIZE - 1];
+
+            node._previous = previousRecid.data[0];
+            write(node, 0, !last);
+            addChild(0, tree.concurrent ? node._highKey : node.getLargestKey(), node._recid);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void writeInner(int level, int count, boolean last) throws IOException {
+            List<K> k = levelKeys.get(level - 1);
+            Utils.LongArrayList c = levelChildren.get(level - 1);
+            BTreeNode<K, V> node = new BTreeNode<K, V>();
+            node._btree = tree;
+            node._isLeaf = false;
+            node._keys = (K[]) new Object[DEFAULT_SIZE];
+            node._children = new long[DEFAULT_SIZE];
+            int first = DEFAULT_SIZE - count;
+            node._first = (byte) first;
+            for (int i = 0; i < count; i++) {
+                node._keys[first + i] = k.get(i);
+                node._children[first + i] = c.data[i];
+            }
+            k.subList(0, count).clear();
+            System.arraycopy(c.data, count, c.data, 0, c.size - count);
+            c.size -= count;
+            if (tree.concurrent) {
+                //largest key of last node on level is null
+                node._highKey = node._keys[DEFAULT_SIZE - 1];
+            }
+
+            write(node, level, tree.concurrent && !last);
+            addChild(level, node.getLargestKey(), node._recid);
+        }
+
+        /**
+         * Writes node into recid reserved for it, or inserts it if none was reserved.
+         * If node is followed by another one, recid of following node is reserved first, so node links to it.
+         */
+        private void write(BTreeNode<K, V> node, int level, boolean linked) throws IOException {
+            long recid = nextRecid.data[level];
+            nextRecid.data[level] = linked ? tree._db.insertRaw(ByteBuffer.wrap(new byte[1])) : 0;
+            node._next = nextRecid.data[level];
+            if (recid != 0) {
+                node._recid = recid;
+                tree._db.update(recid, node, tree._nodeSerializer);
+            } else {
+                node._recid = tree._db.insert(node, tree._nodeSerializer);
+            }
+            previousRecid.data[level] = node._recid;
+            levelWritten.data[level]++;
+        }
+
+        /**
+         * Adds written node into its parent level
+         */
+        private void addChild(int level, K largestKey, long recid) throws IOException {
+            if (levelKeys.size() == level) {
+                levelKeys.add(new ArrayList<K>());
+                levelChildren.add(new Utils.LongArrayList());
+                addLevel();
+            }
+            levelKeys.get(level).add(largestKey);
+            levelChildren.get(level).add(recid);
+            if (levelKeys.get(level).size() == perNode + half) {
+                writeInner(level + 1, perNode, false);
+            }
+        }
+
+        private void addLevel() {
+            levelWritten.add(0);
+            nextRecid.add(0);
+            previousRecid.add(0);
+        }
+
+        @SuppressWarnings("unchecked")
+        private int compare(K key1, K key2) {
+            if (tree._comparator == null) {
+                return ((Comparable<K>) key1).compareTo(key2);
+            } else {
+                return tree._comparator.compare(key1, key2);
+            }
+        }
+    }
+
+
     /**
      * Browser to traverse a collection of tuples.  The browser allows for
      * forward and reverse order traversal.
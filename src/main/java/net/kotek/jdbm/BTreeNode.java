@@ -36,6 +36,11 @@ import java.util.List;
  * The only exception is the rightmost BTreeNode, which is considered to have an
  * "infinite" key value, meaning that any insert will be to the left of this
  * pseudo-key
+ * <p/>
+ * Nodes of concurrent tree also have high key and link to right node at the same level,
+ * see {@link BTree#concurrent}. Such nodes are never modified after they were written,
+ * writer always stores modified copy. Rightmost leaf of concurrent tree does not have
+ * "infinite" entry, its high key is null instead.
  *
  * @author Alex Boisvert
  * @author Jan Kotek
@@ -95,10 +100,17 @@ final class BTreeNode<K, V>
 
 
     /**
-     * Next leaf node (only if this node is a leaf)
+     * Next leaf node (only if this node is a leaf).
+     * In concurrent tree also right node of non-leaf node.
      */
     protected long _next;
 
+    /**
+     * Upper bound of keys in this node, null if this is rightmost node at its level.
+     * Only used by concurrent tree.
+     */
+    protected K _highKey;
+
     /**
      * Return the B+Tree that is the owner of this {@link BTreeNode}.
      */
@@ -291,6 +303,145 @@ final class BTreeNode<K, V>
         }
     }
 
+    /**
+     * Returns true if given key is greater than high key of this concurrent node,
+     * so it must be searched in right node
+     */
+    boolean mustMoveRight(K key) {
+        return _next != 0 && _highKey != null && compare(key, _highKey) > 0;
+    }
+
+    /**
+     * Returns index of first key equal or greater than given key, or DEFAULT_SIZE if there is none.
+     * Null key is considered to be greater than all keys. Unlike findChildren it works on empty node.
+     */
+    int findIndex(K key) {
+        int left = _first;
+        int right = BTree.DEFAULT_SIZE;
+        while (left < right) {
+            int middle = (left + right) >>> 1;
+            if (compare(_keys[middle], key) < 0) {
+                left = middle + 1;
+            } else {
+                right = middle;
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Returns true if leaf contains given key at given index
+     */
+    boolean hasKeyAt(int index, K key) {
+        return index < BTree.DEFAULT_SIZE && _keys[index] != null && compare(_keys[index], key) == 0;
+    }
+
+    /**
+     * Returns value at given index of leaf. Value of concurrent tree may be null,
+     * if it was removed while this node was read.
+     */
+    @SuppressWarnings("unchecked")
+    V valueAt(int index) {
+        if (_values[index] instanceof BTreeLazyRecord)
+            return ((BTreeLazyRecord<V>) _values[index]).get();
+        else
+            return (V) _values[index];
+    }
+
+    /**
+     * Returns copy of this node, which can be modified and written instead of this node
+     */
+    BTreeNode<K, V> copy() {
+        BTreeNode<K, V> node = new BTreeNode<K, V>();
+        node._btree = _btree;
+        node._recid = _recid;
+        node._isLeaf = _isLeaf;
+        node._keys = _keys.clone();
+        if (_values != null)
+            node._values = _values.clone();
+        if (_children != null)
+            node._children = _children.clone();
+        node._first = _first;
+        node._previous = _previous;
+        node._next = _next;
+        node._highKey = _highKey;
+        return node;
+    }
+
+    /**
+     * Inserts entry (or child for non-leaf node) before given index, node must not be full
+     */
+    void insertAt(int index, K key, Object value, long child) {
+        if (_isLeaf) {
+            insertEntry(this, index - 1, key, value);
+        } else {
+            insertChild(this, index - 1, key, child);
+        }
+    }
+
+    /**
+     * Removes entry at given index from leaf
+     */
+    void removeAt(int index) {
+        removeEntry(this, index);
+    }
+
+    /**
+     * Splits full node of concurrent tree, while new entry is inserted before given index.
+     * Lower half of entries stays in this node, upper half is moved into returned node, which is placed
+     * on right side. So reader which gets here with key from upper half only needs to follow right link.
+     * Returned node is not written yet.
+     */
+    @SuppressWarnings("unchecked")
+    BTreeNode<K, V> splitRight(int index, K key, Object value, long child) {
+        final int size = BTree.DEFAULT_SIZE + 1;
+        Object[] keys = new Object[size];
+        Object[] values = new Object[size];
+        long[] children = new long[size];
+        for (int i = 0, j = 0; j < size; j++) {
+            if (j == index) {
+                keys[j] = key;
+                values[j] = value;
+                children[j] = child;
+            } else {
+                keys[j] = _keys[i];
+                if (_isLeaf)
+                    values[j] = _values[i];
+                else
+                    children[j] = _children[i];
+                i++;
+            }
+        }
+        final int lower = size / 2;
+
+        BTreeNode<K, V> right = new BTreeNode<K, V>();
+        right._btree = _btree;
+        right._isLeaf = _isLeaf;
+        right._keys = (K[]) new Object[BTree.DEFAULT_SIZE];
+        right._first = (byte) (BTree.DEFAULT_SIZE - (size - lower));
+        System.arraycopy(keys, lower, right._keys, right._first, size - lower);
+        Object[] leftKeys = new Object[BTree.DEFAULT_SIZE];
+        _first = (byte) (BTree.DEFAULT_SIZE - lower);
+        System.arraycopy(keys, 0, leftKeys, _first, lower);
+        _keys = (K[]) leftKeys;
+        if (_isLeaf) {
+            right._values = new Object[BTree.DEFAULT_SIZE];
+            System.arraycopy(values, lower, right._values, right._first, size - lower);
+            _values = new Object[BTree.DEFAULT_SIZE];
+            System.arraycopy(values, 0, _values, _first, lower);
+            right._previous = _recid;
+        } else {
+            right._children = new long[BTree.DEFAULT_SIZE];
+            System.arraycopy(children, lower, right._children, right._first, size - lower);
+            _children = new long[BTree.DEFAULT_SIZE];
+            System.arraycopy(children, 0, _children, _first, lower);
+        }
+        right._next = _next;
+        right._highKey = _highKey;
+        _highKey = _keys[BTree.DEFAULT_SIZE - 1];
+        return right;
+    }
+
     /**
      * Deletes this BTreeNode and all children nodes from the record manager
      */
@@ -733,7 +884,7 @@ final class BTreeNode<K, V>
      * Insert entry at given position.
      */
     private static <K, V> void insertEntry(BTreeNode<K, V> node, int index,
-                                           K key, V value) {
+                                           K key, Object value) {
         K[] keys = node._keys;
         Object[] values = node._values;
         int start = node._first;
@@ -824,7 +975,7 @@ final class BTreeNode<K, V>
     /**
      * Load the node at the given recid.
      */
-    private BTreeNode<K, V> loadNode(long recid)
+    BTreeNode<K, V> loadNode(long recid)
             throws IOException {
         BTreeNode<K, V> child = _btree._db.fetch(recid, this);
         child._recid = recid;
@@ -900,6 +1051,7 @@ final class BTreeNode<K, V>
 
         BTreeNode<K, V> node = new BTreeNode<K, V>();
 
+        boolean link = false;
         switch (ois.readUnsignedByte()) {
             case SerializationHeader.BTREE_NODE_LEAF:
                 node._isLeaf = true;
@@ -907,6 +1059,14 @@ final class BTreeNode<K, V>
             case SerializationHeader.BTREE_NODE_NONLEAF:
                 node._isLeaf = false;
                 break;
+            case SerializationHeader.BTREE_NODE_LEAF_LINK:
+                node._isLeaf = true;
+                link = true;
+                break;
+            case SerializationHeader.BTREE_NODE_NONLEAF_LINK:
+                node._isLeaf = false;
+                link = true;
+                break;
             default:
                 throw new InternalError("wrong BTreeNode header");
         }
@@ -914,6 +1074,8 @@ final class BTreeNode<K, V>
         if (node._isLeaf) {
             node._previous = LongPacker.unpackLong(ois);
             node._next = LongPacker.unpackLong(ois);
+        } else if (link) {
+            node._next = LongPacker.unpackLong(ois);
         }
 
 
@@ -932,6 +1094,8 @@ final class BTreeNode<K, V>
         try {
 
             node._keys = readKeys(ois, node._first);
+            if (link && ois.readBoolean())
+                node._highKey = keySerializer().deserialize(ois);
 
         } catch (ClassNotFoundException except) {
             throw new IOException(except.getMessage());
@@ -966,10 +1130,16 @@ final class BTreeNode<K, V>
 
         BTreeNode<K, V> node = obj;
 
-        oos.writeByte(node._isLeaf ? SerializationHeader.BTREE_NODE_LEAF : SerializationHeader.BTREE_NODE_NONLEAF);
+        final boolean link = _btree.isConcurrent();
+        if (link)
+            oos.writeByte(node._isLeaf ? SerializationHeader.BTREE_NODE_LEAF_LINK : SerializationHeader.BTREE_NODE_NONLEAF_LINK);
+        else
+            oos.writeByte(node._isLeaf ? SerializationHeader.BTREE_NODE_LEAF : SerializationHeader.BTREE_NODE_NONLEAF);
         if (node._isLeaf) {
             LongPacker.packLong(oos, node._previous);
             LongPacker.packLong(oos, node._next);
+        } else if (link) {
+            LongPacker.packLong(oos, node._next);
         }
 
         oos.write(node._first);
@@ -981,6 +1151,11 @@ final class BTreeNode<K, V>
         }
 
         writeKeys(oos, node._keys, node._first);
+        if (link) {
+            oos.writeBoolean(node._highKey != null);
+            if (node._highKey != null)
+                keySerializer().serialize(oos, node._highKey);
+        }
 
         if (node._isLeaf && _btree.hasValues()) {
             writeValues(oos, node);
@@ -988,6 +1163,12 @@ final class BTreeNode<K, V>
     }
 
 
+    @SuppressWarnings("unchecked")
+    private Serializer<K> keySerializer() {
+        return _btree.keySerializer != null ? _btree.keySerializer : (Serializer<K>) _btree.getRecordManager().defaultSerializer();
+    }
+
+
     private void readValues(DataInputOutput ois, BTreeNode<K, V> node) throws IOException, ClassNotFoundException {
         node._values = new Object[BTree.DEFAULT_SIZE];
         if(_btree.hasValues()){
@@ -1452,6 +1633,194 @@ final class BTreeNode<K, V>
         }
     }
 
+    /**
+     * Browser to traverse leaf nodes of concurrent tree. Leaves may be split while browser is on them,
+     * so browser remembers last returned key and skips keys it has already passed.
+     * Browser does not lock anything and never throws ConcurrentModificationException.
+     * <p/>
+     * Each call is counted as reader of tree. If epoch changed since current node was loaded,
+     * values retired by writers may have been deleted, so current version of node is loaded.
+     */
+    static final class ConcurrentBrowser<K, V>
+            implements BTree.BTreeTupleBrowser<K, V> {
+
+        /**
+         * Current node, it may be older version of node.
+         */
+        private BTreeNode<K, V> _node;
+
+        /**
+         * Current index in the node.  The index positionned on the next
+         * tuple to return.
+         */
+        private int _index;
+
+        /**
+         * Last returned key, or null if nothing was returned yet
+         */
+        private K _lastKey;
+
+        /**
+         * True if browser is positioned after last key, false if before it
+         */
+        private boolean _afterLast;
+
+        /**
+         * Epoch of tree readers in which current node was loaded
+         */
+        private long _epoch;
+
+
+        /**
+         * Create a browser.
+         *
+         * @param node  Current node
+         * @param index Position of the next tuple to return.
+         * @param key   Key browser is positioned before, or null
+         * @param epoch Epoch in which node was loaded
+         */
+        ConcurrentBrowser(BTreeNode<K, V> node, int index, K key, long epoch) {
+            _node = node;
+            _index = index;
+            _lastKey = key;
+            _epoch = epoch;
+        }
+
+        public boolean getNext(BTree.BTreeTuple<K, V> tuple)
+                throws IOException {
+            BTree<K, V> tree = _node._btree;
+            long readerEpoch = tree.enterReader();
+            try {
+                reloadIfEpochChanged(readerEpoch);
+                return next(tuple);
+            } finally {
+                tree.exitReader(readerEpoch);
+            }
+        }
+
+        public boolean getPrevious(BTree.BTreeTuple<K, V> tuple)
+                throws IOException {
+            BTree<K, V> tree = _node._btree;
+            long readerEpoch = tree.enterReader();
+            try {
+                reloadIfEpochChanged(readerEpoch);
+                return previous(tuple);
+            } finally {
+                tree.exitReader(readerEpoch);
+            }
+        }
+
+        private void reloadIfEpochChanged(long readerEpoch)
+                throws IOException {
+            if (readerEpoch == _epoch) {
+                return;
+            }
+            BTreeNode<K, V> node = _node.loadNode(_node._recid);
+            if (_lastKey != null) {
+                _index = position(node);
+            } else {
+                //nothing was returned yet, browser is at start or end
+                _index = _index >= BTree.DEFAULT_SIZE ? BTree.DEFAULT_SIZE : node._first;
+            }
+            _node = node;
+            _epoch = readerEpoch;
+        }
+
+        /**
+         * Returns index in node, which is after last key if browser is positioned after it
+         */
+        private int position(BTreeNode<K, V> node) {
+            int index = node.findIndex(_lastKey);
+            if (_afterLast && node.hasKeyAt(index, _lastKey))
+                index++;
+            return index;
+        }
+
+        private boolean next(BTree.BTreeTuple<K, V> tuple)
+                throws IOException {
+            while (true) {
+                if (_index >= BTree.DEFAULT_SIZE) {
+                    //node may have been split meanwhile, so continue in its current version
+                    BTreeNode<K, V> node = _node.loadNode(_node._recid);
+                    int index = node._first;
+                    if (_lastKey != null) {
+                        index = position(node);
+                    }
+                    if (index < BTree.DEFAULT_SIZE) {
+                        _node = node;
+                        _index = index;
+                    } else if (node._next != 0) {
+                        _node = node.loadNode(node._next);
+                        _index = _node._first;
+                        continue;
+                    } else {
+                        // reached end of the tree.
+                        return false;
+                    }
+                }
+                K key = _node._keys[_index];
+                V value = _node.valueAt(_index);
+                _index++;
+                if (_lastKey != null) {
+                    int c = _node.compare(key, _lastKey);
+                    if (_afterLast ? c <= 0 : c < 0)
+                        continue;
+                }
+                if (value == null) {
+                    //removed by other thread
+                    continue;
+                }
+                _lastKey = key;
+                _afterLast = true;
+                tuple.key = key;
+                tuple.value = value;
+                return true;
+            }
+        }
+
+        private boolean previous(BTree.BTreeTuple<K, V> tuple)
+                throws IOException {
+            while (true) {
+                if (_index <= _node._first) {
+                    if (_node._previous == 0) {
+                        // reached beginning of the tree
+                        return false;
+                    }
+                    //previous node may have been split, find node right before current node
+                    BTreeNode<K, V> node = _node.loadNode(_node._previous);
+                    while (node._next != _node._recid && node._next != 0) {
+                        node = node.loadNode(node._next);
+                    }
+                    _node = node;
+                    _index = BTree.DEFAULT_SIZE;
+                    continue;
+                }
+                _index--;
+                K key = _node._keys[_index];
+                V value = _node.valueAt(_index);
+                if (_lastKey != null) {
+                    int c = _node.compare(key, _lastKey);
+                    if (_afterLast ? c > 0 : c >= 0)
+                        continue;
+                }
+                if (value == null) {
+                    //removed by other thread
+                    continue;
+                }
+                _lastKey = key;
+                _afterLast = false;
+                tuple.key = key;
+                tuple.value = value;
+                return true;
+            }
+        }
+
+        public void remove(K key) throws IOException {
+            //position is given by last key, so it does not change
+            _node._btree.remove(key);
+        }
+    }
+
     /**
      * Used for debugging and testing only.  Recursively obtains the recids of
      * all child BTreeNodes and adds them to the 'out' list.
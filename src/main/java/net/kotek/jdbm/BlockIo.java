@@ -24,6 +24,7 @@ import static net.kotek.jdbm.Magic.*;
 
 /**
  * Wraps a page sizes ByteBuffer for reading and writting.
+ * Capacity of ByteBuffer is block size of file.
  * <p>
  * ByteBuffer may be subview of a larger buffer (ie large buffer mappedover a file).
  * In this case ByteBuffer will have set limit, mark and other variables to limit its size.
@@ -45,6 +46,28 @@ final class BlockIo {
 
     private int transactionCount = 0;
 
+    /** position of this block in RecordFile clean page cache, -1 if not cached */
+    int cacheSlot = -1;
+
+    /** log record contains whole page */
+    static final byte LOG_FULL = 0;
+    /** log record contains only modified byte ranges */
+    static final byte LOG_DELTA = 1;
+
+    /** maximal number of modified ranges tracked, more ranges are merged together */
+    private static final int MAX_DIRTY_RANGES = 8;
+    /** ranges closer than this are merged, each range costs few bytes in log */
+    private static final int DIRTY_RANGE_GAP = 8;
+
+    /**
+     * Byte ranges modified since block was last written to log, pairs of start and end offsets.
+     * After readExternal of delta record, these are ranges contained in this block.
+     */
+    private int[] dirtyRanges;
+    private int dirtyRangeCount = 0;
+    /** true if this block was read from delta log record and needs base page */
+    private boolean delta = false;
+
     /**
      * Default constructor for serialization
      */
@@ -81,17 +104,25 @@ final class BlockIo {
     }
 
     /**
-     * Sets the dirty flag
+     * Sets the dirty flag. Whole page is considered modified.
      */
     void setDirty() {
+        setDirty(0, data.capacity());
+    }
+
+    /**
+     * Sets the dirty flag and records modified byte range
+     */
+    private void setDirty(int pos, int len) {
         dirty = true;
+        addDirtyRange(pos, pos + len);
         
         if(data.isReadOnly()){
             // make copy if needed, so we can write into buffer
             ByteBuffer old = data;
-            data = ByteBuffer.allocate(Storage.BLOCK_SIZE);
+            data = ByteBuffer.allocate(old.capacity());
             old.rewind();
-            old.get(data.array(),0,Storage.BLOCK_SIZE);
+            old.get(data.array(),0,data.capacity());
             data.rewind();
         }
     }
@@ -101,6 +132,44 @@ final class BlockIo {
      */
     void setClean() {
         dirty = false;
+        dirtyRangeCount = 0;
+    }
+
+    /**
+     * Adds range to modified ranges, merges it with nearby range if possible
+     */
+    private void addDirtyRange(int from, int to) {
+        if (dirtyRanges == null)
+            dirtyRanges = new int[MAX_DIRTY_RANGES * 2];
+
+        int nearest = -1;
+        int nearestGap = Integer.MAX_VALUE;
+        for (int i = 0; i < dirtyRangeCount * 2; i += 2) {
+            int gap = Math.max(dirtyRanges[i] - to, from - dirtyRanges[i + 1]);
+            if (gap < nearestGap) {
+                nearestGap = gap;
+                nearest = i;
+            }
+        }
+
+        if (nearest != -1 && (nearestGap <= DIRTY_RANGE_GAP || dirtyRangeCount == MAX_DIRTY_RANGES)) {
+            dirtyRanges[nearest] = Math.min(dirtyRanges[nearest], from);
+            dirtyRanges[nearest + 1] = Math.max(dirtyRanges[nearest + 1], to);
+        } else {
+            dirtyRanges[dirtyRangeCount * 2] = from;
+            dirtyRanges[dirtyRangeCount * 2 + 1] = to;
+            dirtyRangeCount++;
+        }
+    }
+
+    /**
+     * Returns number of bytes in modified ranges
+     */
+    private int dirtyRangeSize() {
+        int size = 0;
+        for (int i = 0; i < dirtyRangeCount * 2; i += 2)
+            size += dirtyRanges[i + 1] - dirtyRanges[i];
+        return size;
     }
 
     /**
@@ -120,13 +189,10 @@ final class BlockIo {
 
     /**
      * Increments transaction count for this block, to signal that this
-     * block is in the log but not yet in the data file. The method also
-     * takes a snapshot so that the data may be modified in new transactions.
+     * block is in the log but not yet in the data file.
      */
     synchronized void incrementTransactionCount() {
         transactionCount++;
-        // @fixme(alex)
-        setClean();
     }
 
     /**
@@ -152,7 +218,7 @@ final class BlockIo {
      * Writes a byte to the indicated position
      */
     public void writeByte(int pos, byte value) {
-        setDirty();
+        setDirty(pos, 1);
         data.put(pos,value);
     }
 
@@ -167,7 +233,7 @@ final class BlockIo {
      * Writes a short to the indicated position
      */
     public void writeShort(int pos, short value) {
-        setDirty();
+        setDirty(pos, 2);
         data.putShort(pos,value);
     }
 
@@ -182,7 +248,7 @@ final class BlockIo {
      * Writes an int to the indicated position
      */
     public void writeInt(int pos, int value) {
-        setDirty();
+        setDirty(pos, 4);
         data.putInt(pos,value);
     }
 
@@ -197,7 +263,7 @@ final class BlockIo {
      * Writes a long to the indicated position
      */
     public void writeLong(int pos, long value) {
-        setDirty();
+        setDirty(pos, 8);
         data.putLong(pos,value);
     }
 
@@ -233,7 +299,7 @@ final class BlockIo {
             negativeBit = 0x80;
         }
 
-        setDirty();
+        setDirty(pos, 6);
         data.put(pos + 0,(byte) ((0x7f & (value >> 40)) | negativeBit));
         data.put(pos + 1, (byte) (0xff & (value >> 32)));
         data.put(pos + 2, (byte) (0xff & (value >> 24)));
@@ -252,49 +318,124 @@ final class BlockIo {
                 + dirty +")";
     }
 
-    public void readExternal(DataInputStream in, Cipher cipherOut) throws IOException {
+    public void readExternal(DataInputStream in, Cipher cipherOut, int blockSize) throws IOException {
         blockId = in.readLong();
-        byte[] data2 = new byte[Storage.BLOCK_SIZE];
+        if (in.readByte() == LOG_DELTA) {
+            //only modified ranges are in log, rest of page must be taken from data file
+            delta = true;
+            dirtyRangeCount = LongPacker.unpackInt(in);
+            dirtyRanges = new int[dirtyRangeCount * 2];
+            byte[] data2 = new byte[blockSize];
+            for (int i = 0; i < dirtyRangeCount * 2; i += 2) {
+                dirtyRanges[i] = LongPacker.unpackInt(in);
+                dirtyRanges[i + 1] = dirtyRanges[i] + LongPacker.unpackInt(in);
+                in.readFully(data2, dirtyRanges[i], dirtyRanges[i + 1] - dirtyRanges[i]);
+            }
+            data = ByteBuffer.wrap(data2);
+            return;
+        }
+        byte[] data2 = new byte[blockSize];
         in.readFully(data2);
         if (cipherOut == null || Utils.allZeros(data2))
             data = ByteBuffer.wrap(data2);
-        else try {
-            data = ByteBuffer.wrap(cipherOut.doFinal(data2));
-        } catch (Exception e) {
-            throw new IOError(e);
-        }
+        else
+            data = ByteBuffer.wrap(Utils.decrypt(cipherOut, data2));
     }
 
 
+    /**
+     * Writes block into transaction log. If only small part of page was modified and
+     * encryption is not used, only modified ranges are written.
+     * Encrypted pages are always written whole, those can not be patched.
+     */
     public void writeExternal(DataOutput out, Cipher cipherIn) throws IOException {
         out.writeLong(blockId);
-        out.write(Utils.encrypt(cipherIn, data.array()));
+        if (cipherIn == null && dirtyRangeCount > 0 && dirtyRangeSize() < data.capacity() / 2) {
+            out.writeByte(LOG_DELTA);
+            LongPacker.packInt(out, dirtyRangeCount);
+            byte[] b = data.array();
+            for (int i = 0; i < dirtyRangeCount * 2; i += 2) {
+                LongPacker.packInt(out, dirtyRanges[i]);
+                LongPacker.packInt(out, dirtyRanges[i + 1] - dirtyRanges[i]);
+                out.write(b, dirtyRanges[i], dirtyRanges[i + 1] - dirtyRanges[i]);
+            }
+        } else {
+            out.writeByte(LOG_FULL);
+            out.write(Utils.encrypt(cipherIn, data.array()));
+        }
+    }
+
+    /**
+     * Returns true if this block was read from delta log record
+     * and {@link #applyDelta(ByteBuffer)} must be called before it is written into data file
+     */
+    boolean isDelta() {
+        return delta;
+    }
+
+    /**
+     * Applies modified ranges read from log on top of base page from data file.
+     */
+    void applyDelta(ByteBuffer base) {
+        byte[] b = new byte[base.capacity()];
+        base.rewind();
+        base.get(b, 0, b.length);
+        byte[] d = data.array();
+        for (int i = 0; i < dirtyRangeCount * 2; i += 2)
+            System.arraycopy(d, dirtyRanges[i], b, dirtyRanges[i], dirtyRanges[i + 1] - dirtyRanges[i]);
+        data = ByteBuffer.wrap(b);
+        delta = false;
+        dirtyRangeCount = 0;
     }
 
 
     public byte[] getByteArray() {
         if ( data.hasArray())
             return data.array();
-        byte[] d= new byte[Storage.BLOCK_SIZE];
+        byte[] d= new byte[data.capacity()];
         data.rewind();
-        data.get(d,0,Storage.BLOCK_SIZE);
+        data.get(d,0,d.length);
         return d;
     }
 
+    /**
+     * Copies bytes from page into buffer. Position of page data is not changed,
+     * so it may be called concurrently on page returned by {@link RecordFile#view(long)}.
+     */
+    public void readByteArray(byte[] buf, int dstOffset, int offset, int length) {
+        ByteBuffer d = data.duplicate();
+        d.position(offset);
+        d.get(buf, dstOffset, length);
+    }
+
+    /**
+     * Returns read-only view of part of page, it shares data with page.
+     */
+    ByteBuffer readOnlySlice(int offset, int length) {
+        ByteBuffer d = data.asReadOnlyBuffer();
+        d.limit(offset + length);
+        d.position(offset);
+        return d.slice();
+    }
+
     public void writeByteArray(byte[] buf, int srcOffset, int offset, int length) {
-        setDirty();
+        setDirty(offset, length);
         data.rewind();
         data.position(offset);
         data.put(buf,srcOffset,length);
     }
     
     public void fileHeaderCheckHead(boolean isNew){
-        if (isNew)
+        if (isNew) {
             writeShort(FILE_HEADER_O_MAGIC, Magic.FILE_HEADER);
-        else{
+            fileHeaderSetRoot(FILE_HEADER_ROOT_BLOCK_SIZE, data.capacity());
+        } else{
             short magic = readShort(FILE_HEADER_O_MAGIC);
             if(magic!=FILE_HEADER)
                 throw new Error("CRITICAL: file header magic not OK " + magic);
+            long blockSize = fileHeaderGetRoot(FILE_HEADER_ROOT_BLOCK_SIZE);
+            if (blockSize != 0 && blockSize != data.capacity())
+                throw new Error("CRITICAL: file was created with block size " + blockSize + ", not " + data.capacity());
        }
     }
 
@@ -353,16 +494,23 @@ final class BlockIo {
 
      */
     long fileHeaderGetRoot(final int root) {
-        final short offset = (short) (FILE_HEADER_O_ROOTS + (root * Magic.SZ_LONG));
+        final int offset = FILE_HEADER_O_ROOTS + root * Magic.SZ_LONG;
         return readLong(offset);
     }
 
+    /**
+     * Returns number of root rowids, those fill rest of header block
+     */
+    int fileHeaderRootCount() {
+        return (data.capacity() - FILE_HEADER_O_ROOTS) / Magic.SZ_LONG;
+    }
+
     /**
      * Sets the indicated root rowid.
      *
      */
     void fileHeaderSetRoot(final int root, final long rowid) {
-        final short offset = (short) (FILE_HEADER_O_ROOTS + (root * Magic.SZ_LONG));
+        final int offset = FILE_HEADER_O_ROOTS + root * Magic.SZ_LONG;
         writeLong(offset, rowid);
     }
 
@@ -411,12 +559,12 @@ final class BlockIo {
         writeShort(PAGE_HEADER_O_MAGIC, (short) (Magic.BLOCK + type));
     }
 
-    long pageHeaderGetLocation(final short pos){
+    long pageHeaderGetLocation(final int pos){
         return readSixByteLong(pos + PhysicalRowId_O_LOCATION);
     }
 
 
-    void pageHeaderSetLocation(short pos, long value) {
+    void pageHeaderSetLocation(int pos, long value) {
        writeSixByteLong(pos + PhysicalRowId_O_LOCATION, value);
     }
 
@@ -437,15 +585,18 @@ final class BlockIo {
 //        writeShort(pos + PhysicalRowId_O_OFFSET, value);
 //    }
 
-    short dataPageGetFirst() {
-        return readShort(DATA_PAGE_O_FIRST);
+    /**
+     * Returns offset of first record on data page, it is stored as unsigned short
+     */
+    int dataPageGetFirst() {
+        return readShort(DATA_PAGE_O_FIRST) & 0xFFFF;
     }
 
-    void dataPageSetFirst(short value) {
+    void dataPageSetFirst(int value) {
         pageHeaderParanoiaMagicOk();
         if (value > 0 && value < DATA_PAGE_O_DATA)
             throw new Error("DataPage.setFirst: offset " + value + " too small");
-        writeShort(DATA_PAGE_O_FIRST, value);
+        writeShort(DATA_PAGE_O_FIRST, (short) value);
     }
 
 
@@ -467,7 +618,7 @@ final class BlockIo {
      * Frees a slot
      */
     void FreePhysicalRowId_free(int slot) {
-        short pos = FreePhysicalRowId_slotToOffset(slot);
+        int pos = FreePhysicalRowId_slotToOffset(slot);
         FreePhysicalRowId_setSize(pos, 0);
         //get(slot).setSize(0);
         FreePhysicalRowId_setCount((short) (FreePhysicalRowId_getCount() - 1));
@@ -476,7 +627,7 @@ final class BlockIo {
     /**
      * Allocates a slot
      */
-    short FreePhysicalRowId_alloc(int slot) {
+    int FreePhysicalRowId_alloc(int slot) {
         FreePhysicalRowId_setCount((short) (FreePhysicalRowId_getCount() + 1));
         return FreePhysicalRowId_slotToOffset(slot);
     }
@@ -485,20 +636,26 @@ final class BlockIo {
      * Returns true if a slot is free
      */
     boolean FreePhysicalRowId_isFree(int slot) {
-        short pos = FreePhysicalRowId_slotToOffset(slot);
+        int pos = FreePhysicalRowId_slotToOffset(slot);
         return FreePhysicalRowId_getSize(pos) == 0;
     }
 
     /**
      * Converts slot to offset
      */
-    short FreePhysicalRowId_slotToOffset(int slot) {
-        return (short) (FreePhysicalRowId_O_FREE + (slot * FreePhysicalRowId_SIZE));
+    int FreePhysicalRowId_slotToOffset(int slot) {
+        return FreePhysicalRowId_O_FREE + (slot * FreePhysicalRowId_SIZE);
+    }
+
+    int FreePhysicalRowId_offsetToSlot(int pos) {
+        return (pos - FreePhysicalRowId_O_FREE) / FreePhysicalRowId_SIZE;
     }
 
-    int FreePhysicalRowId_offsetToSlot(short pos) {
-        int pos2 = pos;
-        return (pos2 - FreePhysicalRowId_O_FREE) / FreePhysicalRowId_SIZE;
+    /**
+     * Returns number of slots on free physical rowid page
+     */
+    int FreePhysicalRowId_elemsPerPage() {
+        return (data.capacity() - FreePhysicalRowId_O_FREE) / FreePhysicalRowId_SIZE;
     }
 
 
@@ -506,7 +663,8 @@ final class BlockIo {
      * Returns first free slot, -1 if no slots are available
      */
     int FreePhysicalRowId_getFirstFree() {
-        for (int i = 0; i < FreePhysicalRowId_ELEMS_PER_PAGE; i++) {
+        final int elemsPerPage = FreePhysicalRowId_elemsPerPage();
+        for (int i = 0; i < elemsPerPage; i++) {
             if (FreePhysicalRowId_isFree(i))
                 return i;
         }
@@ -516,89 +674,23 @@ final class BlockIo {
     /**
      * Returns the size
      */
-    int FreePhysicalRowId_getSize(short pos) {
+    int FreePhysicalRowId_getSize(int pos) {
         return readInt(pos + FreePhysicalRowId_O_SIZE);
     }
 
     /**
      * Sets the size
      */
-    void FreePhysicalRowId_setSize(short pos, int value) {
+    void FreePhysicalRowId_setSize(int pos, int value) {
         writeInt(pos + FreePhysicalRowId_O_SIZE, value);
     }
 
     public long FreePhysicalRowId_slotToLocation(int slot) {
-        short pos = FreePhysicalRowId_slotToOffset(slot);
+        int pos = FreePhysicalRowId_slotToOffset(slot);
         return pageHeaderGetLocation(pos);
     }
 
 
-    /**
-     * Returns first slot with available size >= indicated size, or minus maximal size available on this page
-     *
-     * @param requestedSize requested allocation size.
-     *
-     * //TODO too big method, move it away
-     */
-    int FreePhysicalRowId_getFirstLargerThan(final int requestedSize) {
-
-        int maxSize = 0;
-        /*
-           * Tracks slot of the smallest available physical row on the page.
-           */
-        int bestSlot = -1;
-        /*
-           * Tracks size of the smallest available physical row on the page.
-           */
-        int bestSlotSize = 0;
-        /*
-           * Scan each slot in the page.
-           */
-        for (int i = 0; i < Magic.FreePhysicalRowId_ELEMS_PER_PAGE; i++) {
-            /*
-                * When large allocations are used, the space wasted by the first fit policy can become very large (25% of
-                * the store). The first fit policy has been modified to only accept a record with a maximum amount of
-                * wasted capacity given the requested allocation size.
-                */
-            // Note: isAllocated(i) is equiv to get(i).getSize() != 0
-            //long theSize = get(i).getSize(); // capacity of this free record.
-            short pos = FreePhysicalRowId_slotToOffset(i);
-            int currentRecSize = FreePhysicalRowId_getSize(pos); // capacity of this free record.
-            if (currentRecSize > maxSize) maxSize = currentRecSize;
-            int waste = currentRecSize - requestedSize; // when non-negative, record has suf. capacity.
-            if (waste >= 0) {
-                if (waste < FreePhysicalRowIdPageManager.wasteMargin) {
-                    return i; // record has suf. capacity and not too much waste.
-                } else if (bestSlotSize >= currentRecSize) {
-                    /*
-                          * This slot is a better fit that any that we have seen so far on this page so we update the slot#
-                          * and available size for that slot.
-                          */
-                    bestSlot = i;
-                    bestSlotSize = currentRecSize;
-                }
-            }
-        }
-        if (bestSlot != -1) {
-            /*
-                * An available slot was identified that is large enough, but it exceeds the first wasted capacity limit. At
-                * this point we check to see whether it is under our second wasted capacity limit. If it is, then we return
-                * that slot.
-                */
-            long waste = bestSlotSize - requestedSize; // when non-negative, record has suf. capacity.
-            if (waste >= 0 && waste < FreePhysicalRowIdPageManager.wasteMargin2) {
-                // record has suf. capacity and not too much waste.
-                return bestSlot;
-            }
-            /*
-                * Will scan next page on the free physical row page list.
-                */
-        }
-
-        return -maxSize;
-    }
-
-
     short FreeLogicalRowId_getCount() {
         return readShort(Magic.FreeLogicalRowId_O_COUNT);
     }
@@ -618,9 +710,16 @@ final class BlockIo {
      }
 
 
-    short FreeLogicalRowId_slotToOffset(int slot) {
-        return (short) (Magic.FreeLogicalRowId_O_FREE +
-                (slot * Magic.PhysicalRowId_SIZE));
+    int FreeLogicalRowId_slotToOffset(int slot) {
+        return Magic.FreeLogicalRowId_O_FREE +
+                (slot * Magic.PhysicalRowId_SIZE);
+    }
+
+    /**
+     * Returns number of slots on free logical rowid page
+     */
+    int FreeLogicalRowId_elemsPerPage() {
+        return (data.capacity() - Magic.FreeLogicalRowId_O_FREE) / Magic.PhysicalRowId_SIZE;
     }
 
 
@@ -630,7 +729,7 @@ final class BlockIo {
      * Frees a slot
      */
     void  FreeLogicalRowId_free(short slot) {
-        pageHeaderSetLocation(FreeLogicalRowId_slotToOffset(slot), Location.toLong(0, (short) 0));
+        pageHeaderSetLocation(FreeLogicalRowId_slotToOffset(slot), 0);
         //get(slot).setBlock(0);
         FreeLogicalRowId_setCount((short) ( FreeLogicalRowId_getCount() - 1));
 
@@ -642,10 +741,11 @@ final class BlockIo {
     /**
      * Allocates a slot
      */
-    short  FreeLogicalRowId_alloc(short slot) {
+    int  FreeLogicalRowId_alloc(short slot) {
         FreeLogicalRowId_setCount((short) ( FreeLogicalRowId_getCount() + 1));
-        short pos =  FreeLogicalRowId_slotToOffset(slot);
-        pageHeaderSetLocation(pos, Location.toLong(-1, (short) 0));
+        int pos =  FreeLogicalRowId_slotToOffset(slot);
+        //location of block -1 with zero offset
+        pageHeaderSetLocation(pos, -data.capacity());
         //get(slot).setBlock(-1);
 
         // update previousFoundAllocated if the newly allocated slot is before what we've found in the past
@@ -659,7 +759,8 @@ final class BlockIo {
 
     short  FreeLogicalRowId_getFirstFree() {
         short previousFoundFree = readShort(FreeLogicalRowId_O_LAST_FREE);
-        for (; previousFoundFree < Magic.FreeLogicalRowId_ELEMS_PER_PAGE; previousFoundFree++) {
+        final int elemsPerPage = FreeLogicalRowId_elemsPerPage();
+        for (; previousFoundFree < elemsPerPage; previousFoundFree++) {
             if ( FreeLogicalRowId_isFree(previousFoundFree)){
                 writeShort(FreeLogicalRowId_O_LAST_FREE,previousFoundFree);
                 return previousFoundFree;
@@ -670,7 +771,8 @@ final class BlockIo {
 
     short  FreeLogicalRowId_getFirstAllocated() {
         short previousFoundAllocated = readShort(FreeLogicalRowId_O_LAST_ALOC);
-        for (; previousFoundAllocated < Magic.FreeLogicalRowId_ELEMS_PER_PAGE; previousFoundAllocated++) {
+        final int elemsPerPage = FreeLogicalRowId_elemsPerPage();
+        for (; previousFoundAllocated < elemsPerPage; previousFoundAllocated++) {
             if ( FreeLogicalRowId_isAllocated(previousFoundAllocated)){
                 writeShort(FreeLogicalRowId_O_LAST_ALOC,previousFoundAllocated);
                 return previousFoundAllocated;
@@ -680,7 +782,7 @@ final class BlockIo {
     }
 
     public long  FreeLogicalRowId_slotToLocation(int slot) {
-        short pos =  FreeLogicalRowId_slotToOffset(slot);
+        int pos =  FreeLogicalRowId_slotToOffset(slot);
         return pageHeaderGetLocation(pos);
     }
 
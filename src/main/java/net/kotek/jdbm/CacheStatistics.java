@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package net.kotek.jdbm;
+
+/**
+ * Snapshot of cache statistics, returned by {@link DB#getCacheStatistics()}.
+ * Counters are cumulative since DB was opened.
+ */
+public final class CacheStatistics implements CacheStatisticsMBean {
+
+    private final long hits;
+    private final long misses;
+    private final long offHeapHits;
+    private final long evictions;
+    private final long dirtyWriteBacks;
+    private final long softReferenceClears;
+    private final long weightedSize;
+
+    CacheStatistics(long hits, long misses, long offHeapHits, long evictions,
+                    long dirtyWriteBacks, long softReferenceClears, long weightedSize) {
+        this.hits = hits;
+        this.misses = misses;
+        this.offHeapHits = offHeapHits;
+        this.evictions = evictions;
+        this.dirtyWriteBacks = dirtyWriteBacks;
+        this.softReferenceClears = softReferenceClears;
+        this.weightedSize = weightedSize;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getOffHeapHits() {
+        return offHeapHits;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getDirtyWriteBacks() {
+        return dirtyWriteBacks;
+    }
+
+    public long getSoftReferenceClears() {
+        return softReferenceClears;
+    }
+
+    public long getWeightedSize() {
+        return weightedSize;
+    }
+
+    public double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0D : 1D * hits / total;
+    }
+
+    public String toString() {
+        return "CacheStatistics[hits=" + hits + ", misses=" + misses + ", offHeapHits=" + offHeapHits
+                + ", evictions=" + evictions + ", dirtyWriteBacks=" + dirtyWriteBacks
+                + ", softReferenceClears=" + softReferenceClears + ", weightedSize=" + weightedSize + "]";
+    }
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package net.kotek.jdbm;
+
+/**
+ * Cache statistics, see {@link CacheStatistics}.
+ * This interface is also used to expose statistics as JMX MBean,
+ * see {@link DBMaker#enableCacheStatisticsMBean()}.
+ */
+public interface CacheStatisticsMBean {
+
+    /**
+     * @return number of fetches which found record in instance cache
+     */
+    long getHits();
+
+    /**
+     * @return number of fetches which did not find record in instance cache
+     */
+    long getMisses();
+
+    /**
+     * @return number of misses which were served from off-heap cache instead of store
+     */
+    long getOffHeapHits();
+
+    /**
+     * @return number of entries evicted from instance cache because it was full
+     */
+    long getEvictions();
+
+    /**
+     * @return number of modified entries written from cache into store
+     */
+    long getDirtyWriteBacks();
+
+    /**
+     * @return number of soft or weak references cleared by Garbage Collector
+     */
+    long getSoftReferenceClears();
+
+    /**
+     * @return current size of cache, number of records or estimated bytes
+     *         if cache is limited by {@link DBMaker#setCacheSizeInBytes(long)}
+     */
+    long getWeightedSize();
+
+    /**
+     * @return hits divided by all fetches, zero if there were no fetches
+     */
+    double getHitRatio();
+
+}
@@ -0,0 +1,351 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package net.kotek.jdbm;
+
+import java.io.IOException;
+
+/**
+ * Online compaction of data pages. It moves live records out of sparsely used data pages and returns
+ * those pages to free page list, so they are reused before file grows.
+ * <p/>
+ * Work is split into small steps, each step reads and writes only limited number of pages,
+ * so store is not blocked for long time. Single pass has three phases:
+ * <ol>
+ * <li>walk list of data pages and select sparse pages. Free records on selected page and on page before it
+ * stay on free list, but are not reused until page is evacuated.</li>
+ * <li>walk translation pages and find logical rowids of records stored on selected pages.
+ * There are no back references from physical to logical rowids, so it is only way to find them.</li>
+ * <li>move live records from selected pages and free those pages. Page is skipped if it was changed
+ * in a way which can not be verified, it will be selected again in next pass.</li>
+ * </ol>
+ * Records are packed one after other, so page usually starts with end of record from previous page
+ * and ends with record which continues on next page. Both are moved together with page. Record which
+ * came from previous page is then shrunk, so it ends on previous page. Pages of records larger than
+ * single page are not compacted, last data page is never compacted.
+ * <p/>
+ * State of pass is kept in memory only, it is restarted after rollback or reopen. Free list is modified
+ * only when page is evacuated, so abandoned pass does not lose any free space.
+ */
+final class Compactor {
+
+    /**
+     * Page is sparse if its live records occupy less than this percentage of page
+     */
+    static final int SPARSE_PERCENT = 50;
+
+    /**
+     * Maximal number of pages selected at once, each batch requires single walk over translation pages
+     */
+    static final int MAX_SELECTED_PAGES = 1024;
+
+    private static final int SELECT = 0;
+    private static final int FIND_OWNERS = 1;
+    private static final int MOVE = 2;
+
+    private final RecordFile file;
+    private final PageManager pageman;
+    private final PhysicalRowIdManager physMgr;
+    private final LogicalRowIdManager logicMgr;
+    private final FreePhysicalRowIdPageManager freeman;
+    private final int blockSize;
+    private final int dataPerPage;
+
+    private int phase = SELECT;
+    private boolean inPass = false;
+
+    /** next data page to examine */
+    private long dataCursor;
+    /** next translation page to examine */
+    private long translationCursor;
+    /** position in list of selected pages */
+    private int moveCursor;
+
+    private final Utils.LongArrayList selected = new Utils.LongArrayList();
+
+    /** selected pages and pages before them, owners of records on those pages are needed */
+    private final LongHashMap<String> ownerPages = new LongHashMap<String>();
+
+    /** maps physical rowid on selected page to logical rowid */
+    private final LongHashMap<Long> owners = new LongHashMap<Long>();
+
+    /** maps selected page to page before it at time of selection, both are reserved */
+    private final LongHashMap<Long> reservedPrev = new LongHashMap<Long>();
+
+
+    Compactor(RecordFile file, PageManager pageman, PhysicalRowIdManager physMgr,
+              LogicalRowIdManager logicMgr, FreePhysicalRowIdPageManager freeman) {
+        this.file = file;
+        this.pageman = pageman;
+        this.physMgr = physMgr;
+        this.logicMgr = logicMgr;
+        this.freeman = freeman;
+        this.blockSize = file.blockSize;
+        this.dataPerPage = blockSize - Magic.DATA_PAGE_O_DATA;
+    }
+
+    /**
+     * Performs single step of compaction. Caller must commit changes after that.
+     *
+     * @param budget approximate number of pages which can be read and written in this step
+     * @return true if pass was finished, next call starts new pass
+     */
+    boolean step(int budget) throws IOException {
+        if (budget < 1)
+            throw new IllegalArgumentException("budget must be positive");
+
+        int used = 0;
+        while (used < budget) {
+            if (phase == SELECT) {
+                if (!inPass) {
+                    dataCursor = pageman.getFirst(Magic.USED_PAGE);
+                    inPass = true;
+                }
+                boolean endOfPages = dataCursor == 0 || dataCursor == pageman.getLast(Magic.USED_PAGE);
+                if (endOfPages || selected.size >= MAX_SELECTED_PAGES) {
+                    if (selected.size > 0) {
+                        phase = FIND_OWNERS;
+                        translationCursor = pageman.getFirst(Magic.TRANSLATION_PAGE);
+                        continue;
+                    }
+                    inPass = false;
+                    return true;
+                }
+                used++;
+                if (isSparse(dataCursor))
+                    select(dataCursor);
+                dataCursor = pageman.getNext(dataCursor);
+
+            } else if (phase == FIND_OWNERS) {
+                if (translationCursor == 0) {
+                    phase = MOVE;
+                    moveCursor = 0;
+                    continue;
+                }
+                used++;
+                findOwners(translationCursor);
+                translationCursor = pageman.getNext(translationCursor);
+
+            } else {
+                if (moveCursor == selected.size) {
+                    //batch is done, continue with selection where it stopped
+                    selected.clear();
+                    ownerPages.clear();
+                    owners.clear();
+                    reservedPrev.clear();
+                    phase = SELECT;
+                    continue;
+                }
+                long page = selected.data[moveCursor++];
+                used += evacuate(page);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Abandons current pass, records on selected pages which were not moved yet are left in place
+     */
+    void reset() {
+        phase = SELECT;
+        inPass = false;
+        selected.clear();
+        ownerPages.clear();
+        owners.clear();
+        reservedPrev.clear();
+        freeman.unreserveAll();
+    }
+
+    /**
+     * Returns location of record which starts on previous page and continues on this page,
+     * 0 if there is no such record, or -1 if it is part of record larger than page.
+     */
+    private long incomingRecord(long prevPage) throws IOException {
+        if (prevPage == 0)
+            return 0;
+        BlockIo prev = file.view(prevPage);
+        int pos = prev.dataPageGetFirst();
+        if (pos == 0)
+            return -1;
+        while (pos + RecordHeader.SIZE <= blockSize) {
+            int avail = RecordHeader.getAvailableSize(prev, pos);
+            if (avail == 0)
+                return 0;
+            int end = pos + RecordHeader.SIZE + avail;
+            if (end > blockSize)
+                return end - blockSize > dataPerPage ? -1 : file.location.toLong(prevPage, pos);
+            pos = end;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns true if live records on page occupy less than {@link #SPARSE_PERCENT} of page.
+     * Page must not be part of record larger than page.
+     */
+    private boolean isSparse(long page) throws IOException {
+        BlockIo block = file.view(page);
+        int first = block.dataPageGetFirst();
+        if (first == 0)
+            return false;
+        //record from previous page is counted as live
+        int live = first - Magic.DATA_PAGE_O_DATA;
+        for (int pos = first; pos + RecordHeader.SIZE <= blockSize; ) {
+            int avail = RecordHeader.getAvailableSize(block, pos);
+            if (avail == 0)
+                break;
+            if (pos + RecordHeader.SIZE + avail - blockSize > dataPerPage)
+                return false;
+            live += RecordHeader.getCurrentSize(block, pos);
+            pos += RecordHeader.SIZE + avail;
+        }
+        return live * 100 < dataPerPage * SPARSE_PERCENT;
+    }
+
+    /**
+     * Selects page for evacuation. Free records on this page and record which comes from previous page
+     * must not be reused, so both pages are reserved.
+     */
+    private void select(long page) throws IOException {
+        selected.add(page);
+        ownerPages.put(page, Utils.EMPTY_STRING);
+        freeman.reserve(page);
+
+        long prevPage = pageman.getPrev(page);
+        reservedPrev.put(page, prevPage);
+        if (prevPage != 0) {
+            ownerPages.put(prevPage, Utils.EMPTY_STRING);
+            freeman.reserve(prevPage);
+        }
+    }
+
+    /**
+     * Releases reservations made when page was selected
+     */
+    private void unreserve(long page) {
+        freeman.unreserve(page);
+        Long prevPage = reservedPrev.get(page);
+        if (prevPage != null && prevPage != 0)
+            freeman.unreserve(prevPage);
+    }
+
+    private void findOwners(long translationPage) throws IOException {
+        BlockIo io = file.view(translationPage);
+        for (int i = 0; i < logicMgr.elemsPerPage; i++) {
+            int pos = Magic.PAGE_HEADER_SIZE + i * Magic.PhysicalRowId_SIZE;
+            long physRowId = io.pageHeaderGetLocation(pos);
+            if (physRowId != 0 && ownerPages.get(file.location.getBlock(physRowId)) != null)
+                owners.put(physRowId, file.location.toLong(-translationPage, pos));
+        }
+    }
+
+    /**
+     * Moves live records from page and frees it.
+     *
+     * @return number of pages read and written
+     */
+    private int evacuate(long page) throws IOException {
+        Utils.LongArrayList records = new Utils.LongArrayList();
+        boolean ok = page != pageman.getLast(Magic.USED_PAGE);
+        //page may be released meanwhile together with large record which ends on it
+        if (file.view(page).pageHeaderGetMagic() != Magic.BLOCK + Magic.USED_PAGE)
+            ok = false;
+
+        long incoming = incomingRecord(pageman.getPrev(page));
+        if (incoming < 0)
+            ok = false;
+        else if (incoming > 0)
+            records.add(incoming);
+
+        BlockIo block = file.view(page);
+        int first = block.dataPageGetFirst();
+        if (first == 0)
+            ok = false;
+        for (int pos = first; ok && pos + RecordHeader.SIZE <= blockSize; ) {
+            int avail = RecordHeader.getAvailableSize(block, pos);
+            if (avail == 0)
+                break;
+            if (pos + RecordHeader.SIZE + avail - blockSize > dataPerPage)
+                ok = false;
+            records.add(file.location.toLong(page, pos));
+            pos += RecordHeader.SIZE + avail;
+        }
+
+        //record from previous page will be shrunk, so it ends at end of previous page
+        int shrunkSize = 0;
+        if (incoming > 0) {
+            shrunkSize = blockSize - file.location.getOffset(incoming) - RecordHeader.SIZE;
+            if (RecordHeader.roundAvailableSize(shrunkSize) != shrunkSize)
+                ok = false;
+        }
+
+        //find which records are live, all of them must have known owner
+        Utils.LongArrayList live = new Utils.LongArrayList();
+        Utils.LongArrayList free = new Utils.LongArrayList();
+        Utils.IntArrayList freeSizes = new Utils.IntArrayList();
+        for (int i = 0; ok && i < records.size; i++) {
+            long physRowId = records.data[i];
+            BlockIo b = file.view(file.location.getBlock(physRowId));
+            int pos = file.location.getOffset(physRowId);
+            int size = RecordHeader.getCurrentSize(b, pos);
+            Long owner = owners.get(physRowId);
+            if (owner != null && logicMgr.fetch(owner) == physRowId) {
+                if (size == 0)
+                    //empty record can not be inserted elsewhere
+                    ok = false;
+                live.add(physRowId);
+            } else if (size != 0) {
+                //record with unknown owner
+                ok = false;
+            } else {
+                free.add(physRowId);
+                freeSizes.add(RecordHeader.getAvailableSize(b, pos));
+            }
+        }
+
+        if (!ok) {
+            //free records stay on free list
+            unreserve(page);
+            return 1;
+        }
+
+        //free records on page go away with page, and must not be reused while live records are moved
+        for (int i = 0; i < free.size; i++)
+            freeman.remove(free.data[i], freeSizes.data[i]);
+
+        DataInputOutput buf = new DataInputOutput();
+        for (int i = 0; i < live.size; i++) {
+            long physRowId = live.data[i];
+            buf.reset();
+            physMgr.fetch(buf, physRowId);
+            long newPhysRowId = physMgr.insert(buf.getBuf(), 0, buf.getPos());
+            logicMgr.update(owners.get(physRowId), newPhysRowId);
+        }
+
+        if (incoming > 0) {
+            long prevPage = file.location.getBlock(incoming);
+            int pos = file.location.getOffset(incoming);
+            freeman.remove(incoming, RecordHeader.getAvailableSize(file.view(prevPage), pos));
+            BlockIo prev = file.get(prevPage);
+            RecordHeader.setCurrentSize(prev, pos, 0);
+            RecordHeader.setAvailableSize(prev, pos, shrunkSize);
+            file.release(prevPage, true);
+            freeman.put(incoming, shrunkSize);
+        }
+
+        pageman.free(Magic.USED_PAGE, page);
+        unreserve(page);
+        return 1 + 2 * live.size;
+    }
+}
@@ -1,5 +1,8 @@
 package net.kotek.jdbm;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -34,9 +37,120 @@ public interface DB {
      */
     void defrag();
 
+    /**
+     * Performs single step of online compaction. Live records are moved out of sparsely used pages
+     * and those pages are reused for new data, so storage does not grow.
+     * Unlike {@link #defrag()} it blocks DB only for short time, each step reads and writes approximately
+     * <code>pageBudget</code> pages. Call it repeatedly (for example from background thread) until it returns true.
+     * <p/>
+     * This commits any uncommited data.
+     *
+     * @param pageBudget approximate number of pages read and written in this step
+     * @return true if compaction pass was finished
+     */
+    boolean compact(int pageBudget);
+
+    /**
+     * Inserts multiple records at once. It is much faster than inserting records one by one,
+     * records are serialized in parts of about 1MB and each part is written into pages, each page is updated only once.
+     * Records are appended at end of storage, free space is not reused.
+     * If serializer fails, records of parts written before stay inserted.
+     * <p/>
+     * Records inserted this way are not placed into instance cache.
+     * With transactions disabled, large batch is auto committed in parts, the same way as single inserts.
+     *
+     * @param objs       objects to insert
+     * @param serializer serializer used for all objects
+     * @return recids of new records, in the same order as objects
+     */
+    <A> long[] insertBatch(List<A> objs, Serializer<A> serializer);
+
+    /**
+     * Fetches multiple records at once. Records are read in order of their physical location
+     * under single lock, so each data page is read only once.
+     *
+     * @param recids     recids of records to fetch
+     * @param serializer serializer used for all records
+     * @return records in the same order as recids, null for recid which does not exist
+     */
+    <A> List<A> fetchAll(long[] recids, Serializer<A> serializer);
+
+    /**
+     * Reads record bytes without serializer. Record which fits into single page is not copied,
+     * reader gets read-only view of storage page. Reader is called while DB is locked,
+     * so it should not do anything else than reading buffer.
+     *
+     * @param recid  of record
+     * @param reader callback which reads record bytes
+     * @return value returned by reader, or null if record does not exist
+     */
+    <R> R fetchRaw(long recid, RawRecordReader<R> reader);
+
+    /**
+     * Inserts record with given bytes, no serializer is used. Such record should be read only with
+     * {@link #fetchRaw(long, RawRecordReader)}.
+     * Bytes between position and limit are stored, position of buffer is not changed.
+     *
+     * @param data record bytes
+     * @return recid of new record
+     */
+    long insertRaw(ByteBuffer data);
+
+    /**
+     * Replaces content of record with given bytes, no serializer is used.
+     * Bytes between position and limit are stored, position of buffer is not changed.
+     *
+     * @param recid of record
+     * @param data  new record bytes
+     */
+    void updateRaw(long recid, ByteBuffer data);
+
+    /**
+     * Creates new empty binary record (blob). Its content is written with {@link #writeBlob(long, int)}.
+     * Blob is not serialized object, it can be accessed only by blob methods.
+     *
+     * @return recid of new blob
+     */
+    long createBlob();
+
+    /**
+     * Opens stream which reads content of blob. Data are read directly from storage pages,
+     * so whole blob is never held in memory. Large blobs occupy contiguous run of pages, so reading is sequential.
+     * <p/>
+     * Stream fails with IOException if blob is moved or resized while stream is open.
+     *
+     * @param recid of blob
+     * @return stream with blob content
+     */
+    InputStream openBlob(long recid);
+
+    /**
+     * Replaces content of blob. Space for <code>length</code> bytes is allocated when this method is called
+     * and data are written directly into storage pages as they come.
+     * Exactly <code>length</code> bytes must be written before stream is closed.
+     * Blob keeps its old content until stream is closed, then new content replaces it.
+     * <p/>
+     * Written data are part of current transaction.
+     *
+     * @param recid of blob
+     * @param length new length of blob in bytes
+     * @return stream which writes blob content
+     */
+    OutputStream writeBlob(long recid, int length);
+
+    /**
+     * Deletes blob
+     *
+     * @param recid of blob
+     */
+    void deleteBlob(long recid);
+
     /**
      * Commit (make persistent) all changes since beginning of transaction.
      * JDBM supports only single transaction.
+     * <p/>
+     * If transactions are enabled, this method returns after transaction log was synced to disk.
+     * Concurrent commits share single sync, see {@link DBMaker#enableGroupCommit(long, int)}
      */
     void commit();
 
@@ -56,6 +170,14 @@ public interface DB {
      */
     String calculateStatistics();
 
+    /**
+     * Returns snapshot of instance cache counters, such as hits, misses and evictions.
+     * Counters are cheap to maintain, so they are always enabled.
+     *
+     * @return cache statistics, or null if cache is disabled
+     */
+    CacheStatistics getCacheStatistics();
+
 
     /**
      * Get a <code>Map</code> which was already created and saved in DB.
@@ -123,6 +245,42 @@ public interface DB {
     <K, V> SortedMap<K, V> createTreeMap(String name,
                                          Comparator<K> keyComparator, Serializer<K> keySerializer, Serializer<V> valueSerializer);
 
+    /**
+     * Creates TreeMap and fills it with entries sorted by key.
+     * Tree is built bottom-up with nodes filled to given fill factor,
+     * this is much faster than putting entries into map one by one.
+     *
+     * @param <K>             Key type
+     * @param <V>             Value type
+     * @param name            record name
+     * @param keyComparator   Comparator used to sort keys, null if keys are Comparable
+     * @param keySerializer   Serializer used for keys, null for default serializer
+     * @param valueSerializer Serializer used for values, null for default serializer
+     * @param sortedEntries   entries with unique keys in ascending order
+     * @param fillFactor      how full tree nodes are, between 0.5 and 1
+     * @return
+     */
+    <K, V> SortedMap<K, V> createTreeMap(String name,
+                                         Comparator<K> keyComparator, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                         Iterator<Map.Entry<K, V>> sortedEntries, float fillFactor);
+
+    /**
+     * Creates TreeMap which can be modified by many threads at once.
+     * Readers never block and writers lock only tree nodes they modify, instead of whole tree.
+     * Iterators are weakly consistent, they never throw ConcurrentModificationException.
+     * Once created, map is loaded by {@link #getTreeMap(String)}.
+     *
+     * @param <K>             Key type
+     * @param <V>             Value type
+     * @param name            record name
+     * @param keyComparator   Comparator used to sort keys, null if keys are Comparable
+     * @param keySerializer   Serializer used for keys, null for default serializer
+     * @param valueSerializer Serializer used for values, null for default serializer
+     * @return
+     */
+    <K, V> SortedMap<K, V> createConcurrentTreeMap(String name,
+                                                   Comparator<K> keyComparator, Serializer<K> keySerializer, Serializer<V> valueSerializer);
+
     <K> SortedSet<K> getTreeSet(String name);
 
     <K> SortedSet<K> createTreeSet(String name);
@@ -193,6 +193,39 @@ abstract class DBAbstract implements DB {
     }
 
 
+    public synchronized <K, V> SortedMap<K, V> createTreeMap(String name,
+                                                             Comparator<K> keyComparator,
+                                                             Serializer<K> keySerializer,
+                                                             Serializer<V> valueSerializer,
+                                                             Iterator<Map.Entry<K, V>> sortedEntries,
+                                                             float fillFactor) {
+        try {
+            assertNameNotExist(name);
+            BTree<K, V> tree = BTree.createInstance(this, keyComparator, keySerializer, valueSerializer,true);
+            tree.bulkLoad(sortedEntries, fillFactor);
+            setNamedObject(name, tree.getRecid());
+            return tree.asMap();
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+    }
+
+
+    public synchronized <K, V> SortedMap<K, V> createConcurrentTreeMap(String name,
+                                                                       Comparator<K> keyComparator,
+                                                                       Serializer<K> keySerializer,
+                                                                       Serializer<V> valueSerializer) {
+        try {
+            assertNameNotExist(name);
+            BTree<K, V> tree = BTree.createInstance(this, keyComparator, keySerializer, valueSerializer, true, true);
+            setNamedObject(name, tree.getRecid());
+            return tree.asMap();
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+    }
+
+
     public synchronized <K> SortedSet<K> getTreeSet(String name) {
         try {
             long recid = assertNameExist(name);
@@ -288,4 +321,54 @@ abstract class DBAbstract implements DB {
 
     protected abstract Serializer defaultSerializer();
 
+
+    /**
+     * Concurrent trees which changed number of entries or retired values since last commit
+     */
+    private final List<BTree<?, ?>> modifiedTrees = new ArrayList<BTree<?, ?>>();
+
+    /**
+     * Concurrent tree does not write its header on every insert or remove and does not delete replaced values
+     * immediately, it is done on commit or close
+     */
+    void addModifiedTree(BTree<?, ?> tree) {
+        synchronized (modifiedTrees) {
+            modifiedTrees.add(tree);
+        }
+    }
+
+    /**
+     * Writes headers and deletes retired values of modified concurrent trees, called before commit or close
+     *
+     * @param closing true if DB is closing, so all retired values are deleted
+     */
+    void writeModifiedTrees(boolean closing) throws IOException {
+        BTree<?, ?>[] trees;
+        synchronized (modifiedTrees) {
+            if (modifiedTrees.isEmpty())
+                return;
+            trees = modifiedTrees.toArray(new BTree<?, ?>[modifiedTrees.size()]);
+            modifiedTrees.clear();
+        }
+        for (BTree<?, ?> tree : trees) {
+            tree.beforeCommit(closing);
+        }
+    }
+
+    /**
+     * Loads number of entries of modified trees from their stored headers, called after rollback
+     */
+    void rollbackModifiedTrees() throws IOException {
+        BTree<?, ?>[] trees;
+        synchronized (modifiedTrees) {
+            if (modifiedTrees.isEmpty())
+                return;
+            trees = modifiedTrees.toArray(new BTree<?, ?>[modifiedTrees.size()]);
+            modifiedTrees.clear();
+        }
+        for (BTree<?, ?> tree : trees) {
+            tree.afterRollback();
+        }
+    }
+
 }
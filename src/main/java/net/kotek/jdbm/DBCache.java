@@ -19,10 +19,23 @@ package net.kotek.jdbm;
 import java.io.FileOutputStream;
 import java.io.IOError;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * A DB wrapping and caching another DB.
@@ -30,8 +43,6 @@ import java.util.Iterator;
  * @author Jan Kotek
  * @author Alex Boisvert
  * @author Cees de Groot
- *
- * TODO add 'cache miss' statistics
  */
 class DBCache
         extends DBAbstract {
@@ -42,6 +53,7 @@ class DBCache
     static final byte WEAK = 3;
     static final byte SOFT = 4;
     static final byte HARD = 5;
+    static final byte TINY_LFU = 6;
 
     private static final boolean debug = false;
 
@@ -52,28 +64,49 @@ class DBCache
 
 
     /**
-     * Cached object hashtable
+     * Approximate memory used by cache entry and its hash map entry, it is added to serialized size of record
+     */
+    static final int ENTRY_OVERHEAD = 64;
+
+    /**
+     * Assumed average weight of entry when cache is limited by size in bytes, used to size segment structures
+     */
+    static final int ESTIMATED_ENTRY_SIZE = 256;
+
+    /**
+     * Number of segments used by concurrent cache
+     */
+    static final int CONCURRENT_SEGMENTS = 16;
+
+    /**
+     * Cached objects are split into segments by recid. Each segment has its own lock and LRU list,
+     * so fetch of cached record does not take any global lock.
+     * If Soft Cache is enabled, segments contain only dirty entries.
      */
-    protected LongHashMap<CacheEntry> _hash;
+    protected Segment[] _segments;
+
+    /** number of segments minus one, number of segments is power of two */
+    private int _segmentMask;
 
     /**
      * If Soft Cache is enabled, this contains softly referenced clean entries.
-     * If entry became dirty, it is moved to _hash with limited size.
+     * If entry became dirty, it is moved to segment with limited size.
      * This map is accessed from SoftCache Disposer thread, so all access must be
      * synchronized
      */
     protected LongHashMap _softHash;
 
     /**
-     * Reference queue used to collect Soft Cache entries
+     * Second level cache with serialized records outside of heap, null if not enabled.
+     * Records which are not in this cache are read from it before store is asked.
+     * It is modified only while lock of record's segment is held.
      */
-    protected ReferenceQueue<ReferenceCacheEntry> _refQueue;
-
+    protected OffHeapRecordCache _offHeapCache;
 
     /**
-     * Maximum number of objects in the cache.
+     * Reference queue used to collect Soft Cache entries
      */
-    protected int _max;
+    protected ReferenceQueue<ReferenceCacheEntry> _refQueue;
 
 
     /**
@@ -84,16 +117,43 @@ class DBCache
     protected static int threadCounter = 0;
 
     /**
-     * Beginning of linked-list of cache elements.  First entry is element
-     * which has been used least recently.
+     * Thread which writes dirty entries into store in background, null if write-behind is disabled
+     */
+    protected Thread _writeBehindThread;
+
+    protected WriteBehindRunnable _writeBehind;
+
+    /**
+     * If true, recids of cached records are saved on close and prefetched on open
      */
-    protected CacheEntry _first;
+    private boolean _warmStart = false;
 
     /**
-     * End of linked-list of cache elements.  Last entry is element
-     * which has been used most recently.
+     * Thread which prefetches records saved on last close, null if warm start is disabled
      */
-    protected CacheEntry _last;
+    protected Thread _warmUpThread;
+
+    /** set when cache is being closed, so warm-up thread stops */
+    private volatile boolean _closing = false;
+
+    /** number of records prefetched by warm-up thread at once */
+    static final int WARM_UP_BATCH = 1024;
+
+    private static final Logger LOG = Logger.getLogger(DBCache.class.getName());
+
+    /**
+     * Weight of dirty entries in single segment, after which write-behind thread is woken up.
+     * It writes oldest dirty entries, until segment has only half of this weight dirty.
+     */
+    private long _maxDirtyWeight;
+
+    /**
+     * Number of soft or weak references cleared by GC, modified while lock of <code>_softHash</code> is held
+     */
+    private long _softClears = 0;
+
+    /** name of statistics MBean registered in platform MBean server, null if not registered */
+    private ObjectName _statisticsMBean;
 
     /** counter which counts number of insert since last 'action'*/
     protected int insertCounter = 0;
@@ -101,6 +161,15 @@ class DBCache
     private boolean _autoClearReferenceCacheOnLowMem;
     private byte _cacheType;
 
+    /** true if clean entries are kept in soft, weak or hard reference cache */
+    private final boolean _refCache;
+
+    /**
+     * true if cache is limited by size in bytes, weight of entry is its serialized size.
+     * Otherwise cache is limited by number of records and weight of each entry is one.
+     */
+    private final boolean _weighBytes;
+
 
     /**
      * Construct a CacheRecordManager wrapping another DB and
@@ -109,16 +178,45 @@ class DBCache
     public DBCache(DBStore db, int maxRecords,
                    byte cacheType,
                    boolean autoClearReferenceCacheOnLowMem) {
+        this(db, maxRecords, cacheType, autoClearReferenceCacheOnLowMem, 1);
+    }
+
+    /**
+     * Construct a CacheRecordManager with cache split into given number of segments.
+     */
+    public DBCache(DBStore db, int maxRecords,
+                   byte cacheType,
+                   boolean autoClearReferenceCacheOnLowMem,
+                   int segmentCount) {
+        this(db, maxRecords, 0, cacheType, autoClearReferenceCacheOnLowMem, segmentCount);
+    }
+
+    /**
+     * Construct a CacheRecordManager limited by estimated size of entries in bytes.
+     * If <code>maxBytes</code> is zero, cache is limited by <code>maxRecords</code>.
+     */
+    public DBCache(DBStore db, int maxRecords, long maxBytes,
+                   byte cacheType,
+                   boolean autoClearReferenceCacheOnLowMem,
+                   int segmentCount) {
         if (db == null) {
             throw new IllegalArgumentException("Argument 'db' is null");
         }
-        _hash = new LongHashMap<CacheEntry>(maxRecords);
+        if (Integer.bitCount(segmentCount) != 1)
+            throw new IllegalArgumentException("Segment count is not power of two: " + segmentCount);
         _db = db;
-        _max = maxRecords;
+        _segments = new Segment[segmentCount];
+        _segmentMask = segmentCount - 1;
         this._cacheType = cacheType;
+        _refCache = cacheType == WEAK || cacheType == SOFT || cacheType == HARD;
+        _weighBytes = maxBytes > 0;
+        long maxWeight = _weighBytes ? maxBytes : maxRecords;
+        for (int i = 0; i < segmentCount; i++)
+            _segments[i] = new Segment(Math.max(1, (maxWeight + segmentCount - 1) / segmentCount),
+                    cacheType == TINY_LFU);
         _autoClearReferenceCacheOnLowMem = autoClearReferenceCacheOnLowMem;
 
-        if (cacheType>MRU) {
+        if (_refCache) {
             _softHash = new LongHashMap<ReferenceCacheEntry>();
             _refQueue = new ReferenceQueue<ReferenceCacheEntry>();
             _softRefThread = new Thread(
@@ -140,12 +238,11 @@ class DBCache
         if(_db.needsAutoCommit())
             commit();
 
-        long recid = _db.insert(obj, serializer);
+        DBStore.Sized<A> inserted = _db.insertSized(obj, serializer);
+        long recid = inserted.recid;
 
 
-
-
-        if(_cacheType>MRU) synchronized(_softHash) {
+        if(_refCache) synchronized(_softHash) {
 
             if (_cacheType == SOFT)
                 _softHash.put(recid, new SoftCacheEntry(recid, obj, _refQueue));
@@ -154,11 +251,207 @@ class DBCache
             else
                 _softHash.put(recid,obj);
         }else {
-            cachePut(  recid , obj, serializer, false );
+            Segment seg = segment(recid);
+            synchronized (seg) {
+                seg.put(recid, obj, serializer, false, weigh(inserted.size));
+            }
         }
         return recid;
     }
 
+    /**
+     * Enables second level cache which keeps serialized records outside of heap
+     */
+    void setOffHeapCache(long sizeInBytes) {
+        _offHeapCache = new OffHeapRecordCache(sizeInBytes);
+    }
+
+    /**
+     * Enables write-behind. Background thread writes dirty entries into store, once their total weight
+     * gets over given limit. So entries are usually clean when evicted and commit has less work.
+     */
+    void setWriteBehind(long maxDirtyWeight) {
+        _maxDirtyWeight = Math.max(1, maxDirtyWeight / _segments.length);
+        _writeBehind = new WriteBehindRunnable(this);
+        _writeBehindThread = new Thread(_writeBehind, "JDBM Write Behind " + (threadCounter++));
+        _writeBehindThread.setDaemon(true);
+        _writeBehindThread.start();
+    }
+
+    /**
+     * Enables warm start. On close, recids of cached records are saved into store. Background thread
+     * started here prefetches records saved by previous close. Prefetched records are kept in off-heap cache,
+     * so it must be enabled first.
+     */
+    void setWarmStart() {
+        if (_offHeapCache == null)
+            throw new IllegalStateException("Off-heap cache is not enabled");
+        _warmStart = true;
+        _warmUpThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    warmUp();
+                } catch (Throwable e) {
+                    //warm up is only optimization, db works without it
+                    if (!_closing)
+                        LOG.log(Level.WARNING, "Cache warm up failed", e);
+                }
+            }
+        }, "JDBM Cache Warm Up " + (threadCounter++));
+        _warmUpThread.setDaemon(true);
+        _warmUpThread.start();
+    }
+
+    /**
+     * Registers cache statistics as MBean in platform MBean server, it is unregistered on close
+     */
+    void registerStatisticsMBean(String name) {
+        final DBCache cache = this;
+        CacheStatisticsMBean live = new CacheStatisticsMBean() {
+            public long getHits() { return cache.getCacheStatistics().getHits(); }
+            public long getMisses() { return cache.getCacheStatistics().getMisses(); }
+            public long getOffHeapHits() { return cache.getCacheStatistics().getOffHeapHits(); }
+            public long getEvictions() { return cache.getCacheStatistics().getEvictions(); }
+            public long getDirtyWriteBacks() { return cache.getCacheStatistics().getDirtyWriteBacks(); }
+            public long getSoftReferenceClears() { return cache.getCacheStatistics().getSoftReferenceClears(); }
+            public long getWeightedSize() { return cache.getCacheStatistics().getWeightedSize(); }
+            public double getHitRatio() { return cache.getCacheStatistics().getHitRatio(); }
+        };
+        try {
+            ObjectName objectName = new ObjectName("net.kotek.jdbm:type=CacheStatistics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(live, CacheStatisticsMBean.class), objectName);
+            _statisticsMBean = objectName;
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Could not register cache statistics MBean: " + name, e);
+        }
+    }
+
+    /**
+     * Prefetches records saved on last close, most recently used first, until cache budget is reached.
+     * Records are read in batches sorted by physical location.
+     * <p/>
+     * Serializers of records are not known until records are fetched, so objects can not be deserialized here.
+     * Serialized records are put into off-heap cache, it is always enabled with warm start.
+     */
+    void warmUp() throws IOException {
+        DBStore db = _db;
+        long hotRecid = db.getRoot(DBStore.CACHE_HOT_RECIDS_ROOT);
+        if (hotRecid == 0)
+            return;
+        byte[] saved = db.fetchRaw(hotRecid);
+        if (saved == null)
+            return;
+        DataInputOutput in = new DataInputOutput(saved);
+        long[] hot = new long[LongPacker.unpackInt(in)];
+        for (int i = 0; i < hot.length; i++)
+            hot[i] = LongPacker.unpackLong(in);
+
+        long budget = _offHeapCache.capacity();
+        long loaded = 0;
+        for (int start = 0; start < hot.length && loaded < budget && !_closing; start += WARM_UP_BATCH) {
+            long[] batch = Arrays.copyOfRange(hot, start, Math.min(hot.length, start + WARM_UP_BATCH));
+            int[] modCounts = new int[batch.length];
+            for (int i = 0; i < batch.length; i++) {
+                Segment seg = segment(batch[i]);
+                synchronized (seg) {
+                    modCounts[i] = seg.modCount;
+                }
+            }
+            byte[][] data = db.fetchAllRaw(batch);
+            for (int i = 0; i < batch.length; i++) {
+                if (data[i] == null)
+                    continue;
+                loaded += data[i].length;
+                Segment seg = segment(batch[i]);
+                synchronized (seg) {
+                    //record modified meanwhile could be stale
+                    if (seg.modCount == modCounts[i])
+                        _offHeapCache.put(batch[i], data[i], data[i].length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves recids of cached records into store, most recently used first
+     */
+    private void saveHotRecids() throws IOException {
+        Utils.LongArrayList recids = new Utils.LongArrayList();
+        //interleave segments, so order is approximately kept across segments
+        long[][] segmentRecids = new long[_segments.length][];
+        int maxLength = 0;
+        for (int i = 0; i < _segments.length; i++) {
+            synchronized (_segments[i]) {
+                segmentRecids[i] = _segments[i].recidsByRecency();
+            }
+            maxLength = Math.max(maxLength, segmentRecids[i].length);
+        }
+        for (int j = 0; j < maxLength; j++) {
+            for (long[] r : segmentRecids) {
+                if (j < r.length)
+                    recids.add(r[j]);
+            }
+        }
+        if (_refCache) synchronized (_softHash) {
+            for (long recid : _softHash.keys())
+                recids.add(recid);
+        }
+        if (_offHeapCache != null) {
+            LongHashMap<Boolean> seen = new LongHashMap<Boolean>();
+            for (int i = 0; i < recids.size; i++)
+                seen.put(recids.data[i], Boolean.TRUE);
+            Utils.LongArrayList offHeap = new Utils.LongArrayList();
+            _offHeapCache.recids(offHeap);
+            for (int i = 0; i < offHeap.size; i++) {
+                if (seen.get(offHeap.data[i]) == null)
+                    recids.add(offHeap.data[i]);
+            }
+        }
+
+        DataInputOutput out = new DataInputOutput();
+        LongPacker.packInt(out, recids.size);
+        for (int i = 0; i < recids.size; i++)
+            LongPacker.packLong(out, recids.data[i]);
+        ByteBuffer data = ByteBuffer.wrap(out.getBuf(), 0, out.getPos());
+
+        long hotRecid = _db.getRoot(DBStore.CACHE_HOT_RECIDS_ROOT);
+        if (hotRecid == 0) {
+            hotRecid = _db.insertRaw(data);
+            _db.setReservedRoot(DBStore.CACHE_HOT_RECIDS_ROOT, hotRecid);
+        } else {
+            _db.updateRaw(hotRecid, data);
+        }
+    }
+
+    private void requestWriteBehind() {
+        _writeBehind.request();
+    }
+
+    /**
+     * Called from write-behind thread, writes oldest dirty entries of segments over limit.
+     */
+    void writeBehind() throws IOException {
+        Segment[] segments = _segments;
+        if (segments == null)
+            return;
+        for (Segment seg : segments) {
+            seg.writeBehind(_maxDirtyWeight / 2);
+        }
+    }
+
+    public synchronized <A> long[] insertBatch(List<A> objs, Serializer<A> serializer) {
+        if (_db == null) {
+            throw new IllegalStateException("DB has been closed");
+        }
+
+        if(_db.needsAutoCommit())
+            commit();
+
+        //records are not cached, batch would only push useful entries out of cache
+        return _db.insertBatch(objs, serializer);
+    }
+
     void clearCacheIfLowOnMem() {
 
         insertCounter = 0;
@@ -186,7 +479,7 @@ class DBCache
 
     }
 
-    public synchronized <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
+    public <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
         if (disableCache)
             return _db.fetch(recid, serializer, disableCache);
         else
@@ -204,14 +497,21 @@ class DBCache
             commit();
 
         _db.delete(recid);
-        synchronized (_hash){
-            CacheEntry entry = _hash.get(recid);
-            if (entry != null) {
-                removeEntry(entry);
-                _hash.remove(entry._recid);
-            }
+        evict(recid);
+    }
+
+    /**
+     * Removes record from cache, dirty entry is discarded
+     */
+    private void evict(long recid) {
+        Segment seg = segment(recid);
+        synchronized (seg){
+            seg.remove(recid);
+            if (_offHeapCache != null)
+                _offHeapCache.remove(recid);
+            seg.modCount++;
         }
-        if (_cacheType>MRU) synchronized (_softHash) {
+        if (_refCache) synchronized (_softHash) {
             Object e = _softHash.remove(recid);
             if (e != null && e instanceof ReferenceCacheEntry) {
                 ((ReferenceCacheEntry)e).clear();
@@ -230,55 +530,203 @@ class DBCache
         if(_db.needsAutoCommit())
             commit();
 
-        if (_cacheType>MRU) synchronized (_softHash) {
+        if (_refCache) synchronized (_softHash) {
             //soft cache can not contain dirty objects
             Object e = _softHash.remove(recid);
             if (e != null && e instanceof ReferenceCacheEntry) {
                 ((ReferenceCacheEntry)e).clear();
             }
         }
-        synchronized (_hash){
-            CacheEntry entry = cacheGet(recid);
-            if (entry != null) {
+        //modified record is weighed by its new serialized size, so dirty entries can not overfill cache
+        int weight = _weighBytes ? weigh(_db.serializedSize(obj, serializer)) : 1;
+        Segment seg = segment(recid);
+        synchronized (seg){
+            CacheEntry entry = seg.get(recid);
+            if (entry != null && entry._weight == weight) {
                 // reuse existing cache entry
                 entry._obj = obj;
                 entry._serializer = serializer;
-                entry._isDirty = true;
+                seg.markDirty(entry);
             } else {
-                cachePut(recid, obj, serializer, true);
+                //entry is placed again, so other entries are evicted if it got heavier
+                seg.remove(recid);
+                seg.put(recid, obj, serializer, true, weight);
             }
+            if (_writeBehindThread != null && seg.dirtyWeight > _maxDirtyWeight)
+                requestWriteBehind();
+            if (_offHeapCache != null)
+                _offHeapCache.remove(recid);
+            seg.modCount++;
         }
     }
 
 
-    public synchronized <A> A fetch(long recid, Serializer<A> serializer)
+    /**
+     * Fetch does not hold global lock. Record is read from store without holding any lock of cache,
+     * so concurrent fetches are not blocked by each other.
+     */
+    public <A> A fetch(long recid, Serializer<A> serializer)
             throws IOException {
-        if (_db == null) {
+        DBStore db = _db;
+        if (db == null) {
             throw new IllegalStateException("DB has been closed");
         }
 
-        if (_cacheType>MRU) synchronized (_softHash) {
+        Segment seg = segment(recid);
+        while (true) {
+            int modCount;
+            synchronized (seg) {
+                Object cached = cacheLookup(seg, recid);
+                if (cached == NOT_CACHED)
+                    cached = offHeapLookup(seg, recid, serializer);
+                if (cached != NOT_CACHED)
+                    return (A) cached;
+                modCount = seg.modCount;
+            }
+
+            byte[] data = null;
+            A value;
+            int size;
+            if (_offHeapCache != null) {
+                //serialized record is needed for off-heap cache
+                data = db.fetchRaw(recid);
+                size = data == null ? 0 : data.length;
+                value = data == null ? null : deserialize(data, serializer);
+            } else {
+                DBStore.Sized<A> fetched = db.fetchSized(recid, serializer);
+                size = fetched.size;
+                value = fetched.value;
+            }
+
+            synchronized (seg) {
+                //if record was modified meanwhile, value may be stale, so try again
+                if (seg.modCount == modCount) {
+                    cacheFetched(seg, recid, value, serializer, size);
+                    if (data != null)
+                        _offHeapCache.put(recid, data, data.length);
+                    return value;
+                }
+            }
+        }
+    }
+
+
+    public <A> List<A> fetchAll(long[] recids, Serializer<A> serializer) {
+        DBStore db = _db;
+        if (db == null) {
+            throw new IllegalStateException("DB has been closed");
+        }
+
+        List<A> ret = new ArrayList<A>(recids.length);
+        //find records which are not in cache and fetch them at once
+        Utils.LongArrayList missing = new Utils.LongArrayList();
+        Utils.IntArrayList modCounts = new Utils.IntArrayList();
+        for (long recid : recids) {
+            Segment seg = segment(recid);
+            Object cached;
+            synchronized (seg) {
+                cached = cacheLookup(seg, recid);
+                if (cached == NOT_CACHED) try {
+                    cached = offHeapLookup(seg, recid, serializer);
+                } catch (IOException e) {
+                    throw new IOError(e);
+                }
+                if (cached == NOT_CACHED) {
+                    missing.add(recid);
+                    modCounts.add(seg.modCount);
+                }
+            }
+            ret.add(cached == NOT_CACHED ? null : (A) cached);
+        }
+        if (missing.size == 0)
+            return ret;
+
+        long[] missingRecids = new long[missing.size];
+        System.arraycopy(missing.data, 0, missingRecids, 0, missing.size);
+        List<DBStore.Sized<A>> fetched = db.fetchAllSized(missingRecids, serializer);
+        try {
+            for (int i = 0, j = 0; i < recids.length; i++) {
+                if (j < missingRecids.length && recids[i] == missingRecids[j]) {
+                    A value = fetched.get(j).value;
+                    Segment seg = segment(recids[i]);
+                    boolean modified;
+                    synchronized (seg) {
+                        modified = seg.modCount != modCounts.data[j];
+                        if (!modified)
+                            cacheFetched(seg, recids[i], value, serializer, fetched.get(j).size);
+                    }
+                    //record was modified while it was read, fetch it again
+                    ret.set(i, modified ? fetch(recids[i], serializer) : value);
+                    j++;
+                }
+            }
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+        return ret;
+    }
+
+    /**
+     * Marks cache miss, null can be valid cached value
+     */
+    private static final Object NOT_CACHED = new Object();
+
+    /**
+     * Returns cached object or {@link #NOT_CACHED}. Must be called with segment lock.
+     */
+    private Object cacheLookup(Segment seg, long recid) {
+        CacheEntry entry = seg.get(recid);
+        if (entry != null) {
+            seg.hits++;
+            return entry._obj;
+        }
+        if (_refCache) synchronized (_softHash) {
             Object e = _softHash.get(recid);
             if (e != null) {
 
                 if(e instanceof ReferenceCacheEntry)
                     e = ((ReferenceCacheEntry)e).get();
                 if (e != null) {
-                    return (A) e;
+                    seg.hits++;
+                    return e;
                 }
             }
-        }else{
-            CacheEntry entry = cacheGet(recid);
-            if (entry != null) {
-                return (A) entry._obj;
-            }
+        }
+        seg.misses++;
+        return NOT_CACHED;
+    }
 
+    /**
+     * Returns record deserialized from off-heap cache, or {@link #NOT_CACHED}.
+     * Record found there is put into cache. Must be called with segment lock.
+     */
+    private <A> Object offHeapLookup(Segment seg, long recid, Serializer<A> serializer) throws IOException {
+        if (_offHeapCache == null)
+            return NOT_CACHED;
+        byte[] data = _offHeapCache.get(recid);
+        if (data == null)
+            return NOT_CACHED;
+        A value = deserialize(data, serializer);
+        cacheFetched(seg, recid, value, serializer, data.length);
+        seg.offHeapHits++;
+        return value;
+    }
+
+    private static <A> A deserialize(byte[] data, Serializer<A> serializer) throws IOException {
+        try {
+            return serializer.deserialize(new DataInputOutput(data));
+        } catch (ClassNotFoundException e) {
+            throw new IOError(e);
         }
+    }
 
-        A value = _db.fetch(recid, serializer);
-        if (_cacheType==MRU){
+    /**
+     * Puts record fetched from underlying DB into cache. Must be called with segment lock.
+     */
+    private void cacheFetched(Segment seg, long recid, Object value, Serializer serializer, int size) throws IOException {
+        if (!_refCache){
             //put record into MRU cache
-            cachePut(recid, value, serializer, false);
+            seg.put(recid, value, serializer, false, weigh(size));
         }else { //put record into soft cache
            synchronized (_softHash) {
 
@@ -290,8 +738,24 @@ class DBCache
                         _softHash.put(recid,value);
            }
         }
+    }
 
-        return value;
+    /**
+     * Returns weight of entry with given serialized size
+     */
+    private int weigh(int size) {
+        return _weighBytes ? size + ENTRY_OVERHEAD : 1;
+    }
+
+    /**
+     * Returns segment which holds given recid
+     */
+    Segment segment(long recid) {
+        int h = (int) (recid ^ (recid >>> 32));
+        //spread bits, consecutive recids should go to different segments
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return _segments[h & _segmentMask];
     }
 
 
@@ -300,23 +764,71 @@ class DBCache
             throw new IllegalStateException("DB has been closed");
         }
 
+        try {
+            writeModifiedTrees(true);
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+        _closing = true;
+        if (_warmUpThread != null) {
+            //warm-up thread stops after current batch
+            try {
+                _warmUpThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (_writeBehindThread != null) {
+            //write-behind thread is not interrupted, that could close file channel in middle of write
+            _writeBehind.stop();
+            try {
+                _writeBehindThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         updateCacheEntries();
+        if (_warmStart && !_db.isReadonly()) try {
+            saveHotRecids();
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
         _db.close();
         _db = null;
-        _hash = null;
+        _segments = null;
         _softHash = null;
-        if (_cacheType>MRU)
+        if (_offHeapCache != null)
+            _offHeapCache.close();
+        if (_refCache)
             _softRefThread.interrupt();
+        if (_statisticsMBean != null) try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(_statisticsMBean);
+            _statisticsMBean = null;
+        } catch (JMException e) {
+            throw new IOError(e);
+        }
     }
 
 
-    public synchronized void commit() {
-        if (_db == null) {
-            throw new IllegalStateException("DB has been closed");
-        }
+    public void commit() {
+        DBStore db;
+        long txnNumber;
+        synchronized (this) {
+            if (_db == null) {
+                throw new IllegalStateException("DB has been closed");
+            }
 
-        updateCacheEntries();
-        _db.commit();
+            try {
+                writeModifiedTrees(false);
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+            updateCacheEntries();
+            db = _db;
+            txnNumber = _db.commitToLog();
+        }
+        //wait for log sync without holding lock, so other commits can join
+        db.syncCommit(txnNumber);
     }
 
     public synchronized void rollback() {
@@ -324,16 +836,32 @@ class DBCache
             throw new IllegalStateException("DB has been closed");
         }
 
+        // discard all cache entries since we don't know which entries
+        // where part of the transaction. It is done before rollback too, so concurrent
+        // fetch can not write dirty entry into store while it rolls back
+        discardCache();
         _db.rollback();
+        discardCache();
+        try {
+            rollbackModifiedTrees();
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+    }
 
-        // discard all cache entries since we don't know which entries
-        // where part of the transaction
-        synchronized (_hash){
-            _hash.clear();
-            _first = null;
-            _last = null;
+    /**
+     * Removes all entries from cache, dirty entries are not written
+     */
+    private void discardCache() {
+        for (Segment seg : _segments) {
+            synchronized (seg) {
+                seg.clear();
+                seg.modCount++;
+            }
         }
-        if (_cacheType>MRU) synchronized (_softHash) {
+        if (_offHeapCache != null)
+            _offHeapCache.clear();
+        if (_refCache) synchronized (_softHash) {
             Iterator<ReferenceCacheEntry> iter = _softHash.valuesIterator();
             while (iter.hasNext()) {
                 ReferenceCacheEntry e = iter.next();
@@ -371,31 +899,41 @@ class DBCache
         return _db.calculateStatistics();
     }
 
+    public CacheStatistics getCacheStatistics() {
+        Segment[] segments = _segments;
+        if (segments == null) {
+            throw new IllegalStateException("DB has been closed");
+        }
+        long hits = 0, misses = 0, offHeapHits = 0, evictions = 0, writeBacks = 0, weight = 0;
+        for (Segment seg : segments) {
+            synchronized (seg) {
+                hits += seg.hits;
+                misses += seg.misses;
+                offHeapHits += seg.offHeapHits;
+                evictions += seg.evictions;
+                writeBacks += seg.writeBacks;
+                weight += seg.weight();
+            }
+        }
+        long softClears = 0;
+        if (_refCache) synchronized (_softHash) {
+            softClears = _softClears;
+            //reference cache is not limited, its size is number of records
+            weight += _softHash.size();
+        }
+        return new CacheStatistics(hits, misses, offHeapHits, evictions, writeBacks, softClears, weight);
+    }
+
 
     /**
      * Update all dirty cache objects to the underlying DB.
      */
     protected void updateCacheEntries() {
         try {
-            synchronized(_hash){
-
-                //make defensive copy of values as _db.update() may trigger changes in db
-                CacheEntry[] vals = new CacheEntry[_hash.size()];
-                Iterator<CacheEntry> iter = _hash.valuesIterator();
-                for(int i = 0;i<vals.length;i++){
-                    vals[i] = iter.next();
-                }
-                iter = null;
-
-                for(CacheEntry entry:vals){
-
-                    if (entry._isDirty) {
-                        _db.update(entry._recid, entry._obj, entry._serializer);
-                        entry._isDirty = false;
-                    }
-
+            for (Segment seg : _segments) {
+                synchronized (seg) {
+                    seg.flush();
                 }
-                //TODO entries are not dirty anymore, maybe _hash.clear()?
             }
         } catch (IOException e) {
             throw new IOError(e);
@@ -405,124 +943,438 @@ class DBCache
 
 
     /**
-     * Obtain an object in the cache
+     * Part of cache with its own lock and LRU list. When cache has more segments,
+     * LRU order is kept only within segment, so eviction order is approximate.
+     * All methods must be called while segment is locked.
+     * <p/>
+     * With W-TinyLFU policy, new entries go into small LRU window. Entry evicted from window
+     * is admitted into main cache only if it was accessed more often than entry it would replace,
+     * so large scan does not push frequently used entries out of cache.
+     * Main cache is segmented LRU, entry hit in probation queue is promoted into protected queue.
      */
-    protected CacheEntry cacheGet(long key) {
-        synchronized (_hash){
-            CacheEntry entry = _hash.get(key);
-            if (!(_cacheType>MRU) && entry != null && _last != entry) {
-                //touch entry
-                removeEntry(entry);
-                addEntry(entry);
+    final class Segment {
+
+        /** cached entries in this segment */
+        private final LongHashMap<CacheEntry> hash;
+
+        /** maximum total weight of entries in this segment */
+        private final long max;
+
+        /**
+         * LRU queues of entries, indexed by {@link CacheEntry#_queue}.
+         * MRU cache uses only window queue.
+         */
+        private final EntryQueue[] queues = {new EntryQueue(), new EntryQueue(), new EntryQueue()};
+
+        /** access frequencies used by W-TinyLFU admission, null for MRU cache */
+        private final FrequencySketch sketch;
+
+        /** maximum weight of entries in window queue */
+        private final long windowMax;
+
+        /** maximum weight of entries in protected queue */
+        private final long protectedMax;
+
+        /**
+         * Incremented when record in this segment is modified. Record fetched from store is placed
+         * into cache only if this did not change while it was fetched, otherwise it may be stale.
+         */
+        int modCount = 0;
+
+        /** total weight of dirty entries in this segment */
+        long dirtyWeight = 0;
+
+        /**
+         * Statistics counters of this segment, see {@link CacheStatistics}. Each segment has its own
+         * counters modified under its lock, so counting does not add contention between segments.
+         */
+        long hits = 0, misses = 0, offHeapHits = 0, evictions = 0, writeBacks = 0;
+
+        Segment(long max, boolean tinyLfu) {
+            this.max = max;
+            long maxEntries = _weighBytes ? max / ESTIMATED_ENTRY_SIZE : max;
+            hash = new LongHashMap<CacheEntry>((int) Math.min(maxEntries, 1 << 16));
+            if (tinyLfu) {
+                //sketch grows with capacity of this segment, it takes 8 bytes per entry
+                sketch = new FrequencySketch((int) Math.max(1, Math.min(maxEntries, FrequencySketch.MAX_ENTRIES)));
+                windowMax = Math.max(1, max / 100);
+                protectedMax = (max - windowMax) * 4 / 5;
+            } else {
+                sketch = null;
+                windowMax = max;
+                protectedMax = 0;
+            }
+        }
+
+        /**
+         * Obtain an object in the cache
+         */
+        CacheEntry get(long key) {
+            CacheEntry entry = hash.get(key);
+            if (sketch != null)
+                sketch.increment(key);
+            if (!(_refCache) && entry != null) {
+                touch(entry);
             }
             return entry;
         }
-    }
 
 
-    /**
-     * Place an object in the cache.
-     *
-     * @throws IOException
-     */
-    protected void cachePut(long recid, Object value, Serializer serializer, boolean dirty) throws IOException {
-        synchronized (_hash){
-            CacheEntry entry = _hash.get(recid);
+        /**
+         * Place an object in the cache.
+         *
+         * @throws IOException
+         */
+        void put(long recid, Object value, Serializer serializer, boolean dirty, int weight) throws IOException {
+            CacheEntry entry = hash.get(recid);
             if (entry != null) {
                 entry._obj = value;
                 entry._serializer = serializer;
-                //touch entry
-                if (_last != entry) {
-                    removeEntry(entry);
-                    addEntry(entry);
-                }
+                setWeight(entry, weight);
+                touch(entry);
+            } else if (sketch != null) {
+                entry = new CacheEntry(recid, value, serializer, false);
+                entry._weight = weight;
+                if (dirty)
+                    markDirty(entry);
+                addEntry(entry);
+                hash.put(entry._recid, entry);
+                while (queues[WINDOW].weight > windowMax)
+                    evictWindow();
             } else {
-
-                if (_hash.size() == _max) {
-                    // purge and recycle entry
-                    entry = purgeEntry();
+                // purge and recycle entry
+                CacheEntry recycled = null;
+                while (hash.size() > 0 && weight() + weight > max) {
+                    recycled = purgeEntry();
+                    evictions++;
+                }
+                if (recycled != null) {
+                    entry = recycled;
                     entry._recid = recid;
                     entry._obj = value;
-                    entry._isDirty = dirty;
                     entry._serializer = serializer;
                 } else {
-                    entry = new CacheEntry(recid, value, serializer, dirty);
+                    entry = new CacheEntry(recid, value, serializer, false);
                 }
+                entry._weight = weight;
+                if (dirty)
+                    markDirty(entry);
                 addEntry(entry);
-                _hash.put(entry._recid, entry);
+                hash.put(entry._recid, entry);
             }
         }
-    }
 
-    /**
-     * Add a CacheEntry.  Entry goes at the end of the list.
-     */
-    protected void addEntry(CacheEntry entry) {
-        synchronized (_hash){
-            if (_first == null) {
-                _first = entry;
-                _last = entry;
-            } else {
-                _last._next = entry;
-                entry._previous = _last;
-                _last = entry;
+        /**
+         * Returns total weight of entries in this segment
+         */
+        long weight() {
+            return queues[WINDOW].weight + queues[PROBATION].weight + queues[PROTECTED].weight;
+        }
+
+        /**
+         * Returns recids of entries in this segment, most recently used first.
+         * Protected entries of W-TinyLFU cache go first, as they were used more than once.
+         */
+        long[] recidsByRecency() {
+            long[] ret = new long[hash.size()];
+            int i = 0;
+            byte[] order = {PROTECTED, WINDOW, PROBATION};
+            for (byte q : order) {
+                for (CacheEntry e = queues[q].last; e != null; e = e._previous)
+                    ret[i++] = e._recid;
             }
+            return ret;
         }
-    }
 
+        /**
+         * Changes weight of entry which is in cache
+         */
+        private void setWeight(CacheEntry entry, int weight) {
+            queues[entry._queue].weight += weight - entry._weight;
+            if (entry._isDirty)
+                dirtyWeight += weight - entry._weight;
+            entry._weight = weight;
+        }
 
-    /**
-     * Remove a CacheEntry from linked list
-     */
-    protected void removeEntry(CacheEntry entry) {
-        synchronized (_hash){
-            if (entry == _first) {
-                _first = entry._next;
+        /**
+         * Marks entry in this segment as modified
+         */
+        void markDirty(CacheEntry entry) {
+            if (!entry._isDirty) {
+                entry._isDirty = true;
+                dirtyWeight += entry._weight;
             }
-            if (_last == entry) {
-                _last = entry._previous;
+        }
+
+        /**
+         * Writes dirty entry into store, its weight is updated with new serialized size
+         */
+        @SuppressWarnings("unchecked")
+        private void write(CacheEntry entry) throws IOException {
+            int size = _db.updateSized(entry._recid, entry._obj, entry._serializer);
+            entry._isDirty = false;
+            dirtyWeight -= entry._weight;
+            setWeight(entry, weigh(size));
+            writeBacks++;
+        }
+
+        /**
+         * Writes least recently used dirty entries into store, until weight of dirty entries
+         * in this segment is at most <code>maxDirtyWeight</code>. Segment lock is held only while
+         * single entry is written, so other threads are not blocked for long.
+         */
+        void writeBehind(long maxDirtyWeight) throws IOException {
+            CacheEntry[] dirty;
+            synchronized (this) {
+                int count = 0;
+                long weight = dirtyWeight;
+                dirty = new CacheEntry[hash.size()];
+                for (EntryQueue q : queues) {
+                    for (CacheEntry e = q.first; e != null && weight > maxDirtyWeight; e = e._next) {
+                        if (e._isDirty) {
+                            dirty[count++] = e;
+                            weight -= e._weight;
+                        }
+                    }
+                }
             }
-            CacheEntry previous = entry._previous;
-            CacheEntry next = entry._next;
-            if (previous != null) {
-                previous._next = next;
+            for (CacheEntry entry : dirty) {
+                if (entry == null)
+                    break;
+                synchronized (this) {
+                    //entry may have been written, evicted or discarded meanwhile
+                    if (entry._isDirty && hash.get(entry._recid) == entry)
+                        write(entry);
+                }
             }
-            if (next != null) {
-                next._previous = previous;
+        }
+
+        /**
+         * Removes entry, dirty entry is discarded
+         */
+        void remove(long recid) {
+            CacheEntry entry = hash.get(recid);
+            if (entry != null) {
+                if (entry._isDirty)
+                    dirtyWeight -= entry._weight;
+                removeEntry(entry);
+                hash.remove(entry._recid);
             }
-            entry._previous = null;
-            entry._next = null;
         }
-    }
 
-    /**
-     * Purge least recently used object from the cache
-     *
-     * @return recyclable CacheEntry
-     */
-    protected CacheEntry purgeEntry() {
-        synchronized (_hash){
-            CacheEntry entry = _first;
-            if (entry == null)
-                return new CacheEntry(-1, null, null, false);
+        /**
+         * Writes dirty entries into store
+         */
+        void flush() throws IOException {
+            //make defensive copy of values as _db.update() may trigger changes in db
+            CacheEntry[] vals = new CacheEntry[hash.size()];
+            Iterator<CacheEntry> iter = hash.valuesIterator();
+            for(int i = 0;i<vals.length;i++){
+                vals[i] = iter.next();
+            }
+            iter = null;
+
+            for(CacheEntry entry:vals){
+
+                if (entry._isDirty) {
+                    write(entry);
+                }
+
+            }
+            //TODO entries are not dirty anymore, maybe hash.clear()?
+        }
+
+        /**
+         * Writes entry into store if it is dirty
+         */
+        void flush(long recid) throws IOException {
+            CacheEntry entry = hash.get(recid);
+            if (entry != null && entry._isDirty) {
+                write(entry);
+            }
+        }
+
+        /**
+         * Removes all entries, dirty entries are discarded
+         */
+        void clear() {
+            hash.clear();
+            for (EntryQueue q : queues)
+                q.clear();
+            dirtyWeight = 0;
+        }
+
+        /**
+         * Removes all entries, dirty entries are written into store
+         */
+        void purgeAll() {
+            while (hash.size() > 0){
+                purgeEntry();
+            }
+            for (EntryQueue q : queues)
+                q.clear();
+        }
+
+        /**
+         * Add a CacheEntry.  Entry goes at the end of its queue.
+         */
+        private void addEntry(CacheEntry entry) {
+            queues[entry._queue].add(entry);
+        }
+
+
+        /**
+         * Remove a CacheEntry from its queue
+         */
+        private void removeEntry(CacheEntry entry) {
+            queues[entry._queue].remove(entry);
+        }
 
+        /**
+         * Moves entry to the end of its queue. Entry hit in probation queue is promoted into protected queue.
+         */
+        private void touch(CacheEntry entry) {
+            if (entry._queue == PROBATION) {
+                removeEntry(entry);
+                entry._queue = PROTECTED;
+                addEntry(entry);
+                while (queues[PROTECTED].weight > protectedMax) {
+                    //demote least recently used protected entry back to probation
+                    CacheEntry demoted = queues[PROTECTED].first;
+                    removeEntry(demoted);
+                    demoted._queue = PROBATION;
+                    addEntry(demoted);
+                }
+            } else if (queues[entry._queue].last != entry) {
+                removeEntry(entry);
+                addEntry(entry);
+            }
+        }
+
+        /**
+         * Moves least recently used entry from window into probation queue. If main cache is full,
+         * either this candidate or least recently used probation entry is evicted, depending on
+         * which one was accessed less frequently.
+         */
+        private void evictWindow() {
+            CacheEntry candidate = queues[WINDOW].first;
+            removeEntry(candidate);
+            candidate._queue = PROBATION;
+            addEntry(candidate);
+
+            //heavy candidate may need to replace several entries
+            while (queues[PROBATION].weight + queues[PROTECTED].weight > max - windowMax) {
+                CacheEntry victim = queues[PROBATION].first;
+                evictions++;
+                if (victim != candidate && sketch.frequency(candidate._recid) > sketch.frequency(victim._recid)) {
+                    evict(victim);
+                } else {
+                    evict(candidate);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Removes entry from cache, dirty entry is written into store
+         */
+        private void evict(CacheEntry entry) {
             if (entry._isDirty) try {
-                _db.update(entry._recid, entry._obj, entry._serializer);
+                write(entry);
             } catch (IOException e) {
                 throw new IOError(e);
             }
 
-
             removeEntry(entry);
-            _hash.remove(entry._recid);
+            hash.remove(entry._recid);
+        }
+
+        /**
+         * Purge least recently used object from the cache
+         *
+         * @return recyclable CacheEntry
+         */
+        private CacheEntry purgeEntry() {
+            CacheEntry entry = null;
+            for (EntryQueue q : queues) {
+                if (q.first != null) {
+                    entry = q.first;
+                    break;
+                }
+            }
+            if (entry == null)
+                return new CacheEntry(-1, null, null, false);
+
+            evict(entry);
             entry._obj = null;
             entry._serializer = null;
             entry._isDirty = false;
+            entry._queue = WINDOW;
+            entry._weight = 0;
             return entry;
         }
     }
 
 
+    /** queue of new entries, MRU cache keeps all entries here */
+    static final byte WINDOW = 0;
+    /** W-TinyLFU queue of entries admitted into main cache */
+    static final byte PROBATION = 1;
+    /** W-TinyLFU queue of entries hit while in probation */
+    static final byte PROTECTED = 2;
+
+    /**
+     * Doubly linked list of cache entries. First entry is element
+     * which has been used least recently, last entry was used most recently.
+     */
+    static final class EntryQueue {
+
+        CacheEntry first;
+        CacheEntry last;
+
+        /** total weight of entries in this queue */
+        long weight = 0;
+
+        void add(CacheEntry entry) {
+            if (first == null) {
+                first = entry;
+                last = entry;
+            } else {
+                last._next = entry;
+                entry._previous = last;
+                last = entry;
+            }
+            weight += entry._weight;
+        }
+
+        void remove(CacheEntry entry) {
+            if (entry == first) {
+                first = entry._next;
+            }
+            if (last == entry) {
+                last = entry._previous;
+            }
+            CacheEntry previous = entry._previous;
+            CacheEntry next = entry._next;
+            if (previous != null) {
+                previous._next = next;
+            }
+            if (next != null) {
+                next._previous = previous;
+            }
+            entry._previous = null;
+            entry._next = null;
+            weight -= entry._weight;
+        }
+
+        void clear() {
+            first = null;
+            last = null;
+            weight = 0;
+        }
+    }
+
+
     @SuppressWarnings("unchecked")
     static final class CacheEntry {
 
@@ -532,6 +1384,12 @@ class DBCache
         protected Serializer _serializer;
         protected boolean _isDirty;
 
+        /** queue which contains this entry */
+        protected byte _queue = WINDOW;
+
+        /** estimated memory used by this entry, or one if cache is limited by number of entries */
+        protected int _weight = 1;
+
         protected CacheEntry _previous;
         protected CacheEntry _next;
 
@@ -618,8 +1476,12 @@ class DBCache
                     synchronized (db._softHash) {
                         int counter = 0;
                         while (e != null) {
-                            db._softHash.remove(e.getRecid());
-                            e = (SoftCacheEntry) entryQueue.poll();
+                            //entry may have been replaced by newer reference meanwhile
+                            if (db._softHash.get(e.getRecid()) == e) {
+                                db._softHash.remove(e.getRecid());
+                                db._softClears++;
+                            }
+                            e = (ReferenceCacheEntry) entryQueue.poll();
                             if(debug)
                                 counter++;
                         }
@@ -645,21 +1507,74 @@ class DBCache
     }
 
 
+    /**
+     * Runs in separate thread and writes dirty entries into store when requested.
+     * Runnable auto exists when CacheRecordManager is GCed
+     */
+    static final class WriteBehindRunnable implements Runnable {
+
+        private final WeakReference<DBCache> db2;
+        private boolean requested = false;
+        private boolean stopped = false;
+
+        public WriteBehindRunnable(DBCache db) {
+            this.db2 = new WeakReference<DBCache>(db);
+        }
+
+        synchronized void request() {
+            requested = true;
+            notify();
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            notify();
+        }
+
+        public void run() {
+            while (true) try {
+                synchronized (this) {
+                    //limit 10000 ms is to keep periodically checking if db was GCed
+                    if (!requested && !stopped)
+                        wait(10000);
+                    if (stopped)
+                        return;
+                    if (!requested) {
+                        if (db2.get() == null)
+                            return;
+                        continue;
+                    }
+                    requested = false;
+                }
+
+                DBCache db = db2.get();
+                if (db == null)
+                    return;
+                db.writeBehind();
+                db = null;
+
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable e) {
+                //this thread must keep spinning, entry which failed stays dirty
+                //and is written again by commit
+                e.printStackTrace();
+            }
+        }
+    }
+
+
     public void clearCache() {
         if(debug)
             System.err.println("DBCache: Clear cache");
 
-        // discard all cache entries since we don't know which entries
-        // where part of the transaction
-        synchronized (_hash){
-            while (_hash.size() > 0){
-                purgeEntry();
+        for (Segment seg : _segments) {
+            synchronized (seg) {
+                seg.purgeAll();
             }
-            _first = null;
-            _last = null;
         }
 
-        if (_cacheType>MRU) synchronized (_softHash) {
+        if (_refCache) synchronized (_softHash) {
             if(_cacheType!=HARD){
                 Iterator<ReferenceCacheEntry> iter = _softHash.valuesIterator();
                 while (iter.hasNext()) {
@@ -679,4 +1594,78 @@ class DBCache
     }
 
 
+    public boolean compact(int pageBudget) {
+        commit();
+        return _db.compact(pageBudget);
+    }
+
+
+    public synchronized <R> R fetchRaw(long recid, RawRecordReader<R> reader) {
+        if (_db == null) {
+            throw new IllegalStateException("DB has been closed");
+        }
+        //store must contain latest version of record
+        Segment seg = segment(recid);
+        synchronized (seg) {
+            try {
+                seg.flush(recid);
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }
+        return _db.fetchRaw(recid, reader);
+    }
+
+
+    public synchronized long insertRaw(ByteBuffer data) {
+        if (_db == null) {
+            throw new IllegalStateException("DB has been closed");
+        }
+        return _db.insertRaw(data);
+    }
+
+
+    public synchronized void updateRaw(long recid, ByteBuffer data) {
+        if (_db == null) {
+            throw new IllegalStateException("DB has been closed");
+        }
+        evict(recid);
+        _db.updateRaw(recid, data);
+    }
+
+
+    public synchronized long createBlob() {
+        if (_db == null) {
+            throw new IllegalStateException("DB has been closed");
+        }
+        return _db.createBlob();
+    }
+
+
+    public synchronized InputStream openBlob(long recid) {
+        if (_db == null) {
+            throw new IllegalStateException("DB has been closed");
+        }
+        return _db.openBlob(recid);
+    }
+
+
+    public synchronized OutputStream writeBlob(long recid, int length) {
+        if (_db == null) {
+            throw new IllegalStateException("DB has been closed");
+        }
+        evict(recid);
+        return _db.writeBlob(recid, length);
+    }
+
+
+    public synchronized void deleteBlob(long recid) {
+        try {
+            delete(recid);
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+    }
+
+
 }
@@ -32,6 +32,12 @@ public class DBMaker {
 
     private byte cacheType = DBCache.MRU;
     private int mruCacheSize = 2048;
+    private long cacheSizeInBytes = 0;
+    private long offHeapCacheSize = 0;
+    private long maxDirtyWeight = 0;
+    private boolean cacheWarmStart = false;
+    private boolean cacheStatisticsMBean = false;
+    private int cacheSegments = 1;
 
     private String location = null;
 
@@ -40,14 +46,23 @@ public class DBMaker {
     private String password = null;
     private boolean useAES256Bit = true;
     private boolean useRandomAccessFile = false;
+    private boolean compressed = false;
     private boolean autoClearRefCacheOnLowMem = true;
+    private long pageCacheSize = RecordFile.DEFAULT_PAGE_CACHE_SIZE;
+    private int blockSize = Storage.DEFAULT_BLOCK_SIZE;
+    private long groupCommitWait = 0;
+    private int groupCommitSize = 1;
+    private long checkpointLogSize = 0;
+    private long checkpointInterval = 0;
+    private boolean backgroundCheckpoint = false;
 
 
     /**
      * Creates new DBMaker and sets location where database is located.
      * <p>
      * If location is null, in-memory store will be used. In this case data will be
-     * lost after JVM exits.
+     * lost after JVM exits. In-memory store keeps pages outside of Java heap,
+     * its size is limited by <code>-XX:MaxDirectMemorySize</code>.
      *
      * @param location on disk where db is located, Null for in-memory store
      */
@@ -109,15 +124,167 @@ public class DBMaker {
     }
 
     /**
+     * Use scan resistant W-TinyLFU cache with limited size. It is bounded like MRU cache, but
+     * it also tracks how often records were accessed recently. New record is kept in cache only if
+     * it is accessed more often than record it would replace. So large range scan over BTree does not
+     * evict frequently used records.
+     * <p/>
+     * Cache size is set by {@link #setMRUCacheSize(int)}, default is 2048 records.
      *
-     * Sets 'Most Recently Used' cache size. This cache is activated by default with size 2048
+     * @return this builder
+     */
+    public DBMaker enableTinyLfuCache() {
+        cacheType = DBCache.TINY_LFU;
+        return this;
+    }
+
+    /**
+     * Enables second level cache, which keeps serialized records outside of Java heap.
+     * When record is not found in instance cache, it is deserialized from this cache
+     * instead of being read from store. So large working set can be cached without large heap.
+     * <p/>
+     * Records are kept in direct memory, its size is limited by <code>-XX:MaxDirectMemorySize</code>.
+     * Index of cached records is on heap and takes 21 to 43 bytes per record.
+     * This cache has no effect if cache is disabled.
+     *
+     * @param sizeInBytes off-heap memory used by this cache
+     * @return this builder
+     */
+    public DBMaker enableOffHeapCache(long sizeInBytes) {
+        if (sizeInBytes <= 0) throw new IllegalArgumentException("Cache size is not greater than zero");
+        this.offHeapCacheSize = sizeInBytes;
+        return this;
+    }
+
+    /**
+     * Enables write-behind of modified records. Modified records are normally kept in cache until
+     * they are evicted or until commit, then they are serialized and written on caller's thread.
+     * With write-behind, background thread writes oldest modified records into store once their
+     * amount in cache gets over given limit. Commit then writes only records which are still outstanding.
+     * <p/>
+     * Limit is number of records, or estimated size in bytes if cache is limited by
+     * {@link #setCacheSizeInBytes(long)}. This has no effect if cache is disabled.
+     *
+     * @param maxDirty amount of modified records in cache, after which they are written in background
+     * @return this builder
+     */
+    public DBMaker enableWriteBehind(long maxDirty) {
+        if (maxDirty <= 0) throw new IllegalArgumentException("Limit is not greater than zero");
+        this.maxDirtyWeight = maxDirty;
+        return this;
+    }
+
+    /**
+     * Enables cache warm start. On close, recids of cached records are saved into store.
+     * When DB is opened again, background thread prefetches those records, most recently used first,
+     * until cache budget is reached. Records are read in batches sorted by physical location.
+     * <p/>
+     * Records can not be deserialized until they are fetched, so serialized records are loaded
+     * into off-heap cache, which must be enabled by {@link #enableOffHeapCache(long)}.
+     * This has no effect if cache is disabled.
+     *
+     * @return this builder
+     */
+    public DBMaker enableCacheWarmStart() {
+        this.cacheWarmStart = true;
+        return this;
+    }
+
+    /**
+     * Registers cache statistics as JMX MBean in platform MBean server, see {@link DB#getCacheStatistics()}.
+     * Its name is <code>net.kotek.jdbm:type=CacheStatistics,name="location"</code>,
+     * in-memory DB uses name <code>"memory"</code>. MBean is unregistered when DB is closed.
+     * This has no effect if cache is disabled.
+     *
+     * @return this builder
+     */
+    public DBMaker enableCacheStatisticsMBean() {
+        this.cacheStatisticsMBean = true;
+        return this;
+    }
+
+    /**
+     * Splits cache into independently locked segments, so fetches of cached records from multiple
+     * threads do not block each other. Each segment keeps its own LRU order, so eviction order is only
+     * approximate. It is useful when DB is accessed from many threads.
+     *
+     * @return this builder
+     */
+    public DBMaker enableConcurrentCache() {
+        cacheSegments = DBCache.CONCURRENT_SEGMENTS;
+        return this;
+    }
+
+    /**
+     *
+     * Sets 'Most Recently Used' cache size. This cache is activated by default with size 2048.
+     * If W-TinyLFU cache is enabled, this sets its size instead.
      *
      * @param cacheSize number of instances which will be kept in cache.
      * @return this builder
      */
     public DBMaker setMRUCacheSize(int cacheSize) {
         if (cacheSize < 0) throw new IllegalArgumentException("Cache size is smaller than zero");
-        cacheType = DBCache.MRU;
+        if (cacheType != DBCache.TINY_LFU)
+            cacheType = DBCache.MRU;
+        mruCacheSize = cacheSize;
+        cacheSizeInBytes = 0;
+        return this;
+    }
+
+    /**
+     * Limits 'Most Recently Used' (or W-TinyLFU) cache by memory instead of number of records.
+     * Size of each cached record is estimated from its serialized size plus fixed overhead.
+     * Deserialized objects usually take more heap than their serialized form,
+     * so this limit should be lower than memory you want to give to the cache.
+     * <p/>
+     * Modified record is serialized when it is updated, so its size is known before it is written into store.
+     *
+     * @param sizeInBytes estimated memory used by cached records
+     * @return this builder
+     */
+    public DBMaker setCacheSizeInBytes(long sizeInBytes) {
+        if (sizeInBytes <= 0) throw new IllegalArgumentException("Cache size is not greater than zero");
+        if (cacheType != DBCache.TINY_LFU)
+            cacheType = DBCache.MRU;
+        cacheSizeInBytes = sizeInBytes;
+        return this;
+    }
+
+    /**
+     * Sets size of page cache. JDBM keeps recently used clean pages in memory,
+     * so frequently accessed pages (file header, record translation pages)
+     * are not read from storage on every fetch.
+     * <p/>
+     * Default size is 1MB, zero disables page cache.
+     *
+     * @param sizeInBytes maximal memory used by cached pages
+     * @return this builder
+     */
+    public DBMaker setPageCacheSize(long sizeInBytes) {
+        if (sizeInBytes < 0) throw new IllegalArgumentException("Page cache size is smaller than zero");
+        this.pageCacheSize = sizeInBytes;
+        return this;
+    }
+
+    /**
+     * Sets size of pages in new database. Large pages (16-64KB) are better for sequential scans
+     * and large records, small pages are better for random access to small records.
+     * <p/>
+     * Block size is stored in file header, so existing database is always opened
+     * with block size it was created with and this setting is ignored.
+     * Default size is 4KB.
+     *
+     * @param blockSize power of two between 512 bytes and 64KB
+     * @return this builder
+     */
+    public DBMaker setBlockSize(int blockSize) {
+        if (blockSize < Storage.MIN_BLOCK_SIZE || blockSize > Storage.MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("Block size must be between " + Storage.MIN_BLOCK_SIZE
+                    + " and " + Storage.MAX_BLOCK_SIZE);
+        if (Integer.bitCount(blockSize) != 1)
+            throw new IllegalArgumentException("Block size is not power of two");
+        this.blockSize = blockSize;
         return this;
     }
 
@@ -201,6 +368,49 @@ public class DBMaker {
         return this;
     }
 
+    /**
+     * Enables group commit. Commit is durable, it returns after transaction log was synced to disk.
+     * With group commit, thread which syncs log waits for other commits to join,
+     * so many small transactions are synced together. Commits which arrive while other sync
+     * is running also share next sync.
+     * <p/>
+     * This increases throughput of many concurrent small commits, at the cost of commit latency.
+     *
+     * @param maxWaitMillis maximal time commit waits for other transactions to join the group
+     * @param maxBatchSize commit stops waiting when this many transactions are waiting for sync
+     * @return this builder
+     */
+    public DBMaker enableGroupCommit(long maxWaitMillis, int maxBatchSize) {
+        if (maxWaitMillis < 0) throw new IllegalArgumentException("Wait time is smaller than zero");
+        if (maxBatchSize < 1) throw new IllegalArgumentException("Batch size is smaller than one");
+        this.groupCommitWait = maxWaitMillis;
+        this.groupCommitSize = maxBatchSize;
+        return this;
+    }
+
+    /**
+     * Enables background checkpoints. By default commit writes logged pages into data file,
+     * once transaction log grows over 4MB, so that commit waits for data file.
+     * With background checkpoints, commits are only appended to transaction log. Once log grows over
+     * <code>maxLogSize</code> or is older than <code>maxIntervalMillis</code>, background thread writes
+     * its pages into data file, while new commits go into fresh log.
+     * <p/>
+     * Modified pages are kept in memory until they are written into data file,
+     * so bigger log also uses more memory.
+     *
+     * @param maxLogSize log size in bytes after which it is written into data file
+     * @param maxIntervalMillis age of log after which it is written into data file, 0 for no time limit
+     * @return this builder
+     */
+    public DBMaker enableBackgroundCheckpoint(long maxLogSize, long maxIntervalMillis) {
+        if (maxLogSize < 0) throw new IllegalArgumentException("Log size is smaller than zero");
+        if (maxIntervalMillis < 0) throw new IllegalArgumentException("Interval is smaller than zero");
+        this.checkpointLogSize = maxLogSize;
+        this.checkpointInterval = maxIntervalMillis;
+        this.backgroundCheckpoint = true;
+        return this;
+    }
+
     /**
      * By default JDBM uses mapped memory buffers to read from files.
      * But this may behave strangely on some platforms.
@@ -213,6 +423,22 @@ public class DBMaker {
         this.useRandomAccessFile = true;
         return this;
     }
+
+    /**
+     * Compress each page before it is written to disk.
+     * Compressed pages are stored in separate file with variable length slots,
+     * so DB takes less space on disk and less data is read from it.
+     * CPU time is spent on compression and decompression of every page.
+     * Has no effect on in-memory DB.
+     * <p/>
+     * Compressed DB must be always opened with this option.
+     *
+     * @return this builder
+     */
+    public DBMaker enableCompression(){
+        this.compressed = true;
+        return this;
+    }
     
 
     /**
@@ -220,8 +446,11 @@ public class DBMaker {
      *
      * @return new DB
      * @throws java.io.IOError if db could not be opened
+     * @throws IllegalArgumentException if cache warm start is enabled without off-heap cache
      */
     public DB build() {
+        if (cacheWarmStart && offHeapCacheSize == 0 && cacheType != DBCache.NONE)
+            throw new IllegalArgumentException("Cache warm start requires off-heap cache, size it with enableOffHeapCache()");
 
         Cipher cipherIn = null;
         Cipher cipherOut = null;
@@ -246,9 +475,9 @@ public class DBMaker {
             cipherOut.init(Cipher.DECRYPT_MODE, secret, params);
 
             //sanity check, try with page size
-            byte[] data = new byte[Storage.BLOCK_SIZE];
+            byte[] data = new byte[blockSize];
             byte[] encData = cipherIn.doFinal(data);
-            if (encData.length != Storage.BLOCK_SIZE)
+            if (encData.length != blockSize)
                 throw new Error("Block size changed after encryption, make sure you use '/NoPadding'");
             byte[] data2 = cipherOut.doFinal(encData);
             for (int i = 0; i < data.length; i++) {
@@ -262,14 +491,31 @@ public class DBMaker {
         DBAbstract db = null;
 
         try {
-            db = new DBStore(location, readonly, disableTransactions, cipherIn, cipherOut,useRandomAccessFile);
+            db = new DBStore(location, readonly, disableTransactions, cipherIn, cipherOut,useRandomAccessFile,compressed,blockSize,pageCacheSize);
         } catch (IOException e) {
             throw new IOError(e);
         }
 
-
-        if (cacheType == DBCache.MRU || cacheType == DBCache.SOFT || cacheType == DBCache.HARD || cacheType == DBCache.WEAK) {
-            db = new DBCache((DBStore) db, mruCacheSize, cacheType,autoClearRefCacheOnLowMem);
+        if (groupCommitWait != 0 || groupCommitSize != 1)
+            ((DBStore) db).setGroupCommit(groupCommitWait, groupCommitSize);
+
+        if (backgroundCheckpoint)
+            ((DBStore) db).setCheckpoint(true, checkpointLogSize, checkpointInterval);
+
+        if (cacheType == DBCache.MRU || cacheType == DBCache.TINY_LFU || cacheType == DBCache.SOFT || cacheType == DBCache.HARD || cacheType == DBCache.WEAK) {
+            db = new DBCache((DBStore) db, mruCacheSize, cacheSizeInBytes, cacheType,autoClearRefCacheOnLowMem, cacheSegments);
+            if (offHeapCacheSize != 0)
+                ((DBCache) db).setOffHeapCache(offHeapCacheSize);
+            if (maxDirtyWeight != 0)
+                ((DBCache) db).setWriteBehind(maxDirtyWeight);
+            if (cacheWarmStart)
+                ((DBCache) db).setWarmStart();
+            if (cacheStatisticsMBean) try {
+                ((DBCache) db).registerStatisticsMBean(location == null ? "memory" : location);
+            } catch (IllegalArgumentException e) {
+                db.close();
+                throw e;
+            }
         } else if (cacheType == DBCache.NONE) {
             //do nothing
         } else {
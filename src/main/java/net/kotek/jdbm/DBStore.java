@@ -19,7 +19,9 @@ package net.kotek.jdbm;
 
 import javax.crypto.Cipher;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -31,9 +33,9 @@ import java.util.zip.ZipOutputStream;
  * back to them. Data blocks can be as long as you wish, and may have
  * lengths different from the original when updating.
  * <p/>
- * Operations are synchronized, so that only one of them will happen
- * concurrently even if you hammer away from multiple threads. Operations
- * are made atomic by keeping a transaction log which is recovered after
+ * Fetches take read lock and may run concurrently, all other operations
+ * take write lock, so only one of them will happen concurrently even if
+ * you hammer away from multiple threads. Operations are made atomic by keeping a transaction log which is recovered after
  * a crash, so the operations specified by this interface all have ACID
  * properties.
  * <p/>
@@ -79,6 +81,12 @@ final class DBStore
 
     private static final int AUTOCOMMIT_AFTER_N_PAGES = 1024 * 5;
 
+    /**
+     * Batch insert is serialized and written in parts of about this size, so batch does not need memory for all
+     * serialized records and auto commit is checked about as often as with single inserts
+     */
+    static final int INSERT_BATCH_PART_SIZE = 1024 * 1024;
+
 
     /**
      * cipher used for decryption, may be null
@@ -89,6 +97,14 @@ final class DBStore
      */
     private Cipher cipherIn;
     private boolean useRandomAccessFile;
+    private boolean compressed;
+    private int blockSize;
+    private long pageCacheSize;
+    private long groupCommitWait = 0;
+    private int groupCommitSize = 1;
+    private boolean backgroundCheckpoint = false;
+    private long checkpointLogSize = TransactionManager.DEFAULT_CHECKPOINT_LOG_SIZE;
+    private long checkpointInterval = 0;
 
 
     void checkCanWrite() {
@@ -96,6 +112,11 @@ final class DBStore
             throw new UnsupportedOperationException("Could not write, store is opened as read-only");
     }
 
+    boolean isReadonly() {
+        return readonly;
+    }
+
+
 
 
 
@@ -104,6 +125,11 @@ final class DBStore
      */
     private LogicalRowIdManager _logicMgr;
 
+    /**
+     * Moves records out of sparse data pages, see {@link #compact(int)}
+     */
+    private Compactor _compactor;
+
 
     /**
      * Static debugging flag
@@ -134,15 +160,35 @@ final class DBStore
      */
     public static final int SERIAL_CLASS_INFO_RECID_ROOT = 2;
 
+    /**
+     * Reserved slot for recid where cache saves recids of its hot records on close.
+     * Slot 3 is used for block size.
+     */
+    public static final int CACHE_HOT_RECIDS_ROOT = 4;
 
-    private final DataInputOutput buffer = new DataInputOutput();
-    private boolean bufferInUse = false;
+    /**
+     * Slots below this one are reserved for store itself, {@link #setRoot(int, long)} rejects them
+     */
+    public static final int RESERVED_ROOTS = 5;
+
+
+    /**
+     * Guards store structures. Fetches only read pages and take read lock,
+     * everything else takes write lock.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Reusable serialization buffer of each thread, null while thread uses it.
+     */
+    private final ThreadLocal<DataInputOutput> buffers = new ThreadLocal<DataInputOutput>();
 
 
     private final String _filename;
 
     public DBStore(String filename, boolean readonly, boolean transactionDisabled) throws IOException {
-        this(filename, readonly, transactionDisabled, null, null, false);
+        this(filename, readonly, transactionDisabled, null, null, false, false, Storage.DEFAULT_BLOCK_SIZE,
+                RecordFile.DEFAULT_PAGE_CACHE_SIZE);
     }
 
 
@@ -153,7 +199,8 @@ final class DBStore
      *                     a valid file content-wise.
      */
     public DBStore(String filename, boolean readonly, boolean transactionDisabled,
-                   Cipher cipherIn, Cipher cipherOut, boolean useRandomAccessFile)
+                   Cipher cipherIn, Cipher cipherOut, boolean useRandomAccessFile, boolean compressed,
+                   int blockSize, long pageCacheSize)
             throws IOException {
         _filename = filename;
         this.readonly = readonly;
@@ -161,24 +208,32 @@ final class DBStore
         this.cipherIn = cipherIn;
         this.cipherOut = cipherOut;
         this.useRandomAccessFile = useRandomAccessFile;
+        this.compressed = compressed;
+        this.blockSize = blockSize;
+        this.pageCacheSize = pageCacheSize;
         reopen();
     }
 
 
     private void reopen() throws IOException {
-        _file = new RecordFile(_filename, readonly, transactionsDisabled, cipherIn, cipherOut,useRandomAccessFile);
+        _file = new RecordFile(_filename, readonly, transactionsDisabled, cipherIn, cipherOut,useRandomAccessFile,compressed,blockSize,pageCacheSize);
+        if (_file.txnMgr != null)
+            _file.txnMgr.setGroupCommit(groupCommitWait, groupCommitSize);
+        if (_file.txnMgr != null)
+            _file.txnMgr.setCheckpoint(backgroundCheckpoint, checkpointLogSize, checkpointInterval);
         _pageman = new PageManager(_file);
-        _physMgr = new PhysicalRowIdManager(_file, _pageman,
-                new FreePhysicalRowIdPageManager(_file, _pageman));
+        FreePhysicalRowIdPageManager freePhysMgr = new FreePhysicalRowIdPageManager(_file, _pageman);
+        _physMgr = new PhysicalRowIdManager(_file, _pageman, freePhysMgr);
 
         _logicMgr = new LogicalRowIdManager(_file, _pageman,
                 new FreeLogicalRowIdPageManager(_file, _pageman));
+        _compactor = new Compactor(_file, _pageman, _physMgr, _logicMgr, freePhysMgr);
 
         long versionNumber = getRoot(STORE_VERSION_NUMBER_ROOT);
         if (versionNumber > STORE_FORMAT_VERSION)
             throw new IOException("Unsupported version of store. Please update JDBM. Minimal supported ver:" + STORE_FORMAT_VERSION + ", store ver:" + versionNumber);
         if (!readonly)
-            setRoot(STORE_VERSION_NUMBER_ROOT, STORE_FORMAT_VERSION);
+            setReservedRoot(STORE_VERSION_NUMBER_ROOT, STORE_FORMAT_VERSION);
 
         defaultSerializer = null;
 
@@ -190,9 +245,11 @@ final class DBStore
      *
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized void close() {
-        checkIfClosed();
+    public void close() {
+        lock.writeLock().lock();
         try {
+            checkIfClosed();
+            writeModifiedTrees(true);
             _pageman.close();
             _pageman = null;
 
@@ -201,9 +258,40 @@ final class DBStore
 
         } catch (IOException e) {
             throw new IOError(e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
+    /**
+     * Acquires read lock. Default serializer may be needed while deserializing,
+     * but creating it may insert new record, so it is created before read lock is held.
+     */
+    private void readLock() throws IOException {
+        lock.readLock().lock();
+        while (defaultSerializer == null && !lock.isWriteLockedByCurrentThread() && _file != null
+                && (!readonly || getRoot(SERIAL_CLASS_INFO_RECID_ROOT) != 0)) {
+            lock.readLock().unlock();
+            defaultSerializer();
+            lock.readLock().lock();
+        }
+    }
+
+    /**
+     * Takes serialization buffer of current thread, nested calls get new instance
+     */
+    private DataInputOutput takeBuffer() {
+        DataInputOutput buf = buffers.get();
+        if (buf == null)
+            return new DataInputOutput();
+        buffers.set(null);
+        return buf;
+    }
+
+    private void returnBuffer(DataInputOutput buf) {
+        buffers.set(buf);
+    }
+
 
     /**
      * Inserts a new record using a custom serializer.
@@ -213,30 +301,82 @@ final class DBStore
      * @return the rowid for the new record.
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized <A> long insert(A obj, Serializer<A> serializer)
+    public <A> long insert(A obj, Serializer<A> serializer)
             throws IOException {
-        checkIfClosed();
-        checkCanWrite();
+        DataInputOutput buf = takeBuffer();
+        try {
+            return insert(obj, serializer, buf);
+        } finally {
+            returnBuffer(buf);
+        }
+    }
 
-        if (needsAutoCommit()) {
-            commit();
+    /**
+     * Inserts a new record, returns its recid and serialized size
+     */
+    <A> Sized<A> insertSized(A obj, Serializer<A> serializer)
+            throws IOException {
+        DataInputOutput buf = takeBuffer();
+        try {
+            long recid = insert(obj, serializer, buf);
+            return new Sized<A>(recid, null, buf.getPos());
+        } finally {
+            returnBuffer(buf);
         }
+    }
+
+    private <A> long insert(A obj, Serializer<A> serializer, DataInputOutput buf)
+            throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkIfClosed();
+            checkCanWrite();
 
+            if (needsAutoCommit()) {
+                commit();
+            }
 
-        if (bufferInUse) {
-            //current reusable buffer is in use, have to fallback into creating new instances
-            DataInputOutput buffer2 = new DataInputOutput();
-            return insert2(obj, serializer, buffer2);
+            return insert2(obj, serializer, buf);
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
 
+    public <A> long[] insertBatch(List<A> objs, Serializer<A> serializer) {
+        lock.writeLock().lock();
         try {
+            checkIfClosed();
+            checkCanWrite();
 
-            bufferInUse = true;
-            return insert2(obj, serializer, buffer);
+            //records are serialized and written in parts, so whole batch is never held in memory
+            DataInputOutput buf = new DataInputOutput();
+            Utils.IntArrayList ends = new Utils.IntArrayList();
+            long[] recids = new long[objs.size()];
+            int from = 0;
+            Iterator<A> iter = objs.iterator();
+            while (iter.hasNext()) {
+                serializer.serialize(buf, iter.next());
+                ends.add(buf.getPos());
+                if (buf.getPos() < INSERT_BATCH_PART_SIZE && iter.hasNext())
+                    continue;
+
+                if (needsAutoCommit()) {
+                    commit();
+                }
+                long[] physRowIds = _physMgr.insertBatch(buf.getBuf(), ends.data, ends.size);
+                long[] logRowIds = _logicMgr.insertBatch(physRowIds);
+                for (int i = 0; i < logRowIds.length; i++)
+                    recids[from + i] = _file.location.compressRecid(logRowIds[i]);
+                from += ends.size;
+                buf.reset();
+                ends.size = 0;
+            }
+            return recids;
+        } catch (IOException e) {
+            throw new IOError(e);
         } finally {
-            bufferInUse = false;
+            lock.writeLock().unlock();
         }
-
     }
 
     boolean needsAutoCommit() {
@@ -255,61 +395,95 @@ final class DBStore
             System.out.println("BaseRecordManager.insert() recid " + recid + " length " + buf.getPos());
         }
 
-        return Location.compressRecid(recid);
+        return _file.location.compressRecid(recid);
     }
 
 
-    public synchronized void delete(long logRowId)
+    public void delete(long logRowId)
             throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkIfClosed();
+            checkCanWrite();
+            if (logRowId <= 0) {
+                throw new IllegalArgumentException("Argument 'recid' is invalid: "
+                        + logRowId);
+            }
 
-        checkIfClosed();
-        checkCanWrite();
-        if (logRowId <= 0) {
-            throw new IllegalArgumentException("Argument 'recid' is invalid: "
-                    + logRowId);
-        }
+            if (needsAutoCommit()) {
+                commit();
+            }
 
-        if (needsAutoCommit()) {
-            commit();
-        }
+            if (DEBUG) {
+                System.out.println("BaseRecordManager.delete() recid " + logRowId);
+            }
 
-        if (DEBUG) {
-            System.out.println("BaseRecordManager.delete() recid " + logRowId);
+            logRowId =  _file.location.decompressRecid(logRowId);
+
+            long physRowId = _logicMgr.fetch(logRowId);
+            _physMgr.free(physRowId);
+            _logicMgr.delete(logRowId);
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
 
-        logRowId =  Location.decompressRecid(logRowId);
 
-        long physRowId = _logicMgr.fetch(logRowId);
-        _physMgr.free(physRowId);
-        _logicMgr.delete(logRowId);
+    public <A> void update(long recid, A obj, Serializer<A> serializer)
+            throws IOException {
+        updateSized(recid, obj, serializer);
     }
 
-
-    public synchronized <A> void update(long recid, A obj, Serializer<A> serializer)
+    /**
+     * Updates a record, returns its new serialized size
+     */
+    <A> int updateSized(long recid, A obj, Serializer<A> serializer)
             throws IOException {
-        checkIfClosed();
-        checkCanWrite();
-        if (recid <= 0) {
-            throw new IllegalArgumentException("Argument 'recid' is invalid: "
-                    + recid);
-        }
+        lock.writeLock().lock();
+        try {
+            checkIfClosed();
+            checkCanWrite();
+            if (recid <= 0) {
+                throw new IllegalArgumentException("Argument 'recid' is invalid: "
+                        + recid);
+            }
 
-        if (needsAutoCommit()) {
-            commit();
-        }
+            if (needsAutoCommit()) {
+                commit();
+            }
 
-        if (bufferInUse) {
-            //current reusable buffer is in use, have to create new instances
-            DataInputOutput buffer2 = new DataInputOutput();
-            update2(recid, obj, serializer, buffer2);
-            return;
+            DataInputOutput buf = takeBuffer();
+            try {
+                update2(recid, obj, serializer, buf);
+                return buf.getPos();
+            } finally {
+                returnBuffer(buf);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
 
+
+    /**
+     * Returns serialized size of object, nothing is written into store.
+     * Takes write lock, as serializer may register new class.
+     */
+    <A> int serializedSize(A obj, Serializer<A> serializer)
+            throws IOException {
+        lock.writeLock().lock();
         try {
-            bufferInUse = true;
-            update2(recid, obj, serializer, buffer);
+            checkIfClosed();
+            DataInputOutput buf = takeBuffer();
+            try {
+                buf.reset();
+                serializer.serialize(buf, obj);
+                return buf.getPos();
+            } finally {
+                returnBuffer(buf);
+            }
         } finally {
-            bufferInUse = false;
+            lock.writeLock().unlock();
         }
     }
 
@@ -317,7 +491,7 @@ final class DBStore
     private <A> void update2(long logRecid, final A obj, final Serializer<A> serializer, final DataInputOutput buf)
             throws IOException {
         
-        logRecid =  Location.decompressRecid(logRecid);
+        logRecid =  _file.location.decompressRecid(logRecid);
 
         long physRecid = _logicMgr.fetch(logRecid);
         if (physRecid == 0)
@@ -337,113 +511,290 @@ final class DBStore
     }
 
 
-    public synchronized <A> A fetch(final long recid, final Serializer<A> serializer)
+    public <A> A fetch(final long recid, final Serializer<A> serializer)
             throws IOException {
+        return fetchSized(recid, serializer).value;
+    }
 
-        checkIfClosed();
-        if (recid <= 0) {
-            throw new IllegalArgumentException("Argument 'recid' is invalid: "
-                    + recid);
+    /**
+     * Fetches a record, returns its value and serialized size. Size is zero if record does not exist.
+     */
+    <A> Sized<A> fetchSized(final long recid, final Serializer<A> serializer)
+            throws IOException {
+        readLock();
+        try {
+            checkIfClosed();
+            if (recid <= 0) {
+                throw new IllegalArgumentException("Argument 'recid' is invalid: "
+                        + recid);
+            }
+
+            DataInputOutput buf = takeBuffer();
+            try {
+                return fetch2(recid, serializer, buf);
+            } finally {
+                returnBuffer(buf);
+            }
+        } finally {
+            lock.readLock().unlock();
         }
+    }
+
+    public <A> List<A> fetchAll(long[] recids, Serializer<A> serializer) {
+        List<Sized<A>> fetched = fetchAllSized(recids, serializer);
+        List<A> ret = new ArrayList<A>(fetched.size());
+        for (Sized<A> f : fetched)
+            ret.add(f.value);
+        return ret;
+    }
 
-        if (bufferInUse) {
-            //current reusable buffer is in use, have to create new instances
-            DataInputOutput buffer2 = new DataInputOutput();
-            return fetch2(recid, serializer, buffer2);
+    /**
+     * Fetches records, returns value and serialized size of each record, in order of recids
+     */
+    <A> List<Sized<A>> fetchAllSized(long[] recids, Serializer<A> serializer) {
+        try {
+            readLock();
+        } catch (IOException e) {
+            throw new IOError(e);
         }
         try {
-            bufferInUse = true;
-            return fetch2(recid, serializer, buffer);
+            checkIfClosed();
+            long[] physLocations = new long[recids.length];
+            Integer[] order = physicalOrder(recids, physLocations);
+
+            List<Sized<A>> ret = new ArrayList<Sized<A>>(Collections.nCopies(recids.length, new Sized<A>(0, null, 0)));
+            DataInputOutput buf = takeBuffer();
+            try {
+                for (Integer i : order) {
+                    if (physLocations[i] == 0)
+                        continue;
+                    buf.reset();
+                    _physMgr.fetch(buf, physLocations[i]);
+                    int size = buf.getPos();
+                    buf.resetForReading();
+                    ret.set(i, new Sized<A>(recids[i], serializer.deserialize(buf), size));
+                }
+            } finally {
+                returnBuffer(buf);
+            }
+            return ret;
+        } catch (IOException e) {
+            throw new IOError(e);
+        } catch (ClassNotFoundException e) {
+            throw new IOError(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads serialized records in order of their physical location, so pages are read sequentially.
+     * Returned array is in order of recids, it contains null for record which does not exist.
+     */
+    byte[][] fetchAllRaw(long[] recids) {
+        lock.readLock().lock();
+        try {
+            checkIfClosed();
+            long[] physLocations = new long[recids.length];
+            Integer[] order = physicalOrder(recids, physLocations);
+
+            byte[][] ret = new byte[recids.length][];
+            DataInputOutput buf = new DataInputOutput();
+            for (Integer i : order) {
+                if (physLocations[i] == 0)
+                    continue;
+                buf.reset();
+                _physMgr.fetch(buf, physLocations[i]);
+                ret[i] = buf.toByteArray();
+            }
+            return ret;
+        } catch (IOException e) {
+            throw new IOError(e);
         } finally {
-            bufferInUse = false;
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Resolves physical locations of recids and returns indexes of recids sorted by physical location.
+     * Must be called with lock held.
+     */
+    private Integer[] physicalOrder(long[] recids, final long[] physLocations) throws IOException {
+        Integer[] order = new Integer[recids.length];
+        for (int i = 0; i < recids.length; i++) {
+            if (recids[i] <= 0) {
+                throw new IllegalArgumentException("Argument 'recid' is invalid: "
+                        + recids[i]);
+            }
+            physLocations[i] = _logicMgr.fetch(_file.location.decompressRecid(recids[i]));
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                long l1 = physLocations[o1];
+                long l2 = physLocations[o2];
+                return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Record returned to cache together with its serialized size, so cache can weigh its entry.
+     * It holds recid of inserted record, or value of fetched record.
+     */
+    static final class Sized<A> {
+        final long recid;
+        final A value;
+        final int size;
+
+        Sized(long recid, A value, int size) {
+            this.recid = recid;
+            this.value = value;
+            this.size = size;
         }
     }
 
-    public synchronized <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
+    public <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
         //we dont have any cache, so can ignore disableCache parameter
         return fetch(recid, serializer);
     }
 
 
-    private <A> A fetch2(long recid, final Serializer<A> serializer, final DataInputOutput buf)
+    private <A> Sized<A> fetch2(final long recid, final Serializer<A> serializer, final DataInputOutput buf)
             throws IOException {
 
-        recid =  Location.decompressRecid(recid);
-
         buf.reset();
-        long physLocation = _logicMgr.fetch(recid);
+        long physLocation = _logicMgr.fetch(_file.location.decompressRecid(recid));
         if (physLocation == 0) {
             //throw new IOException("Record not found, recid: "+recid);
-            return null;
+            return new Sized<A>(recid, null, 0);
         }
         _physMgr.fetch(buf, physLocation);
+        int size = buf.getPos();
 
         if (DEBUG) {
             System.out.println("BaseRecordManager.fetch() recid " + recid + " length " + buf.getPos());
         }
         buf.resetForReading();
         try {
-            return serializer.deserialize(buf); //TODO there should be write limit to throw EOFException
+            return new Sized<A>(recid, serializer.deserialize(buf), size); //TODO there should be write limit to throw EOFException
         } catch (ClassNotFoundException e) {
             throw new IOError(e);
         }
     }
     
     byte[] fetchRaw(long recid) throws IOException {
-        recid =  Location.decompressRecid(recid);
-        long physLocation = _logicMgr.fetch(recid);
-        if (physLocation == 0) {
-            //throw new IOException("Record not found, recid: "+recid);
-            return null;
+        lock.readLock().lock();
+        try {
+            recid =  _file.location.decompressRecid(recid);
+            long physLocation = _logicMgr.fetch(recid);
+            if (physLocation == 0) {
+                //throw new IOException("Record not found, recid: "+recid);
+                return null;
+            }
+            DataInputOutput i = new DataInputOutput();
+            _physMgr.fetch(i, physLocation);
+            return i.toByteArray();
+        } finally {
+            lock.readLock().unlock();
         }
-        DataInputOutput i = new DataInputOutput();
-        _physMgr.fetch(i, physLocation);
-        return i.toByteArray();
     }
 
 
-    public synchronized long getRoot(int id)
+    public long getRoot(int id)
             throws IOException {
-        checkIfClosed();
+        lock.readLock().lock();
+        try {
+            checkIfClosed();
 
-        return _pageman.getFileHeader().fileHeaderGetRoot(id);
+            BlockIo header = _pageman.getFileHeader();
+            checkRootSlot(header, id);
+            return header.fileHeaderGetRoot(id);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
 
-    public synchronized void setRoot(int id, long rowid)
+    /**
+     * Sets root slot which is not reserved. Number of slots depends on block size,
+     * file with default block size has {@link Magic#FILE_HEADER_NROOTS} slots.
+     */
+    public void setRoot(int id, long rowid)
             throws IOException {
-        checkIfClosed();
-        checkCanWrite();
+        if (id < RESERVED_ROOTS)
+            throw new IllegalArgumentException("Root slot is reserved: " + id);
+        setRootSlot(id, rowid);
+    }
 
-        _pageman.getFileHeader().fileHeaderSetRoot(id, rowid);
+    /**
+     * Sets one of slots reserved for store. Block size slot is written only by file header.
+     */
+    void setReservedRoot(int id, long rowid)
+            throws IOException {
+        if (id >= RESERVED_ROOTS || id == Magic.FILE_HEADER_ROOT_BLOCK_SIZE)
+            throw new IllegalArgumentException("Root slot is not reserved for store: " + id);
+        setRootSlot(id, rowid);
+    }
+
+    private void setRootSlot(int id, long rowid)
+            throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkIfClosed();
+            checkCanWrite();
+
+            BlockIo header = _pageman.getFileHeader();
+            checkRootSlot(header, id);
+            header.fileHeaderSetRoot(id, rowid);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void checkRootSlot(BlockIo header, int id) {
+        if (id < 0 || id >= header.fileHeaderRootCount())
+            throw new IllegalArgumentException("Root slot is out of range: " + id);
     }
 
 
     public long getNamedObject(String name)
             throws IOException {
-        checkIfClosed();
+        //name directory may be created, so it needs write lock
+        lock.writeLock().lock();
+        try {
+            checkIfClosed();
 
-        Map<String, Long> nameDirectory = getNameDirectory();
-        Long recid = (Long) nameDirectory.get(name);
-        if (recid == null) {
-            return 0;
+            Map<String, Long> nameDirectory = getNameDirectory();
+            Long recid = (Long) nameDirectory.get(name);
+            if (recid == null) {
+                return 0;
+            }
+            return recid.longValue();
+        } finally {
+            lock.writeLock().unlock();
         }
-        return recid.longValue();
     }
 
     public void setNamedObject(String name, long recid)
             throws IOException {
-        checkIfClosed();
-        checkCanWrite();
+        lock.writeLock().lock();
+        try {
+            checkIfClosed();
+            checkCanWrite();
 
-        Map<String, Long> nameDirectory = getNameDirectory();
-        if (recid == 0) {
-            // remove from hashtable
-            nameDirectory.remove(name);
-        } else {
-            nameDirectory.put(name, new Long(recid));
+            Map<String, Long> nameDirectory = getNameDirectory();
+            if (recid == 0) {
+                // remove from hashtable
+                nameDirectory.remove(name);
+            } else {
+                nameDirectory.put(name, new Long(recid));
+            }
+            saveNameDirectory(nameDirectory);
+        } finally {
+            lock.writeLock().unlock();
         }
-        saveNameDirectory(nameDirectory);
     }
 
 
@@ -458,7 +809,7 @@ final class DBStore
         if (nameDirectory_recid == 0) {
             _nameDirectory = new HashMap<String, Long>();
             nameDirectory_recid = insert(_nameDirectory);
-            setRoot(NAME_DIRECTORY_ROOT, nameDirectory_recid);
+            setReservedRoot(NAME_DIRECTORY_ROOT, nameDirectory_recid);
         } else {
             _nameDirectory = (Map<String, Long>) fetch(nameDirectory_recid);
         }
@@ -477,26 +828,50 @@ final class DBStore
     }
 
 
-    private Serialization defaultSerializer;
+    private volatile Serialization defaultSerializer;
 
-    public synchronized Serializer defaultSerializer() {
-        if (defaultSerializer == null) try {
-            long serialClassInfoRecid = getRoot(SERIAL_CLASS_INFO_RECID_ROOT);
-            if (serialClassInfoRecid == 0) {
-                //insert new empty array list
-                serialClassInfoRecid = insert(new ArrayList<SerialClassInfo.ClassInfo>(0), SerialClassInfo.serializer);
-                setRoot(SERIAL_CLASS_INFO_RECID_ROOT, serialClassInfoRecid);
-            }
+    public Serializer defaultSerializer() {
+        Serialization ser = defaultSerializer;
+        if (ser != null)
+            return ser;
 
-            defaultSerializer = new Serialization(this, serialClassInfoRecid);
+        lock.writeLock().lock();
+        try {
+            if (defaultSerializer == null) {
+                long serialClassInfoRecid = getRoot(SERIAL_CLASS_INFO_RECID_ROOT);
+                if (serialClassInfoRecid == 0) {
+                    //insert new empty array list
+                    serialClassInfoRecid = insert(new ArrayList<SerialClassInfo.ClassInfo>(0), SerialClassInfo.serializer);
+                    setReservedRoot(SERIAL_CLASS_INFO_RECID_ROOT, serialClassInfoRecid);
+                }
+
+                defaultSerializer = new Serialization(this, serialClassInfoRecid);
+            }
+            return defaultSerializer;
         } catch (IOException e) {
             throw new IOError(e);
+        } finally {
+            lock.writeLock().unlock();
         }
-        return defaultSerializer;
     }
 
 
-    public synchronized void commit() {
+    public void commit() {
+        try {
+            writeModifiedTrees(false);
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+        syncCommit(commitToLog());
+    }
+
+    /**
+     * Commits all pending changes into transaction log, but does not wait until log is synced to disk.
+     *
+     * @return sequence number of last transaction in log, should be passed to {@link #syncCommit(long)}
+     */
+    long commitToLog() {
+        lock.writeLock().lock();
         try {
             checkIfClosed();
             checkCanWrite();
@@ -506,29 +881,64 @@ final class DBStore
 
             /**commit pages */
             _pageman.commit();
+
+            return _file.txnMgr == null ? 0 : _file.txnMgr.getLastTransaction();
         } catch (IOException e) {
             throw new IOError(e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
+    /**
+     * Returns block size used by this store, it may differ from requested one for existing files
+     */
+    int getBlockSize() {
+        return _file.blockSize;
+    }
 
-    public synchronized void rollback() {
+    /**
+     * Waits until transaction log is synced to disk, up to given transaction.
+     * It is called without holding DB lock, so concurrent commits can share single sync.
+     *
+     * @param txnNumber value returned by {@link #commitToLog()}
+     */
+    void syncCommit(long txnNumber) {
+        RecordFile file = _file;
+        //if store was closed meanwhile, log was synced during close
+        if (file == null || file.txnMgr == null)
+            return;
+        try {
+            file.txnMgr.syncLog(txnNumber);
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+    }
+
+
+    public void rollback() {
         if (transactionsDisabled)
             throw new IllegalAccessError("Transactions are disabled, can not rollback");
 
+        lock.writeLock().lock();
         try {
             checkIfClosed();
             _physMgr.rollback();
             _logicMgr.rollback();
             _pageman.rollback();
+            _compactor.reset();
             defaultSerializer = null;
+            rollbackModifiedTrees();
         } catch (IOException e) {
             throw new IOError(e);
+        } finally {
+            lock.writeLock().unlock();
         }
 
     }
 
     public void copyToZipStore(String zipFile) {
+        lock.writeLock().lock();
         try {
             String zip = zipFile.substring(0, zipFile.indexOf("!/")); //TODO does not work on windows
             String zip2 = zipFile.substring(zipFile.indexOf("!/") + 2);
@@ -592,6 +1002,62 @@ final class DBStore
 
         } catch (IOException e) {
             throw new IOError(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Enables group commit, concurrent commits will share single sync of transaction log.
+     *
+     * @param maxWaitMillis maximal time commit waits for other transactions to join
+     * @param maxBatchSize commit stops waiting when this many transactions are waiting for sync
+     */
+    void setGroupCommit(long maxWaitMillis, int maxBatchSize) {
+        lock.writeLock().lock();
+        try {
+            groupCommitWait = maxWaitMillis;
+            groupCommitSize = maxBatchSize;
+            if (_file.txnMgr != null)
+                _file.txnMgr.setGroupCommit(maxWaitMillis, maxBatchSize);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns how many times transaction log was synced to disk, 0 if transactions are disabled
+     */
+    long getLogSyncCount() {
+        lock.readLock().lock();
+        try {
+            checkIfClosed();
+            return _file.txnMgr == null ? 0 : _file.txnMgr.getLogSyncCount();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Configures checkpoints of transaction log into data file.
+     *
+     * @param background if true, checkpoint runs in background thread
+     * @param maxLogSize log size in bytes after which log is checkpointed
+     * @param maxIntervalMillis age of log after which it is checkpointed, 0 for no time limit
+     */
+    void setCheckpoint(boolean background, long maxLogSize, long maxIntervalMillis) {
+        lock.writeLock().lock();
+        try {
+            backgroundCheckpoint = background;
+            checkpointLogSize = maxLogSize;
+            checkpointInterval = maxIntervalMillis;
+            if (_file.txnMgr != null)
+                _file.txnMgr.setCheckpoint(background, maxLogSize, maxIntervalMillis);
+        } catch (IOException e) {
+            throw new IOError(e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
@@ -608,7 +1074,7 @@ final class DBStore
     }
 
 
-    public synchronized void clearCache() {
+    public void clearCache() {
         //no cache
     }
 
@@ -634,7 +1100,14 @@ final class DBStore
 
     }
 
-    public synchronized String calculateStatistics() {
+    public CacheStatistics getCacheStatistics() {
+        //store has no instance cache
+        return null;
+    }
+
+    public String calculateStatistics() {
+        //pages are locked by get(), so it needs write lock
+        lock.writeLock().lock();
         try {
 
             final StringBuilder b = new StringBuilder();
@@ -646,20 +1119,20 @@ final class DBStore
                 long total = 0;
                 long pages = statisticsCountPages(Magic.USED_PAGE);
                 total += pages;
-                b.append("  " + pages + " used pages with size " + Utils.formatSpaceUsage(pages * Storage.BLOCK_SIZE) + "\n");
+                b.append("  " + pages + " used pages with size " + Utils.formatSpaceUsage(pages * _file.blockSize) + "\n");
                 pages = statisticsCountPages(Magic.TRANSLATION_PAGE);
                 total += pages;
-                b.append("  " + pages + " record translation pages with size " + Utils.formatSpaceUsage(pages * Storage.BLOCK_SIZE) + "\n");
+                b.append("  " + pages + " record translation pages with size " + Utils.formatSpaceUsage(pages * _file.blockSize) + "\n");
                 pages = statisticsCountPages(Magic.FREE_PAGE);
                 total += pages;
-                b.append("  " + pages + " free (unused) pages with size " + Utils.formatSpaceUsage(pages * Storage.BLOCK_SIZE) + "\n");
+                b.append("  " + pages + " free (unused) pages with size " + Utils.formatSpaceUsage(pages * _file.blockSize) + "\n");
                 pages = statisticsCountPages(Magic.FREEPHYSIDS_PAGE);
                 total += pages;
-                b.append("  " + pages + " free (phys) pages with size " + Utils.formatSpaceUsage(pages * Storage.BLOCK_SIZE) + "\n");
+                b.append("  " + pages + " free (phys) pages with size " + Utils.formatSpaceUsage(pages * _file.blockSize) + "\n");
                 pages = statisticsCountPages(Magic.FREELOGIDS_PAGE);
                 total += pages;
-                b.append("  " + pages + " free (logical) pages with size " + Utils.formatSpaceUsage(pages * Storage.BLOCK_SIZE) + "\n");
-                b.append("  Total number of pages is " + total + " with size " + Utils.formatSpaceUsage(total * Storage.BLOCK_SIZE) + "\n");
+                b.append("  " + pages + " free (logical) pages with size " + Utils.formatSpaceUsage(pages * _file.blockSize) + "\n");
+                b.append("  Total number of pages is " + total + " with size " + Utils.formatSpaceUsage(total * _file.blockSize) + "\n");
 
             }
             {
@@ -679,9 +1152,9 @@ final class DBStore
                         ) {
                     BlockIo io = _file.get(pageid);
 
-                    for (int i = 0; i < _logicMgr.ELEMS_PER_PAGE; i += 1) {
+                    for (int i = 0; i < _logicMgr.elemsPerPage; i += 1) {
                         final int pos = Magic.PAGE_HEADER_SIZE + i * Magic.PhysicalRowId_SIZE;
-                        final long physLoc = io.pageHeaderGetLocation((short) pos);
+                        final long physLoc = io.pageHeaderGetLocation(pos);
                         
                         if (physLoc == 0) {
                             freeRecordCount++;
@@ -691,8 +1164,8 @@ final class DBStore
                         recordCount++;
 
                         //get size
-                        BlockIo block = _file.get(Location.getBlock(physLoc));
-                        final short physOffset = Location.getOffset(physLoc);
+                        BlockIo block = _file.get(_file.location.getBlock(physLoc));
+                        final int physOffset = _file.location.getOffset(physLoc);
                         int availSize = RecordHeader.getAvailableSize(block, physOffset);
                         int currentSize = RecordHeader.getCurrentSize(block, physOffset);
                         _file.release(block);
@@ -712,22 +1185,34 @@ final class DBStore
                 b.append("  Space wasted in record fragmentation is " + Utils.formatSpaceUsage(totalAvailDiff) + "\n");
                 b.append("  Maximal space wasted in single record fragmentation is " + Utils.formatSpaceUsage(maximalAvailSizeDiff) + "\n");
             }
+            {
+                b.append("PAGE CACHE:\n");
+                b.append("  " + _file.getCacheHits() + " hits and " + _file.getCacheMisses() + " misses\n");
+            }
+            if (_file.txnMgr != null) {
+                b.append("TRANSACTION LOG:\n");
+                b.append("  synced " + _file.txnMgr.getLogSyncCount() + " times\n");
+            }
 
             return b.toString();
         } catch (IOException e) {
             throw new IOError(e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
-    public synchronized void defrag() {
+    public void defrag() {
 
+        lock.writeLock().lock();
         try {
             checkIfClosed();
             checkCanWrite();
             commit();
             final String filename2 = _filename + "_defrag" + System.currentTimeMillis();
             final String filename1 = _filename;
-            DBStore db2 = new DBStore(filename2, false, true, cipherIn, cipherOut, false);
+            DBStore db2 = new DBStore(filename2, false, true, cipherIn, cipherOut, false, compressed,
+                    _file.blockSize, pageCacheSize);
 
             //recreate logical file with original page layout
             {
@@ -780,13 +1265,11 @@ final class DBStore
                     ) {
                 BlockIo io = _file.get(pageid);
 
-                for (int i = 0; i < _logicMgr.ELEMS_PER_PAGE; i += 1) {
+                for (int i = 0; i < _logicMgr.elemsPerPage; i += 1) {
                     final int pos = Magic.PAGE_HEADER_SIZE + i * Magic.PhysicalRowId_SIZE;
-                    if (pos > Short.MAX_VALUE)
-                        throw new Error();
 
                     //write to new file
-                    final long logicalRowId = Location.toLong(-pageid, (short) pos);
+                    final long logicalRowId = _file.location.toLong(-pageid, pos);
 
                     //read from logical location in second db,
                     //check if record was already inserted as part of collections
@@ -797,7 +1280,7 @@ final class DBStore
                     }
 
                     //get physical location in this db
-                    final long physRowId =  io.pageHeaderGetLocation((short) pos);
+                    final long physRowId =  io.pageHeaderGetLocation(pos);
                             
                     if (physRowId == 0)
                         continue;
@@ -815,14 +1298,15 @@ final class DBStore
                 _file.release(io);
                 db2.commit();
             }
-            db2.setRoot(NAME_DIRECTORY_ROOT, getRoot(NAME_DIRECTORY_ROOT));
+            db2.setReservedRoot(NAME_DIRECTORY_ROOT, getRoot(NAME_DIRECTORY_ROOT));
 
             db2.close();
             close();
 
             List<File> filesToDelete = new ArrayList<File>();
             //now rename old files
-            String[] exts = {StorageDiskMapped.IDR, StorageDiskMapped.DBR};
+            String[] exts = {StorageDiskMapped.IDR, StorageDiskMapped.DBR,
+                    StorageDiskCompressed.DATA, StorageDiskCompressed.INDEX};
             for (String ext : exts) {
                 String f1 = filename1 + ext;
                 String f2 = filename2 + "_OLD" + ext;
@@ -870,8 +1354,325 @@ final class DBStore
             reopen();
         } catch (IOException e) {
             throw new IOError(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+    }
+
+    public boolean compact(int pageBudget) {
+        lock.writeLock().lock();
+        try {
+            checkIfClosed();
+            checkCanWrite();
+            commit();
+            boolean finished = _compactor.step(pageBudget);
+            commit();
+            truncateFreeTail();
+            return finished;
+        } catch (IOException e) {
+            throw new IOError(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Releases free pages at end of file from storage. Pages are removed from free list first and
+     * this change is committed, so storage is truncated only after no committed state refers to them.
+     */
+    private void truncateFreeTail() throws IOException {
+        long pageCount = _pageman.removeFreeTail();
+        if (pageCount == 0)
+            return;
+        commit();
+        _file.truncate(pageCount);
+    }
+
+    public <R> R fetchRaw(long recid, RawRecordReader<R> reader) {
+        lock.readLock().lock();
+        try {
+            checkIfClosed();
+            if (recid <= 0) {
+                throw new IllegalArgumentException("Argument 'recid' is invalid: "
+                        + recid);
+            }
+            long physLocation = _logicMgr.fetch(_file.location.decompressRecid(recid));
+            if (physLocation == 0)
+                return null;
+            return reader.read(_physMgr.fetchBuffer(physLocation));
+        } catch (IOException e) {
+            throw new IOError(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long insertRaw(ByteBuffer data) {
+        lock.writeLock().lock();
+        try {
+            checkIfClosed();
+            checkCanWrite();
+            if (needsAutoCommit()) {
+                commit();
+            }
+            long physRowId;
+            if (data.hasArray()) {
+                physRowId = _physMgr.insert(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } else {
+                byte[] b = new byte[data.remaining()];
+                data.duplicate().get(b);
+                physRowId = _physMgr.insert(b, 0, b.length);
+            }
+            return _file.location.compressRecid(_logicMgr.insert(physRowId));
+        } catch (IOException e) {
+            throw new IOError(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void updateRaw(long recid, ByteBuffer data) {
+        lock.writeLock().lock();
+        try {
+            checkIfClosed();
+            checkCanWrite();
+            if (recid <= 0) {
+                throw new IllegalArgumentException("Argument 'recid' is invalid: "
+                        + recid);
+            }
+            if (needsAutoCommit()) {
+                commit();
+            }
+            long logRecid = _file.location.decompressRecid(recid);
+            long physRecid = _logicMgr.fetch(logRecid);
+            if (physRecid == 0)
+                throw new IOException("Can not update, recid does not exist: " + logRecid);
+            long newRecid;
+            if (data.hasArray()) {
+                newRecid = _physMgr.update(physRecid, data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } else {
+                byte[] b = new byte[data.remaining()];
+                data.duplicate().get(b);
+                newRecid = _physMgr.update(physRecid, b, 0, b.length);
+            }
+            _logicMgr.update(logRecid, newRecid);
+        } catch (IOException e) {
+            throw new IOError(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long createBlob() {
+        lock.writeLock().lock();
+        try {
+            checkIfClosed();
+            checkCanWrite();
+            if (needsAutoCommit()) {
+                commit();
+            }
+            long physRowId = _physMgr.allocData(0);
+            return _file.location.compressRecid(_logicMgr.insert(physRowId));
+        } catch (IOException e) {
+            throw new IOError(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public InputStream openBlob(long recid) {
+        lock.readLock().lock();
+        try {
+            checkIfClosed();
+            if (recid <= 0) {
+                throw new IllegalArgumentException("Argument 'recid' is invalid: "
+                        + recid);
+            }
+            long logRecid = _file.location.decompressRecid(recid);
+            long physRowId = _logicMgr.fetch(logRecid);
+            if (physRowId == 0)
+                throw new IOException("Blob not found, recid: " + recid);
+            return new BlobInputStream(logRecid, physRowId, _physMgr.getSize(physRowId));
+        } catch (IOException e) {
+            throw new IOError(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public OutputStream writeBlob(long recid, int length) {
+        if (length < 0)
+            throw new IllegalArgumentException("Negative blob length: " + length);
+        lock.writeLock().lock();
+        try {
+            checkIfClosed();
+            checkCanWrite();
+            if (recid <= 0) {
+                throw new IllegalArgumentException("Argument 'recid' is invalid: "
+                        + recid);
+            }
+            if (needsAutoCommit()) {
+                commit();
+            }
+            long logRecid = _file.location.decompressRecid(recid);
+            long physRowId = _logicMgr.fetch(logRecid);
+            if (physRowId == 0)
+                throw new IOException("Blob not found, recid: " + recid);
+            //new content goes into new record, it replaces old one when stream is closed
+            return new BlobOutputStream(logRecid, physRowId, _physMgr.allocData(length), length);
+        } catch (IOException e) {
+            throw new IOError(e);
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
 
+    public void deleteBlob(long recid) {
+        try {
+            delete(recid);
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+    }
+
+    /**
+     * Throws exception if blob is not at the same place, it would read or overwrite other data.
+     */
+    private void checkBlobNotMoved(long logRecid, long physRowId, int length) throws IOException {
+        checkIfClosed();
+        if (_logicMgr.fetch(logRecid) != physRowId || _physMgr.getSize(physRowId) != length)
+            throw new IOException("Blob was modified while stream was open");
+    }
+
+    /**
+     * Reads blob directly from data pages, read lock is held only while single read is performed
+     */
+    private final class BlobInputStream extends InputStream {
+
+        private final long logRecid;
+        private final long physRowId;
+        private final int length;
+        /** number of bytes read so far */
+        private int count = 0;
+        /** location of next byte in data pages */
+        private long position;
+
+        BlobInputStream(long logRecid, long physRowId, int length) {
+            this.logRecid = logRecid;
+            this.physRowId = physRowId;
+            this.length = length;
+            this.position = _physMgr.dataStart(physRowId);
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (count == length)
+                return -1;
+            len = Math.min(len, length - count);
+            lock.readLock().lock();
+            try {
+                checkBlobNotMoved(logRecid, physRowId, length);
+                position = _physMgr.readData(position, b, off, len);
+            } finally {
+                lock.readLock().unlock();
+            }
+            count += len;
+            return len;
+        }
+
+        public int available() {
+            return length - count;
+        }
+    }
+
+    /**
+     * Writes blob directly into pages of new record, write lock is held only while single write is performed.
+     * Blob is switched to new record when stream is closed.
+     */
+    private final class BlobOutputStream extends OutputStream {
+
+        private final long logRecid;
+        /** record with old content */
+        private final long oldPhysRowId;
+        /** record with new content */
+        private final long physRowId;
+        private final int length;
+        /** number of bytes written so far */
+        private int count = 0;
+        /** location of next byte in data pages */
+        private long position;
+        private boolean closed = false;
+
+        BlobOutputStream(long logRecid, long oldPhysRowId, long physRowId, int length) {
+            this.logRecid = logRecid;
+            this.oldPhysRowId = oldPhysRowId;
+            this.physRowId = physRowId;
+            this.length = length;
+            this.position = _physMgr.dataStart(physRowId);
+        }
+
+        /**
+         * Throws exception if blob was replaced or deleted, written record would not be freed
+         */
+        private void checkBlobNotReplaced() throws IOException {
+            checkIfClosed();
+            if (_logicMgr.fetch(logRecid) != oldPhysRowId)
+                throw new IOException("Blob was modified while stream was open");
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed)
+                throw new IOException("Stream is closed");
+            if (len > length - count)
+                throw new IOException("Blob length exceeded: " + length);
+            lock.writeLock().lock();
+            try {
+                checkBlobNotReplaced();
+                checkCanWrite();
+                if (needsAutoCommit()) {
+                    commit();
+                }
+                position = _physMgr.writeData(position, b, off, len);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            count += len;
+        }
+
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            lock.writeLock().lock();
+            try {
+                checkIfClosed();
+                if (_logicMgr.fetch(logRecid) != oldPhysRowId) {
+                    _physMgr.free(physRowId);
+                    throw new IOException("Blob was modified while stream was open");
+                }
+                if (count != length) {
+                    _physMgr.free(physRowId);
+                    throw new IOException("Blob not fully written, expected " + length + " bytes, but got " + count);
+                }
+                //size is set only now, so readers never see partially written data
+                _physMgr.setSize(physRowId, length);
+                _logicMgr.update(logRecid, physRowId);
+                _physMgr.free(oldPhysRowId);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
     }
 
     /**
@@ -882,7 +1683,7 @@ final class DBStore
      * @throws IOException
      */
     void forceInsert(long logicalRowId, byte[] data) throws IOException {
-        logicalRowId = Location.decompressRecid(logicalRowId);
+        logicalRowId = _file.location.decompressRecid(logicalRowId);
 
         if (needsAutoCommit()) {
             commit();
@@ -904,13 +1705,11 @@ final class DBStore
         long page = _pageman.getFirst(Magic.TRANSLATION_PAGE);
         while (page != 0) {
             BlockIo io = _file.get(page);
-            for (int i = 0; i < _logicMgr.ELEMS_PER_PAGE; i += 1) {
+            for (int i = 0; i < _logicMgr.elemsPerPage; i += 1) {
                 int pos = Magic.PAGE_HEADER_SIZE + i * Magic.PhysicalRowId_SIZE;
-                if (pos > Short.MAX_VALUE)
-                    throw new Error();
 
                 //get physical location
-                long physRowId = io.pageHeaderGetLocation((short) pos);
+                long physRowId = io.pageHeaderGetLocation(pos);
 
                 if (physRowId != 0)
                     counter += 1;
@@ -921,5 +1720,16 @@ final class DBStore
         return counter;
     }
 
+    /**
+     * Returns number of pages on list of given type.
+     * Is used for unit tests
+     */
+    long countPages(short type) throws IOException {
+        long counter = 0;
+        for (long page = _pageman.getFirst(type); page != 0; page = _pageman.getNext(page))
+            counter++;
+        return counter;
+    }
+
 
 }
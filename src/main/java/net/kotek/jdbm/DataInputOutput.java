@@ -236,11 +236,19 @@ class DataInputOutput implements DataInput, DataOutput {
         Serialization.serializeString(this, s);
     }
 
-    /** helper method to write data directly from BlockIO*/ 
+    /**
+     * helper method to write data directly from BlockIO.
+     * Position of buffer is not changed, so more threads may copy from the same buffer.
+     */
     public void writeFromByteBuffer(ByteBuffer b, int offset, int length) {
         ensureAvail(length);
-        b.position(offset);
-        b.get(buf,pos,length);
+        if (b.hasArray()) {
+            System.arraycopy(b.array(), b.arrayOffset() + offset, buf, pos, length);
+        } else {
+            ByteBuffer d = b.duplicate();
+            d.position(offset);
+            d.get(buf, pos, length);
+        }
         pos+=length;
     }
 }
@@ -100,7 +100,7 @@ final class FreeLogicalRowIdPageManager {
             //iterate over free slots in page and fill them
             while (slot != -1 && rowIdPos < freeBlocksInTransactionRowid.size) {
                 long rowid = freeBlocksInTransactionRowid.data[rowIdPos++];
-                short freePhysRowId = fp.FreeLogicalRowId_alloc(slot);
+                int freePhysRowId = fp.FreeLogicalRowId_alloc(slot);
                 fp.pageHeaderSetLocation(freePhysRowId, rowid);
                 slot = fp.FreeLogicalRowId_getFirstFree();
             }
@@ -119,7 +119,7 @@ final class FreeLogicalRowIdPageManager {
             //iterate over free slots in page and fill them
             while (slot != -1 && rowIdPos < freeBlocksInTransactionRowid.size) {
                 long rowid = freeBlocksInTransactionRowid.data[rowIdPos++];
-                short freePhysRowId = fp.FreeLogicalRowId_alloc(slot);
+                int freePhysRowId = fp.FreeLogicalRowId_alloc(slot);
                 fp.pageHeaderSetLocation(freePhysRowId, rowid);
                 slot = fp.FreeLogicalRowId_getFirstFree();
             }
@@ -17,28 +17,32 @@
 package net.kotek.jdbm;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
  * This class manages free physical rowid pages and provides methods to free and allocate physical rowids on a high
  * level.
+ * <p/>
+ * Free records are persisted in linked list of free physical rowid pages. To avoid scanning this list on each
+ * allocation, free records are also kept in memory index bucketed by their (rounded) size. This index is rebuilt
+ * lazily from free physical rowid pages on first use after file is opened. Changes of index made in transaction
+ * are logged, rollback undoes them, so index does not have to be loaded again.
+ * Best fit is then found with single lookup into sorted map.
+ * <p/>
+ * Records freed in current transaction are written into free physical rowid pages on commit, but those
+ * may be reused before that. Rollback discards all changes made in transaction, so it is safe.
  */
 final class FreePhysicalRowIdPageManager {
     
     /**
-     * Used to place a limit on the wasted capacity resulting in a modified first fit policy for re-allocated of free
-     * records. This value is the maximum first fit waste that is accepted when scanning the available slots on a given
-     * page of the free physical row page list.
+     * Used to place a limit on the wasted capacity resulting in a best fit policy for re-allocated of free
+     * records. This value is the maximum waste that is accepted for reused record, if smallest free
+     * record large enough wastes more, new record is allocated instead.
      */
     static final transient int wasteMargin = 128;
 
-    /**
-     * Used to place a limit on the wasted capacity resulting in a modified first fit policy for re-allocated of free
-     * records. This value is the upper bound of waste that is accepted before scanning another page on the free
-     * physical row page list. If no page can be found whose waste for the re-allocation request would be less than this
-     * value then a new page will be allocated and the requested physical row will be allocated from that new page.
-     */
-    static final transient int wasteMargin2 = Magic.PAGE_HEADER_SIZE / 4;
-    
     // our record file
     protected RecordFile _file;
 
@@ -48,6 +52,41 @@ final class FreePhysicalRowIdPageManager {
     private final Utils.LongArrayList freeBlocksInTransactionRowid = new Utils.LongArrayList();
     private final Utils.IntArrayList freeBlocksInTransactionSize = new Utils.IntArrayList();
 
+    /**
+     * Maps size of record freed in current transaction to its positions in lists above.
+     * Reused records are left in lists with zero size.
+     */
+    private final TreeMap<Integer, Utils.IntArrayList> freeInTransactionBySize = new TreeMap<Integer, Utils.IntArrayList>();
+
+    /**
+     * Maps size of free record to pairs of slot location (free physical rowid page and offset) and
+     * location of free record with that size. Null if index was not loaded yet.
+     */
+    private TreeMap<Integer, Utils.LongArrayList> freeBySize;
+
+    /**
+     * Free physical rowid pages which have at least one unused slot. Valid only together with {@link #freeBySize}.
+     */
+    private final TreeSet<Long> pagesWithFreeSlots = new TreeSet<Long>();
+
+    /**
+     * Triples of size, slot location and rowid removed from {@link #freeBySize} in current transaction,
+     * those are put back on rollback.
+     */
+    private final Utils.LongArrayList indexUndo = new Utils.LongArrayList();
+
+    /**
+     * Pairs of page and its previous membership (1 or 0) in {@link #pagesWithFreeSlots},
+     * changed in current transaction.
+     */
+    private final Utils.LongArrayList pagesUndo = new Utils.LongArrayList();
+
+    /**
+     * Data pages which are being evacuated by {@link Compactor}, mapped to number of reservations.
+     * Free records on those pages stay on free list, but are not reused.
+     */
+    private final LongHashMap<Integer> reservedPages = new LongHashMap<Integer>();
+
 
     /**
      * Creates a new instance using the indicated record file and page manager.
@@ -57,65 +96,215 @@ final class FreePhysicalRowIdPageManager {
         _pageman = pageman;
     }
 
-    private int lastMaxSize = -1;
+    /**
+     * Loads index of free records from free physical rowid pages, if it was not loaded yet
+     */
+    private void loadIndex() throws IOException {
+        if (freeBySize != null)
+            return;
+        freeBySize = new TreeMap<Integer, Utils.LongArrayList>();
+        pagesWithFreeSlots.clear();
+        for (long current = _pageman.getFirst(Magic.FREEPHYSIDS_PAGE); current != 0; current = _pageman.getNext(current)) {
+            BlockIo fp = _file.view(current);
+            final int elemsPerPage = fp.FreePhysicalRowId_elemsPerPage();
+            for (int slot = 0; slot < elemsPerPage; slot++) {
+                int pos = fp.FreePhysicalRowId_slotToOffset(slot);
+                int size = fp.FreePhysicalRowId_getSize(pos);
+                if (size == 0)
+                    pagesWithFreeSlots.add(current);
+                else
+                    indexAdd(size, _file.location.toLong(current, pos), fp.pageHeaderGetLocation(pos));
+            }
+        }
+    }
+
+    private void indexAdd(int size, long slotLocation, long rowid) {
+        Utils.LongArrayList slots = freeBySize.get(size);
+        if (slots == null) {
+            slots = new Utils.LongArrayList();
+            freeBySize.put(size, slots);
+        }
+        slots.add(slotLocation);
+        slots.add(rowid);
+    }
 
     /**
-     * Returns a free physical rowid of the indicated size, or null if nothing was found. This scans the free physical
-     * row table, which is modeled as a linked list of pages. Each page on that list has slots that are either free
-     * (awaiting the insertion of the location of a free physical row) or available for reallocation requests. An
-     * allocated slot is indicated by a non-zero size field in that slot and the size is the size of the available free
-     * record in bytes.
+     * Removes pair at index <code>i</code> from list of free records with given size and frees its slot
+     *
+     * @return rowid of removed free record
      */
-    long get(int size) throws IOException {
+    private long indexRemove(int size, Utils.LongArrayList slots, int i) throws IOException {
+        long slotLocation = slots.data[i - 1];
+        long rowid = slots.data[i];
+        //move last pair into place of removed one
+        slots.data[i - 1] = slots.data[slots.size - 2];
+        slots.data[i] = slots.data[slots.size - 1];
+        slots.removeLast();
+        slots.removeLast();
+        if (slots.size == 0)
+            freeBySize.remove(size);
+        indexUndo.add(size);
+        indexUndo.add(slotLocation);
+        indexUndo.add(rowid);
 
+        freeSlot(slotLocation);
+        return rowid;
+    }
 
-        //requested record is bigger than any previously found
-        if (lastMaxSize != -1 && size > lastMaxSize)
-            return 0;
+    /**
+     * Frees slot which describes free record, page is released if it becomes empty
+     */
+    private void freeSlot(long slotLocation) throws IOException {
+        long current = _file.location.getBlock(slotLocation);
+        int pos = _file.location.getOffset(slotLocation);
+        BlockIo fp = _file.get(current);
+        fp.FreePhysicalRowId_free(fp.FreePhysicalRowId_offsetToSlot(pos));
+        boolean hadFreeSlots;
+        if (fp.FreePhysicalRowId_getCount() == 0) {
+            // page became empty - free it
+            _file.release(current, false);
+            _pageman.free(Magic.FREEPHYSIDS_PAGE, current);
+            hadFreeSlots = pagesWithFreeSlots.remove(current);
+        } else {
+            _file.release(current, true);
+            hadFreeSlots = !pagesWithFreeSlots.add(current);
+        }
+        pagesUndo.add(current);
+        pagesUndo.add(hadFreeSlots ? 1 : 0);
+    }
 
-        // Loop through the free physical rowid list until we get
-        // a rowid that's large enough.
-        long retval = 0;
+    /**
+     * Returns a free physical rowid of the indicated size, or 0 if nothing was found. Smallest free record with
+     * available size at least <code>size</code> is returned, if it does not waste more than {@link #wasteMargin}.
+     * Slot which describes this record is freed on free physical rowid page, page is released if it becomes empty.
+     * Records on reserved pages are skipped.
+     */
+    long get(int size) throws IOException {
+        loadIndex();
 
-        int maxSize = -1;
-        for (long current = _pageman.getFirst(Magic.FREEPHYSIDS_PAGE); current != 0; current = _pageman.getNext(current)) {
-            BlockIo fp = _file.get(current);
-            int slot = fp.FreePhysicalRowId_getFirstLargerThan(size);
-            if (slot > 0) {
-                //reset maximal size, as record has changed
-                lastMaxSize = -1;
-                // got one!
-                retval = fp.FreePhysicalRowId_slotToLocation(slot);
-
-                fp.FreePhysicalRowId_free(slot);
-                if (fp.FreePhysicalRowId_getCount() == 0) {
-                    // page became empty - free it
-                    _file.release(current, false);
-                    _pageman.free(Magic.FREEPHYSIDS_PAGE, current);
-                } else {
-                    _file.release(current, true);
-                }
-
-                return retval;
-            } else {
-                if (maxSize < -slot)
-                    maxSize = -slot;
-                // no luck, go to next page
-                _file.release(current, false);
+        //best fit among records freed in this transaction
+        int txnSize = -1;
+        int txnIndex = -1;
+        for (Map.Entry<Integer, Utils.IntArrayList> e : freeInTransactionBySize.tailMap(size).entrySet()) {
+            if (e.getKey() - size >= wasteMargin)
+                break;
+            Utils.IntArrayList positions = e.getValue();
+            for (int i = positions.size - 1; i >= 0 && txnIndex == -1; i--) {
+                if (!isReserved(freeBlocksInTransactionRowid.data[positions.data[i]]))
+                    txnIndex = i;
+            }
+            if (txnIndex != -1) {
+                txnSize = e.getKey();
+                break;
             }
+        }
 
+        //best fit among records on free physical rowid pages
+        int slotsSize = -1;
+        int slotsIndex = -1;
+        for (Map.Entry<Integer, Utils.LongArrayList> e : freeBySize.tailMap(size).entrySet()) {
+            if (e.getKey() - size >= wasteMargin || (txnSize != -1 && e.getKey() >= txnSize))
+                break;
+            Utils.LongArrayList slots = e.getValue();
+            for (int i = slots.size - 1; i > 0 && slotsIndex == -1; i -= 2) {
+                if (!isReserved(slots.data[i]))
+                    slotsIndex = i;
+            }
+            if (slotsIndex != -1) {
+                slotsSize = e.getKey();
+                break;
+            }
         }
-        //update maximal size available
-        lastMaxSize = maxSize;
 
+        if (slotsIndex != -1) {
+            return indexRemove(slotsSize, freeBySize.get(slotsSize), slotsIndex);
+        }
+
+        if (txnIndex != -1) {
+            //record freed in this transaction fits better
+            Utils.IntArrayList positions = freeInTransactionBySize.get(txnSize);
+            int pos = positions.data[txnIndex];
+            positions.data[txnIndex] = positions.data[positions.size - 1];
+            positions.removeLast();
+            if (positions.size == 0)
+                freeInTransactionBySize.remove(txnSize);
+            freeBlocksInTransactionSize.data[pos] = 0;
+            return freeBlocksInTransactionRowid.data[pos];
+        }
         return 0;
     }
 
+    private boolean isReserved(long rowid) {
+        return !reservedPages.isEmpty() && reservedPages.get(_file.location.getBlock(rowid)) != null;
+    }
+
+    /**
+     * Removes free record from free list, so it is never reused.
+     *
+     * @return false if record was not found on free list
+     */
+    boolean remove(long rowid, int size) throws IOException {
+        loadIndex();
+
+        Utils.IntArrayList positions = freeInTransactionBySize.get(size);
+        for (int i = 0; positions != null && i < positions.size; i++) {
+            int pos = positions.data[i];
+            if (freeBlocksInTransactionRowid.data[pos] != rowid)
+                continue;
+            positions.data[i] = positions.data[positions.size - 1];
+            positions.removeLast();
+            if (positions.size == 0)
+                freeInTransactionBySize.remove(size);
+            freeBlocksInTransactionSize.data[pos] = 0;
+            return true;
+        }
+
+        Utils.LongArrayList slots = freeBySize.get(size);
+        if (slots == null)
+            return false;
+        for (int i = 1; i < slots.size; i += 2) {
+            if (slots.data[i] != rowid)
+                continue;
+            indexRemove(size, slots, i);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Free records on reserved data page are not reused, until page is unreserved.
+     * Page may be reserved more times, it must be unreserved the same number of times.
+     */
+    void reserve(long page) {
+        Integer count = reservedPages.get(page);
+        reservedPages.put(page, count == null ? 1 : count + 1);
+    }
+
+    void unreserve(long page) {
+        Integer count = reservedPages.get(page);
+        if (count == null)
+            return;
+        if (count == 1)
+            reservedPages.remove(page);
+        else
+            reservedPages.put(page, count - 1);
+    }
+
+    void unreserveAll() {
+        reservedPages.clear();
+    }
+
 
     /**
      * Puts the indicated rowid on the free list, which avaits for commit
      */
     void put(long rowid, int size) throws IOException {
+        Utils.IntArrayList positions = freeInTransactionBySize.get(size);
+        if (positions == null) {
+            positions = new Utils.IntArrayList();
+            freeInTransactionBySize.put(size, positions);
+        }
+        positions.add(freeBlocksInTransactionRowid.size);
         freeBlocksInTransactionRowid.add(rowid);
         freeBlocksInTransactionSize.add(size);
 
@@ -123,66 +312,69 @@ final class FreePhysicalRowIdPageManager {
     }
 
     public void commit() throws IOException {
-        //write all uncommited free records
+        //index changes made in transaction are persisted now
+        indexUndo.clear();
+        pagesUndo.clear();
+        if (freeBlocksInTransactionRowid.size == 0)
+            return;
+        loadIndex();
+
+        //write all uncommited free records, except those which were already reused
         int rowidpos = 0;
+        while (true) {
+            while (rowidpos < freeBlocksInTransactionSize.size && freeBlocksInTransactionSize.data[rowidpos] == 0)
+                rowidpos++;
+            if (rowidpos == freeBlocksInTransactionSize.size)
+                break;
 
-        if (freeBlocksInTransactionRowid.size < 200) { //if there is too much released records, just write those into new page, this greatly speedsup imports.
-
-            //iterate over filled pages
-            final boolean fromLast = Math.random() < 0.5; //iterating from begining makes pages filled wery quickly, so swap it sometimes.
-            for (long current = fromLast ? _pageman.getLast(Magic.FREEPHYSIDS_PAGE) : _pageman.getFirst(Magic.FREEPHYSIDS_PAGE);
-                 current != 0;
-                 current = fromLast ? _pageman.getPrev(current) : _pageman.getNext(current)
-                    ) {
-                BlockIo fp = _file.get(current);
-                int slot = fp.FreePhysicalRowId_getFirstFree();
-                //iterate over free slots in page and fill them
-                while (slot != -1 && rowidpos < freeBlocksInTransactionRowid.size) {
-                    int size = freeBlocksInTransactionSize.data[rowidpos];
-                    long rowid = freeBlocksInTransactionRowid.data[rowidpos++];
-
-                    short freePhysRowId = fp.FreePhysicalRowId_alloc(slot);
-                    fp.pageHeaderSetLocation(freePhysRowId, rowid);
-                    fp.FreePhysicalRowId_setSize(freePhysRowId, size);
-                    slot = fp.FreePhysicalRowId_getFirstFree();
-                }
-                _file.release(current, true);
-                if (!(rowidpos < freeBlocksInTransactionRowid.size))
-                    break;
+            //fill pages with free slots first, allocate new page if there is none
+            long current;
+            if (!pagesWithFreeSlots.isEmpty()) {
+                current = pagesWithFreeSlots.first();
+            } else {
+                current = _pageman.allocate(Magic.FREEPHYSIDS_PAGE);
             }
-        }
-
-        //now we propably filled all already allocated pages,
-        //time to start allocationg new pages
-        while (rowidpos < freeBlocksInTransactionRowid.size) {
-            //allocate new page
-            long freePage = _pageman.allocate(Magic.FREEPHYSIDS_PAGE);
-            BlockIo fp = _file.get(freePage);
+            BlockIo fp = _file.get(current);
             int slot = fp.FreePhysicalRowId_getFirstFree();
             //iterate over free slots in page and fill them
             while (slot != -1 && rowidpos < freeBlocksInTransactionRowid.size) {
                 int size = freeBlocksInTransactionSize.data[rowidpos];
                 long rowid = freeBlocksInTransactionRowid.data[rowidpos++];
-                short freePhysRowId = fp.FreePhysicalRowId_alloc(slot);
+                if (size == 0)
+                    continue;
+
+                int freePhysRowId = fp.FreePhysicalRowId_alloc(slot);
                 fp.pageHeaderSetLocation(freePhysRowId, rowid);
                 fp.FreePhysicalRowId_setSize(freePhysRowId, size);
+                indexAdd(size, _file.location.toLong(current, freePhysRowId), rowid);
                 slot = fp.FreePhysicalRowId_getFirstFree();
             }
-            _file.release(freePage, true);
-            if (!(rowidpos < freeBlocksInTransactionRowid.size))
-                break;
+            _file.release(current, true);
+            if (slot == -1)
+                pagesWithFreeSlots.remove(current);
+            else
+                pagesWithFreeSlots.add(current);
         }
 
-        if (rowidpos < freeBlocksInTransactionRowid.size)
-            throw new InternalError();
-
         freeBlocksInTransactionRowid.clear();
         freeBlocksInTransactionSize.clear();
-
+        freeInTransactionBySize.clear();
     }
 
     public void rollback() {
         freeBlocksInTransactionRowid.clear();
         freeBlocksInTransactionSize.clear();
+        freeInTransactionBySize.clear();
+        //pages modified in this transaction are discarded, undo index changes in reverse order
+        for (int i = indexUndo.size - 3; i >= 0; i -= 3)
+            indexAdd((int) indexUndo.data[i], indexUndo.data[i + 1], indexUndo.data[i + 2]);
+        indexUndo.clear();
+        for (int i = pagesUndo.size - 2; i >= 0; i -= 2) {
+            if (pagesUndo.data[i + 1] == 1)
+                pagesWithFreeSlots.add(pagesUndo.data[i]);
+            else
+                pagesWithFreeSlots.remove(pagesUndo.data[i]);
+        }
+        pagesUndo.clear();
     }
 }
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package net.kotek.jdbm;
+
+/**
+ * Estimates how often recid was accessed recently. It is Count-Min sketch with four 4-bit counters
+ * per recid, so frequency is at most 15. Once number of recorded accesses reaches ten times
+ * cache size, all counters are halved, so old accesses are forgotten.
+ * <p/>
+ * Sketch is not thread safe, it is used under lock of cache segment.
+ */
+final class FrequencySketch {
+
+    /** seeds of four hash functions */
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    /** each long holds sixteen 4-bit counters */
+    private final long[] table;
+
+    private final int tableMask;
+
+    /** number of accesses after which counters are halved */
+    private final int sampleSize;
+
+    /** number of accesses since counters were halved */
+    private int size = 0;
+
+    /** largest number of entries, so table size and sample size fit into int */
+    static final int MAX_ENTRIES = 1 << 27;
+
+    /**
+     * Table has one long (sixteen counters) per entry, rounded up to power of two.
+     *
+     * @param maxEntries maximal number of entries in cache, at most {@link #MAX_ENTRIES}
+     */
+    FrequencySketch(int maxEntries) {
+        if (maxEntries > MAX_ENTRIES)
+            throw new IllegalArgumentException("Too many entries: " + maxEntries);
+        int tableSize = Integer.highestOneBit(Math.max(8, maxEntries) - 1) << 1;
+        table = new long[tableSize];
+        tableMask = tableSize - 1;
+        sampleSize = 10 * Math.max(8, maxEntries);
+    }
+
+    /**
+     * Returns estimated number of recent accesses of recid, between 0 and 15
+     */
+    int frequency(long recid) {
+        int hash = spread(recid);
+        int start = (hash & 3) << 2;
+        int freq = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xFL);
+            freq = Math.min(freq, count);
+        }
+        return freq;
+    }
+
+    /**
+     * Records access of recid
+     */
+    void increment(long recid) {
+        int hash = spread(recid);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int shift = (start + i) << 2;
+            long mask = 0xFL << shift;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++size == sampleSize)
+            reset();
+    }
+
+    /**
+     * Halves all counters
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+        }
+        size = size / 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int spread(long recid) {
+        long h = recid * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+}
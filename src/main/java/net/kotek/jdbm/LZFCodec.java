@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package net.kotek.jdbm;
+
+import java.io.IOException;
+
+/**
+ * Fast compression codec which produces LZF format, used to compress storage pages.
+ * <p/>
+ * Compressed data are sequence of chunks, each starts with control byte <code>c</code>:
+ * <ul>
+ * <li>if <code>c</code> is smaller than 32, <code>c + 1</code> literal bytes follow</li>
+ * <li>otherwise chunk is back-reference to already decompressed data. Its length is <code>(c >> 5) + 2</code>,
+ * if <code>c >> 5</code> is 7, next byte is added to length. Distance back is lower five bits of <code>c</code>
+ * followed by next byte, plus one.</li>
+ * </ul>
+ * Compressor remembers last position of each three byte sequence in hash table. Table is kept between calls
+ * and each candidate is compared with input, so stale positions are harmless. Instance is not thread safe.
+ */
+final class LZFCodec {
+
+    /** longest literal run of one chunk */
+    private static final int MAX_LITERAL = 1 << 5;
+
+    /** longest distance of back-reference */
+    private static final int MAX_DISTANCE = 1 << 13;
+
+    /** shortest back-reference, shorter matches would not save space */
+    private static final int MIN_MATCH = 3;
+
+    /** longest back-reference, 7 from control byte and 255 from next byte, plus two */
+    private static final int MAX_MATCH = 7 + 255 + 2;
+
+    private static final int HASH_BITS = 13;
+
+    /** last position of three byte sequence by its hash */
+    private final int[] positions = new int[1 << HASH_BITS];
+
+
+    /**
+     * Returns size of buffer large enough for compressed data.
+     * Each back-reference saves at least one byte, which pays for control byte of literal run after it.
+     */
+    static int maxCompressedLength(int length) {
+        return length + length / MAX_LITERAL + 1;
+    }
+
+
+    private static int hash(byte[] in, int pos) {
+        int v = (in[pos] & 0xFF) << 16 | (in[pos + 1] & 0xFF) << 8 | (in[pos + 2] & 0xFF);
+        return (v * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+
+    /**
+     * Compresses data
+     *
+     * @param in     data to compress
+     * @param length number of bytes to compress
+     * @param out    buffer of at least {@link #maxCompressedLength(int)} bytes
+     * @return size of compressed data
+     */
+    int compress(byte[] in, int length, byte[] out) {
+        int outPos = 0;
+        int literalStart = 0;
+        int pos = 0;
+        while (pos + MIN_MATCH <= length) {
+            int h = hash(in, pos);
+            int candidate = positions[h];
+            positions[h] = pos;
+            int distance = pos - candidate;
+            if (distance <= 0 || distance > MAX_DISTANCE
+                    || in[candidate] != in[pos] || in[candidate + 1] != in[pos + 1] || in[candidate + 2] != in[pos + 2]) {
+                pos++;
+                continue;
+            }
+
+            //match may overlap current position, it is copied byte by byte on expand
+            int maxMatch = Math.min(MAX_MATCH, length - pos);
+            int match = MIN_MATCH;
+            while (match < maxMatch && in[candidate + match] == in[pos + match]) {
+                match++;
+            }
+
+            outPos = writeLiterals(in, literalStart, pos, out, outPos);
+            int len = match - 2;
+            int dist = distance - 1;
+            if (len < 7) {
+                out[outPos++] = (byte) ((len << 5) | (dist >>> 8));
+            } else {
+                out[outPos++] = (byte) ((7 << 5) | (dist >>> 8));
+                out[outPos++] = (byte) (len - 7);
+            }
+            out[outPos++] = (byte) dist;
+
+            //positions inside match are remembered too, so following data can refer to them
+            int end = pos + match;
+            for (pos++; pos < end && pos + MIN_MATCH <= length; pos++) {
+                positions[hash(in, pos)] = pos;
+            }
+            pos = end;
+            literalStart = end;
+        }
+        return writeLiterals(in, literalStart, length, out, outPos);
+    }
+
+
+    private static int writeLiterals(byte[] in, int from, int to, byte[] out, int outPos) {
+        while (from < to) {
+            int count = Math.min(MAX_LITERAL, to - from);
+            out[outPos++] = (byte) (count - 1);
+            System.arraycopy(in, from, out, outPos, count);
+            outPos += count;
+            from += count;
+        }
+        return outPos;
+    }
+
+
+    /**
+     * Expands compressed data
+     *
+     * @param in     compressed data
+     * @param inPos  position of compressed data in <code>in</code>
+     * @param out    buffer for expanded data
+     * @param outLen size of expanded data
+     * @throws IOException if compressed data are corrupted
+     */
+    static void expand(byte[] in, int inPos, byte[] out, int outLen) throws IOException {
+        int outPos = 0;
+        try {
+            while (outPos < outLen) {
+                int c = in[inPos++] & 0xFF;
+                if (c < MAX_LITERAL) {
+                    int count = c + 1;
+                    if (outPos + count > outLen)
+                        throw new IOException("Compressed data are corrupted, literal run after end");
+                    System.arraycopy(in, inPos, out, outPos, count);
+                    inPos += count;
+                    outPos += count;
+                    continue;
+                }
+                int len = c >>> 5;
+                if (len == 7) {
+                    len += in[inPos++] & 0xFF;
+                }
+                len += 2;
+                int ref = outPos - ((c & 0x1F) << 8) - (in[inPos++] & 0xFF) - 1;
+                if (ref < 0 || outPos + len > outLen)
+                    throw new IOException("Compressed data are corrupted, back-reference out of range");
+                //byte by byte, reference may overlap bytes written by this loop
+                for (int i = 0; i < len; i++) {
+                    out[outPos++] = out[ref++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Compressed data are truncated", e);
+        }
+    }
+}
@@ -21,32 +21,45 @@ package net.kotek.jdbm;
  * This class represents a location within a file. Both physical and
  * logical rowids are based on locations internally - this version is
  * used when there is no file block to back the location's data.
+ * <p/>
+ * Number of bits used for offset depends on block size, so each file has its own instance.
  */
-final class Location {   
+final class Location {
 
+    /** bite shift used to calculate block size */
+    private final int blockSizeShift;
 
-    static long getBlock(final long loc) {
-        return loc >>> Storage.BLOCK_SIZE_SHIFT;
-    }
+    /** use 'val & offsetMask' to quickly get offset within the block page */
+    private final long offsetMask;
 
-    static short getOffset(final long loc) {
-        return (short) (loc & Storage.OFFSET_MASK);
-    }
+    private final int compressRecidBlockShift;
+    private final long compressRecidOffsetMask;
+
+    Location(int blockSize) {
+        if (Integer.bitCount(blockSize) != 1)
+            throw new IllegalArgumentException("Block size is not power of two: " + blockSize);
+        blockSizeShift = Integer.numberOfTrailingZeros(blockSize);
+        offsetMask = 0xFFFFFFFFFFFFFFFFL >>> (64 - blockSizeShift);
 
-    static long toLong(final long block, final short offset) {
-        return (block << Storage.BLOCK_SIZE_SHIFT) + (long) offset;
+        int elemsPerPage = LogicalRowIdManager.elemsPerPage(blockSize);
+        int shift = 1;
+        while ((1 << shift) < elemsPerPage)
+            shift++;
+        compressRecidBlockShift = shift;
+        compressRecidOffsetMask = 0xFFFFFFFFFFFFFFFFL >>> (64 - shift);
     }
 
 
-    private static int COMPRESS_RECID_BLOCK_SHIFT;
-    private static long COMPRESS_RECID_OFFSET_MASK;
+    long getBlock(final long loc) {
+        return loc >>> blockSizeShift;
+    }
 
-    static{
-        int shift = 1;
-        while((1<<shift) <LogicalRowIdManager.ELEMS_PER_PAGE )
-            shift++;
-        COMPRESS_RECID_BLOCK_SHIFT = shift;
-        COMPRESS_RECID_OFFSET_MASK =  0xFFFFFFFFFFFFFFFFL >>> (64-shift);
+    int getOffset(final long loc) {
+        return (int) (loc & offsetMask);
+    }
+
+    long toLong(final long block, final int offset) {
+        return (block << blockSizeShift) + (long) offset;
     }
 
 
@@ -54,24 +67,24 @@ final class Location {
      * Compress recid from physical form (block - offset) to (block - slot).
      * This way resulting number is smaller and can be easier packed with LongPacker
      */
-    static long compressRecid(final long recid) {
-        long block = Location.getBlock(recid);
-        short offset = Location.getOffset(recid);
+    long compressRecid(final long recid) {
+        long block = getBlock(recid);
+        int offset = getOffset(recid);
 
-        offset = (short) (offset - Magic.PAGE_HEADER_SIZE);
+        offset = offset - Magic.PAGE_HEADER_SIZE;
         if (offset % Magic.PhysicalRowId_SIZE != 0)
             throw new InternalError("recid not dividable "+Magic.PhysicalRowId_SIZE);
         long slot = offset / Magic.PhysicalRowId_SIZE;
 
-        return (block << COMPRESS_RECID_BLOCK_SHIFT) + slot;
+        return (block << compressRecidBlockShift) + slot;
 
     }
 
-    static long decompressRecid(final long recid) {
+    long decompressRecid(final long recid) {
 
-        final long block = recid >>> COMPRESS_RECID_BLOCK_SHIFT;
-        final short offset = (short) ((recid & COMPRESS_RECID_OFFSET_MASK) * Magic.PhysicalRowId_SIZE + Magic.PAGE_HEADER_SIZE);
-        return Location.toLong(block, offset);
+        final long block = recid >>> compressRecidBlockShift;
+        final int offset = (int) ((recid & compressRecidOffsetMask) * Magic.PhysicalRowId_SIZE + Magic.PAGE_HEADER_SIZE);
+        return toLong(block, offset);
     }
 
 
@@ -26,7 +26,16 @@ final class LogicalRowIdManager {
     private final RecordFile file;
     private final PageManager pageman;
     private final FreeLogicalRowIdPageManager freeman;
-    static final short ELEMS_PER_PAGE = (short) ((Storage.BLOCK_SIZE - Magic.PAGE_HEADER_SIZE) / Magic.PhysicalRowId_SIZE);
+    private final Location location;
+    /** number of logical rowids on single translation page */
+    final int elemsPerPage;
+
+    /**
+     * Returns number of logical rowids on single translation page
+     */
+    static int elemsPerPage(int blockSize) {
+        return (blockSize - Magic.PAGE_HEADER_SIZE) / Magic.PhysicalRowId_SIZE;
+    }
 
 
     /**
@@ -36,6 +45,8 @@ final class LogicalRowIdManager {
         this.file = file;
         this.pageman = pageman;
         this.freeman = freeman;
+        this.location = file.location;
+        this.elemsPerPage = elemsPerPage(file.blockSize);
     }
 
     /**
@@ -45,15 +56,54 @@ final class LogicalRowIdManager {
      * @return logical recid
      */
     long insert(final long physloc) throws IOException {
+        long retval = getFree();
+        // write the translation.
+        update(retval, physloc);
+        return retval;
+    }
+
+    /**
+     * Creates new logical rowids for multiple physical ids. Translation page is fetched and released
+     * only once for consecutive rowids on the same page.
+     *
+     * @param physlocs physical locations to point to
+     * @return logical recids
+     */
+    long[] insertBatch(final long[] physlocs) throws IOException {
+        long[] retval = new long[physlocs.length];
+        for (int i = 0; i < physlocs.length; i++)
+            retval[i] = getFree();
+
+        long block = 0;
+        BlockIo xlatPage = null;
+        for (int i = 0; i < physlocs.length; i++) {
+            long b = -location.getBlock(retval[i]);
+            if (b != block) {
+                if (xlatPage != null)
+                    file.release(block, true);
+                block = b;
+                xlatPage = file.get(block);
+            }
+            xlatPage.pageHeaderSetLocation(location.getOffset(retval[i]), physlocs[i]);
+        }
+        if (xlatPage != null)
+            file.release(block, true);
+        return retval;
+    }
+
+    /**
+     * Returns free logical rowid, new translation page is allocated if there is none
+     */
+    private long getFree() throws IOException {
         // check whether there's a free rowid to reuse
         long retval = freeman.get();
         if (retval == 0) {
             // no. This means that we bootstrap things by allocating
             // a new translation page and freeing all the rowids on it.
             long firstPage = pageman.allocate(Magic.TRANSLATION_PAGE);
-            short curOffset = Magic.PAGE_HEADER_SIZE;
-            for (int i = 0; i < ELEMS_PER_PAGE; i++) {
-                freeman.put(Location.toLong(-firstPage, curOffset));
+            int curOffset = Magic.PAGE_HEADER_SIZE;
+            for (int i = 0; i < elemsPerPage; i++) {
+                freeman.put(location.toLong(-firstPage, curOffset));
                 curOffset += Magic.PhysicalRowId_SIZE;
             }
 
@@ -62,8 +112,6 @@ final class LogicalRowIdManager {
                 throw new Error("couldn't obtain free translation");
             }
         }
-        // write the translation.
-        update(retval, physloc);
         return retval;
     }
 
@@ -87,9 +135,9 @@ final class LogicalRowIdManager {
      */
     void delete(final long logicalrowid) throws IOException {
         //zero out old location, is needed for defragmentation
-        final long block = -Location.getBlock(logicalrowid);
+        final long block = -location.getBlock(logicalrowid);
         final BlockIo xlatPage = file.get(block);
-        xlatPage.pageHeaderSetLocation(Location.getOffset(logicalrowid), 0);
+        xlatPage.pageHeaderSetLocation(location.getOffset(logicalrowid), 0);
         file.release(block, true);
         freeman.put(logicalrowid);
     }
@@ -102,32 +150,27 @@ final class LogicalRowIdManager {
      */
     void update(final long logicalrowid, final long physloc) throws IOException {
 
-        final long block = -Location.getBlock(logicalrowid);
+        final long block = -location.getBlock(logicalrowid);
         final BlockIo xlatPage = file.get(block);
-        xlatPage.pageHeaderSetLocation(Location.getOffset(logicalrowid), physloc);
+        xlatPage.pageHeaderSetLocation(location.getOffset(logicalrowid), physloc);
         file.release(block, true);
     }
 
     /**
-     * Returns a mapping
+     * Returns a mapping. It only reads pages, so it may run concurrently with other fetches.
      *
      * @param logicalrowid The logical rowid
      * @return The physical rowid, 0 if does not exist
      */
     long fetch(long logicalrowid) throws IOException {
-        final long block = -Location.getBlock(logicalrowid);
+        final long block = -location.getBlock(logicalrowid);
         final long last = pageman.getLast(Magic.TRANSLATION_PAGE);
         if (last - 1 > block)
             return 0;
 
-        final short offset = Location.getOffset(logicalrowid);
-
-        final BlockIo xlatPage = file.get(block);
-        final long ret =  xlatPage.pageHeaderGetLocation(offset);
-
+        final int offset = location.getOffset(logicalrowid);
 
-        file.release(block, false);
-        return ret;
+        return file.view(block).pageHeaderGetLocation(offset);
     }
 
     void commit() throws IOException {
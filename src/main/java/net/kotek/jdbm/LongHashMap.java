@@ -411,6 +411,19 @@ class LongHashMap<V> implements Serializable {
         return elementCount;
     }
 
+    /**
+     * @return copy of all keys in map
+     */
+    public long[] keys() {
+        long[] ret = new long[elementCount];
+        int i = 0;
+        for (Entry<V> e : elementData) {
+            for (; e != null; e = e.next)
+                ret[i++] = e.key;
+        }
+        return ret;
+    }
+
     /**
      * @returns iterator over values in map
      */
@@ -45,9 +45,10 @@ interface Magic {
     short NLISTS = 5;
 
     /**
-     * Magic for transaction file
+     * Magic for transaction file, header is followed by segment sequence number and block size.
+     * Each block record has type, either full page or modified ranges.
      */
-    short LOGFILE_HEADER = 0x1360;
+    short LOGFILE_HEADER = 0x1363;
 
     /**
      * Size of an externalized byte
@@ -78,9 +79,17 @@ interface Magic {
     short FILE_HEADER_O_LISTS = Magic.SZ_SHORT; // long[2*NLISTS]
     int FILE_HEADER_O_ROOTS = FILE_HEADER_O_LISTS + (Magic.NLISTS * 2 * Magic.SZ_LONG);
     /**
-     * The number of "root" rowids available in the file.
+     * The number of "root" rowids available in file with default block size.
+     * Roots fill rest of header block, so their number depends on block size, see {@link BlockIo#fileHeaderRootCount()}.
      */
-    int FILE_HEADER_NROOTS = (Storage.BLOCK_SIZE - FILE_HEADER_O_ROOTS) / Magic.SZ_LONG;
+    int FILE_HEADER_NROOTS = (Storage.DEFAULT_BLOCK_SIZE - FILE_HEADER_O_ROOTS) / Magic.SZ_LONG;
+    /**
+     * Root slot which keeps block size. It is zero in files created before block size was configurable,
+     * those use {@link Storage#DEFAULT_BLOCK_SIZE}.
+     */
+    int FILE_HEADER_ROOT_BLOCK_SIZE = 3;
+    /** offset of block size in file header, it is within smallest block */
+    int FILE_HEADER_O_BLOCK_SIZE = FILE_HEADER_O_ROOTS + FILE_HEADER_ROOT_BLOCK_SIZE * Magic.SZ_LONG;
 
 
     short PAGE_HEADER_O_MAGIC = 0; // short magic
@@ -94,7 +103,6 @@ interface Magic {
     
     short DATA_PAGE_O_FIRST = PAGE_HEADER_SIZE; // short firstrowid
     short DATA_PAGE_O_DATA = (short) (DATA_PAGE_O_FIRST + Magic.SZ_SHORT);
-    short DATA_PER_PAGE = (short) (Storage.BLOCK_SIZE - DATA_PAGE_O_DATA);
 
 
     short FreePhysicalRowId_O_SIZE = Magic.PhysicalRowId_SIZE; // int size
@@ -103,7 +111,6 @@ interface Magic {
     // offsets
     short FreePhysicalRowId_O_COUNT = Magic.PAGE_HEADER_SIZE; // short count
     short FreePhysicalRowId_O_FREE = FreePhysicalRowId_O_COUNT + Magic.SZ_SHORT;
-    short FreePhysicalRowId_ELEMS_PER_PAGE = (short) ((Storage.BLOCK_SIZE - FreePhysicalRowId_O_FREE) / FreePhysicalRowId_SIZE);
 
 
     // offsets
@@ -113,7 +120,6 @@ interface Magic {
     /**keeps track of the most recent found allocated slot so we can locate it again quickly*/
     short FreeLogicalRowId_O_LAST_ALOC = (short) (FreeLogicalRowId_O_LAST_FREE + Magic.SZ_SHORT);
     short FreeLogicalRowId_O_FREE = (short) (FreeLogicalRowId_O_LAST_ALOC + Magic.SZ_SHORT);
-    short FreeLogicalRowId_ELEMS_PER_PAGE = (short) ((Storage.BLOCK_SIZE - FreeLogicalRowId_O_FREE) / Magic.PhysicalRowId_SIZE);
 
 
 
@@ -0,0 +1,353 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package net.kotek.jdbm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Second level cache which keeps serialized records outside of Java heap.
+ * <p/>
+ * Cache is split into stripes by recid, each stripe has its own lock, slabs and index,
+ * so threads working with different records do not wait for each other.
+ * <p/>
+ * Records are appended into direct ByteBuffer slabs. When all slabs of stripe are full, its oldest slab
+ * is reused and records stored in it are dropped from cache, so eviction order is FIFO by slab.
+ * Removed or replaced record is only dropped from index, its space is reclaimed when its slab is reused.
+ * <p/>
+ * Index is open addressing hash table of primitive longs on heap, each slot takes 16 bytes.
+ * Table is doubled when it is 3/4 full, so it costs between 21 and 43 bytes of heap per cached record.
+ * Each record in slab is prefixed by its recid and length (12 bytes off-heap), so index entries can be found
+ * when slab is reused.
+ */
+final class OffHeapRecordCache {
+
+    /** maximal size of single slab, 16MB */
+    static final int MAX_SLAB_SIZE = 16 * 1024 * 1024;
+
+    /** minimal size of single slab, 64KB */
+    static final int MIN_SLAB_SIZE = 64 * 1024;
+
+    /** maximal number of stripes, must be power of two */
+    static final int MAX_STRIPES = 16;
+
+    /** size of recid and length written before each record */
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    private final Stripe[] stripes;
+
+    /** number of stripes minus one, number of stripes is power of two */
+    private final int stripeMask;
+
+    /**
+     * @param sizeInBytes off-heap memory used by cache
+     */
+    OffHeapRecordCache(long sizeInBytes) {
+        //each stripe needs at least two slabs, so small cache has fewer stripes
+        int stripeCount = Integer.highestOneBit(
+                (int) Math.max(1, Math.min(MAX_STRIPES, sizeInBytes / (2 * MIN_SLAB_SIZE))));
+        stripes = new Stripe[stripeCount];
+        stripeMask = stripeCount - 1;
+        for (int i = 0; i < stripeCount; i++)
+            stripes[i] = new Stripe(sizeInBytes / stripeCount);
+    }
+
+    private Stripe stripe(long recid) {
+        int h = (int) (recid ^ (recid >>> 32));
+        //spread bits, consecutive recids should go to different stripes
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return stripes[h & stripeMask];
+    }
+
+    /**
+     * Returns copy of serialized record, or null if record is not cached
+     */
+    byte[] get(long recid) {
+        return stripe(recid).get(recid);
+    }
+
+    /**
+     * Puts serialized record into cache. Record larger than slab is not cached.
+     */
+    void put(long recid, byte[] data, int length) {
+        stripe(recid).put(recid, data, length);
+    }
+
+    /**
+     * Removes record from cache
+     */
+    void remove(long recid) {
+        stripe(recid).remove(recid);
+    }
+
+    /**
+     * Adds recids of cached records into list, most recently put first
+     */
+    void recids(Utils.LongArrayList ret) {
+        //interleave stripes, so order is approximately kept across stripes
+        Utils.LongArrayList[] stripeRecids = new Utils.LongArrayList[stripes.length];
+        int maxLength = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            stripeRecids[i] = new Utils.LongArrayList();
+            stripes[i].recids(stripeRecids[i]);
+            maxLength = Math.max(maxLength, stripeRecids[i].size);
+        }
+        for (int j = 0; j < maxLength; j++) {
+            for (Utils.LongArrayList r : stripeRecids) {
+                if (j < r.size)
+                    ret.add(r.data[j]);
+            }
+        }
+    }
+
+    /**
+     * Returns off-heap memory which can be used by cache
+     */
+    long capacity() {
+        long ret = 0;
+        for (Stripe s : stripes)
+            ret += (long) s.slabSize * s.slabUsed.length;
+        return ret;
+    }
+
+    /**
+     * Removes all records from cache
+     */
+    void clear() {
+        for (Stripe s : stripes)
+            s.clear();
+    }
+
+    /**
+     * Releases off-heap memory, cache can not be used after this call
+     */
+    void close() {
+        for (Stripe s : stripes)
+            s.close();
+    }
+
+    private static long location(int slab, int offset, int length) {
+        return ((long) slab << 48) | ((long) offset << 24) | length;
+    }
+
+    /**
+     * Part of cache with its own slabs and index, all methods are synchronized on stripe
+     */
+    private static final class Stripe {
+
+        /** slabs are allocated when they are first needed */
+        private ByteBuffer[] slabs;
+
+        /** number of bytes used in each slab */
+        private final int[] slabUsed;
+
+        private final int slabSize;
+
+        /** slab where records are appended */
+        private int currentSlab = 0;
+
+        /** index keys, zero is empty slot as recid is always positive */
+        private long[] keys = new long[1024];
+
+        /** index values, location of record encoded by {@link OffHeapRecordCache#location(int, int, int)} */
+        private long[] values = new long[1024];
+
+        /** number of records in index */
+        private int size = 0;
+
+        Stripe(long sizeInBytes) {
+            //use at least 16 slabs, so only small part of stripe is dropped when slab is reused
+            slabSize = (int) Math.max(MIN_SLAB_SIZE, Math.min(MAX_SLAB_SIZE, sizeInBytes / 16));
+            int slabCount = (int) Math.max(2, sizeInBytes / slabSize);
+            if (slabCount > 0xFFFF)
+                throw new IllegalArgumentException("Off-heap cache is too large: " + sizeInBytes);
+            slabs = new ByteBuffer[slabCount];
+            slabUsed = new int[slabCount];
+        }
+
+        synchronized byte[] get(long recid) {
+            if (slabs == null)
+                return null;
+            int slot = findSlot(recid);
+            if (slot == -1)
+                return null;
+            long location = values[slot];
+            ByteBuffer b = slabs[(int) (location >>> 48)].duplicate();
+            b.position((int) ((location >>> 24) & 0xFFFFFF) + RECORD_HEADER_SIZE);
+            byte[] data = new byte[(int) (location & 0xFFFFFF)];
+            b.get(data);
+            return data;
+        }
+
+        synchronized void put(long recid, byte[] data, int length) {
+            if (slabs == null)
+                return;
+            if (RECORD_HEADER_SIZE + length > slabSize) {
+                remove(recid);
+                return;
+            }
+            if (slabs[currentSlab] == null)
+                slabs[currentSlab] = ByteBuffer.allocateDirect(slabSize);
+            if (slabUsed[currentSlab] + RECORD_HEADER_SIZE + length > slabSize) {
+                currentSlab = (currentSlab + 1) % slabs.length;
+                if (slabs[currentSlab] == null)
+                    slabs[currentSlab] = ByteBuffer.allocateDirect(slabSize);
+                else
+                    dropSlab(currentSlab);
+            }
+
+            int offset = slabUsed[currentSlab];
+            ByteBuffer b = slabs[currentSlab].duplicate();
+            b.position(offset);
+            b.putLong(recid);
+            b.putInt(length);
+            b.put(data, 0, length);
+            slabUsed[currentSlab] = b.position();
+
+            putIndex(recid, location(currentSlab, offset, length));
+        }
+
+        synchronized void remove(long recid) {
+            if (slabs == null)
+                return;
+            int slot = findSlot(recid);
+            if (slot != -1)
+                removeSlot(slot);
+        }
+
+        synchronized void recids(Utils.LongArrayList ret) {
+            if (slabs == null)
+                return;
+            Utils.IntArrayList positions = new Utils.IntArrayList();
+            for (int n = 0; n < slabs.length; n++) {
+                int slab = (currentSlab - n + slabs.length) % slabs.length;
+                ByteBuffer b = slabs[slab];
+                positions.clear();
+                for (int pos = 0; pos < slabUsed[slab]; pos += RECORD_HEADER_SIZE + b.getInt(pos + 8))
+                    positions.add(pos);
+                for (int i = positions.size - 1; i >= 0; i--) {
+                    int pos = positions.data[i];
+                    long recid = b.getLong(pos);
+                    int slot = findSlot(recid);
+                    if (slot != -1 && values[slot] == location(slab, pos, b.getInt(pos + 8)))
+                        ret.add(recid);
+                }
+            }
+        }
+
+        synchronized void clear() {
+            if (slabs == null)
+                return;
+            keys = new long[1024];
+            values = new long[1024];
+            size = 0;
+            for (int i = 0; i < slabUsed.length; i++)
+                slabUsed[i] = 0;
+            currentSlab = 0;
+        }
+
+        synchronized void close() {
+            if (slabs == null)
+                return;
+            //free direct memory now, do not wait for GC
+            for (ByteBuffer b : slabs)
+                StorageDiskMapped.unmapBuffer(b);
+            slabs = null;
+            keys = null;
+            values = null;
+        }
+
+        /**
+         * Removes index entries of records stored in slab, so slab can be reused
+         */
+        private void dropSlab(int slab) {
+            ByteBuffer b = slabs[slab];
+            int pos = 0;
+            while (pos < slabUsed[slab]) {
+                long recid = b.getLong(pos);
+                int length = b.getInt(pos + 8);
+                int slot = findSlot(recid);
+                //record may have been replaced by newer version in other slab
+                if (slot != -1 && values[slot] == location(slab, pos, length))
+                    removeSlot(slot);
+                pos += RECORD_HEADER_SIZE + length;
+            }
+            slabUsed[slab] = 0;
+        }
+
+        private int hashSlot(long recid) {
+            long h = recid * 0x9e3779b97f4a7c15L;
+            return ((int) (h >>> 32)) & (keys.length - 1);
+        }
+
+        /**
+         * Returns slot of recid in index, or -1 if recid is not there
+         */
+        private int findSlot(long recid) {
+            int mask = keys.length - 1;
+            for (int i = hashSlot(recid); keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == recid)
+                    return i;
+            }
+            return -1;
+        }
+
+        private void putIndex(long recid, long location) {
+            if ((size + 1) * 4 > keys.length * 3)
+                growIndex();
+            int mask = keys.length - 1;
+            int i = hashSlot(recid);
+            while (keys[i] != 0 && keys[i] != recid)
+                i = (i + 1) & mask;
+            if (keys[i] == 0)
+                size++;
+            keys[i] = recid;
+            values[i] = location;
+        }
+
+        private void growIndex() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0)
+                    putIndex(oldKeys[i], oldValues[i]);
+            }
+        }
+
+        /**
+         * Removes entry from index. Following entries are shifted back, so lookups do not need tombstones.
+         */
+        private void removeSlot(int i) {
+            int mask = keys.length - 1;
+            keys[i] = 0;
+            size--;
+            for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                int home = hashSlot(keys[j]);
+                //entry stays if its home slot is cyclically between empty slot and its position
+                boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (stays)
+                    continue;
+                keys[i] = keys[j];
+                values[i] = values[j];
+                keys[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+}
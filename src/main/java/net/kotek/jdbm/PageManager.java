@@ -19,9 +19,17 @@ package net.kotek.jdbm;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
  * This class manages the linked lists of pages that make up a file.
+ * <p/>
+ * Free pages are also kept in memory index of contiguous runs, so run for large record is found without reading
+ * free list. Single page is allocated from lowest free page, so free pages gather at end of file, where they
+ * can be truncated. Index is loaded lazily by first allocation and then updated with each change
+ * of free list. Changes made in transaction are undone on rollback.
  */
 final class PageManager {
     // our record file
@@ -29,6 +37,33 @@ final class PageManager {
 
     private BlockIo headerBuf;
 
+    /**
+     * Maps first page of run of contiguous free pages to its length. Null if index was not loaded yet.
+     */
+    private TreeMap<Long, Long> freeRuns;
+
+    /**
+     * First pages of runs from {@link #freeRuns} grouped by run length
+     */
+    private final TreeMap<Long, TreeSet<Long>> freeRunsByLength = new TreeMap<Long, TreeSet<Long>>();
+
+    /**
+     * Maps free page to page before it on free list, or to 0 for first page. Free list is linked only by next
+     * pointers, so this is needed to unlink page from middle of list.
+     */
+    private final LongHashMap<Long> freePrev = new LongHashMap<Long>();
+
+    /**
+     * Pairs of page and its previous page on free list (or -1 if page was not free) for each change of index
+     * in current transaction
+     */
+    private final Utils.LongArrayList indexUndo = new Utils.LongArrayList();
+
+    /**
+     * Index loaded in current transaction contains uncommited changes, so it is discarded on rollback
+     */
+    private boolean indexLoadedInTransaction;
+
     /**
      * Creates a new page manager using the indicated record file.
      */
@@ -46,20 +81,213 @@ final class PageManager {
      * page.
      */
     long allocate(short type) throws IOException {
+        return allocate(type, true);
+    }
+
+    /**
+     * Allocates run of physically contiguous pages of the indicated type, used for large records.
+     * Pages are added to list in ascending order. Shortest free run long enough is used,
+     * if there is none, run is allocated at end of file. Returns first page of run.
+     */
+    long allocateRun(short type, int count) throws IOException {
+        long start = findFreeRun(count);
+        if (start == 0) {
+            start = allocate(type, false);
+            for (int i = 1; i < count; i++)
+                allocate(type, false);
+            return start;
+        }
+
+        unlinkFree(start, count);
+
+        for (long i = start; i < start + count; i++)
+            append(type, i, false);
+        return start;
+    }
+
+    /**
+     * Removes run of free pages at end of file from free list, so file can be truncated.
+     * Returns new number of data pages (including header page), or 0 if last page is not free.
+     */
+    long removeFreeTail() throws IOException {
+        loadIndex();
+        long end = headerBuf.fileHeaderGetLastOf(Magic.FREE_PAGE);
+        Map.Entry<Long, Long> last = freeRuns.lastEntry();
+        if (last == null || last.getKey() + last.getValue() != end)
+            return 0;
+        long start = last.getKey();
+        unlinkFree(start, last.getValue());
+        headerBuf.fileHeaderSetLastOf(Magic.FREE_PAGE, start);
+        return start;
+    }
+
+    /**
+     * Unlinks run of pages from free list
+     */
+    private void unlinkFree(long start, long count) throws IOException {
+        // next page of already unlinked page is updated, so it is read again
+        for (long page = start; page < start + count; page++) {
+            long prev = freePrev.get(page);
+            long next = getNext(page);
+            if (prev == 0) {
+                headerBuf.fileHeaderSetFirstOf(Magic.FREE_PAGE, next);
+            } else {
+                BlockIo pageHdr = file.get(prev);
+                pageHdr.pageHeaderSetNext(next);
+                file.release(prev, true);
+            }
+            if (next != 0)
+                indexUpdate(next, prev);
+            indexUpdate(page, -1);
+        }
+    }
+
+    /**
+     * Returns first page of <code>count</code> contiguous pages on free list, or 0 if there is no such run
+     */
+    private long findFreeRun(int count) throws IOException {
+        loadIndex();
+        Map.Entry<Long, TreeSet<Long>> runs = freeRunsByLength.ceilingEntry((long) count);
+        return runs == null ? 0 : runs.getValue().first();
+    }
+
+    /**
+     * Loads index of free pages from free list, if it was not loaded yet
+     */
+    private void loadIndex() throws IOException {
+        if (freeRuns != null)
+            return;
+        freeRuns = new TreeMap<Long, Long>();
+        long prev = 0;
+        for (long page = headerBuf.fileHeaderGetFirstOf(Magic.FREE_PAGE); page != 0; page = getNext(page)) {
+            setFree(page, prev);
+            prev = page;
+        }
+        indexLoadedInTransaction = true;
+    }
+
+    /**
+     * Updates index if it is loaded, change is undone on rollback
+     *
+     * @param page page on free list
+     * @param prev page before it on free list, 0 if it is first, or -1 if page is not free anymore
+     */
+    private void indexUpdate(long page, long prev) {
+        if (freeRuns == null)
+            return;
+        indexUndo.add(page);
+        indexUndo.add(setFree(page, prev));
+    }
+
+    /**
+     * Sets previous page of free page, or removes page from index if <code>prev</code> is -1.
+     * Returns old previous page, or -1 if page was not free.
+     */
+    private long setFree(long page, long prev) {
+        Long old = prev < 0 ? freePrev.remove(page) : freePrev.put(page, prev);
+        if (old == null && prev >= 0)
+            runAdd(page);
+        else if (old != null && prev < 0)
+            runRemove(page);
+        return old == null ? -1 : old;
+    }
+
+    /**
+     * Adds page to runs, merges it with neighbour runs
+     */
+    private void runAdd(long page) {
+        long start = page;
+        long length = 1;
+        Map.Entry<Long, Long> lower = freeRuns.lowerEntry(page);
+        if (lower != null && lower.getKey() + lower.getValue() == page) {
+            start = lower.getKey();
+            length += lower.getValue();
+            runUnindex(lower.getKey(), lower.getValue());
+        }
+        Long higher = freeRuns.get(page + 1);
+        if (higher != null) {
+            length += higher;
+            runUnindex(page + 1, higher);
+        }
+        runIndex(start, length);
+    }
+
+    /**
+     * Removes page from run, run is split into two
+     */
+    private void runRemove(long page) {
+        Map.Entry<Long, Long> run = freeRuns.floorEntry(page);
+        long start = run.getKey();
+        long end = start + run.getValue();
+        runUnindex(start, run.getValue());
+        if (page > start)
+            runIndex(start, page - start);
+        if (page + 1 < end)
+            runIndex(page + 1, end - page - 1);
+    }
+
+    private void runIndex(long start, long length) {
+        freeRuns.put(start, length);
+        TreeSet<Long> starts = freeRunsByLength.get(length);
+        if (starts == null) {
+            starts = new TreeSet<Long>();
+            freeRunsByLength.put(length, starts);
+        }
+        starts.add(start);
+    }
+
+    private void runUnindex(long start, long length) {
+        freeRuns.remove(start);
+        TreeSet<Long> starts = freeRunsByLength.get(length);
+        starts.remove(start);
+        if (starts.isEmpty())
+            freeRunsByLength.remove(length);
+    }
+
+    /**
+     * Discards index, it is loaded again on next use
+     */
+    private void indexClear() {
+        freeRuns = null;
+        freeRunsByLength.clear();
+        freePrev.clear();
+        indexUndo.clear();
+        indexLoadedInTransaction = false;
+    }
+
+    /**
+     * Undoes changes of index made in current transaction
+     */
+    private void indexRollback() {
+        if (indexLoadedInTransaction) {
+            indexClear();
+            return;
+        }
+        for (int i = indexUndo.size - 2; i >= 0; i -= 2)
+            setFree(indexUndo.data[i], indexUndo.data[i + 1]);
+        indexUndo.clear();
+    }
+
+    private long allocate(short type, boolean reuseFree) throws IOException {
 
         if (type == Magic.FREE_PAGE)
             throw new Error("allocate of free page?");
 
-        // do we have something on the free list?
-        long retval = headerBuf.fileHeaderGetFirstOf(Magic.FREE_PAGE);                
+        // do we have something on the free list? Lowest free page is used,
+        // so free pages gather at end of file, where they can be truncated
+        long retval = 0;
+        if (reuseFree && type != Magic.TRANSLATION_PAGE) {
+            loadIndex();
+            if (!freeRuns.isEmpty())
+                retval = freeRuns.firstKey();
+        }
         boolean isNew = false;
         
         if(type!=Magic.TRANSLATION_PAGE){
         
             if (retval != 0) {
-                // yes. Point to it and make the next of that page the
-                // new first free page.
-                headerBuf.fileHeaderSetFirstOf(Magic.FREE_PAGE, getNext(retval));
+                // yes. Unlink it from free list
+                unlinkFree(retval, 1);
             } else {
                 // nope. make a new record
                 retval = headerBuf.fileHeaderGetLastOf(Magic.FREE_PAGE);
@@ -76,8 +304,16 @@ final class PageManager {
            isNew = true;
         }
 
+        append(type, retval, isNew);
+        return retval;
+    }
+
+    /**
+     * Adds page to end of list of the indicated type
+     */
+    private void append(short type, long page, boolean isNew) throws IOException {
         // Cool. We have a record, add it to the correct list
-        BlockIo pageHdr = file.get(retval);
+        BlockIo pageHdr = file.get(page);
         if(isNew){
             pageHdr.pageHeaderSetType(type);
         }else{
@@ -88,7 +324,7 @@ final class PageManager {
         long oldLast = headerBuf.fileHeaderGetLastOf(type);
 
         // Clean data.
-        pageHdr.writeByteArray(RecordFile.CLEAN_DATA, 0, 0, Storage.BLOCK_SIZE);
+        pageHdr.writeByteArray(RecordFile.CLEAN_DATA, 0, 0, file.blockSize);
 
         pageHdr.pageHeaderSetType(type);
         pageHdr.pageHeaderSetPrev(oldLast);
@@ -97,18 +333,16 @@ final class PageManager {
 
         if (oldLast == 0)
             // This was the first one of this type
-            headerBuf.fileHeaderSetFirstOf(type, retval);
-        headerBuf.fileHeaderSetLastOf(type, retval);
-        file.release(retval, true);
+            headerBuf.fileHeaderSetFirstOf(type, page);
+        headerBuf.fileHeaderSetLastOf(type, page);
+        file.release(page, true);
 
         // If there's a previous, fix up its pointer
         if (oldLast != 0) {
             pageHdr = file.get(oldLast);
-            pageHdr.pageHeaderSetNext(retval);
+            pageHdr.pageHeaderSetNext(page);
             file.release(oldLast, true);
         }
-
-        return retval;
     }
 
     /**
@@ -129,12 +363,16 @@ final class PageManager {
         long next = pageHdr.pageHeaderGetNext();
 
         // put the page at the front of the free list.
+        long oldFirst = headerBuf.fileHeaderGetFirstOf(Magic.FREE_PAGE);
         pageHdr.pageHeaderSetType(Magic.FREE_PAGE);
-        pageHdr.pageHeaderSetNext(headerBuf.fileHeaderGetFirstOf(Magic.FREE_PAGE));
+        pageHdr.pageHeaderSetNext(oldFirst);
         pageHdr.pageHeaderSetPrev(0);
 
         headerBuf.fileHeaderSetFirstOf(Magic.FREE_PAGE, recid);
         file.release(recid, true);
+        indexUpdate(recid, 0);
+        if (oldFirst != 0)
+            indexUpdate(oldFirst, recid);
 
         // remove the page from its old list
         if (prev != 0) {
@@ -159,22 +397,14 @@ final class PageManager {
      * Returns the page following the indicated block
      */
     long getNext(long block) throws IOException {
-        try {
-            return file.get(block).pageHeaderGetNext();
-        } finally {
-            file.release(block, false);
-        }
+        return file.view(block).pageHeaderGetNext();
     }
 
     /**
      * Returns the page before the indicated block
      */
     long getPrev(long block) throws IOException {
-        try {
-            return file.get(block).pageHeaderGetPrev();
-        } finally {
-            file.release(block, false);
-        }
+        return file.view(block).pageHeaderGetPrev();
     }
 
     /**
@@ -201,6 +431,8 @@ final class PageManager {
         // write the header out
         file.release(headerBuf);
         file.commit();
+        indexUndo.clear();
+        indexLoadedInTransaction = false;
 
         // and obtain it again
         headerBuf = file.get(0);
@@ -215,6 +447,7 @@ final class PageManager {
         // release header
         file.discard(headerBuf);
         file.rollback();
+        indexRollback();
         // and obtain it again
         headerBuf = file.get(0);
         headerBuf.fileHeaderCheckHead(headerBuf.readShort(0) == 0);
@@ -227,6 +460,7 @@ final class PageManager {
     void close() throws IOException {
         file.release(headerBuf);
         file.commit();
+        indexClear();
         headerBuf = null;
         file = null;
     }
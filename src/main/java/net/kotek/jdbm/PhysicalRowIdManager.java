@@ -17,8 +17,7 @@
 package net.kotek.jdbm;
 
 import java.io.IOException;
-
-import static net.kotek.jdbm.Storage.*;
+import java.nio.ByteBuffer;
 
 /**
  * This class manages physical row ids, and their data.
@@ -29,10 +28,12 @@ final class PhysicalRowIdManager {
     final private RecordFile file;
     final private PageManager pageman;
     final private FreePhysicalRowIdPageManager freeman;
-    static final private short DATA_PER_PAGE = (short) (BLOCK_SIZE - Magic.DATA_PAGE_O_DATA);
+    final private Location location;
+    final private int blockSize;
+    final private int dataPerPage;
     //caches offset after last allocation. So we dont have to iterate throw page every allocation
     private long cachedLastAllocatedRecordPage = Long.MIN_VALUE;
-    private short cachedLastAllocatedRecordOffset = Short.MIN_VALUE;
+    private int cachedLastAllocatedRecordOffset = Integer.MIN_VALUE;
 
     /**
      * Creates a new rowid manager using the indicated record file. and page manager.
@@ -41,7 +42,9 @@ final class PhysicalRowIdManager {
         this.file = file;
         this.pageman = pageManager;
         this.freeman = freeman;
-
+        this.location = file.location;
+        this.blockSize = file.blockSize;
+        this.dataPerPage = blockSize - Magic.DATA_PAGE_O_DATA;
     }
 
     /**
@@ -58,13 +61,70 @@ final class PhysicalRowIdManager {
         return retval;
     }
 
+    /**
+     * Inserts multiple records at once. Records are appended one after other at end of data pages,
+     * free records are not reused. Records which fit into current page are written while page is held,
+     * so each page is fetched and released only once.
+     *
+     * @param data  serialized records
+     * @param ends  end offset of each record in <code>data</code>, record starts where previous one ends
+     * @param count number of records to insert
+     * @return physical rowids of new records
+     */
+    long[] insertBatch(byte[] data, int[] ends, int count) throws IOException {
+        long[] retval = new long[count];
+        BlockIo page = null;
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            int length = ends[i] - start;
+            int size = RecordHeader.roundAvailableSize(Math.max(length, 1));
+            if (page == null && cachedLastAllocatedRecordPage == pageman.getLast(Magic.USED_PAGE))
+                page = file.get(cachedLastAllocatedRecordPage);
+
+            int hdr = cachedLastAllocatedRecordOffset;
+            int freeHere = blockSize - hdr - RecordHeader.SIZE;
+            if (page != null && hdr <= blockSize - 16 && freeHere >= size) {
+                //record fits into current page, same rules as in allocNew
+                if (freeHere - size <= (16 + RecordHeader.SIZE)) {
+                    size = freeHere;
+                }
+                RecordHeader.setAvailableSize(page, hdr, size);
+                RecordHeader.setCurrentSize(page, hdr, length);
+                page.writeByteArray(data, start, hdr + RecordHeader.SIZE, length);
+                cachedLastAllocatedRecordOffset = hdr + RecordHeader.SIZE + size;
+                retval[i] = location.toLong(page.getBlockId(), hdr);
+            } else {
+                //record continues on next page, use common allocation
+                if (page != null) {
+                    file.release(page.getBlockId(), true);
+                    page = null;
+                }
+                retval[i] = allocNew(size, pageman.getLast(Magic.USED_PAGE));
+                write(retval[i], data, start, length);
+            }
+            start = ends[i];
+        }
+        if (page != null)
+            file.release(page.getBlockId(), true);
+        return retval;
+    }
+
     /**
      * Updates an existing record. Returns the possibly changed physical rowid.
      */
     long update(long rowid, byte[] data, int start, int length) throws IOException {
+        rowid = realloc(rowid, length);
+        write(rowid, data, start, length);
+        return rowid;
+    }
+
+    /**
+     * Makes sure record has space for data of given length, returns the possibly changed physical rowid.
+     */
+    private long realloc(long rowid, int length) throws IOException {
         // fetch the record header
-        BlockIo block = file.get(Location.getBlock(rowid));
-        short head = Location.getOffset(rowid);
+        BlockIo block = file.get(location.getBlock(rowid));
+        int head = location.getOffset(rowid);
         int availSize = RecordHeader.getAvailableSize(block, head);
         if (length > availSize ||
                 //difference between free and available space can be only 254.
@@ -78,33 +138,117 @@ final class PhysicalRowIdManager {
         } else {
             file.release(block);
         }
+        return rowid;
+    }
 
-        // 'nuff space, write it in and return the rowid.
-        write(rowid, data, start, length);
+    /**
+     * Allocates new record with space for data of given length, which is then written with
+     * {@link #writeData(long, byte[], int, int)}. Size of record is zero until it is set by {@link #setSize(long, int)},
+     * so partially written data are never read.
+     */
+    long allocData(int length) throws IOException {
+        long rowid = alloc(length);
+        setSize(rowid, 0);
         return rowid;
     }
 
+    /**
+     * Sets size of record data, record must have enough space
+     */
+    void setSize(long rowid, int length) throws IOException {
+        BlockIo block = file.get(location.getBlock(rowid));
+        RecordHeader.setCurrentSize(block, location.getOffset(rowid), length);
+        file.release(block.getBlockId(), true);
+    }
+
+    /**
+     * Returns size of record data
+     */
+    int getSize(long rowid) throws IOException {
+        return RecordHeader.getCurrentSize(file.view(location.getBlock(rowid)), location.getOffset(rowid));
+    }
+
+    /**
+     * Returns position of first byte of record data, used with {@link #readData(long, byte[], int, int)}
+     * and {@link #writeData(long, byte[], int, int)}
+     */
+    long dataStart(long rowid) {
+        return location.toLong(location.getBlock(rowid), location.getOffset(rowid) + RecordHeader.SIZE);
+    }
+
+    /**
+     * Copies part of record data into buffer. It only reads pages, so it may run concurrently with other fetches.
+     *
+     * @param position location of first byte to read, see {@link #dataStart(long)}
+     * @return position after last byte read
+     */
+    long readData(long position, byte[] buf, int off, int len) throws IOException {
+        long current = location.getBlock(position);
+        int dataOffset = location.getOffset(position);
+        while (len > 0) {
+            int toCopy = Math.min(len, blockSize - dataOffset);
+            file.view(current).readByteArray(buf, off, dataOffset, toCopy);
+            off += toCopy;
+            len -= toCopy;
+            dataOffset += toCopy;
+            if (dataOffset == blockSize) {
+                //position at end of page can not be encoded, continue on next page
+                current = pageman.getNext(current);
+                dataOffset = Magic.DATA_PAGE_O_DATA;
+            }
+        }
+        return location.toLong(current, dataOffset);
+    }
+
+    /**
+     * Copies buffer into part of record data. Record must have enough space, see {@link #allocData(int)}.
+     *
+     * @param position location of first byte to write, see {@link #dataStart(long)}
+     * @return position after last byte written
+     */
+    long writeData(long position, byte[] buf, int off, int len) throws IOException {
+        long current = location.getBlock(position);
+        int dataOffset = location.getOffset(position);
+        while (len > 0) {
+            int toCopy = Math.min(len, blockSize - dataOffset);
+            BlockIo block = file.get(current);
+            block.writeByteArray(buf, off, dataOffset, toCopy);
+            file.release(current, true);
+            off += toCopy;
+            len -= toCopy;
+            dataOffset += toCopy;
+            if (dataOffset == blockSize) {
+                //position at end of page can not be encoded, continue on next page
+                current = pageman.getNext(current);
+                dataOffset = Magic.DATA_PAGE_O_DATA;
+            }
+        }
+        return location.toLong(current, dataOffset);
+    }
+
 
+    /**
+     * Reads record data. It only reads pages, so it may run concurrently with other fetches.
+     */
     void fetch(DataInputOutput out, long rowid) throws IOException {
         // fetch the record header
-        long current = Location.getBlock(rowid);
-        BlockIo block = file.get(current);
-        short head = Location.getOffset(rowid);
+        long current = location.getBlock(rowid);
+        BlockIo block = file.view(current);
+        int head = location.getOffset(rowid);
 
         // allocate a return buffer
         // byte[] retval = new byte[ head.getCurrentSize() ];
         final int size = RecordHeader.getCurrentSize(block, head);
         if (size == 0) {
-            file.release(current, false);
             return;
         }
 
         // copy bytes in
         int leftToRead = size;
-        short dataOffset = (short) (Location.getOffset(rowid) + RecordHeader.SIZE);
+        int dataOffset = location.getOffset(rowid) + RecordHeader.SIZE;
         while (leftToRead > 0) {
             // copy current page's data to return buffer
-            int toCopy = BLOCK_SIZE - dataOffset;
+            int toCopy = blockSize - dataOffset;
             if (leftToRead < toCopy) {
                 toCopy = leftToRead;
             }
@@ -114,11 +258,10 @@ final class PhysicalRowIdManager {
             // Go to the next block
             leftToRead -= toCopy;
             // out.flush();
-            file.release(block);
 
             if (leftToRead > 0) {
                 current = pageman.getNext(current);
-                block = file.get(current);
+                block = file.view(current);
                 dataOffset = Magic.DATA_PAGE_O_DATA;
             }
 
@@ -127,11 +270,29 @@ final class PhysicalRowIdManager {
         // return retval;
     }
 
+    /**
+     * Returns read-only buffer with record data. Record which fits into single page is not copied,
+     * buffer is view of page and is valid only until page is modified.
+     */
+    ByteBuffer fetchBuffer(long rowid) throws IOException {
+        BlockIo block = file.view(location.getBlock(rowid));
+        int head = location.getOffset(rowid);
+        int size = RecordHeader.getCurrentSize(block, head);
+        int dataOffset = head + RecordHeader.SIZE;
+        if (dataOffset + size <= blockSize)
+            return block.readOnlySlice(dataOffset, size);
+
+        DataInputOutput out = new DataInputOutput();
+        fetch(out, rowid);
+        return ByteBuffer.wrap(out.getBuf(), 0, out.getPos()).asReadOnlyBuffer();
+    }
+
     /**
      * Allocate a new rowid with the indicated size.
      */
     private long alloc(int size) throws IOException {
-        size = RecordHeader.roundAvailableSize(size);
+        //empty record still needs some space, available size 0 marks end of records on page
+        size = RecordHeader.roundAvailableSize(Math.max(size, 1));
         long retval = freeman.get(size);
         if (retval == 0) {
             retval = allocNew(size, pageman.getLast(Magic.USED_PAGE));
@@ -144,10 +305,13 @@ final class PhysicalRowIdManager {
      * search should start.
      */
     private long allocNew(int size, long start) throws IOException {
+        if (size + RecordHeader.SIZE - dataPerPage >= dataPerPage)
+            return allocRun(size, start);
+
         BlockIo curPage;
         if (start == 0 ||
                 //last page was completely filled?
-                cachedLastAllocatedRecordPage == start && cachedLastAllocatedRecordOffset == BLOCK_SIZE
+                cachedLastAllocatedRecordPage == start && cachedLastAllocatedRecordOffset == blockSize
                 ) {
             // we need to create a new page.
             start = pageman.allocate(Magic.USED_PAGE);
@@ -164,21 +328,21 @@ final class PhysicalRowIdManager {
 
         // follow the rowids on this page to get to the last one. We don't
         // fall off, because this is the last page, remember?
-        short pos = curPage.dataPageGetFirst();
+        int pos = curPage.dataPageGetFirst();
         if (pos == 0) {
             // page is exactly filled by the last block of a record
             file.release(curPage);
             return allocNew(size, 0);
         }
 
-        short hdr = pos;
+        int hdr = pos;
 
         if (cachedLastAllocatedRecordPage != curPage.getBlockId() ) {
             //position was not cached, have to find it again
             int availSize = RecordHeader.getAvailableSize(curPage, hdr);
-            while (availSize != 0 && pos < BLOCK_SIZE) {
+            while (availSize != 0 && pos < blockSize) {
                 pos += availSize + RecordHeader.SIZE;
-                if (pos == BLOCK_SIZE) {
+                if (pos == blockSize) {
                     // Again, a filled page.
                     file.release(curPage);
                     return allocNew(size, 0);
@@ -198,7 +362,7 @@ final class PhysicalRowIdManager {
             file.release(curPage);
         }
         
-        if(hdr>Storage.BLOCK_SIZE - 16){
+        if(hdr>blockSize - 16){
             file.release(curPage);
             //there is not enought space on current page, so force new page
             return allocNew(size,0);
@@ -206,15 +370,15 @@ final class PhysicalRowIdManager {
 
         // we have the position, now tack on extra pages until we've got
         // enough space.
-        long retval = Location.toLong(start, pos);
-        int freeHere = BLOCK_SIZE - pos - RecordHeader.SIZE;
+        long retval = location.toLong(start, pos);
+        int freeHere = blockSize - pos - RecordHeader.SIZE;
         if (freeHere < size) {
             // check whether the last page would have only a small bit left.
             // if yes, increase the allocation. A small bit is a record
             // header plus 16 bytes.
-            int lastSize = (size - freeHere) % DATA_PER_PAGE;
-            if (size <DATA_PER_PAGE && (DATA_PER_PAGE - lastSize) < (RecordHeader.SIZE + 16)) {
-                size += (DATA_PER_PAGE - lastSize);
+            int lastSize = (size - freeHere) % dataPerPage;
+            if (size <dataPerPage && (dataPerPage - lastSize) < (RecordHeader.SIZE + 16)) {
+                size += (dataPerPage - lastSize);
                 size = RecordHeader.roundAvailableSize(size);
             }
 
@@ -223,21 +387,28 @@ final class PhysicalRowIdManager {
             file.release(start, true);
 
             int neededLeft = size - freeHere;
+            // record larger than page gets contiguous run of pages,
+            // so it can be read sequentially
+            long run = 0;
+            if (neededLeft >= dataPerPage) {
+                int pages = (neededLeft + dataPerPage - 1) / dataPerPage;
+                run = pageman.allocateRun(Magic.USED_PAGE, pages);
+            }
             // Refactor these two blocks!
-            while (neededLeft >= DATA_PER_PAGE) {
-                start = pageman.allocate(Magic.USED_PAGE);
+            while (neededLeft >= dataPerPage) {
+                start = run++;
                 curPage = file.get(start);
-                curPage.dataPageSetFirst((short) 0); // no rowids, just data
+                curPage.dataPageSetFirst(0); // no rowids, just data
                 file.release(start, true);
-                neededLeft -= DATA_PER_PAGE;
+                neededLeft -= dataPerPage;
             }
             if (neededLeft > 0) {
                 // done with whole chunks, allocate last fragment.
-                start = pageman.allocate(Magic.USED_PAGE);
+                start = run != 0 ? run : pageman.allocate(Magic.USED_PAGE);
                 curPage = file.get(start);
-                curPage.dataPageSetFirst((short) (Magic.DATA_PAGE_O_DATA + neededLeft));
+                curPage.dataPageSetFirst(Magic.DATA_PAGE_O_DATA + neededLeft);
                 file.release(start, true);
-                cachedLastAllocatedRecordOffset = (short) (Magic.DATA_PAGE_O_DATA + neededLeft);
+                cachedLastAllocatedRecordOffset = Magic.DATA_PAGE_O_DATA + neededLeft;
                 cachedLastAllocatedRecordPage = curPage.getBlockId();
 
             }
@@ -250,7 +421,7 @@ final class PhysicalRowIdManager {
             }
             RecordHeader.setAvailableSize(curPage, hdr, size);
             file.release(start, true);
-            cachedLastAllocatedRecordOffset = (short) (hdr + RecordHeader.SIZE + size);
+            cachedLastAllocatedRecordOffset = hdr + RecordHeader.SIZE + size;
             cachedLastAllocatedRecordPage = curPage.getBlockId();
 
         }
@@ -258,30 +429,144 @@ final class PhysicalRowIdManager {
 
     }
 
-    void free(final long id) throws IOException {
-        // get the rowid, and write a zero current size into it.
-        final BlockIo curBlock = file.get(Location.getBlock(id));
-        final short offset = Location.getOffset(id);
-        final int size = RecordHeader.getAvailableSize(curBlock, offset);
-        if(size>DATA_PER_PAGE){
-            //if record is large and spread across multiple pages, shrink it to current page and release pages it occupies
-            //TODO feel lucky? implement comment above
+    /**
+     * Allocates record which needs whole pages. It gets its own contiguous run of pages, so it is read
+     * sequentially and all its pages can be released when it is freed. Rest of last page becomes free record.
+     */
+    private long allocRun(int size, long last) throws IOException {
+        if (last != 0 && cachedLastAllocatedRecordPage == last
+                && cachedLastAllocatedRecordOffset <= blockSize - 16 - RecordHeader.SIZE) {
+            int hdr = cachedLastAllocatedRecordOffset;
+            int freeHere = blockSize - hdr - RecordHeader.SIZE;
+            BlockIo block = file.get(last);
+            RecordHeader.setCurrentSize(block, hdr, 0);
+            RecordHeader.setAvailableSize(block, hdr, freeHere);
+            file.release(last, true);
+            freeman.put(location.toLong(last, hdr), freeHere);
+        }
+        cachedLastAllocatedRecordPage = Long.MIN_VALUE;
+        cachedLastAllocatedRecordOffset = Integer.MIN_VALUE;
+
+        int neededLeft = size - (dataPerPage - RecordHeader.SIZE);
+        int pages = 1 + (neededLeft + dataPerPage - 1) / dataPerPage;
+        final long start = pageman.allocateRun(Magic.USED_PAGE, pages);
+        BlockIo block = file.get(start);
+        block.dataPageSetFirst(Magic.DATA_PAGE_O_DATA);
+        RecordHeader.setAvailableSize(block, Magic.DATA_PAGE_O_DATA, size);
+        file.release(start, true);
+
+        long page = start;
+        while (neededLeft >= dataPerPage) {
+            page++;
+            block = file.get(page);
+            block.dataPageSetFirst(0); // no rowids, just data
+            file.release(page, true);
+            neededLeft -= dataPerPage;
         }
+        if (neededLeft > 0) {
+            page++;
+            block = file.get(page);
+            block.dataPageSetFirst(Magic.DATA_PAGE_O_DATA + neededLeft);
+            file.release(page, true);
+            cachedLastAllocatedRecordOffset = Magic.DATA_PAGE_O_DATA + neededLeft;
+            cachedLastAllocatedRecordPage = page;
+        }
+        return location.toLong(start, Magic.DATA_PAGE_O_DATA);
+    }
 
+    void free(final long id) throws IOException {
+        // get the rowid, and write a zero current size into it.
+        final long page = location.getBlock(id);
+        final BlockIo curBlock = file.get(page);
+        final int offset = location.getOffset(id);
+        int size = RecordHeader.getAvailableSize(curBlock, offset);
         RecordHeader.setCurrentSize(curBlock, offset, 0);
-        file.release(Location.getBlock(id), true);
+
+        //if record is large and spread across multiple pages, release pages it occupies
+        final int overflow = offset + RecordHeader.SIZE + size - blockSize;
+        if (overflow >= dataPerPage && offset == Magic.DATA_PAGE_O_DATA
+                && curBlock.dataPageGetFirst() == Magic.DATA_PAGE_O_DATA) {
+            //record has its own run of pages, see allocRun
+            file.release(page, true);
+            releasePages(page, overflow);
+            pageman.free(Magic.USED_PAGE, page);
+            return;
+        }
+        //otherwise shrink it to current page
+        final int shrunkSize = blockSize - offset - RecordHeader.SIZE;
+        final boolean shrink = overflow >= dataPerPage && RecordHeader.roundAvailableSize(shrunkSize) == shrunkSize;
+        if (shrink) {
+            RecordHeader.setAvailableSize(curBlock, offset, shrunkSize);
+            size = shrunkSize;
+        }
+        file.release(page, true);
+        if (shrink)
+            releasePages(page, overflow);
 
         // write the rowid to the free list
         freeman.put(id, size);
     }
 
+    /**
+     * Releases pages occupied by part of freed record which continues after given page.
+     * Part of record on its last page becomes free record, or last page is released if there is nothing else
+     * or only single free record, which was left there by {@link #allocRun(int, long)}.
+     */
+    private void releasePages(long page, int overflow) throws IOException {
+        //released page may be cached as last page
+        cachedLastAllocatedRecordPage = Long.MIN_VALUE;
+        cachedLastAllocatedRecordOffset = Integer.MIN_VALUE;
+
+        long next = pageman.getNext(page);
+        while (overflow >= dataPerPage) {
+            long current = next;
+            next = pageman.getNext(current);
+            pageman.free(Magic.USED_PAGE, current);
+            overflow -= dataPerPage;
+        }
+        if (overflow == 0)
+            return;
+
+        BlockIo block = file.get(next);
+        int first = block.dataPageGetFirst();
+        if (first != Magic.DATA_PAGE_O_DATA + overflow) {
+            file.release(next, false);
+        } else if (first + RecordHeader.SIZE > blockSize || RecordHeader.getAvailableSize(block, first) == 0) {
+            //no records follow
+            file.release(next, false);
+            pageman.free(Magic.USED_PAGE, next);
+        } else if (isLastRecord(block, first) && RecordHeader.getCurrentSize(block, first) == 0
+                && freeman.remove(location.toLong(next, first), RecordHeader.getAvailableSize(block, first))) {
+            //only free record follows, it goes away with page
+            file.release(next, false);
+            pageman.free(Magic.USED_PAGE, next);
+        } else if (overflow > RecordHeader.SIZE) {
+            block.dataPageSetFirst(Magic.DATA_PAGE_O_DATA);
+            RecordHeader.setCurrentSize(block, Magic.DATA_PAGE_O_DATA, 0);
+            RecordHeader.setAvailableSize(block, Magic.DATA_PAGE_O_DATA, overflow - RecordHeader.SIZE);
+            file.release(next, true);
+            freeman.put(location.toLong(next, Magic.DATA_PAGE_O_DATA), overflow - RecordHeader.SIZE);
+        } else {
+            file.release(next, false);
+        }
+    }
+
+    /**
+     * Returns true if record ends on this page and no other record follows it
+     */
+    private boolean isLastRecord(BlockIo block, int pos) {
+        int end = pos + RecordHeader.SIZE + RecordHeader.getAvailableSize(block, pos);
+        return end == blockSize
+                || (end < blockSize && (end + RecordHeader.SIZE > blockSize || RecordHeader.getAvailableSize(block, end) == 0));
+    }
+
     /**
      * Writes out data to a rowid. Assumes that any resizing has been done.
      */
     private void write(long rowid, byte[] data, int start, int length) throws IOException {
-        long current = Location.getBlock(rowid);
+        long current = location.getBlock(rowid);
         BlockIo block = file.get(current);
-        short hdr = Location.getOffset(rowid);
+        int hdr = location.getOffset(rowid);
         RecordHeader.setCurrentSize(block, hdr, length);
         if (length == 0) {
             file.release(current, true);
@@ -291,10 +576,10 @@ final class PhysicalRowIdManager {
         // copy bytes in
         int offsetInBuffer = start;
         int leftToWrite = length;
-        short dataOffset = (short) (Location.getOffset(rowid) + RecordHeader.SIZE);
+        int dataOffset = location.getOffset(rowid) + RecordHeader.SIZE;
         while (leftToWrite > 0) {
             // copy current page's data to return buffer
-            int toCopy = BLOCK_SIZE - dataOffset;
+            int toCopy = blockSize - dataOffset;
 
             if (leftToWrite < toCopy) {
                 toCopy = leftToWrite;
@@ -317,7 +602,7 @@ final class PhysicalRowIdManager {
 
     void rollback() throws IOException {
         cachedLastAllocatedRecordPage = Long.MIN_VALUE;
-        cachedLastAllocatedRecordOffset = Short.MIN_VALUE;
+        cachedLastAllocatedRecordOffset = Integer.MIN_VALUE;
         freeman.rollback();
     }
 
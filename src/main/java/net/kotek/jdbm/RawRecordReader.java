@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package net.kotek.jdbm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Callback which reads record bytes directly, without serializer.
+ * See {@link DB#fetchRaw(long, RawRecordReader)}.
+ *
+ * @param <R> type of result
+ */
+public interface RawRecordReader<R> {
+
+    /**
+     * Reads record content. Buffer is read-only view of storage page if record fits into single page,
+     * otherwise it is copy of record. Buffer is valid only during this call.
+     * DB must not be modified from this method.
+     *
+     * @param data record bytes between position and limit
+     * @return result passed to caller of fetchRaw
+     * @throws IOException
+     */
+    public R read(ByteBuffer data)
+            throws IOException;
+
+}
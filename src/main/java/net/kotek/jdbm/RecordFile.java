@@ -18,6 +18,7 @@
 package net.kotek.jdbm;
 
 import javax.crypto.Cipher;
+import java.io.File;
 import java.io.IOError;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -57,14 +58,63 @@ final class RecordFile {
      */
     private final LongHashMap<BlockIo> inTxn = new LongHashMap<BlockIo>();
 
+    /**
+     * Clean blocks kept after they were released, so frequently used pages
+     * (file header, translation pages) do not have to be read from storage again.
+     * Block may be in this cache and in <code>inUse</code> at the same time,
+     * but never in <code>dirty</code> or <code>inTxn</code>.
+     * <p/>
+     * Concurrent readers update cache from {@link #view(long)}, so cache state
+     * (including CLOCK slots and statistics) is guarded by lock on this map.
+     */
+    private final LongHashMap<BlockIo> cache;
+
+    /**
+     * Slots of CLOCK eviction algorithm, null if slot is empty.
+     */
+    private final BlockIo[] cacheSlots;
+
+    /**
+     * Reference bits for CLOCK eviction algorithm.
+     */
+    private final boolean[] cacheReferenced;
+
+    /** current position of CLOCK hand */
+    private int cacheHand = 0;
+
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+
+    /**
+     * Default size of clean page cache in bytes.
+     */
+    static final long DEFAULT_PAGE_CACHE_SIZE = 1024 * 1024;
+
 
     // transactions disabled?
     private boolean transactionsDisabled = false;
 
     /**
-     * A block of clean data to wipe clean pages.
+     * A block of clean data to wipe clean pages. It is large enough for any block size.
+     */
+    static final byte[] CLEAN_DATA = new byte[Storage.MAX_BLOCK_SIZE];
+
+    /**
+     * Returns readonly page filled with zeros
      */
-    static final byte[] CLEAN_DATA = new byte[Storage.BLOCK_SIZE];
+    static ByteBuffer cleanPage(int blockSize) {
+        return ByteBuffer.wrap(CLEAN_DATA, 0, blockSize).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Size of pages in this file
+     */
+    final int blockSize;
+
+    /**
+     * Converts page number and offset within page into location
+     */
+    final Location location;
 
 
     private Storage storage;
@@ -78,21 +128,34 @@ final class RecordFile {
      *
      * @param fileName the name of the file to open or create, without
      *                 an extension.
+     * @param compressed use storage which compresses pages if file is new, existing file is opened in its own format
+     * @param blockSize block size used if file is new, existing file is opened with block size stored in its header
+     * @param pageCacheSize maximal size of clean page cache in bytes, 0 to disable it
      * @throws IOException whenever the creation of the underlying
      *                     RandomAccessFile throws it.
      */
-    RecordFile(String fileName, boolean readonly,  boolean transactionsDisabled, Cipher cipherIn, Cipher cipherOut, boolean useRandomAccessFile) throws IOException {
+    RecordFile(String fileName, boolean readonly,  boolean transactionsDisabled, Cipher cipherIn, Cipher cipherOut,
+               boolean useRandomAccessFile, boolean compressed, int blockSize, long pageCacheSize) throws IOException {
+        if (pageCacheSize < 0)
+            throw new IllegalArgumentException("Page cache size is smaller than zero");
         this.cipherIn = cipherIn;
         this.cipherOut = cipherOut;
         this.transactionsDisabled = transactionsDisabled;
-        if(fileName == null){
-            this.storage = new StorageMemory(transactionsDisabled);
-        }else if (fileName.contains("!/"))
-            this.storage = new StorageZip(fileName);
-        else if(useRandomAccessFile)
-            this.storage = new StorageDisk(fileName,readonly);
-        else
-            this.storage = new StorageDiskMapped(fileName,readonly,transactionsDisabled);
+
+        this.storage = openStorage(fileName, readonly, transactionsDisabled, useRandomAccessFile, compressed, blockSize);
+        int storedBlockSize = readBlockSize(storage, cipherOut);
+        if (storedBlockSize != 0 && storedBlockSize != storage.getBlockSize()) {
+            //existing file has different block size, open it again
+            storage.forceClose();
+            storage = openStorage(fileName, readonly, transactionsDisabled, useRandomAccessFile, compressed, storedBlockSize);
+        }
+        this.blockSize = storage.getBlockSize();
+        this.location = new Location(this.blockSize);
+
+        int cacheBlocks = (int) Math.min(Integer.MAX_VALUE, pageCacheSize / this.blockSize);
+        this.cache = new LongHashMap<BlockIo>(Math.min(cacheBlocks, 1024));
+        this.cacheSlots = new BlockIo[cacheBlocks];
+        this.cacheReferenced = new boolean[cacheBlocks];
 
         if (this.storage.isReadonly() && !readonly)
             throw new IllegalArgumentException("This type of storage is readonly, you should call readonly() on DBMaker");
@@ -104,7 +167,64 @@ final class RecordFile {
     }
 
     public RecordFile(String filename) throws IOException {
-        this(filename, false, false, null, null,false);
+        this(filename, false, false, null, null,false,false, Storage.DEFAULT_BLOCK_SIZE, DEFAULT_PAGE_CACHE_SIZE);
+    }
+
+    private static Storage openStorage(String fileName, boolean readonly, boolean transactionsDisabled,
+                                       boolean useRandomAccessFile, boolean compressed, int blockSize)
+            throws IOException {
+        if (blockSize < Storage.MIN_BLOCK_SIZE || blockSize > Storage.MAX_BLOCK_SIZE || Integer.bitCount(blockSize) != 1)
+            throw new IllegalArgumentException("Block size must be power of two between "
+                    + Storage.MIN_BLOCK_SIZE + " and " + Storage.MAX_BLOCK_SIZE + ", not " + blockSize);
+        if(fileName == null){
+            return new StorageMemory(transactionsDisabled, blockSize);
+        }else if (fileName.contains("!/"))
+            return new StorageZip(fileName, blockSize);
+        else if(isCompressed(fileName, compressed))
+            return new StorageDiskCompressed(fileName,readonly,transactionsDisabled, blockSize);
+        else if(useRandomAccessFile)
+            return new StorageDisk(fileName,readonly, blockSize);
+        else
+            return new StorageDiskMapped(fileName,readonly,transactionsDisabled, blockSize);
+    }
+
+    /**
+     * Detects format of existing file, so compressed file is not opened as new empty plain file and the other way.
+     */
+    private static boolean isCompressed(String fileName, boolean compressed) {
+        if (new File(fileName + StorageDiskCompressed.INDEX + ".0").length() > 0)
+            return true;
+        if (new File(fileName + StorageDiskMapped.DBR + ".0").length() > 0
+                || new File(fileName + StorageDiskMapped.IDR + ".0").length() > 0)
+            return false;
+        return compressed;
+    }
+
+    /**
+     * Reads block size from file header. Header fits into smallest block,
+     * so it can be read even if storage was opened with different block size.
+     * Encrypted header can be also decrypted, cipher is used in CBC mode.
+     *
+     * @return block size, or 0 if file is new
+     */
+    private static int readBlockSize(Storage storage, Cipher cipherOut) throws IOException {
+        ByteBuffer b = storage.read(0);
+        byte[] header = new byte[Storage.MIN_BLOCK_SIZE];
+        b.position(0);
+        b.get(header);
+        if (Utils.allZeros(header))
+            return 0;
+        if (cipherOut != null) try {
+            header = cipherOut.doFinal(header);
+        } catch (Exception e) {
+            throw new IOError(e);
+        }
+        ByteBuffer h = ByteBuffer.wrap(header);
+        if (h.getShort(Magic.FILE_HEADER_O_MAGIC) != Magic.FILE_HEADER)
+            return 0; //wrong password or corrupted header, it is reported by PageManager
+        int blockSize = (int) h.getLong(Magic.FILE_HEADER_O_BLOCK_SIZE);
+        //file from older version
+        return blockSize == 0 ? Storage.DEFAULT_BLOCK_SIZE : blockSize;
     }
 
 
@@ -138,7 +258,55 @@ final class RecordFile {
             throw new Error("double get for block " + blockid);
         }
 
-        //read node from file
+        node = cacheGet(blockid);
+        if (node == null)
+            node = readBlock(blockid);
+
+        inUse.put(blockid, node);
+        return node;
+    }
+
+    /**
+     * Gets a block for reading only. Unlike {@link #get(long)} block is not locked,
+     * so more threads may read the same block at once. Returned block must not be
+     * modified nor released.
+     * <p/>
+     * It may be called concurrently from multiple threads, but caller must make sure
+     * no other thread calls {@link #get(long)} or modifies file meanwhile.
+     *
+     * @param blockid The record number to retrieve.
+     */
+    BlockIo view(long blockid) throws IOException {
+        BlockIo node = inUse.get(blockid);
+        if (node != null)
+            return node;
+        node = inTxn.get(blockid);
+        if (node != null)
+            return node;
+        node = dirty.get(blockid);
+        if (node != null)
+            return node;
+
+        node = cacheGet(blockid);
+        if (node != null)
+            return node;
+
+        node = readBlock(blockid);
+        synchronized (cache) {
+            //other reader may have loaded the same block meanwhile
+            BlockIo cached = cache.get(blockid);
+            if (cached != null)
+                return cached;
+            cachePut(node);
+        }
+        return node;
+    }
+
+    /**
+     * Reads block from storage and decrypts it if needed
+     */
+    private BlockIo readBlock(long blockid) throws IOException {
+        BlockIo node;
         if (cipherOut == null) {
             node = new BlockIo(blockid,storage.read(blockid));
         } else {
@@ -148,22 +316,16 @@ final class RecordFile {
             if(b.hasArray()){
                 bb = b.array();
             }else{
-                bb = new byte[Storage.BLOCK_SIZE];
+                bb = new byte[blockSize];
                 b.position(0);
-                b.get(bb, 0, Storage.BLOCK_SIZE);
+                b.get(bb, 0, blockSize);
             }
-            if (!Utils.allZeros(bb)) try {
-                bb = cipherOut.doFinal(bb);
-                node = new BlockIo(blockid, ByteBuffer.wrap(bb));
-                } catch (Exception e) {
-                throw new IOError(e);
+            if (!Utils.allZeros(bb)) {
+                node = new BlockIo(blockid, ByteBuffer.wrap(Utils.decrypt(cipherOut, bb)));
             }else {
-                node = new BlockIo(blockid, ByteBuffer.wrap(RecordFile.CLEAN_DATA).asReadOnlyBuffer());
+                node = new BlockIo(blockid, cleanPage(blockSize));
             }
         }
-
-
-        inUse.put(blockid, node);
         node.setClean();
         return node;
     }
@@ -194,10 +356,13 @@ final class RecordFile {
         inUse.remove(key);
         if (block.isDirty()) {
             // System.out.println( "Dirty: " + key + block );
+            cacheRemove(block);
             dirty.put(key, block);
         } else {
             if (!transactionsDisabled && block.isInTransaction()) {
                 inTxn.put(key, block);
+            } else {
+                cachePut(block);
             }
         }
     }
@@ -210,6 +375,7 @@ final class RecordFile {
     void discard(BlockIo block) {
         long key = block.getBlockId();
         inUse.remove(key);
+        cacheRemove(block);
     }
 
     /**
@@ -244,17 +410,19 @@ final class RecordFile {
         }
         Arrays.sort(blockIds);
 
-        for (long blockid : blockIds) {
-            BlockIo node = dirty.get(blockid);
-
-            // System.out.println("node " + node + " map size now " + dirty.size());
-            if (transactionsDisabled) {
-                if(cipherIn !=null)                    
-                   storage.write(node.getBlockId(), ByteBuffer.wrap(Utils.encrypt(cipherIn, node.getData())));
-                else
-                   storage.write(node.getBlockId(),node.getData());
+        if (transactionsDisabled) {
+            //write directly into storage, consecutive blocks are written together
+            BlockIo[] nodes = new BlockIo[blockIds.length];
+            for (int i = 0; i < blockIds.length; i++)
+                nodes[i] = dirty.get(blockIds[i]);
+            synch(nodes);
+            for (BlockIo node : nodes) {
                 node.setClean();
-            } else {
+                cachePut(node);
+            }
+        } else {
+            for (long blockid : blockIds) {
+                BlockIo node = dirty.get(blockid);
                 txnMgr.add(node);
                 inTxn.put(node.getBlockId(), node);
             }
@@ -278,6 +446,7 @@ final class RecordFile {
         }
         //  System.out.println("rollback...");
         dirty.clear();
+        cacheClear();
 
         txnMgr.synchronizeLogFromDisk();
 
@@ -289,6 +458,22 @@ final class RecordFile {
         ;
     }
 
+    /**
+     * Discards data pages from <code>pageCount</code> onward from storage, see {@link Storage#truncate(long)}.
+     * Those pages must not be used and all changes must be committed. Transaction log is written into
+     * storage first, so discarded pages are not written there again.
+     */
+    void truncate(long pageCount) throws IOException {
+        if (!dirty.isEmpty())
+            throw new IllegalStateException("uncommited changes");
+        if (txnMgr != null)
+            txnMgr.synchronizeLog();
+        //cached pages may point into released part of storage
+        cacheClear();
+        storage.truncate(pageCount);
+        storage.sync();
+    }
+
     /**
      * Commits and closes file.
      */
@@ -358,13 +543,41 @@ final class RecordFile {
         }
     }
 
+    /**
+     * Synchs nodes sorted by block id to disk. Runs of consecutive blocks
+     * are passed to storage together, so it can write them with single call.
+     */
+    void synch(BlockIo[] nodes) throws IOException {
+        int start = 0;
+        for (int i = 1; i <= nodes.length; i++) {
+            if (i < nodes.length && nodes[i].getBlockId() == nodes[i - 1].getBlockId() + 1)
+                continue;
+
+            //end of run
+            if (i - start == 1) {
+                synch(nodes[start]);
+            } else {
+                ByteBuffer[] run = new ByteBuffer[i - start];
+                for (int j = 0; j < run.length; j++) {
+                    ByteBuffer data = nodes[start + j].getData();
+                    run[j] = cipherIn == null ? data : ByteBuffer.wrap(Utils.encrypt(cipherIn, data));
+                }
+                storage.write(nodes[start].getBlockId(), run);
+            }
+            start = i;
+        }
+    }
+
     /**
      * Releases a node from the transaction list, if it was sitting
      * there.
      */
     void releaseFromTransaction(BlockIo node)
             throws IOException {
-        inTxn.remove(node.getBlockId());
+        if (inTxn.remove(node.getBlockId()) != null) {
+            //block was just written into storage, so keep it as clean page
+            cachePut(node);
+        }
     }
 
     /**
@@ -377,4 +590,104 @@ final class RecordFile {
     public int getDirtyPageCount() {
         return dirty.size();
     }
+
+    /**
+     * Puts clean block into cache, possibly evicting other block.
+     * Blocks backed by mapped or direct buffers are cached as well, chunks of storage
+     * are never remapped, so their page slices stay valid until storage is closed.
+     */
+    private void cachePut(BlockIo block) {
+        if (cacheSlots.length == 0)
+            return;
+        synchronized (cache) {
+            cachePutLocked(block);
+        }
+    }
+
+    private void cachePutLocked(BlockIo block) {
+        if (block.cacheSlot != -1) {
+            cacheReferenced[block.cacheSlot] = true;
+            return;
+        }
+
+        //CLOCK: find empty slot or slot which was not referenced since last sweep
+        while (true) {
+            BlockIo old = cacheSlots[cacheHand];
+            if (old == null)
+                break;
+            if (!cacheReferenced[cacheHand]) {
+                cache.remove(old.getBlockId());
+                old.cacheSlot = -1;
+                break;
+            }
+            cacheReferenced[cacheHand] = false;
+            cacheHand = (cacheHand + 1) % cacheSlots.length;
+        }
+
+        cacheSlots[cacheHand] = block;
+        cacheReferenced[cacheHand] = false;
+        block.cacheSlot = cacheHand;
+        cache.put(block.getBlockId(), block);
+        cacheHand = (cacheHand + 1) % cacheSlots.length;
+    }
+
+    /**
+     * Removes block from cache, if it is there
+     */
+    private void cacheRemove(BlockIo block) {
+        synchronized (cache) {
+            if (block.cacheSlot == -1)
+                return;
+            cacheSlots[block.cacheSlot] = null;
+            cacheReferenced[block.cacheSlot] = false;
+            block.cacheSlot = -1;
+            cache.remove(block.getBlockId());
+        }
+    }
+
+    /**
+     * Returns block from cache and marks it as referenced, or null if block is not cached
+     */
+    private BlockIo cacheGet(long blockid) {
+        synchronized (cache) {
+            BlockIo node = cache.get(blockid);
+            if (node != null) {
+                cacheHits++;
+                cacheReferenced[node.cacheSlot] = true;
+            } else {
+                cacheMisses++;
+            }
+            return node;
+        }
+    }
+
+    private void cacheClear() {
+        synchronized (cache) {
+            for (int i = 0; i < cacheSlots.length; i++) {
+                if (cacheSlots[i] != null)
+                    cacheSlots[i].cacheSlot = -1;
+                cacheSlots[i] = null;
+                cacheReferenced[i] = false;
+            }
+            cache.clear();
+        }
+    }
+
+    /**
+     * Returns number of block reads served from clean page cache
+     */
+    long getCacheHits() {
+        synchronized (cache) {
+            return cacheHits;
+        }
+    }
+
+    /**
+     * Returns number of block reads which had to go to storage
+     */
+    long getCacheMisses() {
+        synchronized (cache) {
+            return cacheMisses;
+        }
+    }
 }
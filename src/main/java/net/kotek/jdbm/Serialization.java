@@ -856,6 +856,10 @@ class Serialization extends SerialClassInfo implements Serializer {
                 throw new InternalError("BPage header, wrong serializer used");
             case BTREE_NODE_NONLEAF:
                 throw new InternalError("BPage header, wrong serializer used");
+            case BTREE_NODE_LEAF_LINK:
+                throw new InternalError("BPage header, wrong serializer used");
+            case BTREE_NODE_NONLEAF_LINK:
+                throw new InternalError("BPage header, wrong serializer used");
             case JAVA_SERIALIZATION:
                 throw new InternalError("Wrong header, data were propably serialized with OutputStream, not with JDBM serialization");
 
@@ -135,6 +135,8 @@ final class SerializationHeader {
      * used for reference to already serialized object in object graph
      */
     static final int OBJECT_STACK = 166;
+    static final int BTREE_NODE_LEAF_LINK = 167;
+    static final int BTREE_NODE_NONLEAF_LINK = 168;
     static final int JAVA_SERIALIZATION = 172;
 
 
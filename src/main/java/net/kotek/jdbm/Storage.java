@@ -9,44 +9,68 @@ import java.nio.ByteBuffer;
 interface Storage {
 
     /**
-     * Bite shift used to calculate block size.
-     * If you want to modify block size, do it here.
-     *
-     *  1<<9 = 512
-     *  1<<10 = 1024
-     *  1<<11 = 2048
-     *  1<<12 = 4096
+     * the lenght of single block, if other size was not set in DBMaker.
+     * Block size is stored in file header, so existing file is always opened with its own block size.
      */
-    int BLOCK_SIZE_SHIFT = 12;
-    
-    /**
-     * the lenght of single block.
-     * <p>
-     *!!! DO NOT MODIFY THI DIRECTLY !!!
+    int DEFAULT_BLOCK_SIZE = 1<<12;
+
+    /** smallest supported block size, 512 bytes */
+    int MIN_BLOCK_SIZE = 1<<9;
 
+    /**
+     * largest supported block size, 64 KB.
+     * Offsets within block are stored as unsigned shorts, so it can not be bigger.
      */
-    int BLOCK_SIZE = 1<<BLOCK_SIZE_SHIFT;
+    int MAX_BLOCK_SIZE = 1<<16;
 
 
     /**
-     * use 'val & OFFSET_MASK' to quickly get offset within the block page;
+     * Returns size of pages in this storage
      */
-    long OFFSET_MASK = 0xFFFFFFFFFFFFFFFFL >>> (64-Storage.BLOCK_SIZE_SHIFT);
-
+    int getBlockSize();
 
+    /**
+     * Writes page. Storage must accept concurrent calls, data file is written by checkpoint thread.
+     */
     void write(long pageNumber, ByteBuffer data) throws IOException;
 
+    /**
+     * Writes run of consecutive pages, starting at <code>firstPageNumber</code>.
+     * This allows storage to write whole run with single call.
+     */
+    void write(long firstPageNumber, ByteBuffer[] data) throws IOException;
+
     ByteBuffer read(long pageNumber) throws IOException;
 
+    /**
+     * Discards data pages with number <code>pageCount</code> and larger, so their space is released.
+     * Translation pages are not affected. Discarded pages read as zeros, storage may keep some space
+     * after last page. Pages read before must not be used after this call.
+     */
+    void truncate(long pageCount) throws IOException;
+
     void forceClose() throws IOException;
 
     boolean isReadonly();
 
-    DataInputStream readTransactionLog();
+    /**
+     * Transaction log is split into two slots, so one can be written while other is checkpointed.
+     * Returns null if log in given slot does not exist or is empty.
+     */
+    DataInputStream readTransactionLog(int slot);
 
-    void deleteTransactionLog();
+    void deleteTransactionLog(int slot);
 
     void sync() throws IOException;
 
-    DataOutputStream openTransactionLog() throws IOException;
+    /**
+     * Opens transaction log in given slot, existing log in this slot is overwritten.
+     */
+    DataOutputStream openTransactionLog(int slot) throws IOException;
+
+    /**
+     * Forces data written into last opened transaction log to disk.
+     * It may be called from other thread, than the one which writes into log.
+     */
+    void syncTransactionLog() throws IOException;
 }
@@ -23,8 +23,14 @@ class StorageDisk implements Storage {
     private long lastPageNumber = Long.MIN_VALUE;
     private boolean readonly;
 
-    public StorageDisk(String fileName,boolean readonly) throws IOException {
+    private final int blockSize;
+    /** maximal number of pages in single file */
+    private final long pagesPerFile;
+
+    public StorageDisk(String fileName,boolean readonly, int blockSize) throws IOException {
         this.fileName = fileName;
+        this.blockSize = blockSize;
+        this.pagesPerFile = FILE_SIZE / blockSize;
         this.readonly = readonly;
         //make sure first file can be opened
         //lock it
@@ -41,7 +47,7 @@ class StorageDisk implements Storage {
 
     RandomAccessFile getRaf(long pageNumber) throws IOException {
 
-        int fileNumber = (int) (Math.abs(pageNumber)/PAGES_PER_FILE );
+        int fileNumber = (int) (Math.abs(pageNumber)/pagesPerFile );
 
         List<RandomAccessFile> c = pageNumber>=0 ? rafs : rafsTranslation;
 
@@ -61,29 +67,63 @@ class StorageDisk implements Storage {
     }
 
 
-    public void write(long pageNumber, ByteBuffer data) throws IOException {
-        if (data.capacity() != BLOCK_SIZE) throw new IllegalArgumentException();        
+    public synchronized void write(long pageNumber, ByteBuffer data) throws IOException {
+        if (data.capacity() != blockSize) throw new IllegalArgumentException();        
         
-        long offset = pageNumber * BLOCK_SIZE;
+        long offset = pageNumber * blockSize;
 
         RandomAccessFile file = getRaf(pageNumber);
 
 //        if (lastPageNumber + 1 != pageNumber)      //TODO cache position again, so seek is not necessary
-            file.seek(Math.abs(offset % (PAGES_PER_FILE*BLOCK_SIZE)));
+            file.seek(Math.abs(offset % (pagesPerFile*blockSize)));
 
         file.write(data.array());
         lastPageNumber = pageNumber;
     }
 
 
-    public ByteBuffer read(long pageNumber) throws IOException {
+    public synchronized void write(long firstPageNumber, ByteBuffer[] data) throws IOException {
+        if (firstPageNumber < 0) {
+            //translation pages are stored in reverse order, so run is not continuous in file
+            for (int i = 0; i < data.length; i++)
+                write(firstPageNumber + i, data[i]);
+            return;
+        }
+
+        int i = 0;
+        while (i < data.length) {
+            long pageNumber = firstPageNumber + i;
+            //single write can not cross file boundary
+            int count = (int) Math.min(data.length - i, pagesPerFile - pageNumber % pagesPerFile);
+
+            ByteBuffer[] run = new ByteBuffer[count];
+            for (int j = 0; j < count; j++) {
+                if (data[i + j].capacity() != blockSize) throw new IllegalArgumentException();
+                run[j] = data[i + j].duplicate();
+                run[j].clear();
+            }
+
+            //gathering write, whole run is written with single syscall
+            FileChannel channel = getRaf(pageNumber).getChannel();
+            channel.position((pageNumber % pagesPerFile) * blockSize);
+            long remaining = (long) count * blockSize;
+            while (remaining > 0)
+                remaining -= channel.write(run);
+
+            i += count;
+        }
+        lastPageNumber = firstPageNumber + data.length - 1;
+    }
+
+
+    public synchronized ByteBuffer read(long pageNumber) throws IOException {
         
-        long offset = pageNumber * BLOCK_SIZE;
-        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        long offset = pageNumber * blockSize;
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
         
         RandomAccessFile file = getRaf(pageNumber);
 //        if (lastPageNumber + 1 != pageNumber) //TODO cache position again, so seek is not necessary
-            file.seek(Math.abs(offset % (PAGES_PER_FILE*BLOCK_SIZE)));
+            file.seek(Math.abs(offset % (pagesPerFile*blockSize)));
         int remaining = buffer.limit();
         int pos = 0;
         while (remaining > 0) {
@@ -102,27 +142,54 @@ class StorageDisk implements Storage {
 
     static final String transaction_log_file_extension = ".t";
 
+    /**
+     * Returns name of transaction log file in given slot
+     */
+    static String transactionLogName(String fileName, int slot) {
+        return fileName + transaction_log_file_extension + (slot == 0 ? "" : String.valueOf(slot));
+    }
 
-    public DataOutputStream openTransactionLog() throws IOException {
-        String logName = fileName + transaction_log_file_extension;
-        final FileOutputStream fileOut = new FileOutputStream(logName);
-        return new DataOutputStream(new BufferedOutputStream(fileOut)) {
 
-            //default implementation of flush on FileOutputStream does nothing,
-            //so we use little workaround to make sure that data were really flushed
-            public void flush() throws IOException {
-                super.flush();
-                fileOut.flush();
-                fileOut.getFD().sync();
-            }
-        };
+    public DataOutputStream openTransactionLog(int slot) throws IOException {
+        String logName = transactionLogName(fileName, slot);
+        transLogOut = new FileOutputStream(logName);
+        return new DataOutputStream(new BufferedOutputStream(transLogOut));
+    }
+
+    private volatile FileOutputStream transLogOut;
+
+    public void syncTransactionLog() throws IOException {
+        //flush on FileOutputStream does nothing, so force data to disk using channel
+        FileOutputStream out = transLogOut;
+        if (out != null && out.getChannel().isOpen())
+            out.getChannel().force(false);
     }
 
 
+    public synchronized void truncate(long pageCount) throws IOException {
+        int lastFile = (int) (pageCount / pagesPerFile);
+        //files after last one are deleted, including those which were not opened yet
+        for (int fileNumber = lastFile + 1; ; fileNumber++) {
+            if (fileNumber < rafs.size() && rafs.get(fileNumber) != null) {
+                rafs.get(fileNumber).close();
+                rafs.set(fileNumber, null);
+            }
+            File f = new File(fileName + DBR + "." + fileNumber);
+            if (!f.exists())
+                break;
+            if (!f.delete())
+                throw new IOException("Could not delete file: " + f);
+        }
+        long size = (pageCount % pagesPerFile) * blockSize;
+        RandomAccessFile raf = getRaf(pageCount);
+        if (raf.length() > size)
+            raf.setLength(size);
+    }
+
     /**
      * Synchronizes the file.
      */
-    public void sync() throws IOException {
+    public synchronized void sync() throws IOException {
         for (RandomAccessFile file : rafs)
             if (file != null)
                 file.getFD().sync();
@@ -131,7 +198,7 @@ class StorageDisk implements Storage {
                 file.getFD().sync();
     }
 
-    public void forceClose() throws IOException {
+    public synchronized void forceClose() throws IOException {
         for (RandomAccessFile f : rafs) {
             if (f != null)
                 f.close();
@@ -145,9 +212,20 @@ class StorageDisk implements Storage {
     }
 
 
-    public DataInputStream readTransactionLog() {
+    public DataInputStream readTransactionLog(int slot) {
+        return readTransactionLog(fileName, slot);
+    }
 
-        File logFile = new File(fileName + transaction_log_file_extension);
+    public void deleteTransactionLog(int slot) {
+        deleteTransactionLog(fileName, slot);
+    }
+
+    /**
+     * Opens transaction log in given slot and checks its header, returns null if it is empty or does not exist
+     */
+    static DataInputStream readTransactionLog(String fileName, int slot) {
+
+        File logFile = new File(transactionLogName(fileName, slot));
         if (!logFile.exists())
             return null;
         if (logFile.length() == 0) {
@@ -174,8 +252,8 @@ class StorageDisk implements Storage {
         return ois;
     }
 
-    public void deleteTransactionLog() {
-        File logFile = new File(fileName + transaction_log_file_extension);
+    static void deleteTransactionLog(String fileName, int slot) {
+        File logFile = new File(transactionLogName(fileName, slot));
         if (logFile.exists())
             logFile.delete();
     }
@@ -183,4 +261,8 @@ class StorageDisk implements Storage {
     public boolean isReadonly() {
         return false;
     }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
 }
@@ -0,0 +1,367 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package net.kotek.jdbm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.BitSet;
+
+/**
+ * Disk storage which compresses each page with {@link LZFCodec}.
+ * <p/>
+ * Compressed pages have variable size and are stored in data file in units of {@link #UNIT_SIZE} bytes.
+ * Index file starts with marker and block size, followed by location and compressed size of each page.
+ * Existing file is always opened with its own block size.
+ * <p/>
+ * There is single data file, it is not mapped into memory, so it is not split into segments.
+ * Units are addressed by <code>int</code>, so data file can grow up to 256GB. Page which contains only zeros
+ * is not stored at all. Free space map is rebuilt from index when storage is opened.
+ * <p/>
+ * Page is never overwritten in place, new version goes into free space and index is updated.
+ * Index is written to disk only by {@link #sync()}, after data file was synced. Space released
+ * by old page versions is reused only after that, so index on disk always points to valid data.
+ * Pages written after last sync are restored from transaction log after crash.
+ */
+class StorageDiskCompressed implements Storage {
+
+    static final String DATA = ".z";
+
+    static final String INDEX = ".zi";
+
+    /** data file is allocated in units of this size */
+    static final int UNIT_SIZE = 128;
+
+    /** index entry keeps compressed length in lower bits and unit number in upper bits */
+    private static final int LENGTH_BITS = 20;
+
+    private final String fileName;
+    private final boolean readonly;
+    private final boolean transactionsDisabled;
+
+    private RandomAccessFile data;
+    private RandomAccessFile index;
+
+    /**
+     * Index entries of pages. Positive page <code>p</code> is at position <code>2p</code>,
+     * negative page at <code>2|p|-1</code>. Zero means page is not stored.
+     */
+    private long[] entries = new long[1024];
+
+    /** positions of index entries modified since last sync */
+    private final BitSet dirtyEntries = new BitSet();
+
+    /** units used in data file */
+    private final BitSet usedUnits = new BitSet();
+
+    /** units released since last sync, those are still referenced by index on disk */
+    private final BitSet releasedUnits = new BitSet();
+
+    /** all units before this one are used */
+    private int firstFreeUnit = 0;
+
+    /** first long in index file, identifies compressed storage */
+    static final long INDEX_MARKER = 0x4A44424D5A495030L; //JDBMZIP0
+
+    /** index entries start after marker and block size */
+    private static final int INDEX_HEADER_SIZE = 16;
+
+    /** index entries are kept in array, so their number is limited */
+    private static final long MAX_ENTRIES = Integer.MAX_VALUE - 8;
+
+    private final int blockSize;
+
+    private final LZFCodec lzf = new LZFCodec();
+    private final byte[] compressBuf;
+
+
+    StorageDiskCompressed(String fileName, boolean readonly, boolean transactionsDisabled, int blockSize) throws IOException {
+        this.fileName = fileName;
+        this.readonly = readonly;
+        this.transactionsDisabled = transactionsDisabled;
+        //single data file, named so it is renamed together with other files by defrag
+        data = new RandomAccessFile(fileName + DATA + ".0", readonly ? "r" : "rw");
+        index = new RandomAccessFile(fileName + INDEX + ".0", readonly ? "r" : "rw");
+        //lock it
+        try {
+            if (!readonly)
+                data.getChannel().tryLock();
+        } catch (IOException e) {
+            throw new IOException("Could not lock DB file: " + fileName, e);
+        } catch (OverlappingFileLockException e) {
+            throw new IOException("Could not lock DB file: " + fileName, e);
+        }
+
+        try {
+            blockSize = readHeader(blockSize);
+        } catch (IOException e) {
+            data.close();
+            index.close();
+            throw e;
+        }
+        this.blockSize = blockSize;
+        compressBuf = new byte[LZFCodec.maxCompressedLength(blockSize)];
+
+        //load index and rebuild free space map
+        long count = Math.max(0, index.length() - INDEX_HEADER_SIZE) / 8;
+        if (count > MAX_ENTRIES)
+            throw new IOException("Index of compressed DB file is too large: " + fileName + INDEX + ".0");
+        entries = new long[(int) Math.max(1024, count)];
+        //read in parts, whole index may not fit into single array
+        byte[] buf = new byte[64 * 1024];
+        ByteBuffer indexBuf = ByteBuffer.wrap(buf);
+        for (int i = 0; i < count; ) {
+            int n = (int) Math.min(buf.length / 8, count - i);
+            index.readFully(buf, 0, n * 8);
+            for (int j = 0; j < n; j++, i++) {
+                long entry = indexBuf.getLong(j * 8);
+                entries[i] = entry;
+                if (entry != 0)
+                    usedUnits.set(entryUnit(entry), entryUnit(entry) + units(entryLength(entry)));
+            }
+        }
+        firstFreeUnit = usedUnits.nextClearBit(0);
+    }
+
+    /**
+     * Checks marker and returns block size of existing index, or writes header into new index
+     */
+    private int readHeader(int blockSize) throws IOException {
+        if (index.length() >= INDEX_HEADER_SIZE) {
+            if (index.readLong() != INDEX_MARKER)
+                throw new IOException("File is not compressed DB file: " + fileName + INDEX + ".0");
+            return (int) index.readLong();
+        } else if (index.length() != 0) {
+            throw new IOException("Index of compressed DB file is truncated: " + fileName + INDEX + ".0");
+        } else if (!readonly) {
+            index.writeLong(INDEX_MARKER);
+            index.writeLong(blockSize);
+        }
+        return blockSize;
+    }
+
+    private static long entryPosition(long pageNumber) {
+        return pageNumber >= 0 ? 2 * pageNumber : -2 * pageNumber - 1;
+    }
+
+    private static int entryUnit(long entry) {
+        return (int) (entry >>> LENGTH_BITS);
+    }
+
+    private static int entryLength(long entry) {
+        return (int) (entry & ((1 << LENGTH_BITS) - 1));
+    }
+
+    private static int units(int length) {
+        return (length + UNIT_SIZE - 1) / UNIT_SIZE;
+    }
+
+    private long getEntry(long pageNumber) {
+        long pos = entryPosition(pageNumber);
+        return pos < entries.length ? entries[(int) pos] : 0;
+    }
+
+    private void setEntry(long pageNumber, long entry) throws IOException {
+        long longPos = entryPosition(pageNumber);
+        if (longPos >= MAX_ENTRIES)
+            throw new IOException("Page number is too large for compressed storage: " + pageNumber);
+        int pos = (int) longPos;
+        if (pos >= entries.length) {
+            long[] entries2 = new long[(int) Math.min(MAX_ENTRIES, Math.max(entries.length * 2L, pos + 1L))];
+            System.arraycopy(entries, 0, entries2, 0, entries.length);
+            entries = entries2;
+        }
+        entries[pos] = entry;
+        dirtyEntries.set(pos);
+    }
+
+    /**
+     * Finds first free run of units large enough and marks it as used
+     */
+    private int allocate(int count) throws IOException {
+        int start = firstFreeUnit;
+        while (true) {
+            int end = usedUnits.nextSetBit(start);
+            if (end == -1 || end - start >= count)
+                break;
+            start = usedUnits.nextClearBit(end);
+        }
+        if (start < 0 || start > Integer.MAX_VALUE - count)
+            throw new IOException("Compressed storage is full: " + fileName);
+        usedUnits.set(start, start + count);
+        if (start == firstFreeUnit)
+            firstFreeUnit = usedUnits.nextClearBit(start);
+        return start;
+    }
+
+
+    public synchronized void write(long pageNumber, ByteBuffer data) throws IOException {
+        if (data.capacity() != blockSize) throw new IllegalArgumentException();
+
+        byte[] page;
+        if (data.hasArray()) {
+            page = data.array();
+        } else {
+            page = new byte[blockSize];
+            data.duplicate().get(page);
+        }
+        long oldEntry = getEntry(pageNumber);
+
+        long newEntry = 0;
+        if (!Utils.allZeros(page)) {
+            int length = lzf.compress(page, blockSize, compressBuf);
+            byte[] stored = compressBuf;
+            if (length >= blockSize) {
+                //incompressible page is stored as it is
+                length = blockSize;
+                stored = page;
+            }
+            int unit = allocate(units(length));
+            this.data.seek((long) unit * UNIT_SIZE);
+            this.data.write(stored, 0, length);
+            newEntry = ((long) unit << LENGTH_BITS) | length;
+        }
+
+        release(oldEntry);
+        setEntry(pageNumber, newEntry);
+    }
+
+    /**
+     * Releases units used by old version of page
+     */
+    private void release(long oldEntry) {
+        if (oldEntry == 0)
+            return;
+        int unit = entryUnit(oldEntry);
+        int count = units(entryLength(oldEntry));
+        if (transactionsDisabled) {
+            //there is no log to recover from, so space can be reused immediately
+            usedUnits.clear(unit, unit + count);
+            firstFreeUnit = Math.min(firstFreeUnit, unit);
+        } else {
+            //old version is still referenced from index on disk, release it after sync
+            releasedUnits.set(unit, unit + count);
+        }
+    }
+
+    public synchronized void write(long firstPageNumber, ByteBuffer[] data) throws IOException {
+        //pages have variable size, so there is no run to write at once
+        for (int i = 0; i < data.length; i++)
+            write(firstPageNumber + i, data[i]);
+    }
+
+    /**
+     * Pages are removed from index, data file is shrunk on next sync if its end is not used
+     */
+    public synchronized void truncate(long pageCount) throws IOException {
+        for (long page = pageCount; entryPosition(page) < entries.length; page++) {
+            long entry = getEntry(page);
+            if (entry != 0) {
+                release(entry);
+                setEntry(page, 0);
+            }
+        }
+    }
+
+    public synchronized ByteBuffer read(long pageNumber) throws IOException {
+        long entry = getEntry(pageNumber);
+        if (entry == 0) {
+            //page does not exist, return empty data
+            return RecordFile.cleanPage(blockSize);
+        }
+
+        int length = entryLength(entry);
+        data.seek((long) entryUnit(entry) * UNIT_SIZE);
+        byte[] page = new byte[blockSize];
+        if (length == blockSize) {
+            data.readFully(page);
+        } else {
+            data.readFully(compressBuf, 0, length);
+            LZFCodec.expand(compressBuf, 0, page, blockSize);
+        }
+        return ByteBuffer.wrap(page);
+    }
+
+    /**
+     * Writes modified index entries into index file
+     */
+    private void writeIndex() throws IOException {
+        for (int pos = dirtyEntries.nextSetBit(0); pos >= 0; pos = dirtyEntries.nextSetBit(pos + 1)) {
+            index.seek(INDEX_HEADER_SIZE + pos * 8L);
+            index.writeLong(entries[pos]);
+        }
+        dirtyEntries.clear();
+    }
+
+    public synchronized void sync() throws IOException {
+        //data must be on disk before index points to it
+        data.getFD().sync();
+        writeIndex();
+        index.getFD().sync();
+
+        //old page versions are not referenced anymore
+        usedUnits.andNot(releasedUnits);
+        int firstReleased = releasedUnits.nextSetBit(0);
+        if (firstReleased >= 0 && firstReleased < firstFreeUnit)
+            firstFreeUnit = firstReleased;
+        releasedUnits.clear();
+
+        //release unused space at end of data file
+        long used = (long) usedUnits.length() * UNIT_SIZE;
+        if (data.length() > used)
+            data.setLength(used);
+    }
+
+    public synchronized void forceClose() throws IOException {
+        if (!readonly)
+            writeIndex();
+        data.close();
+        index.close();
+        data = null;
+        index = null;
+    }
+
+    public boolean isReadonly() {
+        return readonly;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+
+    public DataOutputStream openTransactionLog(int slot) throws IOException {
+        String logName = StorageDisk.transactionLogName(fileName, slot);
+        transLogOut = new FileOutputStream(logName);
+        return new DataOutputStream(new BufferedOutputStream(transLogOut));
+    }
+
+    private volatile FileOutputStream transLogOut;
+
+    public void syncTransactionLog() throws IOException {
+        //flush on FileOutputStream does nothing, so force data to disk using channel
+        FileOutputStream out = transLogOut;
+        if (out != null && out.getChannel().isOpen())
+            out.getChannel().force(false);
+    }
+
+    public DataInputStream readTransactionLog(int slot) {
+        return StorageDisk.readTransactionLog(fileName, slot);
+    }
+
+    public void deleteTransactionLog(int slot) {
+        StorageDisk.deleteTransactionLog(fileName, slot);
+    }
+}
@@ -8,7 +8,6 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.OverlappingFileLockException;
 import java.util.ArrayList;
-import java.util.IdentityHashMap;
 import java.util.List;
 
 /**
@@ -23,30 +22,61 @@ class StorageDiskMapped implements Storage {
 
 
     /**
-     * Maximal number of pages in single file.
-     * Calculated so that each file will have 1 GB
+     * Maximal size of single file, 1 GB
      */
-    final static long PAGES_PER_FILE = (1024*1024*1024)>>>Storage.BLOCK_SIZE_SHIFT;
+    final static long FILE_SIZE = 1024*1024*1024;
 
 
 
-    private ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
-    private ArrayList<FileChannel> channelsTranslation = new ArrayList<FileChannel>();
-    private IdentityHashMap<FileChannel, MappedByteBuffer> buffers = new IdentityHashMap<FileChannel, MappedByteBuffer>();
+    /**
+     * Files are mapped in chunks of this size. Chunk is mapped once with its full size, file grows to end of chunk
+     * when chunk is mapped, unwritten part of file is sparse on most file systems. Chunk is never mapped again,
+     * so page slices returned by read() stay valid until storage is closed. Chunks are large, so number of mappings
+     * stays well below OS limit (vm.max_map_count on Linux) even for stores with terabytes of data.
+     */
+    final static int CHUNK_SIZE = 256 * 1024 * 1024;
+
+    final static int CHUNKS_PER_FILE = (int) (FILE_SIZE / CHUNK_SIZE);
+
+    /**
+     * Single file mapped in chunks
+     */
+    private static final class MappedFile {
+        final FileChannel channel;
+        final MappedByteBuffer[] chunks = new MappedByteBuffer[CHUNKS_PER_FILE];
+        /** chunks written since last sync */
+        final boolean[] dirtyChunks = new boolean[CHUNKS_PER_FILE];
+        /** current size of file */
+        long size;
+
+        MappedFile(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+    }
+
+    private ArrayList<MappedFile> files = new ArrayList<MappedFile>();
+    private ArrayList<MappedFile> filesTranslation = new ArrayList<MappedFile>();
 
     private String fileName;
     private boolean transactionsDisabled;
     private boolean readonly;
 
+    private final int blockSize;
+    /** maximal number of pages in single file */
+    private final long pagesPerFile;
 
-    public StorageDiskMapped(String fileName, boolean readonly, boolean transactionsDisabled) throws IOException {
+
+    public StorageDiskMapped(String fileName, boolean readonly, boolean transactionsDisabled, int blockSize) throws IOException {
         this.fileName = fileName;
+        this.blockSize = blockSize;
+        this.pagesPerFile = FILE_SIZE / blockSize;
         this.transactionsDisabled = transactionsDisabled;
         this.readonly = readonly;
         //make sure first file can be opened
         //lock it
         try {
-            getChannel(0).lock();
+            getFile(0).channel.lock();
         } catch (IOException e) {
             throw new IOException("Could not lock DB file: " + fileName, e);
         } catch (OverlappingFileLockException e) {
@@ -55,65 +85,112 @@ class StorageDiskMapped implements Storage {
 
     }
 
-    private FileChannel getChannel(long pageNumber) throws IOException {
-        int fileNumber = (int) (Math.abs(pageNumber)/PAGES_PER_FILE );
+    private MappedFile getFile(long pageNumber) throws IOException {
+        int fileNumber = (int) (Math.abs(pageNumber)/pagesPerFile );
 
-        List<FileChannel> c = pageNumber>=0 ? channels : channelsTranslation;
+        List<MappedFile> c = pageNumber>=0 ? files : filesTranslation;
 
         //increase capacity of array lists if needed
         for (int i = c.size(); i <= fileNumber; i++) {
             c.add(null);
         }
 
-        FileChannel ret = c.get(fileNumber);
+        MappedFile ret = c.get(fileNumber);
         if (ret == null) {
             String name = fileName + (pageNumber>=0 ? DBR : IDR) + "." + fileNumber;
-            ret = new RandomAccessFile(name, "rw").getChannel();
+            ret = new MappedFile(new RandomAccessFile(name, "rw").getChannel());
             c.set(fileNumber, ret);
-            buffers.put(ret, ret.map(FileChannel.MapMode.READ_WRITE, 0, ret.size()));
         }
         return ret;
     }
-    
 
-    public void write(long pageNumber, ByteBuffer data) throws IOException {
+    /**
+     * Returns chunk which contains page at given offset, maps it if needed.
+     * Mapping expands file to end of chunk. Readonly file does not grow, so its last chunk is mapped
+     * only up to end of file.
+     */
+    private MappedByteBuffer getChunk(MappedFile f, int offsetInFile) throws IOException {
+        int index = offsetInFile / CHUNK_SIZE;
+        MappedByteBuffer chunk = f.chunks[index];
+        if (chunk != null)
+            return chunk;
+
+        long chunkStart = (long) index * CHUNK_SIZE;
+        long chunkSize = readonly ? Math.min(CHUNK_SIZE, f.size - chunkStart) : CHUNK_SIZE;
+        chunk = f.channel.map(readonly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+                chunkStart, chunkSize);
+        f.size = Math.max(f.size, chunkStart + chunkSize);
+        f.chunks[index] = chunk;
+        return chunk;
+    }
+
+    /**
+     * Returns buffer for given page, its position is set to start of the page
+     */
+    private ByteBuffer pageBuffer(MappedFile f, int offsetInFile) throws IOException {
+        ByteBuffer b = getChunk(f, offsetInFile).duplicate();
+        b.position(offsetInFile % CHUNK_SIZE);
+        b.limit(b.position() + blockSize);
+        return b;
+    }
+
+
+    public synchronized void write(long pageNumber, ByteBuffer data) throws IOException {
+        MappedFile f = getFile(pageNumber);
+        int offsetInFile = (int) ((Math.abs(pageNumber) % pagesPerFile)*blockSize);
+        f.dirtyChunks[offsetInFile / CHUNK_SIZE] = true;
+
         if(transactionsDisabled && data.isDirect()){
             //if transactions are disabled and this buffer is direct,
             //changes written into buffer are directly reflected in file.
             //so there is no need to write buffer second time
             return;
         }
-        
-        FileChannel f = getChannel(pageNumber);
-        int offsetInFile = (int) ((Math.abs(pageNumber) % PAGES_PER_FILE)*BLOCK_SIZE);
-        MappedByteBuffer b = buffers.get(f);
-        if( b.limit()<=offsetInFile){
 
-            //remapping buffer for each newly added page would be slow,
-            //so allocate new size in chunks
-            int increment = Math.min(BLOCK_SIZE * 1024,offsetInFile/10);
-            increment  -= increment%BLOCK_SIZE;
-
-            long newFileSize = offsetInFile+BLOCK_SIZE + increment;
-            newFileSize = Math.min(PAGES_PER_FILE * BLOCK_SIZE, newFileSize);
+        //write into buffer
+        data.rewind();
+        pageBuffer(f, offsetInFile).put(data);
+    }
 
-            //expand file size
-            f.position(newFileSize - 1);
-            f.write(ByteBuffer.allocate(1));
-            //unmap old buffer
-            unmapBuffer(b);
-            //remap buffer
-            b = f.map(FileChannel.MapMode.READ_WRITE, 0,newFileSize);
-            buffers.put(f, b);
+    public synchronized void write(long firstPageNumber, ByteBuffer[] data) throws IOException {
+        if (firstPageNumber < 0) {
+            //translation pages are stored in reverse order, so run is not continuous in file
+            for (int i = 0; i < data.length; i++)
+                write(firstPageNumber + i, data[i]);
+            return;
         }
 
-        //write into buffer
-        b.position(offsetInFile);
-        data.rewind();
-        b.put(data);
+        MappedFile f = null;
+        ByteBuffer chunk = null;
+        for (int i = 0; i < data.length; i++) {
+            long pageNumber = firstPageNumber + i;
+            int offsetInFile = (int) ((pageNumber % pagesPerFile) * blockSize);
+            if (f == null || offsetInFile == 0)
+                f = getFile(pageNumber);
+            if (chunk == null || offsetInFile % CHUNK_SIZE == 0) {
+                //run continues in next chunk
+                chunk = getChunk(f, offsetInFile).duplicate();
+                chunk.position(offsetInFile % CHUNK_SIZE);
+                f.dirtyChunks[offsetInFile / CHUNK_SIZE] = true;
+            }
+
+            ByteBuffer page = data[i];
+            if (transactionsDisabled && page.isDirect()) {
+                //already in file, see write(long, ByteBuffer)
+                chunk.position(chunk.position() + blockSize);
+                continue;
+            }
+            page = page.duplicate();
+            page.clear();
+            chunk.put(page);
+        }
     }
 
-    private void unmapBuffer(MappedByteBuffer b) {
+    /**
+     * Releases memory of direct or mapped buffer without waiting for GC.
+     * Buffer must not be used after this call.
+     */
+    static void unmapBuffer(ByteBuffer b) {
         if(b!=null){
             Cleaner cleaner = ((sun.nio.ch.DirectBuffer) b).cleaner();
             if(cleaner!=null)
@@ -121,24 +198,26 @@ class StorageDiskMapped implements Storage {
         }
     }
 
-    public ByteBuffer read(long pageNumber) throws IOException {
-        FileChannel f = getChannel(pageNumber);
-        int offsetInFile = (int) ((Math.abs(pageNumber) % PAGES_PER_FILE)*BLOCK_SIZE);
-        MappedByteBuffer b = buffers.get(f);
-        
-        if(b == null){ //not mapped yet
-            b = f.map(FileChannel.MapMode.READ_WRITE, 0, f.size());
-        }
-        
-        //check buffers size
-        if(b.limit()<=offsetInFile){
+    public synchronized ByteBuffer read(long pageNumber) throws IOException {
+        MappedFile f = getFile(pageNumber);
+        int offsetInFile = (int) ((Math.abs(pageNumber) % pagesPerFile)*blockSize);
+
+        //check file size
+        if(f.size<=offsetInFile){
                 //file is smaller, return empty data
-                return ByteBuffer.wrap(RecordFile.CLEAN_DATA).asReadOnlyBuffer();
+                return RecordFile.cleanPage(blockSize);
             }
+        if (f.size < offsetInFile + blockSize) {
+            //readonly file is not expanded, so its end may cut page, rest of page is zeros
+            ByteBuffer b = getChunk(f, offsetInFile).duplicate();
+            b.position(offsetInFile % CHUNK_SIZE);
+            ByteBuffer ret = ByteBuffer.allocate(blockSize);
+            ret.put(b);
+            ret.clear();
+            return ret.asReadOnlyBuffer();
+        }
 
-        b.position(offsetInFile);
-        ByteBuffer ret = b.slice();
-        ret.limit(BLOCK_SIZE);
+        ByteBuffer ret = pageBuffer(f, offsetInFile).slice();
         if(!transactionsDisabled||readonly){
             // changes written into buffer will be directly written into file
             // so we need to protect buffer from modifications
@@ -147,84 +226,131 @@ class StorageDiskMapped implements Storage {
         return ret;
     }
 
-    public void forceClose() throws IOException {
-        for(FileChannel f: channels){
-            if(f==null) continue;
-            f.close();
-            unmapBuffer(buffers.get(f));
-        }
-        for(FileChannel f: channelsTranslation){
-            if(f==null) continue;
-            f.close();
-            unmapBuffer(buffers.get(f));
+    /**
+     * Chunks after last page are unmapped and released from file, files after last one are deleted.
+     * Chunk which contains last page stays mapped, page slices in it may still be used.
+     */
+    public synchronized void truncate(long pageCount) throws IOException {
+        int lastFile = (int) (pageCount / pagesPerFile);
+        for (int fileNumber = lastFile + 1; ; fileNumber++) {
+            if (fileNumber < files.size() && files.get(fileNumber) != null) {
+                MappedFile f = files.get(fileNumber);
+                f.channel.close();
+                for (MappedByteBuffer b : f.chunks)
+                    unmapBuffer(b);
+                files.set(fileNumber, null);
+            }
+            File f = new File(fileName + DBR + "." + fileNumber);
+            if (!f.exists())
+                break;
+            if (!f.delete())
+                throw new IOException("Could not delete file: " + f);
         }
 
-        channels = null;
-        channelsTranslation = null;
-        buffers = null;
+        MappedFile f = getFile(pageCount);
+        long end = (pageCount % pagesPerFile) * blockSize;
+        int keptChunks = (int) ((end + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        for (int i = keptChunks; i < CHUNKS_PER_FILE; i++) {
+            unmapBuffer(f.chunks[i]);
+            f.chunks[i] = null;
+            f.dirtyChunks[i] = false;
+        }
+        //last chunk stays mapped, discarded pages in it must read as zeros
+        if (end % CHUNK_SIZE != 0 && f.chunks[keptChunks - 1] != null) {
+            clearFrom(f.chunks[keptChunks - 1], (int) (end % CHUNK_SIZE));
+            f.dirtyChunks[keptChunks - 1] = true;
+        }
+        long size = Math.min(f.size, (long) keptChunks * CHUNK_SIZE);
+        if (f.size > size) {
+            f.channel.truncate(size);
+            f.size = size;
+        }
     }
 
-    public void sync() throws IOException {
-        for(MappedByteBuffer b: buffers.values()){
-            b.force();
+    /**
+     * Zeros chunk from given position. Only non-zero pages are written, so unused part of sparse file is not allocated.
+     */
+    private void clearFrom(MappedByteBuffer chunk, int pos) {
+        for (int page = pos; page < chunk.limit(); page += blockSize) {
+            int pageEnd = Math.min(page + blockSize, chunk.limit());
+            for (int i = page; i < pageEnd; i++) {
+                if (chunk.get(i) != 0) {
+                    for (int j = page; j < pageEnd; j++)
+                        chunk.put(j, (byte) 0);
+                    break;
+                }
+            }
         }
     }
 
+    public synchronized void forceClose() throws IOException {
+        for (MappedFile f : openFiles()) {
+            f.channel.close();
+            for (MappedByteBuffer b : f.chunks)
+                unmapBuffer(b);
+        }
 
-    public DataOutputStream openTransactionLog() throws IOException {
-        String logName = fileName + StorageDisk.transaction_log_file_extension;
-        final FileOutputStream fileOut = new FileOutputStream(logName);
-        return new DataOutputStream(new BufferedOutputStream(fileOut)) {
+        files = null;
+        filesTranslation = null;
+    }
 
-            //default implementation of flush on FileOutputStream does nothing,
-            //so we use little workaround to make sure that data were really flushed
-            public void flush() throws IOException {
-                super.flush();
-                fileOut.flush();
-                fileOut.getFD().sync();
+    /**
+     * Forces only chunks which were written since last sync
+     */
+    public synchronized void sync() throws IOException {
+        for (MappedFile f : openFiles()) {
+            for (int i = 0; i < CHUNKS_PER_FILE; i++) {
+                if (f.dirtyChunks[i] && f.chunks[i] != null)
+                    f.chunks[i].force();
+                f.dirtyChunks[i] = false;
             }
-        };
+        }
     }
 
+    /**
+     * Returns data and translation files which are open
+     */
+    private List<MappedFile> openFiles() {
+        List<MappedFile> ret = new ArrayList<MappedFile>();
+        for (MappedFile f : files)
+            if (f != null) ret.add(f);
+        for (MappedFile f : filesTranslation)
+            if (f != null) ret.add(f);
+        return ret;
+    }
 
-    public DataInputStream readTransactionLog() {
 
-        File logFile = new File(fileName + StorageDisk.transaction_log_file_extension);
-        if (!logFile.exists())
-            return null;
-        if (logFile.length() == 0) {
-            logFile.delete();
-            return null;
-        }
+    public DataOutputStream openTransactionLog(int slot) throws IOException {
+        String logName = StorageDisk.transactionLogName(fileName, slot);
+        transLogOut = new FileOutputStream(logName);
+        return new DataOutputStream(new BufferedOutputStream(transLogOut));
+    }
 
-        DataInputStream ois = null;
-        try {
-            ois = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
-        } catch (FileNotFoundException e) {
-            //file should exists, we check for its presents just a miliseconds yearlier, anyway move on
-            return null;
-        }
+    private volatile FileOutputStream transLogOut;
 
-        try {
-            if (ois.readShort() != Magic.LOGFILE_HEADER)
-                throw new Error("Bad magic on log file");
-        } catch (IOException e) {
-            // corrupted/empty logfile
-            logFile.delete();
-            return null;
-        }
-        return ois;
+    public void syncTransactionLog() throws IOException {
+        //flush on FileOutputStream does nothing, so force data to disk using channel
+        FileOutputStream out = transLogOut;
+        if (out != null && out.getChannel().isOpen())
+            out.getChannel().force(false);
+    }
+
+
+    public DataInputStream readTransactionLog(int slot) {
+        return StorageDisk.readTransactionLog(fileName, slot);
     }
 
-    public void deleteTransactionLog() {
-        File logFile = new File(fileName + StorageDisk.transaction_log_file_extension);
-        if (logFile.exists())
-            logFile.delete();
+    public void deleteTransactionLog(int slot) {
+        StorageDisk.deleteTransactionLog(fileName, slot);
     }
 
     public boolean isReadonly() {
         return readonly;
     }
 
+    public int getBlockSize() {
+        return blockSize;
+    }
+
 
 }
@@ -7,25 +7,117 @@ import java.util.ArrayList;
 /**
  * Storage which keeps all data in memory.
  * Data are lost after storage is closed.
+ * <p/>
+ * Pages are stored outside of Java heap, in large direct buffers (slabs),
+ * so big in-memory store does not slow down garbage collection.
+ * Page numbers are mapped to slots in slabs by primitive page table.
+ * Page which contains only zeros is not stored, its slot is reused by other pages.
  */
 class StorageMemory implements Storage {
 
-    private LongHashMap<byte[]> pages = new LongHashMap<byte[]>();
+    /** size of single slab, 16MB */
+    static final int SLAB_SIZE = 16 * 1024 * 1024;
+
+    private final int blockSize;
+    /** number of pages in single slab */
+    private final int pagesPerSlab;
+
+    private ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+
+    /**
+     * Page tables for positive and negative page numbers, index is absolute page number.
+     * Value is slot number plus one, zero if page is not stored.
+     */
+    private int[] pageTable = new int[1024];
+    private int[] pageTableTranslation = new int[1024];
+
+    /** slots released by zero pages, reused before new slot is allocated */
+    private int[] freeSlots = new int[64];
+    private int freeSlotsCount = 0;
+    /** number of slots ever allocated */
+    private int slotCount = 0;
+
     private boolean transactionsDisabled;
 
-    StorageMemory(boolean transactionsDisabled){
+    StorageMemory(boolean transactionsDisabled, int blockSize){
         this.transactionsDisabled = transactionsDisabled;
+        this.blockSize = blockSize;
+        this.pagesPerSlab = SLAB_SIZE / blockSize;
+    }
+
+    /**
+     * Returns slot of page, -1 if page is not stored
+     */
+    private int getSlot(long pageNumber) {
+        int[] table = pageNumber >= 0 ? pageTable : pageTableTranslation;
+        long index = Math.abs(pageNumber);
+        if (index >= table.length)
+            return -1;
+        return table[(int) index] - 1;
+    }
+
+    private void setSlot(long pageNumber, int slot) {
+        int index = (int) Math.abs(pageNumber);
+        int[] table = pageNumber >= 0 ? pageTable : pageTableTranslation;
+        if (index >= table.length) {
+            int[] table2 = new int[Math.max(table.length * 2, index + 1)];
+            System.arraycopy(table, 0, table2, 0, table.length);
+            table = table2;
+            if (pageNumber >= 0)
+                pageTable = table;
+            else
+                pageTableTranslation = table;
+        }
+        table[index] = slot + 1;
     }
 
+    /**
+     * Returns new slot, either reused or from new slab
+     */
+    private int allocateSlot() {
+        if (freeSlotsCount > 0)
+            return freeSlots[--freeSlotsCount];
+        if (slotCount == slabs.size() * pagesPerSlab)
+            slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+        return slotCount++;
+    }
 
-    public ByteBuffer read(long pageNumber) throws IOException {
+    private void releaseSlot(int slot) {
+        if (freeSlotsCount == freeSlots.length) {
+            int[] freeSlots2 = new int[freeSlots.length * 2];
+            System.arraycopy(freeSlots, 0, freeSlots2, 0, freeSlots.length);
+            freeSlots = freeSlots2;
+        }
+        freeSlots[freeSlotsCount++] = slot;
+    }
 
-        byte[] data = pages.get(pageNumber);
-        if (data == null) {
+    /**
+     * Returns buffer limited to page in given slot
+     */
+    private ByteBuffer slotBuffer(int slot) {
+        ByteBuffer b = slabs.get(slot / pagesPerSlab).duplicate();
+        b.position((slot % pagesPerSlab) * blockSize);
+        b.limit(b.position() + blockSize);
+        return b.slice();
+    }
+
+    private static boolean isZeroPage(ByteBuffer data) {
+        for (int i = 0; i < data.capacity(); i += 8) {
+            if (data.getLong(i) != 0)
+                return false;
+        }
+        return true;
+    }
+
+
+    public synchronized ByteBuffer read(long pageNumber) throws IOException {
+
+        int slot = getSlot(pageNumber);
+        if (slot == -1) {
             //out of bounds, so just return empty data
-            return ByteBuffer.wrap(RecordFile.CLEAN_DATA).asReadOnlyBuffer();
+            return RecordFile.cleanPage(blockSize);
         }else{
-            ByteBuffer b = ByteBuffer.wrap(data);
+            ByteBuffer b = slotBuffer(slot);
             if(!transactionsDisabled)
                 return b.asReadOnlyBuffer();
             else
@@ -35,40 +127,72 @@ class StorageMemory implements Storage {
 
     }
 
-    public void write(long pageNumber, ByteBuffer data) throws IOException {
-        if (data.capacity() != BLOCK_SIZE) throw new IllegalArgumentException();
+    public synchronized void write(long pageNumber, ByteBuffer data) throws IOException {
+        if (data.capacity() != blockSize) throw new IllegalArgumentException();
 
-        byte[] b = pages.get(pageNumber);
+        if(transactionsDisabled && data.isDirect()){
+            //if transactions are disabled and this buffer is direct,
+            //it was returned by read() and changes are already in slab
+            return;
+        }
 
-        if(transactionsDisabled && data.hasArray() && data.array() == b){
-            //already putted directly into array
+        int slot = getSlot(pageNumber);
+
+        if (isZeroPage(data)) {
+            //empty page does not have to be stored, read returns zeros
+            if (slot != -1) {
+                setSlot(pageNumber, -1);
+                releaseSlot(slot);
+            }
             return;
         }
 
-        
-        if(b == null)
-            b = new byte[BLOCK_SIZE];
-        
-        data.position(0);
-        data.get(b,0,BLOCK_SIZE);
-        pages.put(pageNumber,b);
+        if (slot == -1) {
+            slot = allocateSlot();
+            setSlot(pageNumber, slot);
+        }
+
+        data = data.duplicate();
+        data.clear();
+        slotBuffer(slot).put(data);
+    }
+
+    public synchronized void write(long firstPageNumber, ByteBuffer[] data) throws IOException {
+        //nothing to gain here, just copy page by page
+        for (int i = 0; i < data.length; i++)
+            write(firstPageNumber + i, data[i]);
+    }
+
+    public synchronized void truncate(long pageCount) throws IOException {
+        for (long page = pageCount; page < pageTable.length; page++) {
+            int slot = getSlot(page);
+            if (slot != -1) {
+                setSlot(page, -1);
+                releaseSlot(slot);
+            }
+        }
     }
 
     public void sync() throws IOException {
     }
 
 
-    public void forceClose() throws IOException {
-        pages = null;
+    public synchronized void forceClose() throws IOException {
+        //free direct memory now, do not wait for GC
+        for (ByteBuffer b : slabs)
+            StorageDiskMapped.unmapBuffer(b);
+        slabs = null;
+        pageTable = null;
+        pageTableTranslation = null;
     }
 
-    private ByteArrayOutputStream transLog;
+    private final ByteArrayOutputStream[] transLog = new ByteArrayOutputStream[2];
 
-    public DataInputStream readTransactionLog() {
-        if (transLog == null)
+    public synchronized DataInputStream readTransactionLog(int slot) {
+        if (transLog[slot] == null)
             return null;
         DataInputStream ret =  new DataInputStream(
-                new ByteArrayInputStream(transLog.toByteArray()));
+                new ByteArrayInputStream(transLog[slot].toByteArray()));
         //read stream header
         try {
             ret.readShort();
@@ -78,17 +202,24 @@ class StorageMemory implements Storage {
         return ret;
     }
 
-    public void deleteTransactionLog() {
-        transLog = null;
+    public synchronized void deleteTransactionLog(int slot) {
+        transLog[slot] = null;
     }
 
-    public DataOutputStream openTransactionLog() throws IOException {
-        if (transLog == null)
-            transLog = new ByteArrayOutputStream();
-        return new DataOutputStream(transLog);
+    public synchronized DataOutputStream openTransactionLog(int slot) throws IOException {
+        transLog[slot] = new ByteArrayOutputStream();
+        return new DataOutputStream(transLog[slot]);
+    }
+
+    public void syncTransactionLog() throws IOException {
+        //nothing to sync
     }
 
     public boolean isReadonly() {
         return false;
     }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
 }
@@ -17,8 +17,10 @@ class StorageZip implements Storage {
     private String zip;
     private String zip2;
     private ZipFile z;
+    private final int blockSize;
 
-    StorageZip(String zipFile) throws IOException {
+    StorageZip(String zipFile, int blockSize) throws IOException {
+        this.blockSize = blockSize;
         zip = zipFile.substring(0, zipFile.indexOf("!/")); //TODO does not work on windows
         z = new ZipFile(zip);
         zip2 = zipFile.substring(zipFile.indexOf("!/") + 2);
@@ -29,15 +31,29 @@ class StorageZip implements Storage {
         throw new UnsupportedOperationException("readonly");
     }
 
+    public void write(long firstPageNumber, ByteBuffer[] data) throws IOException {
+        throw new UnsupportedOperationException("readonly");
+    }
+
+    public void truncate(long pageCount) throws IOException {
+        throw new UnsupportedOperationException("readonly");
+    }
+
     public ByteBuffer read(long pageNumber) throws IOException {
-        ByteBuffer data = ByteBuffer.allocate(BLOCK_SIZE);
+        ByteBuffer data = ByteBuffer.allocate(blockSize);
 
         ZipEntry e = z.getEntry(zip2 + pageNumber);
         if(e == null)
-            return ByteBuffer.wrap(RecordFile.CLEAN_DATA).asReadOnlyBuffer();
+            return RecordFile.cleanPage(blockSize);
 
         InputStream i = z.getInputStream(e);
-        new DataInputStream(i).readFully(data.array());
+        //entry may have different size if zip was opened with different block size, rest of page is zeros
+        int pos = 0;
+        while (pos < blockSize) {
+            int read = i.read(data.array(), pos, blockSize - pos);
+            if (read == -1) break;
+            pos += read;
+        }
         i.close();
         return data;
     }
@@ -47,11 +63,11 @@ class StorageZip implements Storage {
         z = null;
     }
 
-    public DataInputStream readTransactionLog() {
+    public DataInputStream readTransactionLog(int slot) {
         throw new UnsupportedOperationException("readonly");
     }
 
-    public void deleteTransactionLog() {
+    public void deleteTransactionLog(int slot) {
         throw new UnsupportedOperationException("readonly");
     }
 
@@ -59,11 +75,19 @@ class StorageZip implements Storage {
         throw new UnsupportedOperationException("readonly");
     }
 
-    public DataOutputStream openTransactionLog() throws IOException {
+    public DataOutputStream openTransactionLog(int slot) throws IOException {
+        throw new UnsupportedOperationException("readonly");
+    }
+
+    public void syncTransactionLog() throws IOException {
         throw new UnsupportedOperationException("readonly");
     }
 
     public boolean isReadonly() {
         return true;
     }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
 }
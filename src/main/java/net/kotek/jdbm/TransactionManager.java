@@ -21,40 +21,101 @@ import javax.crypto.Cipher;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
-import java.util.TreeSet;
 
 /**
  * This class manages the transaction log that belongs to every
  * {@link RecordFile}. The transaction log is either clean, or
  * in progress. In the latter case, the transaction manager
  * takes care of a roll forward.
+ * <p/>
+ * Log is written in segments, which alternate between two log files (slots).
+ * Committed transactions are appended to active segment. Once segment grows over threshold,
+ * it is sealed and its pages are written into data file (checkpoint), while new transactions
+ * go into fresh segment in other slot. Checkpoint may run in background thread, so commit
+ * does not have to wait until data file is written. Background checkpoint replays sealed log
+ * from disk, because in-core blocks may be modified by new transactions meanwhile.
+ * Each segment starts with sequence number, recovery replays older segment first.
  */
-// TODO: Handle the case where we are recovering lg9 and lg0, were we
-// should start with lg9 instead of lg0!
-
 final class TransactionManager {
     private RecordFile owner;
 
     // streams for transaction log.
     private DataOutputStream oos;
 
+    /** log slot (0 or 1) used by active segment */
+    private int activeSlot = 0;
+    /** sequence number of active segment */
+    private long segmentSeq = 0;
 
     /**
-     * In-core copy of transactions. We could read everything back from
+     * In-core copy of current transaction. We could read everything back from
      * the log file, but the RecordFile needs to keep the dirty blocks in
      * core anyway, so we might as well point to them and spare us a lot
      * of hassle.
      */
     private ArrayList<BlockIo> txn = new ArrayList<BlockIo>();
-    private int curTxn = -1;
+
+    /**
+     * Blocks modified in active segment. Each has transaction count increased once,
+     * so it stays in core until segment is written into data file.
+     */
+    private LongHashMap<BlockIo> segmentBlocks = new LongHashMap<BlockIo>();
+    /** number of bytes written into active segment */
+    private long segmentLogSize = 0;
+    /** time when first transaction was appended to active segment */
+    private long segmentStart = 0;
+
+    /** segment is checkpointed when its log is bigger than this, 0 checkpoints after each commit */
+    private long checkpointLogSize = DEFAULT_CHECKPOINT_LOG_SIZE;
+    /** segment is checkpointed when it is older than this, 0 disables time limit */
+    private long checkpointInterval = 0;
+
+    /** writes sealed segments into data file, null if checkpoint runs in thread which commits */
+    private Thread checkpointThread;
+    private boolean checkpointThreadStop = false;
+    /** sealed segment being written into data file, guarded by <code>checkpointLock</code> */
+    private Checkpoint checkpoint;
+    private final Object checkpointLock = new Object();
+
+    private static int threadCounter = 0;
 
     private Storage storage;
     private Cipher cipherIn;
     private Cipher cipherOut;
 
+    /**
+     * Group commit state. Transactions are appended to log under DB lock,
+     * but sync of log to disk is done outside of it. Threads waiting for sync
+     * elect leader which syncs log once for all transactions appended so far.
+     * All fields are guarded by <code>syncLock</code>.
+     */
+    private final Object syncLock = new Object();
+    /** number of transactions appended to log */
+    private long appendedTxn = 0;
+    /** number of transactions synced to disk */
+    private long durableTxn = 0;
+    /** true if some thread is syncing log right now */
+    private boolean syncInProgress = false;
+
+    /** how long leader waits for other transactions to join group commit */
+    private long groupCommitWait = 0;
+    /** leader stops waiting when this many transactions are waiting for sync */
+    private int groupCommitSize = 1;
+    /** number of log syncs, used for statistics */
+    private long logSyncCount = 0;
+
+    /**
+     * Log size after which segment is checkpointed, unless configured otherwise.
+     * Checkpoint after each commit would rewrite data file on every commit, and it syncs log
+     * while DB is locked, so group commits could not share sync.
+     */
+    static final long DEFAULT_CHECKPOINT_LOG_SIZE = 4 * 1024 * 1024;
+
     /**
      * Instantiates a transaction manager instance. If recovery
      * needs to be performed, it is done.
@@ -73,6 +134,54 @@ final class TransactionManager {
         open();
     }
 
+    /**
+     * Enables group commit. Thread which syncs log waits until <code>maxBatchSize</code> transactions
+     * are appended or <code>maxWaitMillis</code> elapses, so more commits share single sync.
+     *
+     * @param maxWaitMillis maximal time leader waits for other transactions, 0 to sync immediately
+     * @param maxBatchSize number of transactions after which leader stops waiting
+     */
+    void setGroupCommit(long maxWaitMillis, int maxBatchSize) {
+        if (maxWaitMillis < 0)
+            throw new IllegalArgumentException("negative wait");
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("batch size must be at least 1");
+        synchronized (syncLock) {
+            groupCommitWait = maxWaitMillis;
+            groupCommitSize = maxBatchSize;
+        }
+    }
+
+
+    /**
+     * Configures checkpoints. Active log segment is sealed and written into data file
+     * once its log grows over <code>maxLogSize</code> bytes or it is older than <code>maxIntervalMillis</code>.
+     *
+     * @param background if true, sealed segment is written by background thread, so commits do not wait for it
+     * @param maxLogSize log size in bytes after which segment is checkpointed
+     * @param maxIntervalMillis age of segment after which it is checkpointed, 0 for no time limit
+     */
+    void setCheckpoint(boolean background, long maxLogSize, long maxIntervalMillis) throws IOException {
+        if (maxLogSize < 0)
+            throw new IllegalArgumentException("negative log size");
+        if (maxIntervalMillis < 0)
+            throw new IllegalArgumentException("negative interval");
+        checkpointLogSize = maxLogSize;
+        checkpointInterval = maxIntervalMillis;
+        if (background && checkpointThread == null) {
+            checkpointThreadStop = false;
+            checkpointThread = new Thread(new Runnable() {
+                public void run() {
+                    runCheckpoints();
+                }
+            }, "JDBM Checkpoint " + (threadCounter++));
+            checkpointThread.setDaemon(true);
+            checkpointThread.start();
+        } else if (!background && checkpointThread != null) {
+            completeCheckpoint(true);
+            stopCheckpointThread();
+        }
+    }
 
     /**
      * Synchronize log file data with the main database file.
@@ -87,41 +196,167 @@ final class TransactionManager {
     }
 
 
-
-
     /**
      * Synchs in-core transactions to data file and opens a fresh log
      */
     private void synchronizeLogFromMemory() throws IOException {
+        checkpointSegment(true);
+    }
+
+    /**
+     * Seals active segment, opens fresh log in other slot and writes sealed segment into data file.
+     *
+     * @param inline if true, data file is written in this thread, otherwise it is left to checkpoint thread
+     */
+    private void checkpointSegment(boolean inline) throws IOException {
+        //other slot is free once previous checkpoint finished
+        completeCheckpoint(true);
+
+        //sealed segment must be durable before data file is modified
         close();
 
-        TreeSet<BlockIo> blockList = new TreeSet<BlockIo>(BLOCK_IO_COMPARTOR);
-
-        int numBlocks = 0;
-        int writtenBlocks = 0;
-
-        if(txn!=null){
-            // Add each block to the blockList, replacing the old copy of this
-            // block if necessary, thus avoiding writing the same block twice
-            for (Iterator<BlockIo> k = txn.iterator(); k.hasNext(); ) {
-                BlockIo block = k.next();
-                if (blockList.contains(block)) {
-                    block.decrementTransactionCount();
-                } else {
-                    writtenBlocks++;
-                    boolean result = blockList.add(block);
+        Checkpoint c = new Checkpoint(activeSlot, segmentBlocks);
+        segmentBlocks = new LongHashMap<BlockIo>();
+        activeSlot = 1 - activeSlot;
+        segmentSeq++;
+        open();
+
+        if (inline) {
+            //called between transactions, so in-core blocks contain committed data
+            writeBlocks(c.blocks);
+            storage.deleteTransactionLog(c.slot);
+            c.done = true;
+        }
+        synchronized (checkpointLock) {
+            checkpoint = c;
+            checkpointLock.notifyAll();
+        }
+        if (inline)
+            completeCheckpoint(true);
+    }
+
+    /**
+     * Writes in-core blocks into data file, sorted by IDs so data file is written sequentially
+     */
+    private void writeBlocks(LongHashMap<BlockIo> blocks) throws IOException {
+        BlockIo[] sorted = new BlockIo[blocks.size()];
+        Iterator<BlockIo> iter = blocks.valuesIterator();
+        for (int i = 0; i < sorted.length; i++)
+            sorted[i] = iter.next();
+        Arrays.sort(sorted, BLOCK_IO_COMPARTOR);
+
+        owner.synch(sorted);
+        owner.sync();
+    }
+
+    /**
+     * Replays log of sealed segment into data file and deletes it.
+     * This runs in checkpoint thread, so it must not touch in-core blocks.
+     */
+    private void writeCheckpoint(Checkpoint c) throws IOException {
+        DataInputStream ois = storage.readTransactionLog(c.slot);
+        if (ois != null) {
+            try {
+                //skip segment sequence number and block size
+                ois.readLong();
+                ois.readInt();
+                replay(ois);
+            } finally {
+                ois.close();
+            }
+        }
+        owner.sync();
+        storage.deleteTransactionLog(c.slot);
+    }
+
+    /**
+     * Releases blocks of finished checkpoint from transaction.
+     * Failed background checkpoint is retried in this thread.
+     *
+     * @param wait if true, waits until running checkpoint finishes
+     */
+    private void completeCheckpoint(boolean wait) throws IOException {
+        Checkpoint c;
+        synchronized (checkpointLock) {
+            c = checkpoint;
+            if (c == null)
+                return;
+            while (!c.done) {
+                if (!wait)
+                    return;
+                try {
+                    checkpointLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted while waiting for checkpoint");
                 }
-                numBlocks++;
             }
+        }
 
-            txn = null;
+        if (c.error != null) {
+            //keep checkpoint pending if it fails again, so its log slot is not reused
+            writeCheckpoint(c);
+            c.error = null;
         }
 
-        // Write the blocks from the blockList to disk
-        synchronizeBlocks(blockList, true);
+        synchronized (checkpointLock) {
+            checkpoint = null;
+        }
+        discardBlocks(c.blocks);
+    }
 
-        owner.sync();
-        open();
+    /**
+     * Main loop of checkpoint thread
+     */
+    private void runCheckpoints() {
+        while (true) {
+            Checkpoint c;
+            synchronized (checkpointLock) {
+                while (!checkpointThreadStop && (checkpoint == null || checkpoint.done)) {
+                    try {
+                        checkpointLock.wait();
+                    } catch (InterruptedException e) {
+                        //ignore
+                    }
+                }
+                if (checkpointThreadStop)
+                    return;
+                c = checkpoint;
+            }
+
+            IOException error = null;
+            try {
+                writeCheckpoint(c);
+            } catch (IOException e) {
+                error = e;
+            } catch (Throwable e) {
+                error = new IOException("checkpoint failed", e);
+            }
+
+            synchronized (checkpointLock) {
+                c.error = error;
+                c.done = true;
+                checkpointLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stops checkpoint thread after it finishes current checkpoint
+     */
+    private void stopCheckpointThread() throws IOException {
+        Thread t = checkpointThread;
+        if (t == null)
+            return;
+        synchronized (checkpointLock) {
+            checkpointThreadStop = true;
+            checkpointLock.notifyAll();
+        }
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while stopping checkpoint thread");
+        }
+        checkpointThread = null;
     }
 
 
@@ -130,10 +365,13 @@ final class TransactionManager {
      */
     private void open() throws IOException {
 
-        oos = storage.openTransactionLog();
+        oos = storage.openTransactionLog(activeSlot);
         oos.writeShort(Magic.LOGFILE_HEADER);
+        oos.writeLong(segmentSeq);
+        oos.writeInt(owner.blockSize);
         oos.flush();
-        curTxn = -1;
+        segmentLogSize = 0;
+        segmentStart = 0;
     }
 
     /**
@@ -141,11 +379,57 @@ final class TransactionManager {
      */
     private void recover() throws IOException {
 
-        DataInputStream ois = storage.readTransactionLog();
+        DataInputStream[] logs = new DataInputStream[2];
+        long[] seqs = new long[2];
+        for (int slot = 0; slot < 2; slot++) {
+            logs[slot] = storage.readTransactionLog(slot);
+            if (logs[slot] == null)
+                continue;
+            int blockSize;
+            try {
+                seqs[slot] = logs[slot].readLong();
+                blockSize = logs[slot].readInt();
+            } catch (IOException e) {
+                // log without any transaction
+                logs[slot].close();
+                logs[slot] = null;
+                continue;
+            }
+            if (blockSize != owner.blockSize) {
+                for (DataInputStream log : logs)
+                    if (log != null) log.close();
+                throw new IOException("Transaction log was written with block size " + blockSize
+                        + ", but file is opened with block size " + owner.blockSize);
+            }
+        }
+
+        // if transaction logs are empty, or do not exist
+        if (logs[0] == null && logs[1] == null) {
+            storage.deleteTransactionLog(0);
+            storage.deleteTransactionLog(1);
+            return;
+        }
 
-        // if transaction log is empty, or does not exist
-        if (ois == null) return;
+        // replay older segment first
+        int first = (logs[0] != null && logs[1] != null && seqs[1] < seqs[0]) ? 1 : 0;
+        for (int i = 0; i < 2; i++) {
+            int slot = (first + i) % 2;
+            if (logs[slot] == null)
+                continue;
+            replay(logs[slot]);
+            logs[slot].close();
+            segmentSeq = Math.max(segmentSeq, seqs[slot] + 1);
+        }
+        owner.sync();
+        storage.deleteTransactionLog(0);
+        storage.deleteTransactionLog(1);
+        activeSlot = 0;
+    }
 
+    /**
+     * Writes all transactions from log segment into data file
+     */
+    private void replay(DataInputStream ois) throws IOException {
         while (true) {
             ArrayList<BlockIo> blocks = null;
             try {
@@ -153,35 +437,21 @@ final class TransactionManager {
                 blocks = new ArrayList<BlockIo>(size);
                 for (int i = 0; i < size; i++) {
                     BlockIo b = new BlockIo();
-                    b.readExternal(ois, cipherOut);
+                    b.readExternal(ois, cipherOut, owner.blockSize);
                     blocks.add(b);
                 }
             } catch (IOException e) {
                 // corrupted logfile, ignore rest of transactions
                 break;
             }
-            synchronizeBlocks(blocks, false);
-
-        }
-        owner.sync();
-        ois.close();
-        storage.deleteTransactionLog();
-    }
-
-    /**
-     * Synchronizes the indicated blocks with the owner.
-     */
-    private void synchronizeBlocks(Iterable<BlockIo> blocks, boolean fromCore)
-            throws IOException {
-        // write block vector elements to the data file.
-        for (BlockIo cur : blocks) {
-            owner.synch(cur);
-            if (fromCore) {
-                cur.decrementTransactionCount();
-                if (!cur.isInTransaction()) {
-                    owner.releaseFromTransaction(cur);
+            for (BlockIo cur : blocks) {
+                if (cur.isDelta()) {
+                    //previous transactions were already replayed, so data file contains base page
+                    cur.applyDelta(storage.read(cur.getBlockId()));
                 }
             }
+            //blocks are logged sorted by id
+            owner.synch(blocks.toArray(new BlockIo[blocks.size()]));
         }
     }
 
@@ -199,10 +469,10 @@ final class TransactionManager {
     /**
      * Discards the indicated blocks and notify the owner.
      */
-    private void discardBlocks(ArrayList<BlockIo> blocks)
+    private void discardBlocks(LongHashMap<BlockIo> blocks)
             throws IOException {
-        for (BlockIo cur : blocks) {
-
+        for (Iterator<BlockIo> i = blocks.valuesIterator(); i.hasNext(); ) {
+            BlockIo cur = i.next();
             cur.decrementTransactionCount();
             if (!cur.isInTransaction()) {
                 owner.releaseFromTransaction(cur);
@@ -211,52 +481,149 @@ final class TransactionManager {
     }
 
     /**
-     * Starts a transaction. This can block if all slots have been filled
-     * with full transactions, waiting for the synchronization thread to
-     * clean out slots.
+     * Starts a transaction.
      */
     void start() throws IOException {
-        curTxn++;
-        if (curTxn == 1) {
-            synchronizeLogFromMemory();
-            curTxn = 0;
-        }
-        txn = new ArrayList();
+        //release blocks of finished background checkpoint
+        completeCheckpoint(false);
+        txn = new ArrayList<BlockIo>();
     }
 
     /**
      * Indicates the block is part of the transaction.
      */
     void add(BlockIo block) throws IOException {
-        block.incrementTransactionCount();
+        //block stays in core until segment is checkpointed, so count it only once per segment
+        if (segmentBlocks.get(block.getBlockId()) == null) {
+            block.incrementTransactionCount();
+            segmentBlocks.put(block.getBlockId(), block);
+        }
         txn.add(block);
     }
 
     /**
      * Commits the transaction to the log file.
+     * Log is not synced to disk, use {@link #syncLog(long)} to wait until it is durable.
      */
     void commit() throws IOException {
+        if (segmentLogSize == 0)
+            segmentStart = System.currentTimeMillis();
+
+        int logSize = oos.size();
         LongPacker.packInt(oos, txn.size());
         for (BlockIo block : txn) {
             block.writeExternal(oos, cipherIn);
         }
+        segmentLogSize += oos.size() - logSize;
 
-
-        sync();
+        //pass data to OS, so other thread can sync it
+        oos.flush();
 
         // set clean flag to indicate blocks have been written to log
         setClean(txn);
 
-        // open a new ObjectOutputStream in order to store
-        // newer states of BlockIo
-//        oos = new DataOutputStream(new BufferedOutputStream(fos));
+        synchronized (syncLock) {
+            appendedTxn++;
+            //wake up leader waiting for group commit
+            syncLock.notifyAll();
+        }
+
+        if (segmentLogSize >= checkpointLogSize ||
+                (checkpointInterval > 0 && System.currentTimeMillis() - segmentStart >= checkpointInterval)) {
+            //this can block if previous checkpoint is still running
+            checkpointSegment(checkpointThread == null);
+        }
+    }
+
+    /**
+     * Returns sequence number of last transaction appended to log
+     */
+    long getLastTransaction() {
+        synchronized (syncLock) {
+            return appendedTxn;
+        }
+    }
+
+    /**
+     * Waits until log is synced to disk, up to given transaction.
+     * This must be called without DB lock, so other threads can append their transactions
+     * and share single sync.
+     *
+     * @param txnNumber sequence number returned by {@link #getLastTransaction()}
+     */
+    void syncLog(long txnNumber) throws IOException {
+        long target;
+        synchronized (syncLock) {
+            while (true) {
+                if (durableTxn >= txnNumber)
+                    return;
+                if (!syncInProgress)
+                    break;
+                waitForSync(0);
+            }
+            //this thread is leader now
+            syncInProgress = true;
+            try {
+                long deadline = System.currentTimeMillis() + groupCommitWait;
+                while (appendedTxn - durableTxn < groupCommitSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        break;
+                    waitForSync(remaining);
+                }
+            } catch (IOException e) {
+                syncInProgress = false;
+                syncLock.notifyAll();
+                throw e;
+            }
+            target = appendedTxn;
+        }
+
+        boolean ok = false;
+        try {
+            storage.syncTransactionLog();
+            ok = true;
+        } finally {
+            synchronized (syncLock) {
+                if (ok && durableTxn < target)
+                    durableTxn = target;
+                logSyncCount++;
+                syncInProgress = false;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns how many times transaction log was synced to disk
+     */
+    long getLogSyncCount() {
+        synchronized (syncLock) {
+            return logSyncCount;
+        }
+    }
+
+    private void waitForSync(long timeout) throws IOException {
+        try {
+            syncLock.wait(timeout);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for log sync");
+        }
     }
 
     /**
-     * Flushes and syncs
+     * Flushes and syncs. Waits until concurrent sync finishes, so log can be closed safely
      */
     private void sync() throws IOException {
-        oos.flush();
+        synchronized (syncLock) {
+            while (syncInProgress)
+                waitForSync(0);
+            oos.flush();
+            storage.syncTransactionLog();
+            durableTxn = appendedTxn;
+            logSyncCount++;
+            syncLock.notifyAll();
+        }
     }
 
     /**
@@ -265,7 +632,10 @@ final class TransactionManager {
      */
     void shutdown() throws IOException {
         synchronizeLogFromMemory();
+        stopCheckpointThread();
         close();
+        //all data are in data file, so fresh log is not needed
+        storage.deleteTransactionLog(activeSlot);
     }
 
     /**
@@ -282,6 +652,7 @@ final class TransactionManager {
      * Used for testing purposes only.
      */
     void forceClose() throws IOException {
+        stopCheckpointThread();
         oos.close();
         oos = null;
     }
@@ -292,18 +663,36 @@ final class TransactionManager {
      * to be inconsistent.
      */
     void synchronizeLogFromDisk() throws IOException {
+        completeCheckpoint(true);
         close();
 
-
-        if (txn != null){
-            discardBlocks(txn);
-            txn = null;
-        }
+        discardBlocks(segmentBlocks);
+        segmentBlocks = new LongHashMap<BlockIo>();
+        txn = null;
 
         recover();
         open();
     }
 
+    /**
+     * Sealed log segment, which is being written into data file
+     */
+    private static final class Checkpoint {
+        /** log slot of this segment */
+        final int slot;
+        /** in-core blocks released once checkpoint finishes */
+        final LongHashMap<BlockIo> blocks;
+        /** guarded by <code>checkpointLock</code> */
+        boolean done = false;
+        /** set if checkpoint thread failed */
+        IOException error;
+
+        Checkpoint(int slot, LongHashMap<BlockIo> blocks) {
+            this.slot = slot;
+            this.blocks = blocks;
+        }
+    }
+
 
     /**
      * INNER CLASS.
@@ -21,9 +21,9 @@ class Utils {
     public static byte[] encrypt(Cipher cipherIn, ByteBuffer b) {
         if(cipherIn==null && b.hasArray())
             return b.array();
-        byte[] bb = new byte[Storage.BLOCK_SIZE];
+        byte[] bb = new byte[b.capacity()];
         b.rewind();
-        b.get(bb,0,Storage.BLOCK_SIZE);
+        b.get(bb,0,bb.length);
         return encrypt(cipherIn,bb);
     }
     
@@ -32,13 +32,30 @@ class Utils {
             return b;
 
         try {
-            return cipherIn.doFinal(b);
+            //cipher is shared with checkpoint thread
+            synchronized (cipherIn) {
+                return cipherIn.doFinal(b);
+            }
         } catch (Exception e) {
             throw new IOError(e);
         }
 
     }
 
+    public static byte[] decrypt(Cipher cipherOut, byte[] b) {
+        if (cipherOut == null)
+            return b;
+
+        try {
+            //cipher is shared with checkpoint thread and concurrent readers
+            synchronized (cipherOut) {
+                return cipherOut.doFinal(b);
+            }
+        } catch (Exception e) {
+            throw new IOError(e);
+        }
+    }
+
 
     /**
      * Compares comparables. Default comparator for most of java types
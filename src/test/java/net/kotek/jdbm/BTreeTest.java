@@ -21,8 +21,10 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.AbstractMap.SimpleEntry;
@@ -446,6 +448,344 @@ public class BTreeTest
         db.close();
     }
 
+    /**
+     * Test bulk loading of sorted entries, tree must stay valid for following inserts and removes
+     */
+    public void testBulkLoad() throws IOException {
+        int[] sizes = {0, 1, 2, 31, 32, 33, 47, 48, 49, 1000, 20000};
+        float[] fillFactors = {0.5F, 0.75F, 1F};
+        for (int size : sizes) {
+            for (float fillFactor : fillFactors) {
+                for (boolean concurrent : new boolean[]{false, true}) {
+                    DBAbstract db = newRecordManager();
+                    TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+                    for (int i = 0; i < size; i++) {
+                        //some values are too large to be stored inside node
+                        expected.put(i * 2, i % 10 == 0 ? "large value which is stored in separate record " + i : "v" + i);
+                    }
+                    BTree<Integer, String> tree = BTree.createInstance(db, null, null, null, true, concurrent);
+                    tree.bulkLoad(expected.entrySet().iterator(), fillFactor);
+                    Map<Integer, String> map = tree.asMap();
+                    assertEquals(expected, map);
+                    assertEquals(new ArrayList<Integer>(expected.keySet()), new ArrayList<Integer>(map.keySet()));
+                    //leaves are linked in both directions
+                    List<Integer> reverse = new ArrayList<Integer>();
+                    BTree.BTreeTupleBrowser<Integer, String> browser = tree.browse(null);
+                    BTree.BTreeTuple<Integer, String> tuple = new BTree.BTreeTuple<Integer, String>();
+                    while (browser.getPrevious(tuple)) {
+                        reverse.add(tuple.key);
+                    }
+                    assertEquals(new ArrayList<Integer>(expected.descendingKeySet()), reverse);
+
+                    for (int i = 0; i < size; i++) {
+                        assertNull(map.put(i * 2 + 1, "odd"));
+                    }
+                    assertEquals(size * 2, map.size());
+                    for (int i = 0; i < size * 2; i++) {
+                        assertNotNull(map.remove(i));
+                    }
+                    assertTrue(map.isEmpty());
+                    db.close();
+                }
+            }
+        }
+    }
+
+    public void testBulkLoadTreeMap() throws IOException {
+        DBAbstract db = newRecordManager();
+        TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+        for (int i = 0; i < 1000; i++) {
+            expected.put("key" + i, i);
+        }
+        db.createTreeMap("test", null, null, null, expected.entrySet().iterator(), 0.9F);
+        db.commit();
+        assertEquals(expected, db.getTreeMap("test"));
+        db.close();
+    }
+
+    public void testBulkLoadUnsorted() throws IOException {
+        DBAbstract db = newRecordManager();
+        BTree<Integer, String> tree = BTree.createInstance(db);
+        final List<Integer> inserted = new ArrayList<Integer>();
+        tree.addRecordListener(new RecordListener<Integer, String>() {
+            public void recordInserted(Integer key, String value) throws IOException {
+                inserted.add(key);
+            }
+
+            public void recordUpdated(Integer key, String oldValue, String newValue) throws IOException {
+                fail();
+            }
+
+            public void recordRemoved(Integer key, String value) throws IOException {
+                fail();
+            }
+        });
+        List<Map.Entry<Integer, String>> entries = new ArrayList<Map.Entry<Integer, String>>();
+        entries.add(new SimpleEntry<Integer, String>(2, "a"));
+        entries.add(new SimpleEntry<Integer, String>(1, "b"));
+        try {
+            tree.bulkLoad(entries.iterator(), 1F);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        assertEquals(0, tree.size());
+        assertNull(tree.get(2));
+        //listeners are not notified about entries which were not loaded
+        assertTrue(inserted.isEmpty());
+
+        entries.remove(0);
+        entries.add(new SimpleEntry<Integer, String>(2, "a"));
+        tree.bulkLoad(entries.iterator(), 1F);
+        assertEquals(Arrays.asList(1, 2), inserted);
+        db.close();
+    }
+
+    public void testBulkLoadFillFactor() throws IOException {
+        DBAbstract db = newRecordManager();
+        BTree<Integer, String> tree = BTree.createInstance(db);
+        Map<Integer, String> entries = new TreeMap<Integer, String>();
+        entries.put(1, "a");
+        for (float fillFactor : new float[]{0F, 0.49F, 1.01F, Float.NaN}) {
+            try {
+                tree.bulkLoad(entries.entrySet().iterator(), fillFactor);
+                fail();
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+        assertEquals(0, tree.size());
+        db.close();
+    }
+
+    public void testConcurrentTree() throws Exception {
+        final int threads = 16;
+        final int perThread = 2000;
+        String file = newTestFile();
+        DB db = new DBMaker(file).build();
+        final Map<Integer, String> map = db.createConcurrentTreeMap("test", null, null, null);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        final boolean[] writersDone = new boolean[1];
+
+        //keys of threads are interleaved, so threads split same nodes
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            writers[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            int key = i * threads + thread;
+                            assertNull(map.put(key, value(key)));
+                        }
+                        for (int i = 0; i < perThread; i += 3) {
+                            int key = i * threads + thread;
+                            assertEquals(value(key), map.remove(key));
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+        }
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    while (!writersDone[0]) {
+                        Integer previous = null;
+                        for (Map.Entry<Integer, String> e : map.entrySet()) {
+                            assertTrue(previous == null || previous < e.getKey());
+                            assertEquals(value(e.getKey()), e.getValue());
+                            previous = e.getKey();
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }
+        };
+        reader.start();
+        for (Thread t : writers) {
+            t.start();
+        }
+        for (Thread t : writers) {
+            t.join();
+        }
+        writersDone[0] = true;
+        reader.join();
+        if (!errors.isEmpty()) {
+            throw new AssertionFailedError(errors.get(0).toString());
+        }
+
+        TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+        for (int i = 0; i < perThread; i++) {
+            if (i % 3 != 0) {
+                for (int t = 0; t < threads; t++) {
+                    expected.put(i * threads + t, value(i * threads + t));
+                }
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, map);
+        assertEquals(new ArrayList<Integer>(expected.keySet()), new ArrayList<Integer>(map.keySet()));
+        db.commit();
+        db.close();
+
+        db = new DBMaker(file).build();
+        BTreeSortedMap<Integer, String> map2 = (BTreeSortedMap<Integer, String>) db.<Integer, String>getTreeMap("test");
+        assertTrue(map2.tree.isConcurrent());
+        assertEquals(expected, map2);
+        List<Integer> reverse = new ArrayList<Integer>();
+        BTree.BTreeTupleBrowser<Integer, String> browser = map2.tree.browse(null);
+        BTree.BTreeTuple<Integer, String> tuple = new BTree.BTreeTuple<Integer, String>();
+        while (browser.getPrevious(tuple)) {
+            reverse.add(tuple.key);
+        }
+        assertEquals(new ArrayList<Integer>(expected.descendingKeySet()), reverse);
+        db.close();
+    }
+
+    public void testConcurrentReplacedValuesAreNotReused() throws Exception {
+        final int keys = 200;
+        String file = newTestFile();
+        final DB db = new DBMaker(file).disableCache().build();
+        final Map<Integer, String> map = db.createConcurrentTreeMap("test", null, null, null);
+        for (int i = 0; i < keys; i++) {
+            map.put(i, largeValue(i, 0));
+        }
+        db.commit();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        final boolean[] done = new boolean[1];
+
+        //writers replace and remove values, so their recids are freed and reused by other keys
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < 2; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        Random random = new Random(thread);
+                        for (int version = 1; !done[0]; version++) {
+                            int key = random.nextInt(keys);
+                            if (random.nextInt(3) == 0) {
+                                map.remove(key);
+                            } else {
+                                map.put(key, largeValue(key, version));
+                            }
+                            if (version % 100 == 0) {
+                                db.commit();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+        }
+        threads[2] = new Thread() {
+            public void run() {
+                try {
+                    Random random = new Random();
+                    while (!done[0]) {
+                        int key = random.nextInt(keys);
+                        String value = map.get(key);
+                        assertTrue(value, value == null || value.startsWith(key + ":"));
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }
+        };
+        threads[3] = new Thread() {
+            public void run() {
+                try {
+                    while (!done[0]) {
+                        for (Map.Entry<Integer, String> e : map.entrySet()) {
+                            assertTrue(e.getValue(), e.getValue().startsWith(e.getKey() + ":"));
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }
+        };
+        for (Thread t : threads) {
+            t.start();
+        }
+        Thread.sleep(2000);
+        done[0] = true;
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (!errors.isEmpty()) {
+            throw new AssertionFailedError(errors.get(0).toString());
+        }
+        TreeMap<Integer, String> expected = new TreeMap<Integer, String>(map);
+        db.close();
+
+        //retired values are deleted on close, values still in tree stay
+        DB db2 = new DBMaker(file).disableCache().build();
+        assertEquals(expected, db2.getTreeMap("test"));
+        db2.close();
+    }
+
+    private static String largeValue(int key, int version) {
+        return key + ":" + version + ":large value which is stored in separate record";
+    }
+
+    public void testConcurrentTreeSize() throws Exception {
+        for (boolean cache : new boolean[]{false, true}) {
+            String file = newTestFile();
+            DBMaker maker = new DBMaker(file);
+            if (!cache) {
+                maker.disableCache();
+            }
+            DB db = maker.build();
+            Map<Integer, String> map = db.createConcurrentTreeMap("test", null, null, null);
+            for (int i = 0; i < 1000; i++) {
+                map.put(i, value(i));
+            }
+            db.commit();
+            for (int i = 0; i < 1000; i += 2) {
+                map.remove(i);
+            }
+            //number of entries is written on close
+            db.close();
+
+            db = maker.build();
+            map = db.getTreeMap("test");
+            assertEquals(500, map.size());
+            map.put(-1, "new");
+            db.commit();
+            //rollback restores number of entries from header
+            map.put(-2, "rolled back");
+            map.remove(1);
+            map.remove(3);
+            db.rollback();
+            assertEquals(501, map.size());
+            db.close();
+
+            db = maker.build();
+            assertEquals(501, db.getTreeMap("test").size());
+            db.close();
+        }
+    }
+
+    private static String value(int key) {
+        //some values are too large to be stored inside node
+        return key % 50 == 0 ? "large value which is stored in separate record " + key : "v" + key;
+    }
+
     public void testRecordListener() throws IOException {
         DBAbstract db = newRecordManager();
         BTree<Integer, String> tree = BTree.createInstance(db);
@@ -526,6 +866,8 @@ public class BTreeTest
         long previousdbSize = 0;
         for (int i = 0; i < 5; i++) {
             DBAbstract db = (DBAbstract) new DBMaker(recordManagerBasename).disableCache().build();
+            //write pages into data file on each commit, so its size can be checked
+            ((DBStore) db).setCheckpoint(false, 0, 0);
 
             try {
                 BTree<String, Serializable> tree = BTree.createInstance(db);
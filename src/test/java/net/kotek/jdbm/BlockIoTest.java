@@ -82,7 +82,7 @@ public class BlockIoTest extends TestCase {
 
     public void testNegativeSixByte(){
         
-        BlockIo t = new BlockIo(0, ByteBuffer.allocate(Storage.BLOCK_SIZE));
+        BlockIo t = new BlockIo(0, ByteBuffer.allocate(Storage.DEFAULT_BLOCK_SIZE));
         
         t.writeSixByteLong(0,-11111);
         assertEquals(-11111,t.readSixByteLong(0));
@@ -95,7 +95,7 @@ public class BlockIoTest extends TestCase {
 
 
     public void testPageHeaderSetWriteRead() throws Exception {
-        BlockIo data = new BlockIo(0, new byte[Storage.BLOCK_SIZE]);
+        BlockIo data = new BlockIo(0, new byte[Storage.DEFAULT_BLOCK_SIZE]);
         data.writeShort(0, Magic.BLOCK);
 
         data.pageHeaderSetNext(10);
@@ -105,4 +105,41 @@ public class BlockIoTest extends TestCase {
         assertEquals("prev", 33, data.pageHeaderGetPrev());
     }
 
+    /**
+     * Test that small modification is logged as byte ranges and replayed onto base page
+     */
+    public void testDeltaLog() throws Exception {
+        byte[] base = new byte[Storage.DEFAULT_BLOCK_SIZE];
+        base[100] = 7;
+        BlockIo block = new BlockIo(5, ByteBuffer.wrap(base.clone()).asReadOnlyBuffer());
+        block.writeInt(10, INT_VALUE);
+        block.writeLong(2000, LONG_VALUE);
+        block.writeShort(20, SHORT_VALUE);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        block.writeExternal(new DataOutputStream(bos), null);
+        assertTrue("log size " + bos.size(), bos.size() < 40);
+
+        BlockIo read = new BlockIo();
+        read.readExternal(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())), null, Storage.DEFAULT_BLOCK_SIZE);
+        assertEquals(5, read.getBlockId());
+        assertTrue(read.isDelta());
+        read.applyDelta(ByteBuffer.wrap(base));
+        assertFalse(read.isDelta());
+        assertEquals(INT_VALUE, read.readInt(10));
+        assertEquals(SHORT_VALUE, read.readShort(20));
+        assertEquals(LONG_VALUE, read.readLong(2000));
+        assertEquals(7, read.readByte(100));
+
+        //whole page is logged after setDirty()
+        block.setClean();
+        block.setDirty();
+        bos.reset();
+        block.writeExternal(new DataOutputStream(bos), null);
+        read = new BlockIo();
+        read.readExternal(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())), null, Storage.DEFAULT_BLOCK_SIZE);
+        assertFalse(read.isDelta());
+        assertEquals(LONG_VALUE, read.readLong(2000));
+    }
+
 }
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package net.kotek.jdbm;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares hit ratio of MRU and W-TinyLFU cache on Zipfian and scan-mixed access traces,
+ * W-TinyLFU must not be worse. Traces are replayed directly against cache segments,
+ * so store I/O does not affect results. Like other benchmarks it is not run with test suite.
+ */
+public class DBCacheBench extends TestCaseWithTestFile {
+
+    static final int CACHE_SIZE = 1000;
+    static final int KEYS = 100000;
+    static final int ACCESSES = 1000000;
+
+    public void test_zipf() throws IOException {
+        long[] trace = zipfTrace(new Random(1), ACCESSES);
+        report("zipf", trace);
+    }
+
+    public void test_zipf_with_scans() throws IOException {
+        Random r = new Random(1);
+        long[] trace = zipfTrace(r, ACCESSES);
+        //every 100000 accesses, scan over 20000 keys which are not used otherwise
+        long scanKey = KEYS;
+        for (int i = 0; i < trace.length; i += 100000) {
+            for (int j = 0; j < 20000; j++)
+                trace[i + j] = scanKey++;
+        }
+        report("zipf with scans", trace);
+    }
+
+    void report(String name, long[] trace) throws IOException {
+        double mru = hitRatio(DBCache.MRU, trace);
+        double lfu = hitRatio(DBCache.TINY_LFU, trace);
+        System.out.println(name + ": MRU hit ratio=" + mru + ", W-TinyLFU hit ratio=" + lfu);
+        assertTrue(name + ": W-TinyLFU is worse than MRU", lfu >= mru);
+    }
+
+    double hitRatio(byte cacheType, long[] trace) throws IOException {
+        DBCache db = new DBCache(newBaseRecordManager(), CACHE_SIZE, cacheType, false);
+        long hits = 0;
+        for (long key : trace) {
+            DBCache.Segment seg = db.segment(key);
+            if (seg.get(key) != null)
+                hits++;
+            else
+                seg.put(key, key, null, false, 1);
+        }
+        db.close();
+        return 1D * hits / trace.length;
+    }
+
+    /**
+     * Generates keys with Zipf distribution, exponent is 1
+     */
+    static long[] zipfTrace(Random r, int size) {
+        double[] cumulative = new double[KEYS];
+        double sum = 0;
+        for (int i = 0; i < KEYS; i++) {
+            sum += 1D / (i + 1);
+            cumulative[i] = sum;
+        }
+        long[] trace = new long[size];
+        for (int i = 0; i < size; i++) {
+            double v = r.nextDouble() * sum;
+            int pos = java.util.Arrays.binarySearch(cumulative, v);
+            trace[i] = pos >= 0 ? pos : -pos - 1;
+        }
+        return trace;
+    }
+
+}
@@ -1,8 +1,10 @@
 package net.kotek.jdbm;
 
 import junit.framework.TestCase;
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class DBMakerTest extends TestCaseWithTestFile {
@@ -73,5 +75,114 @@ public class DBMakerTest extends TestCaseWithTestFile {
        
     }
 
-}
+    public void testCompression(){
+        String file = newTestFile();
+        DB db = new DBMaker(file)
+                .enableCompression()
+                .build();
+
+        Set l = db.createHashSet("test");
+        for(int i = 0;i<10000;i++){
+            l.add("aa"+i);
+        }
+        db.commit();
+        db.close();
+        db = new DBMaker(file)
+                .enableCompression()
+                .build();
+        l = db.getHashSet("test");
+        for(int i = 0;i<10000;i++){
+            assertTrue(l.contains("aa"+i));
+        }
+        db.close();
+    }
+
+    public void testCompressionDetectedOnReopen(){
+        String file = newTestFile();
+        DB db = new DBMaker(file)
+                .enableCompression()
+                .build();
+        db.createHashSet("test").add("aa");
+        db.close();
+        //compressed file opened without compression
+        db = new DBMaker(file).build();
+        assertTrue(db.getHashSet("test").contains("aa"));
+        db.close();
+
+        file = newTestFile();
+        db = new DBMaker(file).build();
+        db.createHashSet("test").add("aa");
+        db.close();
+        //plain file opened with compression
+        db = new DBMaker(file)
+                .enableCompression()
+                .build();
+        assertTrue(db.getHashSet("test").contains("aa"));
+        db.close();
+        assertFalse(new File(file + StorageDiskCompressed.INDEX + ".0").exists());
+    }
+
+    public void testBlockSize(){
+        for (int blockSize : new int[]{Storage.MIN_BLOCK_SIZE, Storage.MAX_BLOCK_SIZE}) {
+            String file = newTestFile();
+            DB db = new DBMaker(file)
+                    .setBlockSize(blockSize)
+                    .build();
+            Map m = db.createHashMap("test");
+            for(int i = 0;i<1000;i++){
+                m.put(i, "aa"+i);
+            }
+            //record larger than single block
+            m.put(-1, new byte[100000]);
+            db.commit();
+            db.close();
+
+            //existing file is opened with its own block size
+            db = new DBMaker(file).disableCache().build();
+            assertEquals(blockSize, ((DBStore) db).getBlockSize());
+            m = db.getHashMap("test");
+            for(int i = 0;i<1000;i++){
+                assertEquals("aa"+i, m.get(i));
+            }
+            assertEquals(100000, ((byte[]) m.get(-1)).length);
+            db.close();
+        }
+    }
 
+    public void testRootSlots() throws IOException {
+        for (int blockSize : new int[]{Storage.MIN_BLOCK_SIZE, Storage.DEFAULT_BLOCK_SIZE, Storage.MAX_BLOCK_SIZE}) {
+            String file = newTestFile();
+            DBStore db = (DBStore) new DBMaker(file).setBlockSize(blockSize).disableCache().build();
+            //roots fill rest of header block
+            int rootCount = (blockSize - Magic.FILE_HEADER_O_ROOTS) / Magic.SZ_LONG;
+            if (blockSize == Storage.DEFAULT_BLOCK_SIZE)
+                assertEquals(Magic.FILE_HEADER_NROOTS, rootCount);
+            db.setRoot(DBStore.RESERVED_ROOTS, 111);
+            db.setRoot(rootCount - 1, 222);
+            for (int id : new int[]{DBStore.NAME_DIRECTORY_ROOT, Magic.FILE_HEADER_ROOT_BLOCK_SIZE,
+                    DBStore.CACHE_HOT_RECIDS_ROOT, rootCount, -1}) {
+                try {
+                    db.setRoot(id, 1);
+                    fail("slot " + id);
+                } catch (IllegalArgumentException e) {
+                    //expected
+                }
+            }
+            try {
+                db.setReservedRoot(Magic.FILE_HEADER_ROOT_BLOCK_SIZE, 1);
+                fail();
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+            db.commit();
+            db.close();
+
+            db = (DBStore) new DBMaker(file).disableCache().build();
+            assertEquals(111, db.getRoot(DBStore.RESERVED_ROOTS));
+            assertEquals(222, db.getRoot(rootCount - 1));
+            assertEquals(blockSize, db.getBlockSize());
+            db.close();
+        }
+    }
+
+}
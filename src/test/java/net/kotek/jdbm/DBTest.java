@@ -16,9 +16,18 @@
 
 package net.kotek.jdbm;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class contains all Unit tests for {@link DBAbstract}.
@@ -232,4 +241,574 @@ public class DBTest extends TestCaseWithTestFile {
 
     }
 
+    /**
+     * Readers fetch records concurrently, while other thread updates records
+     */
+    public void testConcurrentFetch() throws Exception {
+        concurrentFetch(newBaseRecordManager());
+    }
+
+    public void testConcurrentCache() throws Exception {
+        concurrentFetch((DBAbstract) new DBMaker(newTestFile()).enableConcurrentCache().build());
+    }
+
+    private void concurrentFetch(final DBAbstract db) throws Exception {
+        final int size = 1000;
+        final long[] recids = new long[size];
+        for (int i = 0; i < size; i++)
+            recids[i] = db.insert(UtilTT.makeRecord(100 + i * 10, (byte) i));
+        db.commit();
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int threadNum = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        Random r = new Random(threadNum);
+                        for (int i = 0; i < 10000; i++) {
+                            int pos = r.nextInt(size);
+                            if (threadNum == 0 && i % 10 == 0) {
+                                //writer thread, record content does not change
+                                db.update(recids[pos], UtilTT.makeRecord(100 + pos * 10, (byte) pos));
+                                if (i % 1000 == 0) db.commit();
+                            } else {
+                                byte[] b = (byte[]) db.fetch(recids[pos]);
+                                if (!UtilTT.checkRecord(b, 100 + pos * 10, (byte) pos))
+                                    throw new AssertionError("wrong data for record " + pos);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+        db.commit();
+        db.close();
+    }
+
+    public void testBlob() throws Exception {
+        String file = newTestFile();
+        DB db = new DBMaker(file).build();
+        final int size = 3 * 1024 * 1024;
+        long recid = db.createBlob();
+        InputStream in = db.openBlob(recid);
+        assertEquals(-1, in.read());
+
+        OutputStream out = db.writeBlob(recid, size);
+        byte[] buf = new byte[1000];
+        for (int i = 0; i < size; i += buf.length) {
+            int len = Math.min(buf.length, size - i);
+            for (int j = 0; j < len; j++)
+                buf[j] = (byte) ((i + j) % 251);
+            out.write(buf, 0, len);
+        }
+        try {
+            out.write(1);
+            fail("length exceeded");
+        } catch (IOException e) {
+            //expected
+        }
+        out.close();
+        db.commit();
+        db.close();
+
+        db = new DBMaker(file).build();
+        in = db.openBlob(recid);
+        assertEquals(size, in.available());
+        byte[] buf2 = new byte[777];
+        int count = 0;
+        for (int read = in.read(buf2); read != -1; read = in.read(buf2)) {
+            for (int j = 0; j < read; j++)
+                assertEquals((byte) ((count + j) % 251), buf2[j]);
+            count += read;
+        }
+        assertEquals(size, count);
+
+        //shrink it, stream opened before must fail
+        in = db.openBlob(recid);
+        out = db.writeBlob(recid, 3);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+        try {
+            in.read();
+            fail("blob was modified");
+        } catch (IOException e) {
+            //expected
+        }
+        in = db.openBlob(recid);
+        assertEquals(1, in.read());
+        assertEquals(2, in.read());
+        assertEquals(3, in.read());
+        assertEquals(-1, in.read());
+
+        db.deleteBlob(recid);
+        db.commit();
+        db.close();
+    }
+
+    public void testBlobContentReplacedOnClose() throws Exception {
+        DB db = new DBMaker(newTestFile()).build();
+        long recid = db.createBlob();
+        OutputStream out = db.writeBlob(recid, 3);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        //partially written content is not visible
+        out = db.writeBlob(recid, 5);
+        out.write(new byte[]{4, 5});
+        InputStream in = db.openBlob(recid);
+        assertEquals(3, in.available());
+        assertEquals(1, in.read());
+        out.write(new byte[]{6, 7, 8});
+        assertEquals(2, in.read());
+        out.close();
+        try {
+            in.read();
+            fail("blob was modified");
+        } catch (IOException e) {
+            //expected
+        }
+        in = db.openBlob(recid);
+        assertEquals(5, in.available());
+        assertEquals(4, in.read());
+
+        //incomplete content is discarded
+        out = db.writeBlob(recid, 2);
+        out.write(9);
+        try {
+            out.close();
+            fail("blob not fully written");
+        } catch (IOException e) {
+            //expected
+        }
+        in = db.openBlob(recid);
+        assertEquals(5, in.available());
+        assertEquals(4, in.read());
+        db.close();
+    }
+
+    /**
+     * Pages of rewritten blob must be reused, file must not grow with each rewrite
+     */
+    public void testBlobRewriteReusesPages() throws Exception {
+        String file = newTestFile();
+        //mapped file grows in large chunks, so size is checked with plain file
+        DB db = new DBMaker(file).useRandomAccessFile().build();
+        long recid = db.createBlob();
+        byte[] buf = new byte[10000];
+        Random r = new Random(1);
+        int size = 0;
+        for (int i = 0; i < 200; i++) {
+            size = 100000 + r.nextInt(800000);
+            OutputStream out = db.writeBlob(recid, size);
+            for (int written = 0; written < size; written += buf.length) {
+                Arrays.fill(buf, (byte) i);
+                out.write(buf, 0, Math.min(buf.length, size - written));
+            }
+            out.close();
+            db.commit();
+        }
+        InputStream in = db.openBlob(recid);
+        assertEquals(size, in.available());
+        assertEquals(199, in.read());
+        db.close();
+
+        //largest blob is 900KB, old and new content are both stored until stream is closed
+        long fileSize = new File(file + StorageDiskMapped.DBR + ".0").length();
+        assertTrue("file grows: " + fileSize, fileSize < 6 * 1024 * 1024);
+    }
+
+    public void testInsertBatch() throws Exception {
+        String file = newTestFile();
+        DBAbstract db = (DBAbstract) new DBMaker(file).build();
+        Serializer<byte[]> ser = db.defaultSerializer();
+        long first = db.insert("first");
+
+        //small records with some records larger than page
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (int i = 0; i < 50000; i++)
+            records.add(UtilTT.makeRecord(i % 1000 == 0 ? 10000 : i % 100, (byte) i));
+        long[] recids = db.insertBatch(records, ser);
+        assertEquals(records.size(), recids.length);
+
+        long last = db.insert("last");
+        db.commit();
+        db.close();
+
+        db = (DBAbstract) new DBMaker(file).build();
+        ser = db.defaultSerializer();
+        assertEquals("first", db.fetch(first));
+        assertEquals("last", db.fetch(last));
+        for (int i = 0; i < recids.length; i++) {
+            byte[] b = db.fetch(recids[i], ser);
+            assertTrue(UtilTT.checkRecord(b, records.get(i).length, (byte) i));
+        }
+        //records must be independent
+        db.update(recids[1], UtilTT.makeRecord(2000, (byte) 1));
+        db.delete(recids[2]);
+        assertTrue(UtilTT.checkRecord(db.fetch(recids[1], ser), 2000, (byte) 1));
+        assertNull(db.fetch(recids[2], ser));
+        assertTrue(UtilTT.checkRecord(db.fetch(recids[3], ser), 3, (byte) 3));
+        db.close();
+    }
+
+    /**
+     * Large batch without transactions must be auto committed, the same way as single inserts
+     */
+    public void testInsertBatchAutoCommit() throws Exception {
+        DBStore db = (DBStore) new DBMaker(newTestFile()).disableTransactions().disableCache().build();
+        Serializer<byte[]> ser = db.defaultSerializer();
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (int i = 0; i < 30000; i++)
+            records.add(UtilTT.makeRecord(1000, (byte) i));
+        long[] recids = db.insertBatch(records, ser);
+        //without auto commit batch would leave 30MB of dirty pages
+        assertFalse(db.needsAutoCommit());
+        assertTrue(UtilTT.checkRecord(db.fetch(recids[0], ser), 1000, (byte) 0));
+        assertTrue(UtilTT.checkRecord(db.fetch(recids[29999], ser), 1000, (byte) 29999));
+        db.close();
+    }
+
+    /**
+     * Batch is serialized in parts, whole batch must not be held in memory
+     */
+    public void testInsertBatchSerializesInParts() throws Exception {
+        DBStore db = (DBStore) new DBMaker(newTestFile()).disableCache().build();
+        final AtomicInteger maxPos = new AtomicInteger();
+        Serializer<byte[]> ser = new Serializer<byte[]>() {
+            public void serialize(DataOutput out, byte[] obj) throws IOException {
+                maxPos.set(Math.max(maxPos.get(), ((DataInputOutput) out).getPos()));
+                out.writeInt(obj.length);
+                out.write(obj);
+            }
+
+            public byte[] deserialize(DataInput in) throws IOException {
+                byte[] b = new byte[in.readInt()];
+                in.readFully(b);
+                return b;
+            }
+        };
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (int i = 0; i < 10000; i++)
+            records.add(UtilTT.makeRecord(1000, (byte) i));
+        long[] recids = db.insertBatch(records, ser);
+        assertTrue("buffer size " + maxPos.get(), maxPos.get() < DBStore.INSERT_BATCH_PART_SIZE);
+        for (int i = 0; i < recids.length; i++)
+            assertTrue(UtilTT.checkRecord(db.fetch(recids[i], ser), 1000, (byte) i));
+        db.close();
+    }
+
+    public void testFetchAll() throws Exception {
+        DBAbstract[] dbs = {newRecordManager(), newBaseRecordManager()};
+        for (DBAbstract db : dbs) {
+            Serializer<String> ser = db.defaultSerializer();
+            long[] recids = new long[1000];
+            for (int i = 0; i < recids.length; i++)
+                recids[i] = db.insert("record" + i, ser);
+            db.commit();
+            db.delete(recids[10]);
+            //some records are in cache
+            db.fetch(recids[20], ser);
+
+            long[] toFetch = {recids[500], recids[10], recids[1], recids[20], recids[999], recids[1]};
+            List<String> ret = db.fetchAll(toFetch, ser);
+            assertEquals(6, ret.size());
+            assertEquals("record500", ret.get(0));
+            assertNull(ret.get(1));
+            assertEquals("record1", ret.get(2));
+            assertEquals("record20", ret.get(3));
+            assertEquals("record999", ret.get(4));
+            assertEquals("record1", ret.get(5));
+            db.close();
+        }
+    }
+
+    public void testRawRecords() throws Exception {
+        DB db = newRecordManager();
+        RawRecordReader<byte[]> reader = new RawRecordReader<byte[]>() {
+            public byte[] read(ByteBuffer data) throws IOException {
+                assertTrue(data.isReadOnly());
+                byte[] b = new byte[data.remaining()];
+                data.get(b);
+                return b;
+            }
+        };
+
+        //only bytes between position and limit are stored
+        ByteBuffer small = ByteBuffer.wrap(UtilTT.makeRecord(120, (byte) 1));
+        small.position(20);
+        long recid = db.insertRaw(small);
+        assertEquals(20, small.position());
+        byte[] b = db.fetchRaw(recid, reader);
+        assertEquals(100, b.length);
+        assertEquals(small.get(20), b[0]);
+
+        //record larger than page is copied
+        ByteBuffer large = ByteBuffer.allocateDirect(20000);
+        large.put(UtilTT.makeRecord(20000, (byte) 2)).flip();
+        long recid2 = db.insertRaw(large);
+        assertTrue(UtilTT.checkRecord(db.fetchRaw(recid2, reader), 20000, (byte) 2));
+
+        db.updateRaw(recid, ByteBuffer.wrap(UtilTT.makeRecord(30000, (byte) 3)));
+        assertTrue(UtilTT.checkRecord(db.fetchRaw(recid, reader), 30000, (byte) 3));
+        db.updateRaw(recid2, ByteBuffer.wrap(UtilTT.makeRecord(10, (byte) 4)));
+        assertTrue(UtilTT.checkRecord(db.fetchRaw(recid2, reader), 10, (byte) 4));
+
+        ((DBAbstract) db).delete(recid2);
+        assertNull(db.fetchRaw(recid2, reader));
+        db.close();
+    }
+
+    public void testCacheFetchAfterUpdate() throws Exception {
+        DBAbstract[] dbs = {
+                (DBAbstract) new DBMaker(newTestFile()).enableSoftCache().build(),
+                (DBAbstract) new DBMaker(newTestFile()).enableConcurrentCache().build()};
+        for (DBAbstract db : dbs) {
+            long recid = db.insert("a");
+            db.commit();
+            db.update(recid, "b");
+            //dirty entry must be found before store is asked
+            assertEquals("b", db.fetch(recid));
+            db.rollback();
+            assertEquals("a", db.fetch(recid));
+            db.close();
+        }
+    }
+
+    public void testTinyLfuCache() throws IOException {
+        String file = newTestFile();
+        DBAbstract db = (DBAbstract) new DBMaker(file).enableTinyLfuCache().setMRUCacheSize(10).build();
+        long[] recids = new long[1000];
+        for (int i = 0; i < recids.length; i++)
+            recids[i] = db.insert(i);
+        //dirty entries are written into store when evicted
+        for (int i = 0; i < recids.length; i++)
+            db.update(recids[i], i * 2);
+        for (int i = 0; i < recids.length; i++)
+            assertEquals(Integer.valueOf(i * 2), db.fetch(recids[i]));
+        db.commit();
+        db.close();
+
+        db = (DBAbstract) new DBMaker(file).disableCache().build();
+        for (int i = 0; i < recids.length; i++)
+            assertEquals(Integer.valueOf(i * 2), db.fetch(recids[i]));
+        db.close();
+    }
+
+    public void testTinyLfuCacheScanResistant() throws IOException {
+        DBCache db = (DBCache) new DBMaker(newTestFile()).enableTinyLfuCache().setMRUCacheSize(100).build();
+        long[] hot = new long[50];
+        for (int i = 0; i < hot.length; i++)
+            hot[i] = db.insert("hot" + i);
+        for (int round = 0; round < 5; round++)
+            for (long recid : hot)
+                db.fetch(recid);
+
+        long[] scan = new long[1000];
+        for (int i = 0; i < scan.length; i++)
+            scan[i] = db.insert("scan" + i);
+        for (long recid : scan)
+            db.fetch(recid);
+
+        //admission is approximate, but most of hot records must survive the scan
+        int cached = 0;
+        for (long recid : hot) {
+            DBCache.Segment seg = db.segment(recid);
+            synchronized (seg) {
+                if (seg.get(recid) != null)
+                    cached++;
+            }
+        }
+        assertTrue("cached: " + cached, cached >= hot.length * 9 / 10);
+        db.close();
+    }
+
+    public void testCacheSizeInBytes() throws IOException {
+        DBCache[] dbs = {
+                (DBCache) new DBMaker(newTestFile()).setCacheSizeInBytes(100000).build(),
+                (DBCache) new DBMaker(newTestFile()).enableTinyLfuCache().setCacheSizeInBytes(100000).build()};
+        for (DBCache db : dbs) {
+            long[] recids = new long[1000];
+            for (int i = 0; i < recids.length; i++)
+                recids[i] = db.insert(new byte[i % 2 == 0 ? 10 : 1000]);
+            db.commit();
+            for (int i = 0; i < recids.length; i++)
+                assertEquals(i % 2 == 0 ? 10 : 1000, ((byte[]) db.fetch(recids[i])).length);
+
+            DBCache.Segment seg = db._segments[0];
+            synchronized (seg) {
+                assertTrue(seg.weight() <= 100000);
+                //cache should not be limited by number of records
+                assertTrue(seg.weight() > 50000);
+            }
+            db.close();
+        }
+    }
+
+    /**
+     * Modified records are weighed by their new serialized size before they are written
+     */
+    public void testCacheSizeInBytesDirtyEntries() throws IOException {
+        DBCache[] dbs = {
+                (DBCache) new DBMaker(newTestFile()).setCacheSizeInBytes(100000).build(),
+                (DBCache) new DBMaker(newTestFile()).enableTinyLfuCache().setCacheSizeInBytes(100000).build()};
+        for (DBCache db : dbs) {
+            long[] recids = new long[100];
+            for (int i = 0; i < recids.length; i++)
+                recids[i] = db.insert(new byte[10]);
+            db.commit();
+            //records grow while they are cached
+            for (int i = 0; i < recids.length; i++)
+                db.update(recids[i], new byte[5000]);
+
+            DBCache.Segment seg = db._segments[0];
+            synchronized (seg) {
+                assertTrue("weight " + seg.weight(), seg.weight() <= 100000);
+                assertTrue(seg.weight() > 50000);
+            }
+            db.commit();
+            for (int i = 0; i < recids.length; i++)
+                assertEquals(5000, ((byte[]) db.fetch(recids[i])).length);
+            db.close();
+        }
+    }
+
+    public void testOffHeapCache() throws IOException {
+        DBCache db = (DBCache) new DBMaker(newTestFile()).setMRUCacheSize(10).enableOffHeapCache(1024 * 1024).build();
+        long[] recids = new long[1000];
+        for (int i = 0; i < recids.length; i++)
+            recids[i] = db.insert("rec" + i);
+        db.commit();
+        //first pass reads from store, second pass from off-heap cache
+        for (int pass = 0; pass < 2; pass++)
+            for (int i = 0; i < recids.length; i++)
+                assertEquals("rec" + i, db.fetch(recids[i]));
+        assertNotNull(db._offHeapCache.get(recids[0]));
+
+        //update and delete must invalidate off-heap cache
+        db.update(recids[0], "updated");
+        db.delete(recids[1]);
+        assertNull(db._offHeapCache.get(recids[0]));
+        db.commit();
+        db.clearCache();
+        assertEquals("updated", db.fetch(recids[0]));
+        assertNull(db.fetch(recids[1]));
+
+        List<String> all = db.fetchAll(new long[]{recids[2], recids[3]}, db.defaultSerializer());
+        assertEquals("rec2", all.get(0));
+        assertEquals("rec3", all.get(1));
+
+        db.update(recids[2], "rollback");
+        db.rollback();
+        assertEquals("rec2", db.fetch(recids[2]));
+        db.close();
+    }
+
+    public void testWriteBehind() throws Exception {
+        String file = newTestFile();
+        DBCache db = (DBCache) new DBMaker(file).setMRUCacheSize(1000).enableWriteBehind(10).build();
+        long[] recids = new long[100];
+        for (int i = 0; i < recids.length; i++)
+            recids[i] = db.insert("a" + i);
+        db.commit();
+        for (int i = 0; i < recids.length; i++)
+            db.update(recids[i], "b" + i);
+
+        //background thread writes oldest dirty entries into store
+        DBCache.Segment seg = db._segments[0];
+        for (int i = 0; i < 100; i++) {
+            synchronized (seg) {
+                if (seg.dirtyWeight <= 10)
+                    break;
+            }
+            Thread.sleep(50);
+        }
+        synchronized (seg) {
+            assertTrue(seg.dirtyWeight <= 10);
+        }
+        assertEquals("b0", db._db.fetch(recids[0]));
+
+        db.commit();
+        db.close();
+        db = (DBCache) new DBMaker(file).build();
+        for (int i = 0; i < recids.length; i++)
+            assertEquals("b" + i, db.fetch(recids[i]));
+        db.close();
+    }
+
+    public void testCacheWarmStart() throws Exception {
+        String file = newTestFile();
+        DBCache db = (DBCache) new DBMaker(file).setMRUCacheSize(100)
+                .enableOffHeapCache(1024 * 1024).enableCacheWarmStart().build();
+        long[] recids = new long[1000];
+        for (int i = 0; i < recids.length; i++)
+            recids[i] = db.insert("rec" + i);
+        db.commit();
+        for (int i = 0; i < recids.length; i++)
+            db.fetch(recids[i]);
+        db.close();
+
+        db = (DBCache) new DBMaker(file).setMRUCacheSize(100)
+                .enableOffHeapCache(1024 * 1024).enableCacheWarmStart().build();
+        db._warmUpThread.join();
+        //records were prefetched into off-heap cache
+        byte[] data = db._offHeapCache.get(recids[999]);
+        assertEquals("rec999", db.defaultSerializer().deserialize(new DataInputOutput(data)));
+        assertNotNull(db._offHeapCache.get(recids[0]));
+        for (int i = 0; i < recids.length; i++)
+            assertEquals("rec" + i, db.fetch(recids[i]));
+        db.close();
+    }
+
+    public void testCacheWarmStartRequiresOffHeapCache() throws Exception {
+        try {
+            new DBMaker(newTestFile()).setMRUCacheSize(100).enableCacheWarmStart().build();
+            fail();
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        //no cache, so warm start has no effect
+        new DBMaker(newTestFile()).disableCache().enableCacheWarmStart().build().close();
+    }
+
+    public void testCacheStatistics() throws Exception {
+        String file = newTestFile();
+        DBAbstract db = (DBAbstract) new DBMaker(file).setMRUCacheSize(10).enableCacheStatisticsMBean().build();
+        long[] recids = new long[20];
+        for (int i = 0; i < recids.length; i++)
+            recids[i] = db.insert("rec" + i);
+        CacheStatistics stat = db.getCacheStatistics();
+        assertEquals(10, stat.getEvictions());
+        assertEquals(10, stat.getWeightedSize());
+
+        assertEquals("rec19", db.fetch(recids[19]));
+        assertEquals("rec0", db.fetch(recids[0]));
+        db.update(recids[5], "new");
+        db.commit();
+        stat = db.getCacheStatistics();
+        assertEquals(1, stat.getHits());
+        assertEquals(1, stat.getMisses());
+        assertEquals(0.5D, stat.getHitRatio());
+        assertEquals(12, stat.getEvictions());
+        assertEquals(1, stat.getDirtyWriteBacks());
+        assertEquals(10, stat.getWeightedSize());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("net.kotek.jdbm:type=CacheStatistics,name=" + ObjectName.quote(file));
+        assertEquals(Long.valueOf(1), server.getAttribute(name, "Hits"));
+        db.close();
+        assertFalse(server.isRegistered(name));
+
+        db = (DBAbstract) new DBMaker(file).disableCache().build();
+        assertNull(db.getCacheStatistics());
+        db.close();
+    }
+
 }
@@ -1,5 +1,6 @@
 package net.kotek.jdbm;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 
@@ -85,4 +86,157 @@ public class DefragTest extends TestCaseWithTestFile {
 
         r.close();
     }
+
+    public void testCompact() throws IOException {
+        String file = newTestFile();
+        DBStore r = new DBStore(file, false, false);
+        Map<Long, String> records = new HashMap<Long, String>();
+        for (int i = 0; i < 20000; i++) {
+            String s = i + "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa" + i;
+            records.put(r.insert(s), s);
+        }
+        r.commit();
+        //make data pages sparse
+        Iterator<Long> iter = records.keySet().iterator();
+        for (int i = 0; iter.hasNext(); i++) {
+            Long recid = iter.next();
+            if (i % 4 != 0) {
+                r.delete(recid);
+                iter.remove();
+            }
+        }
+        r.commit();
+
+        long usedPages = r.countPages(Magic.USED_PAGE);
+        long freePages = r.countPages(Magic.FREE_PAGE);
+        long recordCount = r.countRecords();
+        int steps = 0;
+        Random random = new Random(1);
+        List<Long> recids = new ArrayList<Long>(records.keySet());
+        while (!r.compact(100)) {
+            steps++;
+            //modify store between steps
+            Long recid = recids.get(random.nextInt(recids.size()));
+            String s = "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb" + steps;
+            r.update(recid, s);
+            records.put(recid, s);
+            s = "c" + steps;
+            records.put(r.insert(s), s);
+        }
+        assertTrue(steps > 1);
+        assertTrue(r.countPages(Magic.USED_PAGE) < usedPages / 2);
+        assertTrue(r.countPages(Magic.FREE_PAGE) > freePages);
+        assertEquals(recordCount + steps, r.countRecords());
+        for (Long recid : records.keySet())
+            assertEquals(records.get(recid), r.fetch(recid));
+
+        r.close();
+        r = new DBStore(file, false, false);
+        for (Long recid : records.keySet())
+            assertEquals(records.get(recid), r.fetch(recid));
+        r.close();
+    }
+
+    /**
+     * Free pages at end of file are released from storage by compaction
+     */
+    public void testCompactTruncatesFreeTail() throws IOException {
+        for (int variant = 0; variant < 4; variant++) {
+            boolean compressed = variant == 1;
+            boolean transactionsDisabled = variant == 2;
+            boolean mapped = variant == 3;
+            String file = newTestFile();
+            File dataFile = new File(file + (compressed ? StorageDiskCompressed.DATA : StorageDiskMapped.DBR) + ".0");
+            DBStore r = new DBStore(file, false, transactionsDisabled, null, null, !mapped, compressed,
+                    Storage.DEFAULT_BLOCK_SIZE, RecordFile.DEFAULT_PAGE_CACHE_SIZE);
+            if (!transactionsDisabled)
+                //write data file on each commit, so its size can be checked
+                r.setCheckpoint(false, 0, 0);
+            List<Long> small = new ArrayList<Long>();
+            for (int i = 0; i < 1000; i++)
+                small.add(r.insert("small" + i));
+            //pages with free records and free logical rowids are allocated now, not at end of file
+            r.delete(r.insert("deleted"));
+            r.commit();
+            long sizeBefore = dataFile.length();
+
+            //large records occupy runs of pages at end of file
+            Random random = new Random(1);
+            List<Long> large = new ArrayList<Long>();
+            for (int i = 0; i < 20; i++) {
+                byte[] b = new byte[100000];
+                random.nextBytes(b);
+                large.add(r.insert(b));
+            }
+            r.commit();
+            long pages = r.countPages(Magic.USED_PAGE);
+            for (Long recid : large)
+                r.delete(recid);
+            r.commit();
+            if (!mapped)
+                assertTrue(dataFile.length() > sizeBefore + 20 * 100000);
+
+            while (!r.compact(100)) {
+            }
+            assertEquals(0, r.countPages(Magic.FREE_PAGE));
+            assertTrue(r.countPages(Magic.USED_PAGE) < pages);
+            if (!mapped)
+                assertTrue("file is not truncated: " + dataFile.length(),
+                        dataFile.length() <= sizeBefore + 2 * Storage.DEFAULT_BLOCK_SIZE);
+
+            //file grows again after truncation
+            long recid = r.insert(new byte[50000]);
+            r.commit();
+            r.close();
+
+            r = new DBStore(file, false, transactionsDisabled, null, null, !mapped, compressed,
+                    Storage.DEFAULT_BLOCK_SIZE, RecordFile.DEFAULT_PAGE_CACHE_SIZE);
+            for (int i = 0; i < small.size(); i++)
+                assertEquals("small" + i, r.fetch(small.get(i)));
+            assertEquals(50000, ((byte[]) r.fetch(recid)).length);
+            r.close();
+        }
+    }
+
+    /**
+     * Compaction pass abandoned by close or rollback must not lose free records
+     */
+    public void testCompactAbandoned() throws IOException {
+        for (boolean rollback : new boolean[]{false, true}) {
+            String file = newTestFile();
+            DBStore r = new DBStore(file, false, false);
+            List<Long> recids = new ArrayList<Long>();
+            for (int i = 0; i < 20000; i++) {
+                recids.add(r.insert(i + "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa" + i));
+            }
+            r.commit();
+            int deleted = 0;
+            for (int i = 0; i < recids.size(); i++) {
+                if (i % 4 != 0) {
+                    r.delete(recids.get(i));
+                    deleted++;
+                }
+            }
+            r.commit();
+
+            //select pages, but stop before records are moved
+            assertFalse(r.compact(50));
+            if (rollback) {
+                r.insert("uncommitted");
+                r.rollback();
+            } else {
+                r.close();
+                r = new DBStore(file, false, false);
+            }
+
+            //deleted records are reused, so file does not grow
+            long usedPages = r.countPages(Magic.USED_PAGE);
+            for (int i = 0; i < deleted; i++) {
+                r.insert(i + "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa" + i);
+            }
+            r.commit();
+            assertEquals(usedPages, r.countPages(Magic.USED_PAGE));
+            r.close();
+        }
+    }
 }
@@ -43,15 +43,18 @@ public class FileHeaderTest extends TestCase {
      * Test root rowids
      */
     public void testRootRowids() throws Exception {
-        BlockIo b = new BlockIo(0, new byte[Storage.BLOCK_SIZE]);
+        BlockIo b = new BlockIo(0, new byte[Storage.DEFAULT_BLOCK_SIZE]);
         b.fileHeaderCheckHead(true);
         for (int i = 0; i < Magic.FILE_HEADER_NROOTS; i++) {
-            b.fileHeaderSetRoot(i, 100 * i);
+            if (i != Magic.FILE_HEADER_ROOT_BLOCK_SIZE)
+                b.fileHeaderSetRoot(i, 100 * i);
         }
 
         b.fileHeaderCheckHead(false);
+        assertEquals(Storage.DEFAULT_BLOCK_SIZE, b.fileHeaderGetRoot(Magic.FILE_HEADER_ROOT_BLOCK_SIZE));
         for (int i = 0; i < Magic.FILE_HEADER_NROOTS; i++) {
-            assertEquals("root " + i, i * 100, b.fileHeaderGetRoot(i));
+            if (i != Magic.FILE_HEADER_ROOT_BLOCK_SIZE)
+                assertEquals("root " + i, i * 100, b.fileHeaderGetRoot(i));
         }
     }
 
@@ -26,20 +26,21 @@ public class FreeLogicalRowIdPageTest extends TestCase {
      * Test basics
      */
     public void testBasics() throws Exception {
-        byte[] data = new byte[Storage.BLOCK_SIZE];
+        byte[] data = new byte[Storage.DEFAULT_BLOCK_SIZE];
         BlockIo page = new BlockIo(0, data);
+        Location location = new Location(Storage.DEFAULT_BLOCK_SIZE);
 
         // we have a completely empty page.
         assertEquals("zero count", 0, page.FreeLogicalRowId_getCount());
 
         // three allocs
-        short id = page.FreeLogicalRowId_alloc((short) 0);
+        int id = page.FreeLogicalRowId_alloc((short) 0);
         id = page.FreeLogicalRowId_alloc((short) 1);
         id = page.FreeLogicalRowId_alloc((short) 2);
         assertEquals("three count", 3, page.FreeLogicalRowId_getCount());
 
         // setup last id (2)
-        page.pageHeaderSetLocation(id, Location.toLong(1, (short) 2));
+        page.pageHeaderSetLocation(id, location.toLong(1, 2));
 
 
         // two frees
@@ -61,8 +62,8 @@ public class FreeLogicalRowIdPageTest extends TestCase {
 
         id = page.FreeLogicalRowId_slotToOffset(2);
         long loc = page.pageHeaderGetLocation(id);
-        assertEquals("block", 1, Location.getBlock(loc));
-        assertEquals("offset", 2, Location.getOffset(loc));
+        assertEquals("block", 1, location.getBlock(loc));
+        assertEquals("offset", 2, location.getOffset(loc));
 
     }
 
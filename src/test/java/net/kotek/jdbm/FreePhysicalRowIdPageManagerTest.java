@@ -52,5 +52,106 @@ public class FreePhysicalRowIdPageManagerTest extends TestCaseWithTestFile {
         pm.close();
         f.close();
     }
-}
 
+    /**
+     * Test that smallest large enough free record is reused
+     */
+    public void testBestFit() throws Exception {
+        RecordFile f = newRecordFile();
+        PageManager pm = new PageManager(f);
+        FreePhysicalRowIdPageManager freeMgr = new FreePhysicalRowIdPageManager(
+                f, pm);
+
+        freeMgr.put(1000, 1000);
+        freeMgr.put(2000, 200);
+        freeMgr.put(3000, 500);
+        // records freed in transaction can be reused before commit
+        assertEquals(2000, freeMgr.get(150));
+        freeMgr.commit();
+
+        assertEquals(3000, freeMgr.get(450));
+        // 1000 wastes too much space
+        assertEquals(0, freeMgr.get(450));
+        assertEquals(1000, freeMgr.get(1000));
+        assertEquals(0, freeMgr.get(1));
+
+        pm.close();
+        f.close();
+    }
+
+    /**
+     * Test that index is rebuilt from free physical rowid pages
+     */
+    public void testReload() throws Exception {
+        RecordFile f = newRecordFile();
+        PageManager pm = new PageManager(f);
+        FreePhysicalRowIdPageManager freeMgr = new FreePhysicalRowIdPageManager(
+                f, pm);
+
+        // spans several free physical rowid pages
+        final int count = 10000;
+        for (int i = 1; i <= count; i++)
+            freeMgr.put(i, 200 * i);
+        freeMgr.commit();
+        assertEquals(100, freeMgr.get(200 * 100));
+
+        freeMgr = new FreePhysicalRowIdPageManager(f, pm);
+        assertEquals(0, freeMgr.get(200 * 100));
+        for (int i = count; i > 0; i--) {
+            if (i != 100)
+                assertEquals(i, freeMgr.get(200 * i));
+        }
+        assertEquals(0, freeMgr.get(1));
+
+        // all free physical rowid pages were released
+        assertEquals(0, pm.getFirst(Magic.FREEPHYSIDS_PAGE));
+
+        pm.close();
+        f.close();
+    }
+
+    /**
+     * Test that rollback restores records reused in transaction, without loading index again
+     */
+    public void testRollback() throws Exception {
+        RecordFile f = newRecordFile();
+        PageManager pm = new PageManager(f);
+        FreePhysicalRowIdPageManager freeMgr = new FreePhysicalRowIdPageManager(
+                f, pm);
+
+        // spans several free physical rowid pages, some become empty
+        final int count = 2000;
+        for (int i = 1; i <= count; i++)
+            freeMgr.put(i, 200 * i);
+        freeMgr.commit();
+        pm.commit();
+        for (int i = 1; i <= count / 2; i++)
+            assertEquals(i, freeMgr.get(200 * i));
+        freeMgr.put(count + 1, 200 * (count + 1));
+        freeMgr.rollback();
+        pm.rollback();
+
+        // slots of rolled back pages are filled again
+        freeMgr.put(count + 2, 200 * (count + 2));
+        freeMgr.commit();
+        pm.commit();
+        assertEquals(0, freeMgr.get(200 * (count + 1)));
+        for (int i = count + 2; i > 0; i--) {
+            if (i != count + 1)
+                assertEquals(i, freeMgr.get(200 * i));
+        }
+        freeMgr.rollback();
+        pm.rollback();
+
+        // index matches free physical rowid pages
+        freeMgr = new FreePhysicalRowIdPageManager(f, pm);
+        for (int i = count + 2; i > 0; i--) {
+            if (i != count + 1)
+                assertEquals(i, freeMgr.get(200 * i));
+        }
+        assertEquals(0, freeMgr.get(1));
+
+        pm.close();
+        f.close();
+    }
+}
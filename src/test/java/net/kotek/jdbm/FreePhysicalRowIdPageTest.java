@@ -25,21 +25,22 @@ public class FreePhysicalRowIdPageTest extends TestCase {
      * Test basics
      */
     public void testBasics() throws Exception {
-        byte[] data = new byte[Storage.BLOCK_SIZE];
+        byte[] data = new byte[Storage.DEFAULT_BLOCK_SIZE];
         BlockIo page = new BlockIo(0, data);
+        Location location = new Location(Storage.DEFAULT_BLOCK_SIZE);
 
 
         // we have a completely empty page.
         assertEquals("zero count", 0, page.FreePhysicalRowId_getCount());
 
         // three allocs
-        short id = page.FreePhysicalRowId_alloc(0);
+        int id = page.FreePhysicalRowId_alloc(0);
         id = page.FreePhysicalRowId_alloc(1);
         id = page.FreePhysicalRowId_alloc(2);
         assertEquals("three count", 3, page.FreePhysicalRowId_getCount());
 
         // setup last id (2)
-        page.pageHeaderSetLocation(id, Location.toLong(1, (short) 2));
+        page.pageHeaderSetLocation(id, location.toLong(1, 2));
         page.FreePhysicalRowId_setSize(id, 3);
 
         // two frees
@@ -61,19 +62,19 @@ public class FreePhysicalRowIdPageTest extends TestCase {
 
         id = page.FreePhysicalRowId_slotToOffset(2);
         long loc = page.pageHeaderGetLocation(id);
-        assertEquals("block", 1, Location.getBlock(loc));
-        assertEquals("offset", 2, Location.getOffset(loc));
+        assertEquals("block", 1, location.getBlock(loc));
+        assertEquals("offset", 2, location.getOffset(loc));
         assertEquals("size", 3, page.FreePhysicalRowId_getSize(id));
 
     }
 
 
     public void testOffsetSlotConversion() {
-        byte[] data = new byte[Storage.BLOCK_SIZE];
+        byte[] data = new byte[Storage.DEFAULT_BLOCK_SIZE];
         BlockIo page = new BlockIo(0, data);
 
         for (int slot = 0; slot < 1e5; slot++) {
-            short pos = page.FreePhysicalRowId_slotToOffset(slot);
+            int pos = page.FreePhysicalRowId_slotToOffset(slot);
             if (pos > 20000) return; //out of page size
             int slot2 = page.FreePhysicalRowId_offsetToSlot(pos);
             assertEquals("failed for " + slot + " , " + pos, slot, slot2);
@@ -32,10 +32,17 @@ public class LocationTest extends TestCase {
      */
     public void testBasics() {
 
-        long loc = Location.toLong(10, (short) 20);
+        Location location = new Location(Storage.DEFAULT_BLOCK_SIZE);
+        long loc = location.toLong(10, 20);
 
-        assertEquals("block2", 10, Location.getBlock(loc));
-        assertEquals("offset2", 20, Location.getOffset(loc));
+        assertEquals("block2", 10, location.getBlock(loc));
+        assertEquals("offset2", 20, location.getOffset(loc));
+
+        //largest block has offsets which do not fit into signed short
+        location = new Location(Storage.MAX_BLOCK_SIZE);
+        loc = location.toLong(10, 65000);
+        assertEquals("block3", 10, location.getBlock(loc));
+        assertEquals("offset3", 65000, location.getOffset(loc));
 
     }
     
@@ -50,14 +57,16 @@ public class LocationTest extends TestCase {
     
     
     public void testCompressRecid(){
-        for(long l = Magic.PAGE_HEADER_SIZE;l<Storage.BLOCK_SIZE;l+=6){
-            assertEquals(l,Location.decompressRecid(Location.compressRecid(l)));
-        }
-        
-        for(long l = Magic.PAGE_HEADER_SIZE+Storage.BLOCK_SIZE*5;l<Storage.BLOCK_SIZE*6;l+=6){
-            assertEquals(l,Location.decompressRecid(Location.compressRecid(l)));
+        for (int blockSize = Storage.MIN_BLOCK_SIZE; blockSize <= Storage.MAX_BLOCK_SIZE; blockSize *= 2) {
+            Location location = new Location(blockSize);
+            for(long l = Magic.PAGE_HEADER_SIZE;l<blockSize;l+=6){
+                assertEquals(l,location.decompressRecid(location.compressRecid(l)));
+            }
+
+            for(long l = Magic.PAGE_HEADER_SIZE+blockSize*5;l<blockSize*6;l+=6){
+                assertEquals(l,location.decompressRecid(location.compressRecid(l)));
+            }
         }
-        
     }
 
 }
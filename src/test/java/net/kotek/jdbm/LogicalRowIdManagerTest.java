@@ -45,12 +45,12 @@ public class LogicalRowIdManagerTest extends TestCaseWithTestFile {
         RecordFile free = newRecordFile();
         PageManager pmfree = new PageManager(free);
         LogicalRowIdManager logMgr = new LogicalRowIdManager(f, pm, new FreeLogicalRowIdPageManager(free, pmfree));
-        long physid = Location.toLong(20, (short) 234);
+        long physid = f.location.toLong(20, 234);
 
         long logid = logMgr.insert(physid);
         assertEquals("check one", physid, logMgr.fetch(logid));
 
-        physid = Location.toLong(10, (short) 567);
+        physid = f.location.toLong(10, 567);
         logMgr.update(logid, physid);
         assertEquals("check two", physid, logMgr.fetch(logid));
 
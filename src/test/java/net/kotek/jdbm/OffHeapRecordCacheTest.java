@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package net.kotek.jdbm;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class OffHeapRecordCacheTest extends TestCase {
+
+    public void testPutGetRemove() {
+        OffHeapRecordCache cache = new OffHeapRecordCache(1024 * 1024);
+        byte[] data = {1, 2, 3, 4};
+        cache.put(10, data, 3);
+        assertTrue(Arrays.equals(new byte[]{1, 2, 3}, cache.get(10)));
+        assertNull(cache.get(11));
+
+        //replaced record
+        cache.put(10, data, 4);
+        assertTrue(Arrays.equals(data, cache.get(10)));
+
+        cache.remove(10);
+        assertNull(cache.get(10));
+        cache.close();
+        assertNull(cache.get(10));
+    }
+
+    public void testIndexGrowsAndRemoves() {
+        OffHeapRecordCache cache = new OffHeapRecordCache(16 * 1024 * 1024);
+        byte[] data = new byte[8];
+        for (int i = 1; i <= 100000; i++) {
+            data[0] = (byte) i;
+            cache.put(i, data, data.length);
+        }
+        //remove every other record, shifted entries must be still found
+        for (int i = 1; i <= 100000; i += 2)
+            cache.remove(i);
+        for (int i = 1; i <= 100000; i++) {
+            byte[] b = cache.get(i);
+            if (i % 2 == 1)
+                assertNull(b);
+            else
+                assertEquals((byte) i, b[0]);
+        }
+        cache.close();
+    }
+
+    public void testOldestSlabIsReused() {
+        OffHeapRecordCache cache = new OffHeapRecordCache(OffHeapRecordCache.MIN_SLAB_SIZE * 4);
+        byte[] data = new byte[1000];
+        int count = OffHeapRecordCache.MIN_SLAB_SIZE * 8 / 1000;
+        for (int i = 1; i <= count; i++)
+            cache.put(i, data, data.length);
+        //oldest records were dropped, newest are still there
+        assertNull(cache.get(1));
+        assertNotNull(cache.get(count));
+
+        //record larger than slab is not cached
+        cache.put(1, new byte[OffHeapRecordCache.MIN_SLAB_SIZE], OffHeapRecordCache.MIN_SLAB_SIZE);
+        assertNull(cache.get(1));
+        cache.close();
+    }
+
+    public void testConcurrentAccess() throws InterruptedException {
+        final OffHeapRecordCache cache = new OffHeapRecordCache(16 * 1024 * 1024);
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t * 10000 + 1;
+            threads[t] = new Thread() {
+                public void run() {
+                    byte[] data = new byte[16];
+                    for (int i = first; i < first + 10000; i++) {
+                        data[0] = (byte) i;
+                        cache.put(i, data, data.length);
+                    }
+                    for (int i = first; i < first + 10000; i++) {
+                        byte[] b = cache.get(i);
+                        if (b == null || b[0] != (byte) i)
+                            errors.incrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(0, errors.get());
+
+        Utils.LongArrayList recids = new Utils.LongArrayList();
+        cache.recids(recids);
+        assertEquals(80000, recids.size);
+        cache.close();
+    }
+
+    public void testClear() {
+        OffHeapRecordCache cache = new OffHeapRecordCache(1024 * 1024);
+        cache.put(1, new byte[10], 10);
+        cache.clear();
+        assertNull(cache.get(1));
+        cache.put(2, new byte[10], 10);
+        assertNotNull(cache.get(2));
+        cache.close();
+    }
+}
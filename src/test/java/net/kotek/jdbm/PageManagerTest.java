@@ -16,6 +16,8 @@
 
 package net.kotek.jdbm;
 
+import java.util.TreeSet;
+
 /**
  * This class contains all Unit tests for {@link PageManager}.
  */
@@ -60,4 +62,82 @@ public class PageManagerTest extends TestCaseWithTestFile {
         f.close();
     }
 
+    /**
+     * Test allocation of contiguous runs from free pages, and rollback of free page index
+     */
+    public void testAllocateRun() throws Exception {
+        RecordFile f = newRecordFile();
+        PageManager pm = new PageManager(f);
+        for (int i = 0; i < 100; i++)
+            pm.allocate(Magic.USED_PAGE);
+        for (long page : new long[]{15, 12, 10, 11, 13, 14, 16, 17, 18, 19, 32, 30, 34, 31, 33, 50})
+            pm.free(Magic.USED_PAGE, page);
+        pm.commit();
+
+        //shortest run long enough is used
+        assertEquals(30, pm.allocateRun(Magic.USED_PAGE, 5));
+        assertEquals(10, pm.allocateRun(Magic.USED_PAGE, 8));
+        assertFreePages(pm, 18, 19, 50);
+
+        //changes are undone on rollback
+        pm.free(Magic.USED_PAGE, 60);
+        pm.free(Magic.USED_PAGE, 61);
+        pm.rollback();
+        assertFreePages(pm, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 30, 31, 32, 33, 34, 50);
+        assertEquals(30, pm.allocateRun(Magic.USED_PAGE, 2));
+        assertEquals(32, pm.allocateRun(Magic.USED_PAGE, 3));
+        assertEquals(10, pm.allocateRun(Magic.USED_PAGE, 3));
+        //single page is allocated from lowest free page
+        assertEquals(13, pm.allocate(Magic.USED_PAGE));
+        //no run is long enough, it is allocated at end of file
+        assertEquals(101, pm.allocateRun(Magic.USED_PAGE, 10));
+        assertFreePages(pm, 14, 15, 16, 17, 18, 19, 50);
+        pm.commit();
+        assertEquals(14, pm.allocateRun(Magic.USED_PAGE, 6));
+        assertEquals(50, pm.allocate(Magic.USED_PAGE));
+        assertFreePages(pm);
+
+        pm.close();
+        f.close();
+    }
+
+    /**
+     * Free pages at end of file are removed from free list, so file can be truncated
+     */
+    public void testRemoveFreeTail() throws Exception {
+        RecordFile f = newRecordFile();
+        PageManager pm = new PageManager(f);
+        for (int i = 0; i < 100; i++)
+            pm.allocate(Magic.USED_PAGE);
+        pm.free(Magic.USED_PAGE, 50);
+        assertEquals(0, pm.removeFreeTail());
+        for (long page = 100; page > 90; page--)
+            pm.free(Magic.USED_PAGE, page);
+        pm.commit();
+
+        assertEquals(91, pm.removeFreeTail());
+        assertFreePages(pm, 50);
+        pm.rollback();
+        assertFreePages(pm, 50, 91, 92, 93, 94, 95, 96, 97, 98, 99, 100);
+        assertEquals(91, pm.removeFreeTail());
+        pm.commit();
+        //file continues after last used page
+        assertEquals(50, pm.allocate(Magic.USED_PAGE));
+        assertEquals(91, pm.allocate(Magic.USED_PAGE));
+        assertFreePages(pm);
+
+        pm.close();
+        f.close();
+    }
+
+    private void assertFreePages(PageManager pm, long... expected) throws Exception {
+        TreeSet<Long> free = new TreeSet<Long>();
+        for (long cur = pm.getFirst(Magic.FREE_PAGE); cur != 0; cur = pm.getNext(cur))
+            assertTrue(free.add(cur));
+        TreeSet<Long> expectedSet = new TreeSet<Long>();
+        for (long page : expected)
+            expectedSet.add(page);
+        assertEquals(expectedSet, free);
+    }
+
 }
@@ -87,4 +87,47 @@ public class PhysicalRowIdManagerTest extends TestCaseWithTestFile {
         f.forceClose();
     }
 
+
+    /**
+     * Large record must occupy contiguous run of pages, even if there are free pages
+     */
+    public void testContiguousExtent() throws Exception {
+        RecordFile f = newRecordFile();
+        PageManager pm = new PageManager(f);
+        RecordFile free = newRecordFile();
+        PageManager pmfree = new PageManager(free);
+        PhysicalRowIdManager physMgr = new PhysicalRowIdManager(f, pm, new FreePhysicalRowIdPageManager(free, pmfree));
+
+        //create some free pages
+        long[] pages = new long[10];
+        for (int i = 0; i < pages.length; i++)
+            pages[i] = pm.allocate(Magic.USED_PAGE);
+        for (int i = 0; i < pages.length; i += 2)
+            pm.free(Magic.USED_PAGE, pages[i]);
+
+        byte[] data = UtilTT.makeRecord(100000, (byte) 5);
+        long loc = physMgr.insert(data, 0, data.length);
+
+        //follow record pages, each continuation page must be next page in file
+        long page = f.location.getBlock(loc);
+        int left = data.length - (f.blockSize - f.location.getOffset(loc) - RecordHeader.SIZE);
+        while (left > 0) {
+            long next = pm.getNext(page);
+            if (page != f.location.getBlock(loc))
+                assertEquals(page + 1, next);
+            page = next;
+            left -= f.blockSize - Magic.DATA_PAGE_O_DATA;
+        }
+
+        //read it back in small pieces
+        assertEquals(data.length, physMgr.getSize(loc));
+        byte[] read = new byte[data.length];
+        long pos = physMgr.dataStart(loc);
+        for (int i = 0; i < read.length; i += 777)
+            pos = physMgr.readData(pos, read, i, Math.min(777, read.length - i));
+        assertTrue(UtilTT.checkRecord(read, data.length, (byte) 5));
+
+        f.forceClose();
+    }
+
 }
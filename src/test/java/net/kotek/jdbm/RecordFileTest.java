@@ -143,4 +143,95 @@ final public class RecordFileTest
     }
 
 
+    /**
+     * Test clean pages are served from page cache and evicted when cache is full
+     */
+    public void testPageCache()
+            throws Exception {
+        String f = newTestFile();
+        RecordFile file = new RecordFile(f, false, true, null, null, true, false, Storage.DEFAULT_BLOCK_SIZE, 4 * Storage.DEFAULT_BLOCK_SIZE);
+
+        for (int i = 1; i < 10; i++) {
+            BlockIo data = file.get(i);
+            data.writeByte(i, (byte) i);
+            file.release(i, true);
+        }
+        file.commit();
+
+        long misses = file.getCacheMisses();
+        BlockIo data = file.get(1);
+        file.release(data);
+        data = file.get(1);
+        assertEquals((byte) 1, data.readByte(1));
+        file.release(data);
+        assertTrue(file.getCacheHits() > 0);
+
+        //read more pages than fits into cache
+        for (int i = 1; i < 10; i++) {
+            data = file.get(i);
+            assertEquals((byte) i, data.readByte(i));
+            file.release(data);
+        }
+        assertTrue(file.getCacheMisses() > misses);
+        file.close();
+
+        //modified page must not be served from cache after rollback
+        file = new RecordFile(f, false, false, null, null, true, false, Storage.DEFAULT_BLOCK_SIZE, 4 * Storage.DEFAULT_BLOCK_SIZE);
+        data = file.get(2);
+        file.release(data);
+        data = file.get(2);
+        data.writeByte(2, (byte) 100);
+        file.release(data);
+        file.rollback();
+        data = file.get(2);
+        assertEquals((byte) 2, data.readByte(2));
+        file.release(data);
+
+        file.close();
+    }
+
+    /**
+     * Test pages of default mapped storage are cached, and cached page sees later modifications
+     */
+    public void testPageCacheMappedStorage()
+            throws Exception {
+        String f = newTestFile();
+        RecordFile file = new RecordFile(f);
+        for (int i = 1; i < 10; i++) {
+            BlockIo data = file.get(i);
+            data.writeByte(i, (byte) i);
+            file.release(i, true);
+        }
+        file.commit();
+        file.close();
+
+        file = new RecordFile(f);
+        for (int i = 1; i < 10; i++) {
+            BlockIo data = file.get(i);
+            assertEquals((byte) i, data.readByte(i));
+            file.release(data);
+        }
+        long hits = file.getCacheHits();
+        for (int i = 1; i < 10; i++) {
+            BlockIo data = file.get(i);
+            assertEquals((byte) i, data.readByte(i));
+            file.release(data);
+        }
+        assertEquals(hits + 9, file.getCacheHits());
+
+        BlockIo data = file.get(3);
+        data.writeByte(3, (byte) 100);
+        file.release(data);
+        file.commit();
+        file.close();
+
+        file = new RecordFile(f);
+        data = file.get(3);
+        file.release(data);
+        data = file.get(3);
+        assertEquals((byte) 100, data.readByte(3));
+        file.release(data);
+        file.close();
+    }
+
 }
@@ -30,7 +30,7 @@ public class RecordHeaderTest extends TestCase {
      * Test basics - read and write at an offset
      */
     public void testReadWrite() throws Exception {
-        byte[] data = new byte[Storage.BLOCK_SIZE];
+        byte[] data = new byte[Storage.DEFAULT_BLOCK_SIZE];
         BlockIo test = new BlockIo(0, data);
         //RecordHeader hdr = new RecordHeader(test, (short) 6);
         RecordHeader.setAvailableSize(test, (short) 6, 2345);
@@ -47,7 +47,7 @@ public class RecordHeaderTest extends TestCase {
         assertEquals("inconsistent rounding at max rec size",
                 RecordHeader.MAX_RECORD_SIZE, RecordHeader.roundAvailableSize(RecordHeader.MAX_RECORD_SIZE));
 
-        byte[] data = new byte[Storage.BLOCK_SIZE];
+        byte[] data = new byte[Storage.DEFAULT_BLOCK_SIZE];
         BlockIo test = new BlockIo(0, data);
         Random r = new Random();
         //RecordHeader hdr = new RecordHeader(test, (short) 6);
@@ -118,7 +118,7 @@ public class RecordHeaderTest extends TestCase {
 
 
     public void testSetCurrentSize() {
-        BlockIo b = new BlockIo(4l, new byte[Storage.BLOCK_SIZE]);
+        BlockIo b = new BlockIo(4l, new byte[Storage.DEFAULT_BLOCK_SIZE]);
         short pos = 10;
 
         RecordHeader.setAvailableSize(b, pos, 1000);
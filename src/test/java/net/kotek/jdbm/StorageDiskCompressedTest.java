@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package net.kotek.jdbm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class StorageDiskCompressedTest extends TestCaseWithTestFile {
+
+    public void testLZFCodec() throws Exception {
+        LZFCodec lzf = new LZFCodec();
+        Random r = new Random(1);
+        byte[] out = new byte[LZFCodec.maxCompressedLength(Storage.DEFAULT_BLOCK_SIZE)];
+        byte[] expanded = new byte[Storage.DEFAULT_BLOCK_SIZE];
+        for (int i = 0; i < 100; i++) {
+            byte[] in = new byte[Storage.DEFAULT_BLOCK_SIZE];
+            if (i % 3 == 0) {
+                //incompressible
+                r.nextBytes(in);
+            } else if (i % 10 == 1) {
+                //long runs of single byte, back-references overlap
+                Arrays.fill(in, (byte) i);
+                in[i] = 1;
+            } else {
+                //repeating patterns
+                for (int j = 0; j < in.length; j++)
+                    in[j] = (byte) (r.nextInt(1 + i % 7) + j % (i + 1));
+            }
+            int len = lzf.compress(in, in.length, out);
+            if (i % 3 != 0)
+                assertTrue(len < in.length);
+            Arrays.fill(expanded, (byte) 0);
+            LZFCodec.expand(out, 0, expanded, in.length);
+            assertTrue(Arrays.equals(in, expanded));
+        }
+    }
+
+    public void testLZFCodecCorrupted() throws Exception {
+        byte[] expanded = new byte[16];
+        try {
+            //back-reference before start of data
+            LZFCodec.expand(new byte[]{0, 'a', (byte) (1 << 5), 5}, 0, expanded, 16);
+            fail();
+        } catch (IOException e) {
+            //expected
+        }
+        try {
+            //data end before expanded size is reached
+            LZFCodec.expand(new byte[]{3, 'a', 'b', 'c', 'd'}, 0, expanded, 16);
+            fail();
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    public void testReadWrite() throws Exception {
+        String f = newTestFile();
+        StorageDiskCompressed storage = new StorageDiskCompressed(f, false, false, Storage.DEFAULT_BLOCK_SIZE);
+        ByteBuffer page = ByteBuffer.allocate(Storage.DEFAULT_BLOCK_SIZE);
+        Random r = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            page.putInt(0, i);
+            page.putLong(1000, r.nextLong());
+            storage.write(i, page);
+            storage.write(-i - 1, page);
+        }
+        //incompressible page
+        byte[] random = new byte[Storage.DEFAULT_BLOCK_SIZE];
+        r.nextBytes(random);
+        storage.write(1000, ByteBuffer.wrap(random));
+        storage.sync();
+        storage.forceClose();
+
+        //small file, all pages are mostly zeros
+        assertTrue(new File(f + StorageDiskCompressed.DATA + ".0").length() < 300 * StorageDiskCompressed.UNIT_SIZE
+                + Storage.DEFAULT_BLOCK_SIZE);
+
+        storage = new StorageDiskCompressed(f, false, false, Storage.DEFAULT_BLOCK_SIZE);
+        r = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            long l = r.nextLong();
+            assertEquals(i, storage.read(i).getInt(0));
+            assertEquals(l, storage.read(i).getLong(1000));
+            assertEquals(i, storage.read(-i - 1).getInt(0));
+            assertEquals(l, storage.read(-i - 1).getLong(1000));
+        }
+        assertTrue(Arrays.equals(random, storage.read(1000).array()));
+        assertEquals(0, storage.read(5000).getInt(0));
+        storage.forceClose();
+    }
+
+    public void testReuseSpace() throws Exception {
+        String f = newTestFile();
+        File dataFile = new File(f + StorageDiskCompressed.DATA + ".0");
+        StorageDiskCompressed storage = new StorageDiskCompressed(f, false, false, Storage.DEFAULT_BLOCK_SIZE);
+        byte[] random = new byte[Storage.DEFAULT_BLOCK_SIZE];
+        new Random(1).nextBytes(random);
+        ByteBuffer page = ByteBuffer.wrap(random);
+        storage.write(1, page);
+        storage.sync();
+        long size = dataFile.length();
+
+        //old version is released after sync and reused
+        for (int i = 0; i < 10; i++) {
+            storage.write(1, page);
+            storage.sync();
+        }
+        assertTrue(dataFile.length() <= 2 * size);
+
+        //zero page is not stored
+        storage.write(1, ByteBuffer.allocate(Storage.DEFAULT_BLOCK_SIZE));
+        storage.sync();
+        assertEquals(0, storage.read(1).getInt(0));
+        storage.write(2, page);
+        assertTrue(dataFile.length() <= 2 * size);
+        storage.forceClose();
+    }
+
+    public void testLargePageNumber() throws Exception {
+        String f = newTestFile();
+        StorageDiskCompressed storage = new StorageDiskCompressed(f, false, false, Storage.DEFAULT_BLOCK_SIZE);
+        ByteBuffer page = ByteBuffer.allocate(Storage.DEFAULT_BLOCK_SIZE);
+        page.putInt(0, 1);
+        storage.write(0, page);
+        //position of index entry does not fit into int, it must not wrap around to other page
+        page.putInt(0, 2);
+        try {
+            storage.write(1L << 31, page);
+            fail();
+        } catch (IOException e) {
+            //expected
+        }
+        assertEquals(1, storage.read(0).getInt(0));
+        assertEquals(0, storage.read(1L << 31).getInt(0));
+        assertEquals(0, storage.read(-(1L << 31)).getInt(0));
+        storage.forceClose();
+    }
+
+    public void testIndexMarker() throws Exception {
+        String f = newTestFile();
+        RandomAccessFile index = new RandomAccessFile(f + StorageDiskCompressed.INDEX + ".0", "rw");
+        index.writeLong(Storage.DEFAULT_BLOCK_SIZE);
+        index.writeLong(0);
+        index.close();
+        try {
+            new StorageDiskCompressed(f, false, false, Storage.DEFAULT_BLOCK_SIZE);
+            fail();
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+}
@@ -1,13 +1,138 @@
 package net.kotek.jdbm;
 
-import junit.framework.TestCase;
+import java.io.File;
+import java.nio.ByteBuffer;
 
 
-public class StorageDiskMappedTest extends TestCase {
+public class StorageDiskMappedTest extends TestCaseWithTestFile {
     
     public void testNumberOfPages(){
 
-        assertTrue(StorageDiskMapped.PAGES_PER_FILE * Storage.BLOCK_SIZE <Integer.MAX_VALUE);
+        assertTrue(StorageDiskMapped.FILE_SIZE <Integer.MAX_VALUE);
         
     }
+
+    public void testWriteRun() throws Exception {
+        checkWriteRun(new StorageDiskMapped(newTestFile(), false, false, Storage.DEFAULT_BLOCK_SIZE));
+        checkWriteRun(new StorageDisk(newTestFile(), false, Storage.DEFAULT_BLOCK_SIZE));
+        checkWriteRun(new StorageMemory(false, Storage.DEFAULT_BLOCK_SIZE));
+    }
+
+    public void testChunkedGrowth() throws Exception {
+        String file = newTestFile();
+        File dataFile = new File(file + StorageDiskMapped.DBR + ".0");
+        StorageDiskMapped storage = new StorageDiskMapped(file, false, false, Storage.DEFAULT_BLOCK_SIZE);
+        ByteBuffer page = ByteBuffer.allocate(Storage.DEFAULT_BLOCK_SIZE);
+        page.putInt(0, 111);
+        storage.write(0, page);
+        ByteBuffer first = storage.read(0);
+        //chunk is mapped with its full size
+        assertEquals(StorageDiskMapped.CHUNK_SIZE, dataFile.length());
+
+        //write within first chunk, file does not grow
+        long near = 10 * 1024 * 1024 / Storage.DEFAULT_BLOCK_SIZE;
+        page.putInt(0, 333);
+        storage.write(near, page);
+        assertEquals(333, storage.read(near).getInt(0));
+        assertEquals(StorageDiskMapped.CHUNK_SIZE, dataFile.length());
+
+        //write far beyond first chunk, file grows but existing mapping stays valid
+        long far = 3 * StorageDiskMapped.CHUNK_SIZE / Storage.DEFAULT_BLOCK_SIZE + 5;
+        page.putInt(0, 222);
+        storage.write(far, page);
+        page.putInt(0, 444);
+        storage.write(0, page);
+        assertEquals(444, first.getInt(0));
+        assertEquals(222, storage.read(far).getInt(0));
+        assertEquals(0, storage.read(far - 1).getInt(0));
+        storage.sync();
+        assertEquals(4L * StorageDiskMapped.CHUNK_SIZE, dataFile.length());
+        storage.forceClose();
+
+        //readonly storage maps chunk only up to end of file
+        storage = new StorageDiskMapped(file, true, false, Storage.DEFAULT_BLOCK_SIZE);
+        assertEquals(444, storage.read(0).getInt(0));
+        assertEquals(222, storage.read(far).getInt(0));
+        storage.forceClose();
+    }
+
+    public void testTruncate() throws Exception {
+        String file = newTestFile();
+        File dataFile = new File(file + StorageDiskMapped.DBR + ".0");
+        long far = 3 * StorageDiskMapped.CHUNK_SIZE / Storage.DEFAULT_BLOCK_SIZE + 5;
+        StorageDiskMapped mapped = new StorageDiskMapped(file, false, false, Storage.DEFAULT_BLOCK_SIZE);
+        checkTruncate(mapped, far);
+        //chunks after last page are released
+        assertEquals(StorageDiskMapped.CHUNK_SIZE, dataFile.length());
+        mapped.forceClose();
+
+        file = newTestFile();
+        dataFile = new File(file + StorageDiskMapped.DBR + ".0");
+        StorageDisk disk = new StorageDisk(file, false, Storage.DEFAULT_BLOCK_SIZE);
+        checkTruncate(disk, 1000);
+        //page 15 was written again after truncate
+        assertEquals(16 * Storage.DEFAULT_BLOCK_SIZE, dataFile.length());
+        disk.forceClose();
+
+        StorageMemory memory = new StorageMemory(false, Storage.DEFAULT_BLOCK_SIZE);
+        checkTruncate(memory, 1000);
+        memory.forceClose();
+
+        file = newTestFile();
+        dataFile = new File(file + StorageDiskCompressed.DATA + ".0");
+        StorageDiskCompressed compressed = new StorageDiskCompressed(file, false, false, Storage.DEFAULT_BLOCK_SIZE);
+        checkTruncate(compressed, 1000);
+        compressed.sync();
+        assertTrue(dataFile.length() <= 12 * StorageDiskCompressed.UNIT_SIZE);
+        compressed.forceClose();
+    }
+
+    /**
+     * Writes translation page, pages 0-19 and given page, truncates storage to 10 pages
+     */
+    void checkTruncate(Storage storage, long far) throws Exception {
+        ByteBuffer page = ByteBuffer.allocate(Storage.DEFAULT_BLOCK_SIZE);
+        page.putInt(0, 119);
+        storage.write(-1, page);
+        for (int i = 0; i < 20; i++) {
+            page.putInt(0, 100 + i);
+            storage.write(i, page);
+        }
+        storage.write(far, page);
+        storage.sync();
+
+        storage.truncate(10);
+        storage.sync();
+        for (int i = 0; i < 10; i++)
+            assertEquals(100 + i, storage.read(i).getInt(0));
+        assertEquals(0, storage.read(10).getInt(0));
+        assertEquals(0, storage.read(19).getInt(0));
+        assertEquals(0, storage.read(far).getInt(0));
+        //translation pages are not affected
+        assertEquals(119, storage.read(-1).getInt(0));
+
+        //storage grows again
+        storage.write(15, page);
+        assertEquals(119, storage.read(15).getInt(0));
+    }
+
+    void checkWriteRun(Storage storage) throws Exception {
+        ByteBuffer[] run = new ByteBuffer[10];
+        for (int i = 0; i < run.length; i++) {
+            run[i] = ByteBuffer.allocate(Storage.DEFAULT_BLOCK_SIZE);
+            run[i].putInt(0, 100 + i);
+            run[i].putInt(Storage.DEFAULT_BLOCK_SIZE - 4, 200 + i);
+        }
+        storage.write(3, run);
+        storage.write(-12, run);
+
+        for (int i = 0; i < run.length; i++) {
+            assertEquals(100 + i, storage.read(3 + i).getInt(0));
+            assertEquals(200 + i, storage.read(3 + i).getInt(Storage.DEFAULT_BLOCK_SIZE - 4));
+            assertEquals(100 + i, storage.read(-12 + i).getInt(0));
+        }
+        //page before run is untouched
+        assertEquals(0, storage.read(2).getInt(0));
+        storage.forceClose();
+    }
 }
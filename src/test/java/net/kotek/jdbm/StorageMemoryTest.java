@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package net.kotek.jdbm;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+public class StorageMemoryTest extends TestCase {
+
+    public void testReuseZeroPages() throws Exception {
+        StorageMemory storage = new StorageMemory(false, Storage.DEFAULT_BLOCK_SIZE);
+        ByteBuffer page = ByteBuffer.allocate(Storage.DEFAULT_BLOCK_SIZE);
+        page.putInt(0, 1);
+        storage.write(10, page);
+        storage.write(-3, page);
+        assertTrue(storage.read(10).isDirect());
+        assertTrue(storage.read(10).isReadOnly());
+        assertEquals(1, storage.read(-3).getInt(0));
+
+        //zero page releases its slot, it is reused by next page
+        ByteBuffer zero = ByteBuffer.allocate(Storage.DEFAULT_BLOCK_SIZE);
+        storage.write(10, zero);
+        assertFalse(storage.read(10).isDirect());
+        assertEquals(0, storage.read(10).getInt(0));
+
+        page.putInt(0, 2);
+        storage.write(100000, page);
+        assertEquals(2, storage.read(100000).getInt(0));
+        assertEquals(1, storage.read(-3).getInt(0));
+        assertEquals(0, storage.read(10).getInt(0));
+        storage.forceClose();
+    }
+
+    public void testManySlabs() throws Exception {
+        StorageMemory storage = new StorageMemory(true, Storage.DEFAULT_BLOCK_SIZE);
+        ByteBuffer page = ByteBuffer.allocate(Storage.DEFAULT_BLOCK_SIZE);
+        int count = (StorageMemory.SLAB_SIZE / Storage.DEFAULT_BLOCK_SIZE) * 2 + 10;
+        for (int i = 0; i < count; i++) {
+            page.putInt(100, i + 1);
+            storage.write(i, page);
+        }
+        for (int i = 0; i < count; i++)
+            assertEquals(i + 1, storage.read(i).getInt(100));
+
+        //with transactions disabled page can be modified directly
+        ByteBuffer b = storage.read(5);
+        b.putInt(100, -1);
+        storage.write(5, b);
+        assertEquals(-1, storage.read(5).getInt(100));
+        storage.forceClose();
+    }
+}
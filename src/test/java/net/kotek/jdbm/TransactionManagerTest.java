@@ -17,6 +17,7 @@
 package net.kotek.jdbm;
 
 import java.io.File;
+import java.util.Map;
 
 /**
  * This class contains all Unit tests for {@link TransactionManager}.
@@ -58,7 +59,7 @@ public class TransactionManagerTest extends TestCaseWithTestFile {
         // The second instance should start recovery.
         RecordFile file2 = new RecordFile(file);
 
-        assertDataSizeEquals("len2", 3 * Storage.BLOCK_SIZE);
+        assertDataSizeEquals("len2", 3 * Storage.DEFAULT_BLOCK_SIZE);
         assertLogSizeEquals("len2", 8);
 
         file2.forceClose();
@@ -87,19 +88,159 @@ public class TransactionManagerTest extends TestCaseWithTestFile {
 
         // The data file now has the first slotfull
         assertDataSizeEquals("len1", 1 *
-                Storage.BLOCK_SIZE + 6);
+                Storage.DEFAULT_BLOCK_SIZE + 6);
         assertLogSizeNotZero("len1");
 
         // Leave the old record file in flux, and open it again.
         // The second instance should start recovery.
         RecordFile file2 = new RecordFile(file);
 
-        assertDataSizeEquals("len2", txnCount * Storage.BLOCK_SIZE);
+        assertDataSizeEquals("len2", txnCount * Storage.DEFAULT_BLOCK_SIZE);
         assertLogSizeEquals("len2", 8);
 
         file2.forceClose();
     }
 
+    /**
+     * Test concurrent commits with group commit enabled
+     */
+    public void testGroupCommit() throws Exception {
+        final DB db = new DBMaker(file).enableGroupCommit(5, 4).build();
+        final Map<Integer, String> map = db.createHashMap("test");
+        db.commit();
+
+        final int threadCount = 8;
+        final int commitCount = 50;
+        Thread[] threads = new Thread[threadCount];
+        final Throwable[] error = new Throwable[1];
+        for (int i = 0; i < threadCount; i++) {
+            final int threadNum = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < commitCount; j++) {
+                            map.put(threadNum * commitCount + j, "value" + j);
+                            db.commit();
+                        }
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertNull(error[0]);
+        db.close();
+
+        DB db2 = new DBMaker(file).build();
+        Map<Integer, String> map2 = db2.getHashMap("test");
+        assertEquals(threadCount * commitCount, map2.size());
+        assertEquals("value7", map2.get(commitCount + 7));
+        db2.close();
+    }
+
+    /**
+     * Test concurrent commits share log syncs with default checkpoint settings
+     */
+    public void testGroupCommitSharesSync() throws Exception {
+        final DB db = new DBMaker(file).disableCache().enableGroupCommit(20, 4).build();
+        final Map<Integer, String> map = db.createHashMap("test");
+        db.commit();
+        long syncs = ((DBStore) db).getLogSyncCount();
+
+        final int threadCount = 8;
+        final int commitCount = 50;
+        Thread[] threads = new Thread[threadCount];
+        final Throwable[] error = new Throwable[1];
+        for (int i = 0; i < threadCount; i++) {
+            final int threadNum = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < commitCount; j++) {
+                            map.put(threadNum * commitCount + j, "value" + j);
+                            db.commit();
+                        }
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertNull(error[0]);
+        syncs = ((DBStore) db).getLogSyncCount() - syncs;
+        assertTrue("log synced " + syncs + " times", syncs <= threadCount * commitCount / 2);
+        db.close();
+    }
+
+    /**
+     * Test small commits stay in log with default checkpoint settings, until log is written into data file on close
+     */
+    public void testDefaultCheckpointThreshold() throws Exception {
+        DB db = new DBMaker(file).disableCache().build();
+        Map<Integer, String> map = db.createHashMap("test");
+        for (int i = 0; i < 10; i++) {
+            map.put(i, "value" + i);
+            db.commit();
+        }
+        File dataFile = new File(file + StorageDiskMapped.DBR + ".0");
+        assertEquals(0, dataFile.length());
+        db.close();
+        assertTrue(dataFile.length() > 0);
+
+        DB db2 = new DBMaker(file).disableCache().build();
+        assertEquals("value9", db2.getHashMap("test").get(9));
+        db2.close();
+    }
+
+    /**
+     * Test checkpoints in background thread, rollback and recovery of both log segments
+     */
+    public void testBackgroundCheckpoint() throws Exception {
+        RecordFile file1 = new RecordFile(file);
+        file1.txnMgr.setCheckpoint(true, 8 * Storage.DEFAULT_BLOCK_SIZE, 0);
+
+        for (int i = 0; i < 100; i++) {
+            BlockIo node = file1.get(i % 10);
+            node.writeInt(0, i);
+            file1.release(node);
+            file1.commit();
+        }
+
+        // rollback should discard only uncommitted change
+        BlockIo node = file1.get(3);
+        node.writeInt(0, -1);
+        file1.release(node);
+        file1.rollback();
+        node = file1.get(3);
+        assertEquals(93, node.readInt(0));
+        file1.release(node);
+
+        for (int i = 100; i < 105; i++) {
+            node = file1.get(i % 10);
+            node.writeInt(0, i);
+            file1.release(node);
+            file1.commit();
+        }
+        file1.forceClose();
+
+        // recovery replays log segments in order
+        RecordFile file2 = new RecordFile(file);
+        for (int i = 0; i < 10; i++) {
+            node = file2.get(i);
+            assertEquals(i < 5 ? 100 + i : 90 + i, node.readInt(0));
+            file2.release(node);
+        }
+        file2.close();
+        assertFalse(new File(StorageDisk.transactionLogName(file, 0)).exists());
+        assertFalse(new File(StorageDisk.transactionLogName(file, 1)).exists());
+    }
+
     //  Helpers
 
     void assertDataSizeEquals(String msg, long size) {